@@ -28,9 +28,11 @@ import com.ms.wsdiscovery.gui2.dialogs.WsDiscoveryServiceDialog;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import java.awt.Color;
 import java.awt.Dialog.ModalityType;
+import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.net.URI;
@@ -79,6 +81,50 @@ public class WsDiscoveryGui extends javax.swing.JFrame {
         }       
     }
 
+    /**
+     * Updates a table when services are added to, updated in or removed 
+     * from a service directory.
+     */
+    class TableUpdater implements IWsDiscoveryServiceDirectoryListener {
+        private final DefaultTableModel model;
+
+        TableUpdater(DefaultTableModel model) {
+            this.model = model;
+        }
+
+        public void serviceAdded(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+            storeRow(service);
+        }
+
+        public void serviceUpdated(IWsDiscoveryServiceDirectory directory, WsDiscoveryService oldService, WsDiscoveryService newService) {
+            storeRow(newService);
+        }
+
+        public void serviceRemoved(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+            final String uuid = service.getEndpointReference();
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    int j = findRowByUUID(model, uuid);
+                    if (j > -1)
+                        model.removeRow(j);
+                }
+            });
+        }
+
+        private void storeRow(WsDiscoveryService service) {
+            final String[] row = serviceToRow(service);
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    int j = findRowByUUID(model, row[0]);
+                    if (j > -1)
+                        updateRow(model, j, row);
+                    else
+                        model.addRow(row);
+                }
+            });
+        }
+    }
+
     private WsDiscoveryServer wsdiscovery = null;
     private Timer discoveryTimer;
 
@@ -101,28 +147,7 @@ public class WsDiscoveryGui extends javax.swing.JFrame {
                     buttonSendProbe.setEnabled(true);
                     buttonSendCustomProbe.setEnabled(true);
 
-                    DefaultTableModel model;
-                    IWsDiscoveryServiceDirectory services;
-
-                    // Local services
-                    try {
-                        services = wsdiscovery.getLocalServices();
-                        model = (DefaultTableModel) tableLocalServices.getModel();
-                        addServicesToTable(model, services);
-                    } catch (WsDiscoveryServiceDirectoryException ex) {
-                        log_fatal(ex.toString());
-                        JOptionPane.showMessageDialog(null, ex.getMessage());
-                    }
-
-                    // Remote services
-                    try {
-                        services = wsdiscovery.getServiceDirectory();
-                        model = (DefaultTableModel) tableServiceDirectory.getModel();
-                        addServicesToTable(model, services);
-                    } catch (WsDiscoveryServiceDirectoryException ex) {
-                        log_fatal(ex.toString());
-                        JOptionPane.showMessageDialog(null, ex.getMessage());
-                    }
+                    // The tables are updated by TableUpdater
 
                     // Update buttons
                     if (wsdiscovery.isProxy()) {
@@ -302,6 +327,16 @@ public class WsDiscoveryGui extends javax.swing.JFrame {
                 }
                
                 wsdiscovery = new WsDiscoveryServer();
+
+                // Start with empty tables and update them when the directories change
+                DefaultTableModel model = (DefaultTableModel) tableLocalServices.getModel();
+                wsdiscovery.getLocalServices().addListener(new TableUpdater(model));
+                addServicesToTable(model, wsdiscovery.getLocalServices());
+
+                model = (DefaultTableModel) tableServiceDirectory.getModel();
+                wsdiscovery.getServiceDirectory().addListener(new TableUpdater(model));
+                addServicesToTable(model, wsdiscovery.getServiceDirectory());
+
                 wsdiscovery.start();
 
                 buttonWsDiscoveryControl.setText("Stop WS-Discovery");
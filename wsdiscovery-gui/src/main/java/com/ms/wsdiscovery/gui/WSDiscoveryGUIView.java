@@ -20,13 +20,12 @@ package com.ms.wsdiscovery.gui;
 
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.jdesktop.application.Action;
 import org.jdesktop.application.ResourceMap;
 import org.jdesktop.application.SingleFrameApplication;
 import org.jdesktop.application.FrameView;
 import org.jdesktop.application.TaskMonitor;
+import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.net.URI;
@@ -45,6 +44,7 @@ import com.ms.wsdiscovery.exception.WsDiscoveryException;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
 import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceCollection;
 
 
@@ -113,6 +113,50 @@ public class WSDiscoveryGUIView extends FrameView {
             model.removeRow(deleteRows.get(i));
     }
 
+    /**
+     * Updates a table when services are added to, updated in or removed 
+     * from a service directory.
+     */
+    protected class TableUpdater implements IWsDiscoveryServiceDirectoryListener {
+        private final DefaultTableModel model;
+        
+        public TableUpdater(DefaultTableModel model) {
+            this.model = model;
+        }
+        
+        public void serviceAdded(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+            storeRow(service);
+        }
+
+        public void serviceUpdated(IWsDiscoveryServiceDirectory directory, WsDiscoveryService oldService, WsDiscoveryService newService) {
+            storeRow(newService);
+        }
+
+        public void serviceRemoved(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+            final String uuid = service.getEndpointReference();
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    int j = findRowByUUID(model, uuid);
+                    if (j > -1)
+                        model.removeRow(j);
+                }
+            });
+        }
+        
+        private void storeRow(WsDiscoveryService service) {
+            final String[] row = serviceToRow(service);
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    int j = findRowByUUID(model, row[0]);
+                    if (j > -1)
+                        updateRow(model, j, row);
+                    else
+                        model.addRow(row);
+                }
+            });
+        }
+    }
+
     public WSDiscoveryGUIView(SingleFrameApplication app) {
         super(app);
 
@@ -120,28 +164,8 @@ public class WSDiscoveryGUIView extends FrameView {
 
         discoveryTimer = new Timer(1000, new ActionListener() {
             public void actionPerformed(ActionEvent e) {
+                // The tables are updated by TableUpdater
                 if ((wsdiscovery != null) && (wsdiscovery.isAlive())) {
-                    DefaultTableModel model;
-                    IWsDiscoveryServiceDirectory services;
-
-                    // Local services
-                    try {
-                        services = wsdiscovery.getLocalServices();
-                        model = (DefaultTableModel) tableLocalServices.getModel();
-                        addServicesToTable(model, services);
-                    } catch (WsDiscoveryServiceDirectoryException ex) {
-                        Logger.getLogger(WSDiscoveryGUIView.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    
-                    // Remote services
-                    try {
-                        services = wsdiscovery.getServiceDirectory();
-                        model = (DefaultTableModel) tableRemoteServices.getModel();
-                        addServicesToTable(model, services);
-                    } catch (WsDiscoveryServiceDirectoryException ex) {
-                        Logger.getLogger(WSDiscoveryGUIView.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    
                     buttonStop.setEnabled(true);
                     buttonStart.setEnabled(false);
                     buttonProbe.setEnabled(true);
@@ -237,6 +261,16 @@ public class WSDiscoveryGUIView extends FrameView {
             return;
         }
         wsdiscovery = WsDiscoveryBuilder.createServer();
+        
+        // Start with empty tables and update them when the directories change
+        DefaultTableModel model = (DefaultTableModel) tableLocalServices.getModel();
+        wsdiscovery.getLocalServices().addListener(new TableUpdater(model));
+        addServicesToTable(model, wsdiscovery.getLocalServices());
+        
+        model = (DefaultTableModel) tableRemoteServices.getModel();
+        wsdiscovery.getServiceDirectory().addListener(new TableUpdater(model));
+        addServicesToTable(model, wsdiscovery.getServiceDirectory());
+        
         wsdiscovery.start();
     }
 
@@ -19,6 +19,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package com.ms.wsdiscovery;
 
+import com.ms.wsdiscovery.clock.interfaces.IClock;
+import com.ms.wsdiscovery.clock.SystemClock;
 import com.ms.wsdiscovery.exception.WsDiscoveryException;
 import java.net.InetAddress;
 import com.ms.wsdiscovery.xml.WsdXMLBuilder;
@@ -29,9 +31,11 @@ import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.UUID;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
 import javax.xml.namespace.QName;
 import javax.xml.soap.SOAPConstants;
 import com.ms.wsdiscovery.network.transport.TransportType;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPRingBuffer;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import com.ms.wsdiscovery.xml.jaxb_generated.AttributedURI;
 import com.ms.wsdiscovery.xml.jaxb_generated.HelloType;
@@ -50,7 +54,21 @@ public class WsDiscoveryConstants {
      * Select the transport protocol to use when sending SOAP-messages. See 
      * {@link TransportType} for valid transport types.
      */
-    public final static TransportType transportType = TransportType.SOAP_OVER_UDP;
+    public static TransportType transportType = TransportType.SOAP_OVER_UDP;
+
+    /**
+     * Maximum number of idle JAXB marshallers and unmarshallers kept for 
+     * reuse by each {@link WsdXMLBuilder}. Changes only affect builders 
+     * created afterwards.
+     */
+    public static int jaxbPoolSize = 16;
+
+    /**
+     * Time source used for timestamps, retransmissions and timeouts. 
+     * Replace with a {@link com.ms.wsdiscovery.clock.VirtualClock} to run 
+     * simulations faster than real time.
+     */
+    public static IClock clock = new SystemClock();
 
     /**
      * Builder with helpers used for constructing XML
@@ -156,6 +174,201 @@ public class WsDiscoveryConstants {
      */
     public static NetworkInterface multicastInterface = null;
         
+    /**
+     * Time window in milliseconds in which received message IDs are 
+     * remembered, so that repeated messages can be discarded. Should be 
+     * longer than the time it takes to send all UDP repeats of a message.
+     */
+    public static long duplicateWindow = 10000;
+    
+    /**
+     * Expected peak number of received messages per second. Used together with
+     * <code>duplicateWindow</code> to size the duplicate message filter.
+     */
+    public static int duplicateMaxMessagesPerSecond = 1000;
+    
+    /**
+     * Number of worker threads used to handle received messages. When 0, 
+     * messages are parsed and handled one at a time by the thread receiving 
+     * them. When larger than 0, messages are parsed by this many threads in 
+     * parallel and then handled by this many threads, where all messages 
+     * about the same endpoint reference go to the same thread (so Hello and 
+     * Bye for a service are handled in the order they were received). 
+     * Directory listeners may then be called from several threads.
+     */
+    public static int dispatchWorkers = 0;
+    
+    /**
+     * Capacity of each queue between the dispatch stages when 
+     * <code>dispatchWorkers</code> is larger than 0. The receiving thread 
+     * blocks when the queues are full.
+     */
+    public static int dispatchQueueSize = 1024;
+    
+    /**
+     * When true, Hello, ProbeMatches and ResolveMatches are serialized by 
+     * concatenating a precompiled envelope with the serialized description of
+     * each service, which is cached by the service description until the 
+     * service changes. When false, each message is built and marshalled with 
+     * SAAJ/JAXB. The ProbeMatches cache requires templates.
+     */
+    public static boolean useMessageTemplates = true;
+    
+    /**
+     * When true, outbound messages are serialized by writing the envelope 
+     * directly from byte templates (see WsdSOAPWriter) instead of building a 
+     * SAAJ message and converting it to a string.
+     */
+    public static boolean useSOAPWriter = true;
+    
+    /**
+     * Number of distinct Probes (types, scopes and MatchBy) whose 
+     * ProbeMatches-replies are cached. Cached replies are discarded when the 
+     * service directory changes, including when a stored service is changed
+     * with its setters. Set to 0 to disable the cache.
+     */
+    public static int probeMatchCacheSize = 256;
+    
+    /**
+     * Maximum number of Hello- and Bye-messages per second sent by 
+     * WsDiscoveryServer.publishAll() and unpublishAll(). Each message is 
+     * repeated by the transport layer (see SOAPOverUDP). Set to 0 to send 
+     * announcements without rate limit.
+     */
+    public static int announceRate = 100;
+    
+    /**
+     * Upper bound of the random delay in ms added to each Hello sent by 
+     * WsDiscoveryServer.publishAll(), so that several servers restarting at
+     * the same time don't announce in step. Corresponds to APP_MAX_DELAY in 
+     * the WS-Discovery specification.
+     */
+    public static int announceMaxDelay = 500;
+    
+    /**
+     * Capacity of the ring buffer between the receiver threads and the 
+     * dispatcher in the SOAP-over-UDP transports. Rounded up to a power of 
+     * two. Memory use is bounded by this many received messages.
+     */
+    public static int receiveQueueSize = 4096;
+    
+    /**
+     * How the dispatcher waits for received messages. 
+     * {@link SOAPRingBuffer.WaitStrategy#PARK} uses no CPU while idle; 
+     * busy-spin and yield give lower latency at the cost of a busy core.
+     */
+    public static SOAPRingBuffer.WaitStrategy receiveQueueWaitStrategy = SOAPRingBuffer.WaitStrategy.PARK;
+    
+    /**
+     * What the receiver threads do when the receive ring buffer is full: 
+     * drop the message and count it, or wait for the dispatcher (leaving 
+     * new datagrams in the socket receive buffer).
+     */
+    public static SOAPRingBuffer.FullPolicy receiveQueueFullPolicy = SOAPRingBuffer.FullPolicy.DROP;
+    
+    /**
+     * Maximum number of multicast packets per second sent by SOAPOverUDP 
+     * and SOAPOverUDPNio, including retransmissions. Set to 0 for no limit. When this or 
+     * {@link #multicastByteRate} is set, messages that are due wait in 
+     * priority queues, so that Bye is sent before bulk Hellos.
+     */
+    public static int multicastPacketRate = 0;
+    
+    /**
+     * Maximum number of multicast payload bytes per second sent by 
+     * SOAPOverUDP and SOAPOverUDPNio, including retransmissions. Set to 0 for no limit.
+     */
+    public static int multicastByteRate = 0;
+    
+    /**
+     * Number of multicast packets that can be sent back to back when the 
+     * rate limit has not been reached for a while.
+     */
+    public static int multicastPacketBurst = 16;
+    
+    /**
+     * Number of multicast payload bytes that can be sent back to back when 
+     * the rate limit has not been reached for a while.
+     */
+    public static int multicastByteBurst = 65536;
+    
+    /**
+     * Maximum number of multicast messages waiting for the rate limiter. 
+     * When full, the newest messages of the lowest priority are dropped.
+     */
+    public static int multicastBacklog = 1024;
+    
+    /**
+     * Probes and Resolves accepted per second from each source address when 
+     * running in proxy mode. Excess requests are discarded before the body 
+     * is parsed. Hello and Bye are not limited. 0, the default, disables 
+     * the limit.
+     */
+    public static int proxySourceRate = 0;
+    
+    /**
+     * Number of Probes and Resolves accepted back to back from a source 
+     * address that has been quiet, when running in proxy mode.
+     */
+    public static int proxySourceBurst = 20;
+    
+    /**
+     * Maximum number of source addresses tracked by the proxy rate limiter. 
+     * Sources beyond this share a single limit.
+     */
+    public static int proxySourceTableSize = 4096;
+    
+    /**
+     * Time in ms before an idle source address is forgotten by the proxy 
+     * rate limiter.
+     */
+    public static long proxySourceTimeout = 60000;
+    
+    /**
+     * Compression level used by {@link TransportType#SOAP_OVER_UDP_ZLIB}, 
+     * 0-9. Higher levels give smaller packets at the cost of more CPU.
+     */
+    public static int zlibCompressionLevel = Deflater.BEST_COMPRESSION;
+    
+    /**
+     * When true, {@link TransportType#SOAP_OVER_UDP_ZLIB} compresses with a 
+     * preset dictionary of WS-Discovery strings. Received messages are 
+     * decompressed with or without the dictionary regardless of this 
+     * setting.
+     * <p>
+     * Off by default, since hosts running a version without dictionary 
+     * support can not decompress these messages. Only enable it once every 
+     * host using compression has been upgraded.
+     */
+    public static boolean zlibUseDictionary = false;
+    
+    /**
+     * Maximum number of idle deflaters and inflaters kept for reuse by each 
+     * compressing transport.
+     */
+    public static int zlibPoolSize = 4;
+    
+    /**
+     * When true, {@link TransportType#SOAP_OVER_UDP_MIXED} compresses 
+     * multicast messages. Only enable when all hosts understand compressed 
+     * messages.
+     */
+    public static boolean zlibMixedCompressMulticast = false;
+    
+    /**
+     * Maximum number of hosts {@link TransportType#SOAP_OVER_UDP_MIXED} 
+     * remembers the compression mode of.
+     */
+    public static int zlibMixedMaxPeers = 4096;
+    
+    /**
+     * When true, new service directories publish an immutable snapshot of 
+     * their contents after each change. Reads never block, but each change 
+     * copies the directory. Suitable when reads are much more frequent than 
+     * changes.
+     */
+    public static boolean useServiceDirectorySnapshots = false;
+        
     /**
      * Instance ID should be incremented each time the WS-Discovery service is 
      * restarted. See Appendix I - Application Sequencing in the WS-Discovery 
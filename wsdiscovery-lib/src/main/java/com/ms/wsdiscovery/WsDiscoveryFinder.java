@@ -31,6 +31,7 @@ import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 
 /**
@@ -54,6 +55,43 @@ public class WsDiscoveryFinder {
      * the client to start and stop the discovery service.
      */
     protected boolean stopServerOnExit = false;
+    /**
+     * Time in ms to wait for the first match when <code>find()</code> is 
+     * called without a timeout.
+     */
+    private static final int FIRST_MATCH_TIMEOUT = 100;
+    
+    /**
+     * Wakes up a thread waiting for new services in the service directory.
+     */
+    private static class ServiceSignal implements IWsDiscoveryServiceDirectoryListener {
+        private long changes = 0;
+        
+        public synchronized void serviceAdded(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+            changes++;
+            notifyAll();
+        }
+
+        public synchronized void serviceUpdated(IWsDiscoveryServiceDirectory directory, WsDiscoveryService oldService, WsDiscoveryService newService) {
+            changes++;
+            notifyAll();
+        }
+
+        public void serviceRemoved(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+        }
+        
+        /**
+         * Wait until a service has been added or updated after 
+         * <code>seen</code> changes, or until <code>deadline</code>.
+         * @return Number of changes so far.
+         */
+        synchronized long await(long seen, long deadline) throws InterruptedException {
+            long now;
+            while ((changes == seen) && ((now = WsDiscoveryConstants.clock.currentTimeMillis()) < deadline))
+                wait(deadline - now);
+            return changes;
+        }
+    }
 
     /**
      * Constructor. Creates and starts a WS-Discovery thread.
@@ -122,7 +160,8 @@ public class WsDiscoveryFinder {
      * within all scopes.
      * @param matchBy Match algorithm that clients should use to match the 
      * scope. <code>null</code> uses the default defined in WsDiscoveryConstants.
-     * @param timeoutInMs Time to wait for a match before returning. 
+     * @param timeoutInMs Maximum time to wait for a match. Returns as soon 
+     * as a match has been received. 0 waits for a short, fixed time.
      * @return Found services.
      * @throws InterruptedException Thrown if interrupted while waiting
      * @throws WsDiscoveryException on failure.
@@ -142,25 +181,33 @@ public class WsDiscoveryFinder {
         if (sd.size() > 0)
             return sd;
         
-        // Send probe
-        wsd.probe(portTypes, scopes, matchBy);
-        
-        long started = System.currentTimeMillis();
-        
-        // Wait for results
-        while (sd.size() == 0) {
-            try {
-                sd = wsd.getServiceDirectory().matchBy(portTypes, scopes, matchBy);
-            } catch (WsDiscoveryServiceDirectoryException ex) {
-                throw new WsDiscoveryException("Unable to search remote service directory.");
+        // Return as soon as a ProbeMatch- or Hello-message gives a match
+        ServiceSignal signal = new ServiceSignal();
+        wsd.getServiceDirectory().addListener(signal);
+        try {
+            wsd.probe(portTypes, scopes, matchBy);
+
+            long deadline = WsDiscoveryConstants.clock.currentTimeMillis() + 
+                    (timeoutInMs > 0 ? timeoutInMs : FIRST_MATCH_TIMEOUT);
+            long seen = 0;
+            while (WsDiscoveryConstants.clock.currentTimeMillis() < deadline) {
+                seen = signal.await(seen, deadline);
+                try {
+                    sd = wsd.getServiceDirectory().matchBy(portTypes, scopes, matchBy);
+                } catch (WsDiscoveryServiceDirectoryException ex) {
+                    throw new WsDiscoveryException("Unable to search remote service directory.");
+                }
+                if (sd.size() > 0)
+                    return sd;
             }
-            
-            // Break if we found something and timeoutInMs == 0, or if timeout expired
-            if ( ((sd.size() > 0) && (timeoutInMs == 0)) || 
-                    (System.currentTimeMillis() - started > timeoutInMs))
-                break;
-            
-            Thread.sleep(100);
+        } finally {
+            wsd.getServiceDirectory().removeListener(signal);
+        }
+        
+        try {
+            sd = wsd.getServiceDirectory().matchBy(portTypes, scopes, matchBy);
+        } catch (WsDiscoveryServiceDirectoryException ex) {
+            throw new WsDiscoveryException("Unable to search remote service directory.");
         }
         return sd;        
     }
@@ -329,7 +376,7 @@ public class WsDiscoveryFinder {
     public IWsDiscoveryServiceCollection findAll(int timeoutInMs)
             throws InterruptedException, WsDiscoveryServiceDirectoryException {
         wsd.probe();
-        Thread.sleep(timeoutInMs);
+        WsDiscoveryConstants.clock.sleep(timeoutInMs);
         return wsd.getServiceDirectory().matchAll();
     }        
     
@@ -20,12 +20,14 @@ package com.ms.wsdiscovery;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import javax.xml.namespace.QName;
 import javax.xml.ws.Service;
 import com.ms.wsdiscovery.exception.WsDiscoveryException;
 import com.ms.wsdiscovery.network.DispatchThread;
 import com.ms.wsdiscovery.network.exception.WsDiscoveryNetworkException;
+import com.ms.wsdiscovery.network.transport.interfaces.ITransportType;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
@@ -48,6 +50,15 @@ public class WsDiscoveryServer extends DispatchThread {
         super();
     }
     
+    /**
+     * Constructor using the specified transport layer instead of the one 
+     * selected in {@link WsDiscoveryConstants#transportType}.
+     * @param transport Transport layer.
+     */
+    public WsDiscoveryServer(ITransportType transport) {
+        super(transport);
+    }
+    
     /**
      * Publish the specified WS-Discovery service. Sends an initial Hello-packet
      * and adds the service to the local service directory. 
@@ -63,6 +74,25 @@ public class WsDiscoveryServer extends DispatchThread {
         }
     }
     
+    /**
+     * Publish several WS-Discovery services. The services are added to the 
+     * local service directory in one change, and their Hello-packets are 
+     * spread over time with a random delay and the rate limit in 
+     * {@link WsDiscoveryConstants#announceRate}. Returns before the 
+     * Hello-packets have been sent.
+     * 
+     * @param services Services to publish.
+     * @throws WsDiscoveryServiceDirectoryException on failure to store the services in the service directory.
+     */
+    public void publishAll(Collection<WsDiscoveryService> services) throws WsDiscoveryServiceDirectoryException {
+        getLocalServices().storeAll(services);
+        getServiceDirectory().storeAll(services);
+        synchronized (this) {
+            for (WsDiscoveryService service : services)
+                sendHello(service, nextAnnouncementTime(true));
+        }
+    }
+    
     /**
      * Publish the specified JAX-WS service. See {@link WsDiscoveryBuilder#createService}
      * for details on how the service is converted to a WS-Discovery service.
@@ -97,6 +127,21 @@ public class WsDiscoveryServer extends DispatchThread {
         getServiceDirectory().remove(service);
     }
     
+    /**
+     * Unpublish several services. The services are removed from the local 
+     * service directory in one change, and their Bye-packets are sent at the
+     * rate limit in {@link WsDiscoveryConstants#announceRate}.
+     * @param services Services to unpublish.
+     */
+    public void unpublishAll(Collection<WsDiscoveryService> services) {
+        synchronized (this) {
+            for (WsDiscoveryService service : services)
+                sendBye(service, nextAnnouncementTime(false));
+        }
+        getLocalServices().removeAll(services);
+        getServiceDirectory().removeAll(services);
+    }
+    
     /**
      * Resolve XAddrs/invocation URI for the specified service. 
      * 
@@ -213,13 +258,14 @@ public class WsDiscoveryServer extends DispatchThread {
     }
     
     /**
-     * Unpublish all services and stop.
+     * Unpublish all services and stop. The transport layer waits for the 
+     * Bye-packets to be sent before it stops, which takes one second per 
+     * {@link WsDiscoveryConstants#announceRate} services.
      */
     @Override
     public void done() throws WsDiscoveryException {
         try {
-            for (WsDiscoveryService service : getLocalServices().matchAll())
-                unpublish(service);
+            unpublishAll(getLocalServices().matchAll());
         } catch (WsDiscoveryServiceDirectoryException ex) {
             throw new WsDiscoveryException("Unable to unpublish all services.", ex);
         }
@@ -0,0 +1,37 @@
+/*
+SystemClock.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.clock;
+
+import com.ms.wsdiscovery.clock.interfaces.IClock;
+
+/**
+ * Clock using the system time.
+ *
+ * @author Magnus Skjegstad
+ */
+public class SystemClock implements IClock {
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+}
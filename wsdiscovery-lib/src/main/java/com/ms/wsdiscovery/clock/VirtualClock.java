@@ -0,0 +1,71 @@
+/*
+VirtualClock.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.clock;
+
+import com.ms.wsdiscovery.clock.interfaces.IClock;
+
+/**
+ * Clock that only moves when it is told to. Used for simulations and tests.
+ * Threads calling {@link #sleep(long)} wait until the clock has been 
+ * advanced past their wake-up time.
+ *
+ * @author Magnus Skjegstad
+ */
+public class VirtualClock implements IClock {
+    private long now;
+
+    /**
+     * Create a clock.
+     * @param start Initial time in milliseconds since epoch.
+     */
+    public VirtualClock(long start) {
+        now = start;
+    }
+
+    public synchronized long currentTimeMillis() {
+        return now;
+    }
+
+    public synchronized void sleep(long millis) throws InterruptedException {
+        long wakeup = now + millis;
+        while (now < wakeup)
+            wait();
+    }
+
+    /**
+     * Set the time. The clock can't be moved backwards.
+     * @param time New time in milliseconds since epoch.
+     */
+    public synchronized void set(long time) {
+        if (time < now)
+            throw new IllegalArgumentException("Clock can't be moved backwards.");
+        now = time;
+        notifyAll();
+    }
+
+    /**
+     * Move the clock forward.
+     * @param millis Milliseconds to add.
+     */
+    public void advance(long millis) {
+        synchronized (this) {
+            set(now + millis);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+IClock.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.clock.interfaces;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+
+/**
+ * Time source. All timestamps and timeouts in WS-Discovery are read from the 
+ * clock in {@link WsDiscoveryConstants#clock}, so that a simulated clock can 
+ * be used instead of the system clock.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface IClock {
+    
+    /**
+     * Get the current time.
+     * 
+     * @return Milliseconds since epoch.
+     */
+    long currentTimeMillis();
+    
+    /**
+     * Wait until the clock has advanced by <code>millis</code>.
+     * 
+     * @param millis Time to wait in milliseconds.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void sleep(long millis) throws InterruptedException;
+}
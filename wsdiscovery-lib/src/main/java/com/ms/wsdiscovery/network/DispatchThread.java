@@ -32,10 +32,8 @@ import com.ms.wsdiscovery.network.transport.interfaces.ITransportType;
 import com.ms.wsdiscovery.xml.WsdXMLBuilder;
 import com.ms.wsdiscovery.xml.jaxb_generated.ByeType;
 import com.ms.wsdiscovery.xml.jaxb_generated.HelloType;
-import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchesType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ProbeType;
-import com.ms.wsdiscovery.xml.jaxb_generated.ResolveMatchType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ResolveMatchesType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ResolveType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
@@ -49,15 +47,20 @@ import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import com.ms.wsdiscovery.xml.exception.WsDiscoveryXMLException;
 import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
 import com.ms.wsdiscovery.xml.soap.WsdSOAPMessageBuilder;
-import com.ms.wsdiscovery.xml.jaxb_generated.AttributedURI;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPTemplate;
+import com.ms.wsdiscovery.xml.soap.WsaActionType;
 import com.ms.wsdiscovery.xml.jaxb_generated.Relationship;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.util.Enumeration;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.UUID;
 
 /** 
  * Worker thread for WS-Discovery. Handles WS-Discovery messages received from 
@@ -73,22 +76,37 @@ import java.util.Map.Entry;
  */
 public class DispatchThread extends Thread {    
     private ITransportType transport; 
+    private final String sequenceId = "urn:uuid:" + UUID.randomUUID(); // AppSequence of messages sent by this thread
     protected WsDiscoveryServiceDirectory localServices = new WsDiscoveryServiceDirectory(); // Service directory containing published local services
     protected WsDiscoveryServiceDirectory serviceDirectory = new WsDiscoveryServiceDirectory(); // Service directory containing discovered services (including local)
     private WsdSOAPMessageBuilder soapBuilder = WsDiscoveryConstants.SOAPBUILDER; // Helper functions for building SOAP-messages
     private WsdXMLBuilder jaxbBuilder = WsDiscoveryConstants.XMLBUILDER; // Helper functions for building XML with JAXB
-    private LinkedList<AttributedURI> messagesReceived = new LinkedList<AttributedURI>(); // list of received message IDs
+    private DuplicateMessageFilter messagesReceived = new DuplicateMessageFilter(
+            WsDiscoveryConstants.duplicateWindow, 
+            WsDiscoveryConstants.duplicateMaxMessagesPerSecond); // received message IDs
+    private final ProbeMatchCache probeMatchCache = (WsDiscoveryConstants.probeMatchCacheSize > 0 ? 
+            new ProbeMatchCache(WsDiscoveryConstants.probeMatchCacheSize) : null); // Serialized replies to received probes
+    private final SourceRateLimiter sourceRateLimiter = (WsDiscoveryConstants.proxySourceRate > 0 ?
+            new SourceRateLimiter(WsDiscoveryConstants.proxySourceRate, WsDiscoveryConstants.proxySourceBurst,
+            WsDiscoveryConstants.proxySourceTableSize, WsDiscoveryConstants.proxySourceTimeout) : null); // Probes and Resolves per source in proxy mode
     private WsdLogger logger = new WsdLogger(DispatchThread.class.getName());
     private boolean threadDone = false; // Thread aborts when set to true
     
-    private boolean useProxy = false; // Address to proxy server. Null when disabled.
-    private int useProxyPort = WsDiscoveryConstants.multicastPort; // Default the same as the multicast port
-    private InetAddress useProxyAddress = null; // Address of proxy server
-    private WsDiscoveryService remoteProxyService = null;
+    private volatile boolean useProxy = false; // Address to proxy server. Null when disabled.
+    private volatile int useProxyPort = WsDiscoveryConstants.multicastPort; // Default the same as the multicast port
+    private volatile InetAddress useProxyAddress = null; // Address of proxy server
+    private volatile WsDiscoveryService remoteProxyService = null;
     
-    private boolean isProxy = false; // TRUE when functioning as a proxy server
+    private volatile boolean isProxy = false; // TRUE when functioning as a proxy server
     private WsDiscoveryService localProxyService = null; // Must be a service description registered in localServices when isProxy is set
     private boolean isRunning = false;
+    private volatile DispatchWorkers workers = null; // Parse and handle stages. Null when dispatching in the receiving thread
+    private final WsdSOAPTemplate[] templates = new WsdSOAPTemplate[4]; // Envelopes of Hello, proxy announce, ProbeMatches and ResolveMatches
+    private final Random announceRandom = new Random();
+    private long nextAnnouncement = 0; // Earliest send time of the next paced announcement, in microseconds. Guarded by this.
+    private final Map<String, Long> pendingHellos = 
+            new HashMap<String, Long>(); // Send time of paced Hellos, by endpoint address. Guarded by this.
+    private int pendingHellosPurge = 64; // Size of pendingHellos that triggers removal of sent Hellos. Guarded by this.
 
     /**
      * Creates a new {@link DispatchThread} instance.
@@ -106,13 +124,18 @@ public class DispatchThread extends Thread {
      * Thrown when unable to instantiate the transport layer.
      */
     public DispatchThread() throws WsDiscoveryNetworkException {        
-        try {
-            this.transport = WsDiscoveryConstants.transportType.newInstance();
-        } catch (IllegalAccessException ex) {
-            throw new WsDiscoveryNetworkException("Unable to instantiate transport type: " + ex.toString());
-        } catch (InstantiationException ex) {
-            throw new WsDiscoveryNetworkException("Unable to instantiate transport type: " + ex.toString());
-        } 
+        this(createTransport());
+    }
+    
+    /**
+     * Creates a new {@link DispatchThread} instance using the specified 
+     * transport layer instead of the one selected in 
+     * {@link WsDiscoveryConstants#transportType}. See {@link #DispatchThread()}.
+     * 
+     * @param transport Transport layer. Started and stopped by this thread.
+     */
+    public DispatchThread(ITransportType transport) {
+        this.transport = transport;
 
         // Create a proxy service description that can be added to the directory later if a proxy is enabled on this host
         InetAddress proxyIp = null;
@@ -158,6 +181,40 @@ public class DispatchThread extends Thread {
 
     }
     
+    private static ITransportType createTransport() throws WsDiscoveryNetworkException {
+        try {
+            return WsDiscoveryConstants.transportType.newInstance();
+        } catch (IllegalAccessException ex) {
+            throw new WsDiscoveryNetworkException("Unable to instantiate transport type: " + ex.toString());
+        } catch (InstantiationException ex) {
+            throw new WsDiscoveryNetworkException("Unable to instantiate transport type: " + ex.toString());
+        } 
+    }
+    
+    /**
+     * Set the AppSequence of a message sent by this thread. Each thread has 
+     * its own sequence ID, so that several threads in the same JVM can 
+     * tell their own messages from each other's.
+     * 
+     * @param m Message.
+     * @return <code>m</code>
+     */
+    private <E> WsdSOAPMessage<E> stamp(WsdSOAPMessage<E> m) {
+        m.setWsdSequenceId(sequenceId);
+        return m;
+    }
+    
+    /**
+     * Pass a message to the transport layer with the given priority class.
+     * 
+     * @param nm Message.
+     * @param priority Priority if the transport layer limits the send rate.
+     */
+    private void send(NetworkMessage nm, NetworkMessage.Priority priority) {
+        nm.setPriority(priority);
+        transport.send(nm);
+    }
+    
     /**
      * Get local services.
      * @return Service directory containing local services.
@@ -175,39 +232,28 @@ public class DispatchThread extends Thread {
     }
     
     /**
-     * Check if the AppSequence in the soap-messages is already received (used to avoid duplicates)
+     * Check if the MessageID of <code>soap</code> has already been received, 
+     * and register it as received if not (used to avoid duplicates). The 
+     * check is atomic, so only one worker handles a message even if copies 
+     * are parsed in parallel.
      * @param soap A SOAP-message
      * @return Whether a message with the same MessageID as the message in <code>soap</code> has been received earlier.
      * @throws WsDiscoveryNetworkException if getWsaMessageId() returns null.
      */ 
     private boolean isAlreadyReceived(WsdSOAPMessage soap) throws WsDiscoveryNetworkException {
-        if (soap.getWsaMessageId() == null)
+        if ((soap.getWsaMessageId() == null) || (soap.getWsaMessageId().getValue() == null))
             throw new WsDiscoveryNetworkException("Message ID was null.");
         
-        for (AttributedURI a : messagesReceived)
-            try {
-                if (a.getValue().equals(soap.getWsaMessageId().getValue()))
-                    return true;
-            } catch (NullPointerException ex) {
-                logger.finer("isAlreadyReceived() got null pointer exception");
-            }
-        return false;
+        return !messagesReceived.addIfAbsent(soap.getWsaMessageId().getValue());
     }
     
     /**
-     * Reads AppSequenceType in <code>soap</code> and registers this messages as received. Used to avoid duplicates.
-     * @param soap SOAP-message
-     * @throws WsDiscoveryNetworkException if getWsaMessageId() returns null.
+     * Get the filter used to discard duplicate messages. The filter keeps 
+     * hit and miss counters.
+     * @return Duplicate message filter.
      */
-    private void registerReceived(WsdSOAPMessage soap) throws WsDiscoveryNetworkException {
-        if (soap.getWsaMessageId() == null)
-            throw new WsDiscoveryNetworkException("MessageID was null");
-        // TODO Use ringbuffer instead?
-        // trim at 1000 entries
-        while (messagesReceived.size() > 1000)
-            messagesReceived.removeFirst();
-        // add to end
-        messagesReceived.add(soap.getWsaMessageId());
+    public DuplicateMessageFilter getDuplicateMessageFilter() {
+        return messagesReceived;
     }
     
     /**
@@ -227,7 +273,7 @@ public class DispatchThread extends Thread {
      */
     protected void sendProbe(List<QName> types, List<URI> scopes, MatchBy matchBy) {
         
-        WsdSOAPMessage<ProbeType> probe = soapBuilder.createWsdSOAPMessageProbe();
+        WsdSOAPMessage<ProbeType> probe = stamp(soapBuilder.createWsdSOAPMessageProbe());
                        
         logger.finer("sendProbe() Sending probe with @MatchBy="+matchBy);
         
@@ -485,27 +531,53 @@ public class DispatchThread extends Thread {
             ProbeType probe = (ProbeType)m.getJAXBBody();
             logger.fine("Probe received from " + originalMessage.getSrcAddress() + ", port " + originalMessage.getSrcPort());
             
+            boolean proxy = isProxy;
+            // Not in proxy mode; match local services only. If we are in 
+            // proxy mode, search full service directory
+            WsDiscoveryServiceDirectory directory = (proxy ? serviceDirectory : localServices);
+            
+            // Reply from the cache if the directory has not changed since 
+            // the same probe was last received
+            String key = null;
+            long version = 0;
+            if (probeMatchCache != null) {
+                key = ProbeMatchCache.key(proxy, probe.getTypes(), probe.getScopes());
+                version = directory.getVersion();
+                ProbeMatchCache.Template t = probeMatchCache.get(key, version);
+                if (t != null) {
+                    if (t == ProbeMatchCache.NO_MATCH)
+                        logger.fine("ProbeMatches NOT found (cached). No reply sent.");
+                    else {
+                        logger.fine("ProbeMatches sent with " + t.getMatches() + " cached matches to " + originalMessage.getSrcAddress() + ":" + originalMessage.getSrcPort());
+                        send(new NetworkMessage(
+                                t.render("urn:uuid:" + UUID.randomUUID(), 
+                                    WsdSOAPMessage.nextMessageNumber(),
+                                    m.getWsaMessageId().getValue(), getReplyTo(m)),
+                                null, 0, originalMessage.getSrcAddress(), originalMessage.getSrcPort()),
+                                NetworkMessage.Priority.HIGH);
+                    }
+                    return;
+                }
+            }
+            
             IWsDiscoveryServiceCollection totalMatches;
-
-            if (!isProxy) { // Not in proxy mode; match local services only                
-                try {
-                    totalMatches = localServices.matchBy(probe.getTypes(), probe.getScopes());
-                } catch (WsDiscoveryServiceDirectoryException ex) {
+            try {
+                totalMatches = directory.matchBy(probe.getTypes(), probe.getScopes());
+            } catch (WsDiscoveryServiceDirectoryException ex) {
+                if (!proxy)
                     throw new WsDiscoveryNetworkException("Unable to get MatchBy-results for received Probe-message.");
-                }
-            } else { // If we are in proxy mode, search full service directory
-                try {
-                    totalMatches = serviceDirectory.matchBy(probe.getTypes(), probe.getScopes());
-                } catch (WsDiscoveryServiceDirectoryException ex) {
+                else
                     throw new WsDiscoveryNetworkException("Unable to search remote services for match.");
-                }
             }
             
-            if ((totalMatches.size() > 0) || isProxy) { // Proxy MUST reply with match, even if empty
+            if ((totalMatches.size() > 0) || proxy) { // Proxy MUST reply with match, even if empty
                 logger.fine("ProbeMatches sent with " + totalMatches.size() + " matches to " + originalMessage.getSrcAddress() + ":" + originalMessage.getSrcPort());
-                sendProbeMatch(totalMatches, m, originalMessage.getSrcAddress(), originalMessage.getSrcPort());
-            } else
+                sendProbeMatch(totalMatches, m, originalMessage.getSrcAddress(), originalMessage.getSrcPort(), key, version);
+            } else {
                 logger.fine("ProbeMatches NOT found. No reply sent.");
+                if (key != null)
+                    probeMatchCache.put(key, version, ProbeMatchCache.NO_MATCH);
+            }
         } else
             throw new WsDiscoveryNetworkException("Message of unknown type passed to recvProbe()");
     }
@@ -519,14 +591,14 @@ public class DispatchThread extends Thread {
         logger.finer("sendResolve()");
         // Return if less than 10 seconds from last time we tried to resolve this service
         if (service.getTriedToResolve() != null)
-            if (service.getTriedToResolve().getTime()+10000 > (new Date()).getTime()) {
+            if (service.getTriedToResolve().getTime()+10000 > WsDiscoveryConstants.clock.currentTimeMillis()) {
                 logger.finer("sendResolve() called too often for service " + service.getEndpointReference());
                 return;
             }
         
         logger.finer("sendResolve() Sent Resolve for service " + service.getEndpointReference());
         // Send resolve package
-        WsdSOAPMessage<ResolveType> resolve = soapBuilder.createWsdSOAPMessageResolve();
+        WsdSOAPMessage<ResolveType> resolve = stamp(soapBuilder.createWsdSOAPMessageResolve());
         resolve.getJAXBBody().setEndpointReference(service.createEndpointReferenceObject());
         // Send multicast in normal mode or unicast in proxy mode
         if (useProxy) // Unicast
@@ -534,7 +606,7 @@ public class DispatchThread extends Thread {
         else // Multicast
             transport.send(new NetworkMessage(resolve));        
         
-        service.setTriedToResolve(new Date());
+        service.setTriedToResolve(new Date(WsDiscoveryConstants.clock.currentTimeMillis()));
     }
     
     /**
@@ -548,7 +620,20 @@ public class DispatchThread extends Thread {
         logger.finer("sendProxyAnnounce()");
 
         logger.fine("Sending proxy announce to " + originalMessage.getSrcAddress() + ":" + originalMessage.getSrcPort());
-        WsdSOAPMessage<HelloType> m = soapBuilder.createWsdSOAPMessageHello(localProxyService);
+        WsdSOAPTemplate t = getTemplate(WsaActionType.HELLO, true);
+        if (t != null)
+            try {
+                send(new NetworkMessage(t.render("urn:uuid:" + UUID.randomUUID(), 
+                        WsdSOAPMessage.nextMessageNumber(), relatesToMessage.getWsaMessageId().getValue(), 
+                        WsDiscoveryConstants.defaultTo.getValue(), localProxyService.getHelloFragment()),
+                        null, 0, originalMessage.getSrcAddress(), originalMessage.getSrcPort()), 
+                        NetworkMessage.Priority.BULK);
+                return;
+            } catch (WsDiscoveryXMLException ex) {
+                logger.warning("Unable to serialize proxy announce from fragment: " + ex.getMessage());
+            }
+        
+        WsdSOAPMessage<HelloType> m = stamp(soapBuilder.createWsdSOAPMessageHello(localProxyService));
         
         Relationship r = new Relationship();
         r.setValue(relatesToMessage.getWsaMessageId().getValue());
@@ -557,7 +642,8 @@ public class DispatchThread extends Thread {
         
         m.setWsaRelatesTo(r);
         
-        transport .send(new NetworkMessage(m.toString(), null, 0, originalMessage.getSrcAddress(), originalMessage.getSrcPort()));
+        send(new NetworkMessage(m.toString(), null, 0, originalMessage.getSrcAddress(), originalMessage.getSrcPort()),
+                NetworkMessage.Priority.BULK);
     }
     
     
@@ -567,9 +653,64 @@ public class DispatchThread extends Thread {
      * @param service Service that says Hello.
      */
     protected void sendHello(WsDiscoveryService service) {
-        WsdSOAPMessage<HelloType> m = soapBuilder.createWsdSOAPMessageHello(service);
-        transport.send (new NetworkMessage(m)); // Send multicast if no address is given
-        logger.finer("sendHello() called for service " + m.getJAXBBody().getEndpointReference());
+        sendHello(service, 0);
+    }
+    
+    /**
+     * Send Hello at a later time.
+     * 
+     * @param service Service that says Hello.
+     * @param sendTime Earliest time to send the message, see 
+     * {@link NetworkMessage#setSendTime(long)}. 0 sends immediately.
+     */
+    protected void sendHello(WsDiscoveryService service, long sendTime) {
+        NetworkMessage nm = null;
+        WsdSOAPTemplate t = getTemplate(WsaActionType.HELLO, false);
+        if (t != null)
+            try {
+                nm = new NetworkMessage(t.render("urn:uuid:" + UUID.randomUUID(), 
+                        WsdSOAPMessage.nextMessageNumber(), null, 
+                        WsDiscoveryConstants.defaultTo.getValue(), service.getHelloFragment()),
+                        null, 0, WsDiscoveryConstants.multicastAddress, WsDiscoveryConstants.multicastPort);
+            } catch (WsDiscoveryXMLException ex) {
+                logger.warning("Unable to serialize Hello from fragment: " + ex.getMessage());
+            }
+        
+        if (nm == null) 
+            nm = new NetworkMessage(stamp(soapBuilder.createWsdSOAPMessageHello(service))); // Send multicast if no address is given
+        nm.setSendTime(sendTime);
+        if (sendTime > 0)
+            addPendingHello(service.getEndpointReference(), sendTime);
+        send(nm, NetworkMessage.Priority.BULK);
+        logger.finer("sendHello() called for service " + service.getEndpointReference());
+    }
+    
+    /**
+     * Remember the send time of a paced Hello, so that a Bye for the same 
+     * service is not sent before it. Hellos that have been sent are removed 
+     * when the table has doubled in size.
+     */
+    private synchronized void addPendingHello(String address, long sendTime) {
+        if (pendingHellos.size() >= pendingHellosPurge) {
+            long now = WsDiscoveryConstants.clock.currentTimeMillis();
+            for (Iterator<Long> i = pendingHellos.values().iterator(); i.hasNext();)
+                if (i.next() < now)
+                    i.remove();
+            pendingHellosPurge = Math.max(64, pendingHellos.size() * 2);
+        }
+        pendingHellos.put(address, sendTime);
+    }
+    
+    /**
+     * Get the send time of a paced Hello that has not been sent yet, and 
+     * forget it.
+     * @return Send time, or 0 if there is no pending Hello.
+     */
+    private synchronized long removePendingHello(String address) {
+        Long sendTime = pendingHellos.remove(address);
+        if ((sendTime == null) || (sendTime < WsDiscoveryConstants.clock.currentTimeMillis()))
+            return 0;
+        return sendTime;
     }
     
     /**
@@ -578,9 +719,55 @@ public class DispatchThread extends Thread {
      * @param service Service that says Bye.
      */
     protected void sendBye(WsDiscoveryService service) {
-        WsdSOAPMessage<ByeType> m = soapBuilder.createWsdSOAPMessageBye(service);
-        transport.send(new NetworkMessage(m));
-        logger.finer("sendBye() called for service " + m.getJAXBBody().getEndpointReference());
+        sendBye(service, 0);
+    }
+    
+    /**
+     * Send Bye at a later time. If a paced Hello for the service has not 
+     * been sent yet, the Bye is sent after it.
+     * 
+     * @param service Service that says Bye.
+     * @param sendTime Earliest time to send the message, see 
+     * {@link NetworkMessage#setSendTime(long)}. 0 sends immediately.
+     */
+    protected void sendBye(WsDiscoveryService service, long sendTime) {
+        WsdSOAPMessage<ByeType> m = stamp(soapBuilder.createWsdSOAPMessageBye(service));
+        NetworkMessage nm = new NetworkMessage(m);
+        NetworkMessage.Priority priority = NetworkMessage.Priority.HIGH;
+        
+        // A Bye overtaking a paced Hello would leave the service in the 
+        // directories of the receivers. Send it after the Hello, in the same 
+        // queue of the rate limiter.
+        long helloTime = removePendingHello(service.getEndpointReference());
+        if (helloTime > 0) {
+            sendTime = Math.max(sendTime, helloTime + 1);
+            priority = NetworkMessage.Priority.BULK;
+        }
+        
+        nm.setSendTime(sendTime);
+        send(nm, priority);
+        logger.finer("sendBye() called for service " + service.getEndpointReference());
+    }
+    
+    /**
+     * Get the send time of the next announcement in a batch. Announcements 
+     * are spaced to stay below {@link WsDiscoveryConstants#announceRate}, 
+     * counted from the last announcement scheduled by this instance, and 
+     * may get an additional random delay of up to 
+     * {@link WsDiscoveryConstants#announceMaxDelay}.
+     * 
+     * @param randomDelay Add a random delay.
+     * @return Send time in milliseconds after epoch.
+     */
+    protected synchronized long nextAnnouncementTime(boolean randomDelay) {
+        long now = WsDiscoveryConstants.clock.currentTimeMillis() * 1000;
+        long slot = Math.max(now, nextAnnouncement);
+        if (WsDiscoveryConstants.announceRate > 0)
+            nextAnnouncement = slot + 1000000L / WsDiscoveryConstants.announceRate;
+        long sendTime = slot / 1000;
+        if (randomDelay && (WsDiscoveryConstants.announceMaxDelay > 0))
+            sendTime += announceRandom.nextInt(WsDiscoveryConstants.announceMaxDelay);
+        return sendTime;
     }
     
     /**
@@ -596,80 +783,181 @@ public class DispatchThread extends Thread {
             WsdSOAPMessage originalMessage, InetAddress dstAddress, int dstPort) {
         // Return if less than 10 seconds since we sent a resolve match for this service to the requesting host
         if ((matchedService != null) && (matchedService.getTriedToResolve() != null))
-            if (matchedService.getTriedToResolve().getTime() + 10000 > (new Date()).getTime()) {
+            if (matchedService.getTriedToResolve().getTime() + 10000 > WsDiscoveryConstants.clock.currentTimeMillis()) {
                 logger.finer("sendResolveMatch() called too often for service " + matchedService.getEndpointReference());
                 return;
             }
               
-        // Send resolve match
-        WsdSOAPMessage<ResolveMatchesType> m = soapBuilder.createWsdSOAPMessageResolveMatches();
+        // RelatesTo must contain the original MessageID. Set To to ReplyTo, 
+        // or the anonymous value
+        String relatesTo = originalMessage.getWsaMessageId().getValue();
+        String to = getReplyTo(originalMessage);
         
-        // RelatesTo must contain the original MessageID
-        m.setWsaRelatesTo(jaxbBuilder.createRelationship(originalMessage.getWsaMessageId().getValue()));
-        
-        // Set To to ReplyTo, or the anonymous value
-        if ((originalMessage.getWsaReplyTo() != null) && (originalMessage.getWsaReplyTo().getAddress() != null))
-            m.setWsaTo(jaxbBuilder.createAttributedURI(originalMessage.getWsaReplyTo().getAddress().getValue()));
-        else
-            m.setWsaTo(WsDiscoveryConstants.anonymousTo);
+        byte[] message = null;
+        WsdSOAPTemplate t = getTemplate(WsaActionType.RESOLVEMATCHES, false);
+        if (t != null)
+            try {
+                message = t.render("urn:uuid:" + UUID.randomUUID(), WsdSOAPMessage.nextMessageNumber(), 
+                        relatesTo, to, soapBuilder.createResolveMatchesBody(matchedService));
+            } catch (WsDiscoveryXMLException ex) {
+                logger.warning("Unable to serialize ResolveMatches from fragments: " + ex.getMessage());
+            }
         
-        ResolveMatchType match = null;
-        if (matchedService != null) {
-            match = new ResolveMatchType();
-
-            match.setEndpointReference(matchedService.createEndpointReferenceObject());
-            match.setMetadataVersion(matchedService.getMetadataVersion());
-            match.setScopes(matchedService.createScopesObject());
-            match.getTypes().addAll(matchedService.getPortTypes());
-            match.getXAddrs().addAll(matchedService.getXAddrs());
-
-            m.getJAXBBody().setResolveMatch(match);
+        if (message == null) {
+            // Send resolve match
+            WsdSOAPMessage<ResolveMatchesType> m = stamp(soapBuilder.createWsdSOAPMessageResolveMatches());
+            m.setWsaRelatesTo(jaxbBuilder.createRelationship(relatesTo));
+            m.setWsaTo(jaxbBuilder.createAttributedURI(to));
+            if (matchedService != null)
+                m.getJAXBBody().setResolveMatch(matchedService.createResolveMatchObject());
+            message = m.toString().getBytes(WsDiscoveryConstants.defaultEncoding);
         }
                         
         // Send match to dstaddress and dstport (this is the source address and port of the host that sent the resolve-packet)
-        transport.send(new NetworkMessage(m.toString(), null, 0, dstAddress, dstPort));
+        send(new NetworkMessage(message, null, 0, dstAddress, dstPort), NetworkMessage.Priority.HIGH);
         
         // Store time 
         matchedService.setSentResolveMatch(dstAddress);
     }
     
     /**
-     * Send unicast ProbeMatch for all services in "matches". 
+     * Get the To of a reply to <code>m</code>: the ReplyTo address, or 
+     * the anonymous value.
+     * 
+     * @param m Message to reply to.
+     * @return To of the reply.
+     */
+    private String getReplyTo(WsdSOAPMessage m) {
+        if ((m.getWsaReplyTo() != null) && (m.getWsaReplyTo().getAddress() != null))
+            return m.getWsaReplyTo().getAddress().getValue();
+        return WsDiscoveryConstants.anonymousTo.getValue();
+    }
+    
+    /**
+     * Send unicast ProbeMatch for all services in "matches". When 
+     * <code>key</code> is set the message is also stored in the probe match 
+     * cache.
      * 
      * @param matches Services to include in ProbeMatch.
      * @param originalMessage Original message as received from transport layer.
      * @param dstAddress Destination address.
      * @param dstPort Destination port.
+     * @param key Probe key in the cache, or null if the message should not be cached.
+     * @param version Version of the directory <code>matches</code> was found in.
      */
     private void sendProbeMatch(IWsDiscoveryServiceCollection matches,
-            WsdSOAPMessage originalMessage, InetAddress dstAddress, int dstPort)  {        
+            WsdSOAPMessage originalMessage, InetAddress dstAddress, int dstPort,
+            String key, long version)  {        
         
-        // Create probe match
-        WsdSOAPMessage<ProbeMatchesType> m = soapBuilder.createWsdSOAPMessageProbeMatches();
+        // RelatesTo must contain the original MessageID. Set To to ReplyTo, 
+        // or the anonymous value
+        String relatesTo = originalMessage.getWsaMessageId().getValue();
+        String to = getReplyTo(originalMessage);
         
-        // RelatesTo must contain the original MessageID
-        m.setWsaRelatesTo(jaxbBuilder.createRelationship(originalMessage.getWsaMessageId().getValue()));
+        // Concatenate the serialized matches into the envelope template
+        WsdSOAPTemplate t = getTemplate(WsaActionType.PROBEMATCHES, false);
+        if (t != null) {
+            try {
+                byte[][] body = soapBuilder.createProbeMatchesBody(matches);
+                if (key != null)
+                    probeMatchCache.put(key, version, new ProbeMatchCache.Template(t.bind(body), matches.size()));
+                send(new NetworkMessage(t.render("urn:uuid:" + UUID.randomUUID(), 
+                        WsdSOAPMessage.nextMessageNumber(), relatesTo, to, body), 
+                        null, 0, dstAddress, dstPort), NetworkMessage.Priority.HIGH);
+                return;
+            } catch (WsDiscoveryXMLException ex) {
+                logger.warning("Unable to serialize ProbeMatches from fragments: " + ex.getMessage());
+            }
+        }
         
-        // Set To to ReplyTo, or the anonymous value
-        if ((originalMessage.getWsaReplyTo() != null) && (originalMessage.getWsaReplyTo().getAddress() != null))
-            m.setWsaTo(jaxbBuilder.createAttributedURI(originalMessage.getWsaReplyTo().getAddress().getValue()));
-        else
-            m.setWsaTo(WsDiscoveryConstants.anonymousTo);
+        // Create probe match
+        WsdSOAPMessage<ProbeMatchesType> m = stamp(soapBuilder.createWsdSOAPMessageProbeMatches());
+        m.setWsaRelatesTo(jaxbBuilder.createRelationship(relatesTo));
+        m.setWsaTo(jaxbBuilder.createAttributedURI(to));
 
-        for (WsDiscoveryService service : matches) {
-            ProbeMatchType match = new ProbeMatchType();
-            
-            match.setEndpointReference(service.createEndpointReferenceObject());
-            match.setMetadataVersion(service.getMetadataVersion());
-            match.setScopes(service.createScopesObject());
-            match.getTypes().addAll(service.getPortTypes());
-            match.getXAddrs().addAll(service.getXAddrs());
-            
-            m.getJAXBBody().getProbeMatch().add(match);
-        }
+        for (WsDiscoveryService service : matches)
+            m.getJAXBBody().getProbeMatch().add(service.createProbeMatchObject());
                         
         // Send match to dstaddress and dstport (this is the source address and port of the host that sent the resolve-packet)
-        transport.send(new NetworkMessage(m.toString(), null, 0, dstAddress, dstPort)); 
+        send(new NetworkMessage(m.toString(), null, 0, dstAddress, dstPort), NetworkMessage.Priority.HIGH);
+    }
+    
+    /**
+     * Get the envelope template for messages of type <code>action</code> 
+     * sent by this thread. The template is compiled on first use.
+     * 
+     * @param action Message type. Only Hello, ProbeMatches and ResolveMatches are supported.
+     * @param suppression True for a Hello with a Suppression RelatesTo (proxy announcement).
+     * @return Template, or null if templates are disabled by 
+     * {@link WsDiscoveryConstants#useMessageTemplates} or could not be compiled.
+     */
+    private WsdSOAPTemplate getTemplate(WsaActionType action, boolean suppression) {
+        if (!WsDiscoveryConstants.useMessageTemplates)
+            return null;
+        
+        int i;
+        switch (action) {
+            case HELLO: i = (suppression ? 1 : 0); break;
+            case PROBEMATCHES: i = 2; break;
+            case RESOLVEMATCHES: i = 3; break;
+            default: 
+                throw new IllegalArgumentException("No template for " + action);
+        }
+        
+        WsdSOAPTemplate t = templates[i];
+        if (t == null) {
+            try {
+                t = WsdSOAPTemplate.compile(action, sequenceId, 
+                        (action != WsaActionType.HELLO) || suppression, 
+                        (suppression ? WsDiscoveryConstants.defaultProxyRelatesToRelationship : null));
+            } catch (WsDiscoveryXMLException ex) {
+                logger.warning("Unable to compile " + action + " template: " + ex.getMessage());
+                return null;
+            }
+            templates[i] = t; // Compiling twice in parallel is harmless
+        }
+        return t;
+    }
+    
+    /**
+     * Get the cache of ProbeMatches-replies. The cache keeps hit, miss and 
+     * invalidation counters.
+     * @return Probe match cache, or null if disabled by 
+     * {@link WsDiscoveryConstants#probeMatchCacheSize}.
+     */
+    public ProbeMatchCache getProbeMatchCache() {
+        return probeMatchCache;
+    }
+    
+    /**
+     * Get the limiter of Probes and Resolves per source address, used when 
+     * running in proxy mode. The limiter counts the requests it sheds.
+     * @return Source rate limiter, or null if disabled by 
+     * {@link WsDiscoveryConstants#proxySourceRate}.
+     */
+    public SourceRateLimiter getSourceRateLimiter() {
+        return sourceRateLimiter;
+    }
+    
+    /**
+     * Check whether a request is subject to the source rate limiter. Only 
+     * Probes and Resolves received in proxy mode are limited.
+     * @param m Message with parsed header.
+     * @param message Received message.
+     * @return True if the source rate limiter applies to the message.
+     */
+    private boolean isRateLimited(WsdSOAPMessage m, NetworkMessage message) {
+        if (!isProxy || (sourceRateLimiter == null) || (message.getSrcAddress() == null))
+            return false;
+        if ((m.getWsaMessageId() == null) || (m.getWsaMessageId().getValue() == null))
+            return false; // Rejected by isAlreadyReceived
+        if ((m.getWsaAction() == null) || (m.getWsaAction().getValue() == null))
+            return false;
+        String action = m.getWsaAction().getValue();
+        if (!action.equals(WsaActionType.PROBE.toAttributedURI().getValue()) &&
+                !action.equals(WsaActionType.RESOLVE.toAttributedURI().getValue()))
+            return false;
+        return true;
     }
     
     /**
@@ -688,14 +976,45 @@ public class DispatchThread extends Thread {
         if (message == null)
             return;
         
-        // Was message sent multicast or unicast?
-        boolean isMulticast = (message.getDstAddress().equals(WsDiscoveryConstants.multicastAddress) ||
-                              (message.getDstPort() == transport.getMulticastPort()));
-        
-        // Parse message
+        DispatchWorkers w = workers;
+        if (w == null) {
+            dispatch(message);
+            return;
+        }
+        try {
+            w.submit(message);
+        } catch (InterruptedException ex) {}
+    }
+    
+    /**
+     * Handle a single message received by the transport layer. Called from 
+     * the main loop, but can also be called directly to feed messages to this 
+     * instance without starting the thread (e.g. from a simulator).
+     * 
+     * @param message Received message.
+     * @throws WsDiscoveryNetworkException on errors.
+     */
+    protected void dispatch(NetworkMessage message) throws WsDiscoveryNetworkException {
+        WsdSOAPMessage m = parse(message);
+        if (m != null)
+            handle(m, message);
+    }
+    
+    /**
+     * First dispatch stage. Parses a received message and registers its 
+     * MessageID as received. Can be called from several threads at once.
+     * 
+     * @param message Received message.
+     * @return Parsed message, or null if it was sent by us, is a duplicate or 
+     * was shed by the source rate limiter.
+     * @throws WsDiscoveryNetworkException on errors.
+     */
+    WsdSOAPMessage parse(NetworkMessage message) throws WsDiscoveryNetworkException {
+        // Parse message header. The body is not unmarshalled until we know 
+        // that the message should be handled.
         WsdSOAPMessage m;
         try {
-            m = soapBuilder.createWsdSOAPMessage(message.getMessage());
+            m = soapBuilder.createWsdSOAPMessage(message.getPayload(), 0, message.getPayloadLen(), true);
         } catch (WsDiscoveryXMLException ex) {
             throw new WsDiscoveryNetworkException("Unable to create WS-Discovery SOAP message.", ex);
         }             
@@ -703,57 +1022,116 @@ public class DispatchThread extends Thread {
         // Return if the message was from us
         if ((m.getWsdInstanceId() == WsDiscoveryConstants.instanceId) &&
                 ((m.getWsdSequenceId() == null) ||
-                (m.getWsdSequenceId().equals("urn:uuid:" + WsDiscoveryConstants.sequenceId)))) {
+                (m.getWsdSequenceId().equals(sequenceId)))) {
             // TODO Shouldn't this be handled by the transport class?
             logger.finest("** Discarded message sent from us: " + m.getWsaMessageId().getValue());
-            return;
+            return null;
+        }
+        
+        // Return if the source has sent too many requests. This is checked 
+        // before the MessageID is recorded, so that a retransmission of a 
+        // shed request is handled once the source is below its limit again. 
+        // Duplicates of handled requests don't count against the limit.
+        if (isRateLimited(m, message) && 
+                !messagesReceived.peek(m.getWsaMessageId().getValue()) &&
+                !sourceRateLimiter.tryAcquire(message.getSrcAddress())) {
+            logger.finest("** Discarded request over rate limit from " + message.getSrcAddress());
+            return null;
         }
         
         // Return if the message has already been handled
         if (isAlreadyReceived(m)) {
             // TODO Shouldn't this be handled by the transport class?
             logger.finest("** Discarded duplicate MessageID: " + m.getWsaMessageId().getValue());
-            return;
+            return null;
         }
-
+        
+        // Parse message body
         try {
-            // HELLO
-            if (m.getJAXBBody() instanceof HelloType) {                
-                recvHello(m); // Add new service, even when using proxy
-            } else
-            // PROBE
-            if (m.getJAXBBody() instanceof ProbeType) {
-                if (isMulticast && isProxy) { // Respond to multicast probes with unicast proxy announcement
-                    logger.fine("Sending proxy announce in response to multicast Probe with MessageID: " + m.getWsaMessageId().getValue());
-                    sendProxyAnnounce(m, message);
-                }
-                recvProbe(m, message);
-            } else
-            // PROBE MATCHES
-            if (m.getJAXBBody() instanceof ProbeMatchesType) {
-                recvProbeMatches(m, message); // Add services from probe matches
-            } else
-            // RESOLVE
-            if (m.getJAXBBody() instanceof ResolveType) {
-                if (isMulticast && isProxy) { // Respond to multicast resolves with unicast proxy announcement
-                    logger.fine("Sending proxy announce in response to multicast Resolve with MessageID " + m.getWsaMessageId().getValue());
-                    sendProxyAnnounce(m, message);
-                }
-                recvResolve(m, message); // Send resolve match
-            } else
-            // RESOLVE MATCHES
-            if (m.getJAXBBody() instanceof ResolveMatchesType) {
-                recvResolveMatches(m, message); // Add updates from resolve matches
-            } else
-            // BYE
-            if (m.getJAXBBody() instanceof ByeType) {
-                recvBye(m); // Remove service
-            } else
-                throw new WsDiscoveryNetworkException("Don't know how to handle message " + message.toString());
-        } finally {
-            // Mark the message ID as received.
-            registerReceived(m);
+            m.parseBody();
+        } catch (WsDiscoveryXMLException ex) {
+            throw new WsDiscoveryNetworkException("Unable to parse body of WS-Discovery SOAP message.", ex);
         }
+        
+        return m;
+    }
+    
+    /**
+     * Second dispatch stage. Handles a parsed message. When called from 
+     * several threads, messages about the same endpoint reference must be 
+     * handled by the same thread. See {@link DispatchWorkers}.
+     * 
+     * @param m Parsed message, as returned by {@link #parse}.
+     * @param message Received message.
+     * @throws WsDiscoveryNetworkException on errors.
+     */
+    void handle(WsdSOAPMessage m, NetworkMessage message) throws WsDiscoveryNetworkException {
+        // Was message sent multicast or unicast?
+        boolean isMulticast = (message.getDstAddress().equals(WsDiscoveryConstants.multicastAddress) ||
+                              (message.getDstPort() == transport.getMulticastPort()));
+        
+        // HELLO
+        if (m.getJAXBBody() instanceof HelloType) {                
+            recvHello(m); // Add new service, even when using proxy
+        } else
+        // PROBE
+        if (m.getJAXBBody() instanceof ProbeType) {
+            if (isMulticast && isProxy) { // Respond to multicast probes with unicast proxy announcement
+                logger.fine("Sending proxy announce in response to multicast Probe with MessageID: " + m.getWsaMessageId().getValue());
+                sendProxyAnnounce(m, message);
+            }
+            recvProbe(m, message);
+        } else
+        // PROBE MATCHES
+        if (m.getJAXBBody() instanceof ProbeMatchesType) {
+            recvProbeMatches(m, message); // Add services from probe matches
+        } else
+        // RESOLVE
+        if (m.getJAXBBody() instanceof ResolveType) {
+            if (isMulticast && isProxy) { // Respond to multicast resolves with unicast proxy announcement
+                logger.fine("Sending proxy announce in response to multicast Resolve with MessageID " + m.getWsaMessageId().getValue());
+                sendProxyAnnounce(m, message);
+            }
+            recvResolve(m, message); // Send resolve match
+        } else
+        // RESOLVE MATCHES
+        if (m.getJAXBBody() instanceof ResolveMatchesType) {
+            recvResolveMatches(m, message); // Add updates from resolve matches
+        } else
+        // BYE
+        if (m.getJAXBBody() instanceof ByeType) {
+            recvBye(m); // Remove service
+        } else
+            throw new WsDiscoveryNetworkException("Don't know how to handle message " + message.toString());
+    }
+    
+    /**
+     * Get number of threads in each dispatch stage. See 
+     * {@link WsDiscoveryConstants#dispatchWorkers}.
+     * @return Number of workers, or 0 if messages are dispatched by the 
+     * receiving thread (or the thread is not running).
+     */
+    public int getDispatchWorkers() {
+        DispatchWorkers w = workers;
+        return (w == null ? 0 : w.getWorkers());
+    }
+    
+    /**
+     * Get number of received messages waiting to be parsed.
+     * @return Queue depth, 0 if there are no dispatch workers.
+     */
+    public int getParseQueueDepth() {
+        DispatchWorkers w = workers;
+        return (w == null ? 0 : w.getParseQueueDepth());
+    }
+    
+    /**
+     * Get number of parsed messages waiting to be handled, for each handler.
+     * @return Queue depth per handler. Empty if there are no dispatch workers.
+     */
+    public int[] getHandleQueueDepths() {
+        DispatchWorkers w = workers;
+        return (w == null ? new int[0] : w.getHandleQueueDepths());
     }
     
     /**
@@ -804,6 +1182,12 @@ public class DispatchThread extends Thread {
         
         transport.start();
         
+        if (WsDiscoveryConstants.dispatchWorkers > 0) {
+            workers = new DispatchWorkers(this, WsDiscoveryConstants.dispatchWorkers, 
+                    WsDiscoveryConstants.dispatchQueueSize);
+            workers.start();
+        }
+        
         isRunning = true;        
         
         // Notify waiting threads that we have started.
@@ -822,6 +1206,10 @@ public class DispatchThread extends Thread {
                 }   
             }
         } finally {        
+            if (workers != null) {
+                workers.stop();
+                workers = null;
+            }
             transport.done();
             logger.finer("Stopped " + getName());
             isRunning = false;
@@ -0,0 +1,305 @@
+/*
+DispatchWorkers.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network;
+
+import com.ms.wsdiscovery.logger.WsdLogger;
+import com.ms.wsdiscovery.xml.jaxb_generated.ByeType;
+import com.ms.wsdiscovery.xml.jaxb_generated.EndpointReferenceType;
+import com.ms.wsdiscovery.xml.jaxb_generated.HelloType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchesType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ResolveMatchesType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ResolveType;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Parallel dispatch stages for a {@link DispatchThread}. Received messages 
+ * are put in a shared queue and parsed by a pool of parser threads. Parsed 
+ * messages are then routed by endpoint reference to one of the handler 
+ * threads, each with its own queue. Routing is done in the order the 
+ * messages were received, even if a later message finishes parsing first. 
+ * All messages about the same service are therefore handled by the same 
+ * thread, in the order they were received, while messages about different 
+ * services are handled in parallel.
+ * <p>
+ * Probes have no endpoint reference and are routed by MessageID.
+ * 
+ * @author Magnus Skjegstad
+ */
+class DispatchWorkers {
+    private WsdLogger logger = new WsdLogger(DispatchWorkers.class.getName());
+    
+    private final DispatchThread dispatcher;
+    private final BlockingQueue<Received> parseQueue;
+    private final List<BlockingQueue<Parsed>> handleQueues;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean stopped = false;
+    
+    private long nextTicket = 0; // Ticket of next received message
+    private long nextRoute = 0; // Ticket of next message to route
+    private final ReentrantLock routeLock = new ReentrantLock();
+    private final Condition routeTurn = routeLock.newCondition();
+    
+    /**
+     * A received message, numbered in the order it was received.
+     */
+    private static class Received {
+        final NetworkMessage message;
+        final long ticket;
+        
+        Received(NetworkMessage message, long ticket) {
+            this.message = message;
+            this.ticket = ticket;
+        }
+    }
+    
+    /**
+     * A parsed message waiting to be handled.
+     */
+    private static class Parsed {
+        final WsdSOAPMessage soap;
+        final NetworkMessage message;
+        
+        Parsed(WsdSOAPMessage soap, NetworkMessage message) {
+            this.soap = soap;
+            this.message = message;
+        }
+    }
+    
+    /**
+     * Create dispatch stages. Threads are not started until {@link #start()}.
+     * 
+     * @param dispatcher Thread whose parse and handle methods are called.
+     * @param workers Number of threads in each stage.
+     * @param queueSize Capacity of each queue.
+     */
+    DispatchWorkers(DispatchThread dispatcher, int workers, int queueSize) {
+        if (workers <= 0)
+            throw new IllegalArgumentException("Number of workers must be positive.");
+        this.dispatcher = dispatcher;
+        parseQueue = new ArrayBlockingQueue<Received>(queueSize);
+        handleQueues = new ArrayList<BlockingQueue<Parsed>>(workers);
+        for (int i = 0; i < workers; i++)
+            handleQueues.add(new ArrayBlockingQueue<Parsed>(queueSize));
+    }
+    
+    /**
+     * Start the parser and handler threads.
+     */
+    void start() {
+        String name = dispatcher.getName();
+        for (int i = 0; i < handleQueues.size(); i++) {
+            threads.add(new Parser(name + "_parse_" + i));
+            threads.add(new Handler(name + "_handle_" + i, handleQueues.get(i)));
+        }
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+    
+    /**
+     * Stop all threads and wait for them to finish. Messages still in the 
+     * queues are discarded.
+     */
+    void stop() {
+        stopped = true;
+        for (Thread t : threads)
+            t.interrupt();
+        for (Thread t : threads)
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                break;
+            }
+        threads.clear();
+        parseQueue.clear();
+        for (BlockingQueue<Parsed> q : handleQueues)
+            q.clear();
+    }
+    
+    /**
+     * Queue a received message for parsing. Blocks while the queue is full.
+     * 
+     * @param message Received message.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    synchronized void submit(NetworkMessage message) throws InterruptedException {
+        parseQueue.put(new Received(message, nextTicket));
+        nextTicket++;
+    }
+    
+    /**
+     * Get number of threads in each stage.
+     * @return Number of workers.
+     */
+    int getWorkers() {
+        return handleQueues.size();
+    }
+    
+    /**
+     * Get number of messages waiting to be parsed.
+     * @return Queue depth.
+     */
+    int getParseQueueDepth() {
+        return parseQueue.size();
+    }
+    
+    /**
+     * Get number of messages waiting to be handled, for each handler.
+     * @return Queue depths.
+     */
+    int[] getHandleQueueDepths() {
+        int[] depths = new int[handleQueues.size()];
+        for (int i = 0; i < depths.length; i++)
+            depths[i] = handleQueues.get(i).size();
+        return depths;
+    }
+    
+    /**
+     * Get the key used to choose a handler for a parsed message: the 
+     * endpoint reference the message is about, or the MessageID if there 
+     * is none.
+     * 
+     * @param soap Message with parsed body.
+     * @return Routing key, or null if the message has neither.
+     */
+    static String getRoutingKey(WsdSOAPMessage soap) {
+        Object body = soap.getJAXBBody();
+        EndpointReferenceType epr = null;
+        
+        if (body instanceof HelloType)
+            epr = ((HelloType)body).getEndpointReference();
+        else if (body instanceof ByeType)
+            epr = ((ByeType)body).getEndpointReference();
+        else if (body instanceof ResolveType)
+            epr = ((ResolveType)body).getEndpointReference();
+        else if (body instanceof ResolveMatchesType) {
+            if (((ResolveMatchesType)body).getResolveMatch() != null)
+                epr = ((ResolveMatchesType)body).getResolveMatch().getEndpointReference();
+        } else if (body instanceof ProbeMatchesType) {
+            // Messages with several matches are routed by the first
+            ProbeMatchesType pmt = (ProbeMatchesType)body;
+            if ((pmt.getProbeMatch() != null) && (pmt.getProbeMatch().size() > 0))
+                epr = pmt.getProbeMatch().get(0).getEndpointReference();
+        }
+        
+        if ((epr != null) && (epr.getAddress() != null) && (epr.getAddress().getValue() != null))
+            return epr.getAddress().getValue();
+        if (soap.getWsaMessageId() != null)
+            return soap.getWsaMessageId().getValue();
+        return null;
+    }
+    
+    /**
+     * Choose handler for a parsed message.
+     * 
+     * @param soap Message with parsed body.
+     * @param handlers Number of handlers.
+     * @return Handler index between 0 and <code>handlers</code> - 1.
+     */
+    static int route(WsdSOAPMessage soap, int handlers) {
+        String key = getRoutingKey(soap);
+        if (key == null)
+            return 0;
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % handlers;
+    }
+    
+    /**
+     * Takes received messages from the shared queue, parses them and passes 
+     * them on to a handler.
+     */
+    private class Parser extends Thread {
+        Parser(String name) {
+            super(name);
+        }
+        
+        @Override
+        public void run() {
+            while (!stopped) {
+                Received r;
+                try {
+                    r = parseQueue.take();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                
+                WsdSOAPMessage soap = null;
+                try {
+                    soap = dispatcher.parse(r.message);
+                } catch (Exception ex) {
+                    logger.severe(ex.toString());
+                }
+                
+                // Wait for our turn, so that messages are routed in the 
+                // order they were received
+                boolean turn = false;
+                routeLock.lock();
+                try {
+                    while (nextRoute != r.ticket)
+                        routeTurn.await();
+                    turn = true;
+                    if (soap != null)
+                        handleQueues.get(route(soap, handleQueues.size())).put(new Parsed(soap, r.message));
+                } catch (InterruptedException ex) {
+                    break;
+                } finally {
+                    if (turn) { // Only pass the turn on if we had it
+                        nextRoute++;
+                        routeTurn.signalAll();
+                    }
+                    routeLock.unlock();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Handles parsed messages from one queue, in order.
+     */
+    private class Handler extends Thread {
+        private final BlockingQueue<Parsed> queue;
+        
+        Handler(String name, BlockingQueue<Parsed> queue) {
+            super(name);
+            this.queue = queue;
+        }
+        
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    Parsed p = queue.take();
+                    dispatcher.handle(p.soap, p.message);
+                } catch (InterruptedException ex) {
+                    break;
+                } catch (Exception ex) {
+                    logger.severe(ex.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+DuplicateMessageFilter.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import java.util.Arrays;
+
+/**
+ * Remembers the message IDs received within a time window, so that repeated
+ * UDP messages can be discarded.
+ * <p>
+ * Message IDs are reduced to 64-bit fingerprints and stored in a ring in the
+ * order they were received. The ring is indexed by an open addressing hash
+ * table (linear probing), which makes lookups and insertions constant time.
+ * Entries older than the time window are expired from the tail of the ring.
+ * If more messages are received within the window than the ring can hold,
+ * the oldest entries are overwritten.
+ *
+ * @author Magnus Skjegstad
+ */
+public class DuplicateMessageFilter {
+    private final long window; // Time window in ms
+    private final int ringMask;
+    private final long[] ringFingerprint; // Fingerprints in the order they were added
+    private final long[] ringTime; // Time each fingerprint was added
+    private final int tableMask;
+    private final int[] table; // Ring position + 1 for each used slot, 0 when empty
+
+    private int head = 0; // Next ring position to write
+    private int size = 0; // Number of entries in the ring
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a new filter. The capacity is the number of message IDs that
+     * can be remembered within the time window, rounded up to a power of two.
+     *
+     * @param window Time window in milliseconds.
+     * @param maxMessagesPerSecond Expected peak number of messages per second.
+     */
+    public DuplicateMessageFilter(long window, int maxMessagesPerSecond) {
+        if (window <= 0)
+            throw new IllegalArgumentException("Window must be positive.");
+        if (maxMessagesPerSecond <= 0)
+            throw new IllegalArgumentException("Message rate must be positive.");
+
+        this.window = window;
+
+        long entries = Math.max(16, (window * maxMessagesPerSecond + 999) / 1000);
+        int capacity = Integer.highestOneBit((int)Math.min(entries, 1 << 24) - 1) << 1;
+
+        ringMask = capacity - 1;
+        ringFingerprint = new long[capacity];
+        ringTime = new long[capacity];
+
+        // Keep the table at most half full
+        tableMask = (capacity << 1) - 1;
+        table = new int[capacity << 1];
+    }
+
+    /**
+     * Check whether a message ID has been added within the time window.
+     * Updates the hit and miss counters.
+     *
+     * @param messageId Message ID.
+     * @return True if the message ID was seen within the time window.
+     */
+    public synchronized boolean contains(String messageId) {
+        return contains(messageId, WsDiscoveryConstants.clock.currentTimeMillis());
+    }
+
+    /**
+     * Check whether a message ID has been added within the time window
+     * ending at <code>now</code>. Updates the hit and miss counters.
+     *
+     * @param messageId Message ID.
+     * @param now Current time in ms.
+     * @return True if the message ID was seen within the time window.
+     */
+    synchronized boolean contains(String messageId, long now) {
+        expire(now);
+        if (find(fingerprint(messageId)) >= 0) {
+            hits++;
+            return true;
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Check whether a message ID has been added within the time window, 
+     * without updating the hit and miss counters. Used to look at a message 
+     * before deciding whether to handle it.
+     *
+     * @param messageId Message ID.
+     * @return True if the message ID was seen within the time window.
+     */
+    synchronized boolean peek(String messageId) {
+        expire(WsDiscoveryConstants.clock.currentTimeMillis());
+        return find(fingerprint(messageId)) >= 0;
+    }
+
+    /**
+     * Check whether a message ID has been added within the time window, and 
+     * add it if not. Equivalent to {@link #contains(String)} followed by 
+     * {@link #add(String)}, but atomic, so that only one of several threads 
+     * receiving copies of the same message gets true.
+     *
+     * @param messageId Message ID.
+     * @return True if the message ID was added, false if it was already known.
+     */
+    public synchronized boolean addIfAbsent(String messageId) {
+        long now = WsDiscoveryConstants.clock.currentTimeMillis();
+        if (contains(messageId, now))
+            return false;
+        add(messageId, now);
+        return true;
+    }
+
+    /**
+     * Remember a message ID for the duration of the time window. Adding a 
+     * message ID that is already known has no effect.
+     *
+     * @param messageId Message ID.
+     */
+    public synchronized void add(String messageId) {
+        add(messageId, WsDiscoveryConstants.clock.currentTimeMillis());
+    }
+
+    /**
+     * Remember a message ID, received at time <code>now</code>.
+     *
+     * @param messageId Message ID.
+     * @param now Current time in ms.
+     */
+    synchronized void add(String messageId, long now) {
+        expire(now);
+
+        long fp = fingerprint(messageId);
+        if (find(fp) >= 0) // Already known
+            return;
+
+        if (size > ringMask) { // Ring is full, overwrite oldest entry
+            removeSlot(find(ringFingerprint[head]));
+            size--;
+            evictions++;
+        }
+
+        ringFingerprint[head] = fp;
+        ringTime[head] = now;
+
+        int i = (int)fp & tableMask;
+        while (table[i] != 0)
+            i = (i + 1) & tableMask;
+        table[i] = head + 1;
+
+        head = (head + 1) & ringMask;
+        size++;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    /**
+     * Get number of message IDs currently remembered.
+     * @return Number of entries.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the maximum number of message IDs that can be remembered.
+     * @return Capacity.
+     */
+    public int getCapacity() {
+        return ringMask + 1;
+    }
+
+    /**
+     * Get the time window.
+     * @return Time window in ms.
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Get number of lookups that found a duplicate.
+     * @return Number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get number of lookups that did not find a duplicate.
+     * @return Number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get number of entries that were overwritten before their time window
+     * expired, because the ring was full. If this grows the filter should be
+     * created with a higher message rate.
+     * @return Number of evictions.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Remove entries that are older than the time window from the tail of
+     * the ring.
+     */
+    private void expire(long now) {
+        while (size > 0) {
+            int tail = (head - size) & ringMask;
+            if (now - ringTime[tail] < window)
+                break;
+            removeSlot(find(ringFingerprint[tail]));
+            size--;
+        }
+    }
+
+    /**
+     * Find the table slot holding <code>fp</code>.
+     * @return Slot index, or -1 if not found.
+     */
+    private int find(long fp) {
+        int i = (int)fp & tableMask;
+        int pos;
+        while ((pos = table[i]) != 0) {
+            if (ringFingerprint[pos - 1] == fp)
+                return i;
+            i = (i + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Empty a table slot and shift following entries back, so that no probe
+     * sequence is broken (deletion without tombstones).
+     */
+    private void removeSlot(int slot) {
+        int i = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & tableMask;
+            int pos = table[j];
+            if (pos == 0)
+                break;
+            int home = (int)ringFingerprint[pos - 1] & tableMask;
+            // Move entry j into the gap at i unless its home slot lies
+            // cyclically in (i, j]
+            if ((i <= j) ? ((i < home) && (home <= j)) : ((i < home) || (home <= j)))
+                continue;
+            table[i] = pos;
+            i = j;
+        }
+        table[i] = 0;
+    }
+
+    /**
+     * Compute a 64-bit fingerprint of a message ID (FNV-1a followed by a
+     * final avalanche step, so that the low bits can be used as table index).
+     *
+     * @param messageId Message ID.
+     * @return Fingerprint.
+     */
+    static long fingerprint(String messageId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            h ^= messageId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -23,6 +23,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import com.ms.wsdiscovery.WsDiscoveryConstants;
 import com.ms.wsdiscovery.network.exception.WsDiscoveryNetworkException;
+import com.ms.wsdiscovery.xml.exception.WsDiscoveryXMLException;
 import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
 
 /**
@@ -33,6 +34,26 @@ import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
  * @author Magnus Skjegstad
  */
 public class NetworkMessage {
+    /**
+     * Priority class used when outbound messages are rate limited. Messages
+     * of a higher priority are sent first and dropped last.
+     */
+    public enum Priority {
+        /**
+         * Messages that must not be held back by announcements, e.g. Bye 
+         * and replies to Probe and Resolve.
+         */
+        HIGH,
+        /**
+         * Default priority, e.g. Probe and Resolve.
+         */
+        NORMAL,
+        /**
+         * Announcements that may be sent in bulk, e.g. Hello.
+         */
+        BULK
+    }
+    
     /**
      * Source and destination address.
      */
@@ -53,6 +74,15 @@ public class NetworkMessage {
      * When the message was received, measured in milliseconds after epoch.
      */
     protected long timestamp;
+    /**
+     * Earliest time the message may be sent, measured in milliseconds after 
+     * epoch. 0 sends the message immediately.
+     */
+    protected long sendTime = 0;
+    /**
+     * Priority class when the transport layer limits the send rate.
+     */
+    protected Priority priority = Priority.NORMAL;
 
     /**
      * Stores a network message.
@@ -74,7 +104,7 @@ public class NetworkMessage {
         this.payload = payload;
         this.payloadLen = payloadLen;
         
-        this.timestamp = System.currentTimeMillis();
+        this.timestamp = WsDiscoveryConstants.clock.currentTimeMillis();
     }    
     
     /**     
@@ -121,13 +151,27 @@ public class NetworkMessage {
     }
     
     /**
-     * Construct a NetworkMessage based on a WsdSOAPMessage. Converts the WsdSOAPMessage to string and 
-     * calls NetworkMessage(String). 
+     * Construct a NetworkMessage based on a WsdSOAPMessage. The message is 
+     * serialized with {@link WsdSOAPMessage#toBytes()} when 
+     * {@link WsDiscoveryConstants#useSOAPWriter} is set, otherwise it is 
+     * converted to a string with SAAJ. The default destination is used, as in
+     * NetworkMessage(String).
      * 
      * @param soap WsdSOAPMessage containing the message.
      */
     public NetworkMessage(WsdSOAPMessage soap) {
-        this(soap.toString(WsDiscoveryConstants.defaultEncoding));
+        this(serialize(soap), null, 0, 
+             WsDiscoveryConstants.multicastAddress, WsDiscoveryConstants.multicastPort);
+    }
+    
+    private static byte[] serialize(WsdSOAPMessage soap) {
+        if (WsDiscoveryConstants.useSOAPWriter)
+            try {
+                return soap.toBytes();
+            } catch (WsDiscoveryXMLException ex) {
+                // Fall back to SAAJ, which reports its own errors
+            }
+        return soap.toString(WsDiscoveryConstants.defaultEncoding).getBytes(WsDiscoveryConstants.defaultEncoding);
     }
 
     /**
@@ -263,12 +307,51 @@ public class NetworkMessage {
         return this.timestamp;
     }
     
+    /**
+     * Get the earliest time this message may be sent.
+     * @return Timestamp (in milliseconds after epoch), or 0 if the message 
+     * is sent immediately.
+     */
+    public long getSendTime() {
+        return sendTime;
+    }
+    
+    /**
+     * Delay the first transmission of this message until the given time. 
+     * Used to spread announcements over time. Must be set before the 
+     * message is passed to the transport layer.
+     * @param sendTime Timestamp (in milliseconds after epoch). 0 sends the 
+     * message immediately.
+     */
+    public void setSendTime(long sendTime) {
+        this.sendTime = sendTime;
+    }
+    
+    /**
+     * Get the priority class of this message.
+     * @return Priority.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+    
+    /**
+     * Set the priority class used if the transport layer limits the send 
+     * rate. Must be set before the message is passed to the transport layer.
+     * @param priority Priority.
+     */
+    public void setPriority(Priority priority) {
+        if (priority == null)
+            throw new NullPointerException("Priority can't be null.");
+        this.priority = priority;
+    }
+    
     /**
      * Get the age of this object.
      * @return Age of object in milliseconds after epoch.
      */
     public long getAgeInMillis() {
-        return System.currentTimeMillis() - getTimestamp();
+        return WsDiscoveryConstants.clock.currentTimeMillis() - getTimestamp();
     }
     
     /**
@@ -287,7 +370,8 @@ public class NetworkMessage {
             throw new WsDiscoveryNetworkException("Unable to create instance of MD5 message digest.");
         }
 
-        return digest.digest(payload);
+        digest.update(payload, 0, payloadLen);
+        return digest.digest();
     }
     
     /**
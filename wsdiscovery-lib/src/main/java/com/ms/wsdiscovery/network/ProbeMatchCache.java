@@ -0,0 +1,260 @@
+/*
+ProbeMatchCache.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network;
+
+import com.ms.wsdiscovery.WsDiscoveryBuilder;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPTemplate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+
+/**
+ * Remembers the ProbeMatches-messages sent in reply to Probes, so that 
+ * repeated Probes for the same types and scopes can be answered without 
+ * searching the service directory and serializing the matches again.
+ * <p>
+ * Probes are keyed by their normalized content: the sorted port types, the 
+ * sorted scopes and the MatchBy-algorithm. Each entry holds the reply as a 
+ * {@link WsdSOAPTemplate} with the body bound, so only the header values that
+ * differ between replies (MessageID, MessageNumber, RelatesTo and To) are 
+ * filled in, together with the version of the service directory it was 
+ * created from. 
+ * Entries created from an older directory version are discarded on lookup. 
+ * The least recently used entry is evicted when the cache is full.
+ *
+ * @author Magnus Skjegstad
+ */
+public class ProbeMatchCache {
+    /**
+     * Template of a Probe that matched nothing. Used to remember that no 
+     * reply should be sent; can not be rendered.
+     */
+    static final Template NO_MATCH = new Template(null, 0);
+
+    private final int capacity;
+    private final LinkedHashMap<String, Cached> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a new cache.
+     * @param capacity Maximum number of entries.
+     */
+    public ProbeMatchCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        this.capacity = capacity;
+        entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (size() <= ProbeMatchCache.this.capacity)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Create the cache key of a Probe. Types and scopes are sorted and 
+     * duplicates removed, since neither order nor repetition changes which 
+     * services match. The MatchBy-algorithm is resolved the same way as when 
+     * matching, so that a missing MatchBy and the default one give the same key.
+     *
+     * @param proxy True if the Probe is matched against the full service 
+     * directory (proxy mode), false if against local services only.
+     * @param types Probe types. May be <code>null</code>.
+     * @param scopes Probe scopes. May be <code>null</code>.
+     * @return Key.
+     */
+    static String key(boolean proxy, List<QName> types, ScopesType scopes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(proxy ? 'P' : 'L');
+        sb.append(WsDiscoveryBuilder.getMatcher(scopes).toString());
+
+        // Items never contain whitespace, so a newline separates them
+        sb.append("\nT");
+        if (types != null) {
+            String[] t = new String[types.size()];
+            for (int i = 0; i < t.length; i++)
+                t[i] = types.get(i).toString();
+            appendSorted(sb, t);
+        }
+
+        if ((scopes != null) && (scopes.getValue() != null)) {
+            sb.append("\nS");
+            appendSorted(sb, scopes.getValue().toArray(new String[0]));
+        }
+        return sb.toString();
+    }
+
+    private static void appendSorted(StringBuilder sb, String[] items) {
+        Arrays.sort(items);
+        for (int i = 0; i < items.length; i++)
+            if ((i == 0) || !items[i].equals(items[i - 1]))
+                sb.append('\n').append(items[i]);
+    }
+
+    /**
+     * Look up the reply to a Probe. Entries from another directory version 
+     * are removed. Updates the hit and miss counters.
+     *
+     * @param key Probe key, see {@link #key(boolean, List, ScopesType)}.
+     * @param version Current version of the service directory.
+     * @return Template, {@link #NO_MATCH}, or null if not cached.
+     */
+    synchronized Template get(String key, long version) {
+        Cached e = entries.get(key);
+        if (e != null) {
+            if (e.version == version) {
+                hits++;
+                return e.template;
+            }
+            entries.remove(key);
+            invalidations++;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Remember the reply to a Probe.
+     *
+     * @param key Probe key, see {@link #key(boolean, List, ScopesType)}.
+     * @param version Version of the service directory the reply was created from.
+     * @param template Reply template or {@link #NO_MATCH}.
+     */
+    synchronized void put(String key, long version, Template template) {
+        entries.put(key, new Cached(version, template));
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get number of entries.
+     * @return Number of entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the maximum number of entries.
+     * @return Capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get number of Probes answered from the cache.
+     * @return Number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get number of Probes that had to be matched against the directory.
+     * @return Number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get number of entries discarded because the service directory had 
+     * changed since they were created.
+     * @return Number of invalidations.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Get number of entries evicted because the cache was full. If this grows
+     * the cache should be made larger.
+     * @return Number of evictions.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private static class Cached {
+        final long version;
+        final Template template;
+
+        Cached(long version, Template template) {
+            this.version = version;
+            this.template = template;
+        }
+    }
+
+    /**
+     * A cached ProbeMatches-message: the envelope with the matching services
+     * bound to its body, leaving holes for the header values of each reply.
+     */
+    static class Template {
+        private final WsdSOAPTemplate message;
+        private final int matches;
+
+        /**
+         * @param message Message template with the body bound.
+         * @param matches Number of services in the message.
+         */
+        Template(WsdSOAPTemplate message, int matches) {
+            this.message = message;
+            this.matches = matches;
+        }
+
+        /**
+         * Get number of services in the message.
+         * @return Number of matches.
+         */
+        int getMatches() {
+            return matches;
+        }
+
+        /**
+         * Create a message from this template.
+         *
+         * @param messageId MessageID of the reply.
+         * @param messageNumber MessageNumber of the reply.
+         * @param relatesTo RelatesTo of the reply (MessageID of the Probe).
+         * @param to To of the reply.
+         * @return Serialized message.
+         */
+        byte[] render(String messageId, long messageNumber, String relatesTo, String to) {
+            if (this == NO_MATCH)
+                throw new IllegalStateException("Template has no message.");
+            return message.render(messageId, messageNumber, relatesTo, to);
+        }
+    }
+}
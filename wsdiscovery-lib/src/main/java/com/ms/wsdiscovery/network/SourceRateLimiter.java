@@ -0,0 +1,317 @@
+/*
+SourceRateLimiter.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Limits the rate of requests accepted from each source address, so that a 
+ * single client can't keep the dispatcher busy. Each source has a token 
+ * bucket with a rate and a burst size.
+ * <p>
+ * Sources are stored in an open addressing hash table (linear probing) of 
+ * primitive arrays. Addresses are keyed as two longs, with IPv4 addresses 
+ * mapped into the IPv6 space (::ffff:a.b.c.d), so no objects are allocated 
+ * per source. Entries that have been idle longer than the timeout are 
+ * reused by new sources, and removed when the table is compacted. When the 
+ * table holds the maximum number of active sources, all other sources share
+ * a single bucket.
+ *
+ * @author Magnus Skjegstad
+ */
+public class SourceRateLimiter {
+    /**
+     * Why a request was shed.
+     */
+    public enum ShedReason {
+        /**
+         * The source sent more requests than its rate allows.
+         */
+        SOURCE_RATE,
+        /**
+         * The table of sources was full, and the bucket shared by the 
+         * remaining sources was empty.
+         */
+        TABLE_FULL
+    }
+    
+    private final double rate; // Tokens per ms
+    private final double burst;
+    private final long timeout; // Idle time in ms before an entry expires
+    private final int maxSources;
+    
+    private final int mask;
+    private final boolean[] used;
+    private final long[] keyHigh;
+    private final long[] keyLow;
+    private final long[] lastSeen;
+    private final double[] tokens;
+    private int occupied = 0; // Used slots, including expired entries
+    private long nextCompact = Long.MIN_VALUE; // No entry can expire before this time
+    
+    private double sharedTokens;
+    private long sharedLastSeen;
+    
+    private long accepted = 0;
+    private final long[] shed = new long[ShedReason.values().length];
+    
+    /**
+     * Create a new limiter.
+     * 
+     * @param requestsPerSecond Requests accepted per second from each source.
+     * @param burst Requests accepted back to back from a source that has 
+     * been quiet. At least 1.
+     * @param maxSources Maximum number of sources tracked at once.
+     * @param timeout Time in ms before an idle source is forgotten.
+     */
+    public SourceRateLimiter(int requestsPerSecond, int burst, int maxSources, long timeout) {
+        if (requestsPerSecond <= 0)
+            throw new IllegalArgumentException("Rate must be positive.");
+        if (burst < 1)
+            throw new IllegalArgumentException("Burst must be at least 1.");
+        if (maxSources <= 0)
+            throw new IllegalArgumentException("Number of sources must be positive.");
+        if (timeout <= 0)
+            throw new IllegalArgumentException("Timeout must be positive.");
+        
+        this.rate = requestsPerSecond / 1000.0;
+        this.burst = burst;
+        this.timeout = timeout;
+        this.maxSources = maxSources;
+        
+        // Keep the table at most half full
+        int capacity = Integer.highestOneBit(Math.max(maxSources, 8) - 1) << 2;
+        mask = capacity - 1;
+        used = new boolean[capacity];
+        keyHigh = new long[capacity];
+        keyLow = new long[capacity];
+        lastSeen = new long[capacity];
+        tokens = new double[capacity];
+        
+        sharedTokens = burst;
+        sharedLastSeen = Long.MIN_VALUE;
+    }
+    
+    /**
+     * Take a token for a request from <code>source</code>.
+     * 
+     * @param source Source address.
+     * @return True if the request should be handled, false if it should be 
+     * shed.
+     */
+    public boolean tryAcquire(InetAddress source) {
+        return tryAcquire(source, WsDiscoveryConstants.clock.currentTimeMillis());
+    }
+    
+    /**
+     * Take a token for a request from <code>source</code> at time 
+     * <code>now</code>.
+     * 
+     * @param source Source address.
+     * @param now Current time in ms.
+     * @return True if the request should be handled, false if it should be 
+     * shed.
+     */
+    synchronized boolean tryAcquire(InetAddress source, long now) {
+        byte[] a = source.getAddress();
+        long high, low;
+        if (a.length == 4) {
+            high = 0;
+            low = 0xffff00000000L | (toLong(a, 0, 4) & 0xffffffffL);
+        } else {
+            high = toLong(a, 0, 8);
+            low = toLong(a, 8, 8);
+        }
+        
+        int slot = find(high, low, now);
+        if (slot < 0) {
+            // Table is full of active sources, use the shared bucket
+            double t = refilled(sharedTokens, sharedLastSeen, now);
+            sharedLastSeen = now;
+            if (t >= 1) {
+                sharedTokens = t - 1;
+                accepted++;
+                return true;
+            }
+            sharedTokens = t;
+            shed[ShedReason.TABLE_FULL.ordinal()]++;
+            return false;
+        }
+
+        double t = refilled(tokens[slot], lastSeen[slot], now);
+        lastSeen[slot] = now;
+        if (t >= 1) {
+            tokens[slot] = t - 1;
+            accepted++;
+            return true;
+        }
+        tokens[slot] = t;
+        shed[ShedReason.SOURCE_RATE.ordinal()]++;
+        return false;
+    }
+
+    /**
+     * Get the tokens in a bucket at time <code>now</code>.
+     */
+    private double refilled(double t, long last, long now) {
+        if (last == Long.MIN_VALUE)
+            return burst;
+        return Math.min(burst, t + Math.max(now - last, 0) * rate);
+    }
+    
+    /**
+     * Find the slot of a source, adding it if not found. An expired entry 
+     * for the same source is reset.
+     * 
+     * @return Slot, or -1 if the table is full of active sources.
+     */
+    private int find(long high, long low, long now) {
+        int i = index(high, low);
+        int free = -1;
+        while (used[i]) {
+            boolean expired = (now - lastSeen[i] >= timeout);
+            if ((keyHigh[i] == high) && (keyLow[i] == low)) {
+                if (expired)
+                    tokens[i] = burst;
+                return i;
+            }
+            if (expired && (free < 0))
+                free = i;
+            i = (i + 1) & mask;
+        }
+        
+        if (free < 0) {
+            if (occupied >= maxSources) {
+                if (!compact(now))
+                    return -1;
+                return find(high, low, now);
+            }
+            free = i;
+            used[free] = true;
+            occupied++;
+        }
+        
+        keyHigh[free] = high;
+        keyLow[free] = low;
+        lastSeen[free] = now;
+        tokens[free] = burst;
+        return free;
+    }
+    
+    /**
+     * Rebuild the table without expired entries. Skipped if no entry can 
+     * have expired since the last compaction.
+     * 
+     * @return False if no entries were removed.
+     */
+    private boolean compact(long now) {
+        if (now < nextCompact)
+            return false;
+        
+        boolean[] oldUsed = used.clone();
+        long[] oldHigh = keyHigh.clone();
+        long[] oldLow = keyLow.clone();
+        long[] oldLastSeen = lastSeen.clone();
+        double[] oldTokens = tokens.clone();
+        Arrays.fill(used, false);
+        occupied = 0;
+        
+        long oldest = Long.MAX_VALUE;
+        for (int j = 0; j < oldUsed.length; j++) {
+            if (!oldUsed[j] || (now - oldLastSeen[j] >= timeout))
+                continue;
+            int i = index(oldHigh[j], oldLow[j]);
+            while (used[i])
+                i = (i + 1) & mask;
+            used[i] = true;
+            keyHigh[i] = oldHigh[j];
+            keyLow[i] = oldLow[j];
+            lastSeen[i] = oldLastSeen[j];
+            tokens[i] = oldTokens[j];
+            occupied++;
+            oldest = Math.min(oldest, oldLastSeen[j]);
+        }
+        nextCompact = (oldest == Long.MAX_VALUE ? Long.MIN_VALUE : oldest + timeout);
+        return occupied < maxSources;
+    }
+    
+    private int index(long high, long low) {
+        long h = high * 0x9e3779b97f4a7c15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int)h & mask;
+    }
+    
+    private static long toLong(byte[] b, int offset, int length) {
+        long v = 0;
+        for (int i = offset; i < offset + length; i++)
+            v = (v << 8) | (b[i] & 0xff);
+        return v;
+    }
+    
+    /**
+     * Remove all sources and reset the shared bucket. Counters are kept.
+     */
+    public synchronized void clear() {
+        Arrays.fill(used, false);
+        occupied = 0;
+        nextCompact = Long.MIN_VALUE;
+        sharedTokens = burst;
+        sharedLastSeen = Long.MIN_VALUE;
+    }
+    
+    /**
+     * Get number of sources in the table, including idle sources that have 
+     * not been removed yet.
+     * @return Number of entries.
+     */
+    public synchronized int size() {
+        return occupied;
+    }
+    
+    /**
+     * Get the maximum number of sources tracked at once.
+     * @return Maximum number of sources.
+     */
+    public int getMaxSources() {
+        return maxSources;
+    }
+    
+    /**
+     * Get number of requests accepted.
+     * @return Number of requests.
+     */
+    public synchronized long getAccepted() {
+        return accepted;
+    }
+    
+    /**
+     * Get number of requests shed for the given reason.
+     * @param reason Reason.
+     * @return Number of requests.
+     */
+    public synchronized long getShed(ShedReason reason) {
+        return shed[reason.ordinal()];
+    }
+}
@@ -20,7 +20,10 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package com.ms.wsdiscovery.network.transport;
 
 import com.ms.wsdiscovery.network.transport.interfaces.ITransportType;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackTransport;
 import com.ms.wsdiscovery.network.transport.soapudp.SOAPOverUDP;
+import com.ms.wsdiscovery.network.transport.soapudp.nio.SOAPOverUDPNio;
+import com.ms.wsdiscovery.network.transport.soapudp.zlib.SOAPOverUDPMixed;
 import com.ms.wsdiscovery.network.transport.soapudp.zlib.SOAPOverUDPzlib;
 
 /**
@@ -37,7 +40,21 @@ public enum TransportType {
     /**
      * Compressed version of SOAP-over-UDP. See {@link SOAPOverUDPzlib}.
      */
-    SOAP_OVER_UDP_ZLIB(SOAPOverUDPzlib.class);
+    SOAP_OVER_UDP_ZLIB(SOAPOverUDPzlib.class),
+    /**
+     * Plain SOAP-over-UDP served by a single selector thread. See {@link SOAPOverUDPNio}.
+     */
+    SOAP_OVER_UDP_NIO(SOAPOverUDPNio.class),
+    /**
+     * SOAP-over-UDP that accepts plain and compressed messages and compresses 
+     * per destination. See {@link SOAPOverUDPMixed}.
+     */
+    SOAP_OVER_UDP_MIXED(SOAPOverUDPMixed.class),
+    /**
+     * In-memory transport between instances in the same JVM, for testing. 
+     * See {@link LoopbackTransport}.
+     */
+    LOOPBACK(LoopbackTransport.class);
     
         
     private final Class networkLayer;
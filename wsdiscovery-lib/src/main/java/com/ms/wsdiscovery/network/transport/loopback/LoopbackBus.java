@@ -0,0 +1,359 @@
+/*
+LoopbackBus.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.network.transport.loopback;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.logger.WsdLogger;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory network connecting {@link LoopbackTransport}s in the same JVM. 
+ * Each transport gets its own address in 127.0.0.0/8. Messages sent to 
+ * {@link WsDiscoveryConstants#multicastAddress} are delivered to every 
+ * transport on the bus, including the sender (as with multicast loopback on 
+ * a real socket). Other messages are delivered to the transport with the 
+ * destination address, or dropped if there is none.
+ * <p>
+ * Each delivery can be lost, duplicated and delayed by a random latency, 
+ * independently for every receiver. Delayed messages are delivered by a 
+ * daemon thread that is started on first use. The bus does not retransmit 
+ * messages the way SOAP-over-UDP does; use duplication to model that. 
+ * Messages with a send time (see {@link NetworkMessage#setSendTime(long)})
+ * are held back until that time.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class LoopbackBus {
+    private static final LoopbackBus defaultBus = new LoopbackBus();
+    
+    private WsdLogger logger = new WsdLogger(LoopbackBus.class.getName());
+    
+    private final ConcurrentHashMap<InetAddress, LoopbackTransport> members = 
+            new ConcurrentHashMap<InetAddress, LoopbackTransport>();
+    private final AtomicInteger nextAddress = new AtomicInteger(2);
+    
+    private final DelayQueue<Delivery> delayed = new DelayQueue<Delivery>();
+    private final AtomicLong deliverySequence = new AtomicLong();
+    private Thread deliveryThread = null;
+    
+    private Random random = new Random();
+    private volatile double loss = 0;
+    private volatile double duplication = 0;
+    private volatile long minLatency = 0;
+    private volatile long maxLatency = 0;
+    
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong duplicated = new AtomicLong();
+    private final AtomicLong unreachable = new AtomicLong();
+    
+    /**
+     * A message waiting for its latency to pass.
+     */
+    private static class Delivery implements Delayed {
+        final LoopbackTransport to;
+        final NetworkMessage message;
+        final long deliverAt; // Nanos, System.nanoTime()
+        final long sequence; // Keeps messages with the same time in order
+        
+        Delivery(LoopbackTransport to, NetworkMessage message, long deliverAt, long sequence) {
+            this.to = to;
+            this.message = message;
+            this.deliverAt = deliverAt;
+            this.sequence = sequence;
+        }
+        
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        
+        public int compareTo(Delayed o) {
+            Delivery d = (Delivery)o;
+            if (deliverAt != d.deliverAt)
+                return (deliverAt - d.deliverAt < 0 ? -1 : 1);
+            return (sequence < d.sequence ? -1 : (sequence > d.sequence ? 1 : 0));
+        }
+    }
+    
+    /**
+     * Get the bus used by transports created with 
+     * {@link LoopbackTransport#LoopbackTransport()}, e.g. when 
+     * {@link WsDiscoveryConstants#transportType} is 
+     * {@link com.ms.wsdiscovery.network.transport.TransportType#LOOPBACK}.
+     * 
+     * @return Default bus.
+     */
+    public static LoopbackBus getDefault() {
+        return defaultBus;
+    }
+    
+    /**
+     * Create an empty bus without loss, duplication or latency.
+     */
+    public LoopbackBus() {
+    }
+    
+    /**
+     * Register a transport and assign it an address.
+     */
+    InetAddress join(LoopbackTransport transport) {
+        int n = nextAddress.getAndIncrement();
+        if (n >= (1 << 24))
+            throw new IllegalStateException("No more loopback addresses.");
+        InetAddress address;
+        try {
+            address = InetAddress.getByAddress(new byte[] {127, (byte)(n >> 16), (byte)(n >> 8), (byte)n});
+        } catch (UnknownHostException ex) {
+            throw new IllegalStateException(ex.toString());
+        }
+        members.put(address, transport);
+        return address;
+    }
+    
+    /**
+     * Unregister a transport. Messages are no longer delivered to it.
+     */
+    void leave(LoopbackTransport transport) {
+        members.remove(transport.getAddress(), transport);
+    }
+    
+    /**
+     * Send a message from a transport on the bus.
+     */
+    void send(LoopbackTransport from, NetworkMessage message) {
+        sent.incrementAndGet();
+        
+        InetAddress dst = message.getDstAddress();
+        if (dst.equals(WsDiscoveryConstants.multicastAddress)) {
+            for (LoopbackTransport to : members.values())
+                transmit(from, to, message, dst, to.getMulticastPort());
+        } else {
+            LoopbackTransport to = members.get(dst);
+            if (to == null) {
+                unreachable.incrementAndGet();
+                return;
+            }
+            transmit(from, to, message, dst, to.getUnicastPort());
+        }
+    }
+    
+    /**
+     * Apply loss, duplication and latency to one receiver.
+     */
+    private void transmit(LoopbackTransport from, LoopbackTransport to, 
+            NetworkMessage message, InetAddress dst, int dstPort) {
+        int copies = 1;
+        long latency;
+        synchronized (this) {
+            if ((loss > 0) && (random.nextDouble() < loss)) {
+                lost.incrementAndGet();
+                return;
+            }
+            if ((duplication > 0) && (random.nextDouble() < duplication)) {
+                duplicated.incrementAndGet();
+                copies = 2;
+            }
+            latency = minLatency;
+            if (maxLatency > minLatency)
+                latency += (long)(random.nextDouble() * (maxLatency - minLatency));
+        }
+        long wait = message.getSendTime() - WsDiscoveryConstants.clock.currentTimeMillis();
+        if (wait > 0)
+            latency += wait;
+        
+        for (int i = 0; i < copies; i++) {
+            // The payload is not modified after sending, so it is shared
+            NetworkMessage m = new NetworkMessage(message.getPayload(), message.getPayloadLen(),
+                    from.getAddress(), from.getUnicastPort(), dst, dstPort);
+            if (latency <= 0) {
+                deliver(to, m);
+            } else {
+                startDeliveryThread();
+                delayed.add(new Delivery(to, m, 
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latency),
+                        deliverySequence.getAndIncrement()));
+            }
+        }
+    }
+    
+    private void deliver(LoopbackTransport to, NetworkMessage m) {
+        if (to.deliver(m))
+            delivered.incrementAndGet();
+        else
+            unreachable.incrementAndGet();
+    }
+    
+    private synchronized void startDeliveryThread() {
+        if (deliveryThread != null)
+            return;
+        deliveryThread = new Thread("loopback_bus") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Delivery d = delayed.take();
+                        deliver(d.to, d.message);
+                    } catch (InterruptedException ex) {
+                        logger.severe(ex.toString());
+                        break;
+                    }
+                }
+            }
+        };
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+    
+    /**
+     * Set probability that a delivery is lost.
+     * @param loss Probability between 0 and 1.
+     */
+    public void setLoss(double loss) {
+        if ((loss < 0) || (loss > 1))
+            throw new IllegalArgumentException("Loss must be between 0 and 1.");
+        this.loss = loss;
+    }
+    
+    /**
+     * Get probability that a delivery is lost.
+     * @return Probability between 0 and 1.
+     */
+    public double getLoss() {
+        return loss;
+    }
+    
+    /**
+     * Set probability that a delivery is duplicated.
+     * @param duplication Probability between 0 and 1.
+     */
+    public void setDuplication(double duplication) {
+        if ((duplication < 0) || (duplication > 1))
+            throw new IllegalArgumentException("Duplication must be between 0 and 1.");
+        this.duplication = duplication;
+    }
+    
+    /**
+     * Get probability that a delivery is duplicated.
+     * @return Probability between 0 and 1.
+     */
+    public double getDuplication() {
+        return duplication;
+    }
+    
+    /**
+     * Set latency of deliveries. Each delivery is delayed by a random time 
+     * between <code>min</code> and <code>max</code>. Deliveries with 
+     * zero latency are made by the sending thread before 
+     * {@link LoopbackTransport#send(NetworkMessage)} returns.
+     * 
+     * @param min Minimum latency in ms.
+     * @param max Maximum latency in ms.
+     */
+    public synchronized void setLatency(long min, long max) {
+        if ((min < 0) || (max < min))
+            throw new IllegalArgumentException("Invalid latency range.");
+        minLatency = min;
+        maxLatency = max;
+    }
+    
+    /**
+     * Get minimum latency.
+     * @return Latency in ms.
+     */
+    public long getMinLatency() {
+        return minLatency;
+    }
+    
+    /**
+     * Get maximum latency.
+     * @return Latency in ms.
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+    
+    /**
+     * Seed the random generator used for loss, duplication and latency, to 
+     * make runs repeatable.
+     * @param seed Seed.
+     */
+    public synchronized void setSeed(long seed) {
+        random = new Random(seed);
+    }
+    
+    /**
+     * Get number of transports on the bus.
+     * @return Number of transports.
+     */
+    public int size() {
+        return members.size();
+    }
+    
+    /**
+     * Get number of messages sent. A multicast counts as one.
+     * @return Messages sent.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+    
+    /**
+     * Get number of messages delivered to a receiver, including duplicates.
+     * @return Messages delivered.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+    
+    /**
+     * Get number of deliveries lost.
+     * @return Deliveries lost.
+     */
+    public long getLost() {
+        return lost.get();
+    }
+    
+    /**
+     * Get number of deliveries duplicated.
+     * @return Deliveries duplicated.
+     */
+    public long getDuplicated() {
+        return duplicated.get();
+    }
+    
+    /**
+     * Get number of unicasts to addresses not on the bus, and deliveries to 
+     * transports that left before the message arrived.
+     * @return Messages that could not be delivered.
+     */
+    public long getUnreachable() {
+        return unreachable.get();
+    }
+}
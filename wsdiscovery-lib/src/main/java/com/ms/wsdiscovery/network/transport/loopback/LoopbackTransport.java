@@ -0,0 +1,144 @@
+/*
+LoopbackTransport.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.network.transport.loopback;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.interfaces.ITransportType;
+import java.net.InetAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport on a {@link LoopbackBus}. Used for tests and benchmarks with many 
+ * WS-Discovery instances in one JVM, without sockets. The transport joins 
+ * the bus when it is created and leaves it in {@link #done()}.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class LoopbackTransport implements ITransportType {
+    /**
+     * Unicast port used by all loopback transports. Transports are told 
+     * apart by their address.
+     */
+    public static final int UNICAST_PORT = 49152;
+    
+    private final LoopbackBus bus;
+    private final InetAddress address;
+    private final LinkedBlockingQueue<NetworkMessage> inQueue = new LinkedBlockingQueue<NetworkMessage>();
+    private volatile boolean closed = false;
+    
+    /**
+     * Create transport on the default bus. See {@link LoopbackBus#getDefault()}.
+     */
+    public LoopbackTransport() {
+        this(LoopbackBus.getDefault());
+    }
+    
+    /**
+     * Create transport on a bus.
+     * @param bus Bus to join.
+     */
+    public LoopbackTransport(LoopbackBus bus) {
+        this.bus = bus;
+        this.address = bus.join(this);
+    }
+    
+    /**
+     * Get the address of this transport on the bus.
+     * @return Address in 127.0.0.0/8.
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+    
+    /**
+     * Get the bus this transport is on.
+     * @return Bus.
+     */
+    public LoopbackBus getBus() {
+        return bus;
+    }
+    
+    /**
+     * Called by the bus to deliver a message.
+     * @return False if the transport is closed.
+     */
+    boolean deliver(NetworkMessage m) {
+        if (closed)
+            return false;
+        inQueue.add(m);
+        return true;
+    }
+    
+    /**
+     * Get number of received messages waiting to be read.
+     * @return Queue length.
+     */
+    public int getQueueLength() {
+        return inQueue.size();
+    }
+    
+    public NetworkMessage recv(long timeoutInMillis) throws InterruptedException {
+        return inQueue.poll(timeoutInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public NetworkMessage recv() {
+        try {
+            return inQueue.take();
+        } catch (InterruptedException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Send message on the bus. Returns immediately. Messages sent after 
+     * {@link #done()} are discarded.
+     * 
+     * @param message Message to send.
+     */
+    public void send(NetworkMessage message) {
+        if (!closed)
+            bus.send(this, message);
+    }
+
+    public int getMulticastPort() {
+        return WsDiscoveryConstants.multicastPort;
+    }
+
+    public int getUnicastPort() {
+        return UNICAST_PORT;
+    }
+
+    /**
+     * Leave the bus and discard received messages.
+     */
+    public void done() {
+        closed = true;
+        bus.leave(this);
+        inQueue.clear();
+    }
+
+    /**
+     * Does nothing. The transport joins the bus when it is created.
+     */
+    public void start() {
+    }
+}
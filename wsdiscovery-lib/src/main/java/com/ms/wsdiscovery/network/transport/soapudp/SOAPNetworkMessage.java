@@ -18,6 +18,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package com.ms.wsdiscovery.network.transport.soapudp;
 
+import com.ms.wsdiscovery.WsDiscoveryConstants;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 import com.ms.wsdiscovery.network.NetworkMessage;
@@ -49,9 +50,21 @@ public class SOAPNetworkMessage extends NetworkMessage implements Delayed {
      */
     protected long nextSend = 0;
     
+    /**
+     * Next message in the same {@link SOAPTimingWheel} slot.
+     */
+    SOAPNetworkMessage wheelNext = null;
+    
+    /**
+     * True if this transmission has been counted as delayed by a 
+     * {@link SOAPRateLimiter}. Cleared when the message is sent.
+     */
+    boolean rateDelayed = false;
+    
     /**
      * Create new <code>SOAPNetworkMessage</code> from existing 
-     * <code>NetworkMessage</code>.
+     * <code>NetworkMessage</code>. The first transmission is scheduled at 
+     * {@link NetworkMessage#getSendTime()}.
      * 
      * @param nm Original network message.
      * @param multicast True if <code>nm</code> is to be sent multicast. Affects
@@ -72,7 +85,11 @@ public class SOAPNetworkMessage extends NetworkMessage implements Delayed {
         T = (int)Math.round(Math.random() * 
                 (SOAPOverUDP.UDP_MAX_DELAY - SOAPOverUDP.UDP_MIN_DELAY) + 
                 SOAPOverUDP.UDP_MIN_DELAY);
-                
+        
+        // First transmission is delayed if requested
+        nextSend = nm.getSendTime();
+        sendTime = nextSend;
+        priority = nm.getPriority();
     }        
        
     /**
@@ -108,7 +125,16 @@ public class SOAPNetworkMessage extends NetworkMessage implements Delayed {
         decreaseUDP_REPEAT();
         increaseT();        
         // Set timestamp for next send
-        nextSend = System.currentTimeMillis() + T;
+        nextSend = WsDiscoveryConstants.clock.currentTimeMillis() + T;
+    }
+
+    /**
+     * Get time of next transmission.
+     * 
+     * @return Timestamp in millis from epoch. 0 if the message has not been sent.
+     */
+    public long getNextSend() {
+        return nextSend;
     }
 
     /**
@@ -118,22 +144,28 @@ public class SOAPNetworkMessage extends NetworkMessage implements Delayed {
      * @return Delay converted to <code>unit</code>.
      */
     public long getDelay(TimeUnit unit) {
-        return unit.convert(nextSend - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        return unit.convert(nextSend - WsDiscoveryConstants.clock.currentTimeMillis(), TimeUnit.MILLISECONDS);
     }
 
     /**
      * Compare the delays of two messages.
      * 
      * @param o Delayed message.
-     * @return 0 if equal, -1 if <code>o</code> has smaller delay, 1 if <code>o</code> has larger delay.
+     * @return 0 if equal, -1 if <code>o</code> has larger delay, 1 if <code>o</code> has smaller delay.
      */
     public int compareTo(Delayed o) {
-        long a = o.getDelay(TimeUnit.MILLISECONDS);
-        long b = this.getDelay(TimeUnit.MILLISECONDS);
+        long a, b;
+        if (o instanceof SOAPNetworkMessage) { // Avoid reading the clock
+            a = ((SOAPNetworkMessage)o).nextSend;
+            b = this.nextSend;
+        } else {
+            a = o.getDelay(TimeUnit.MILLISECONDS);
+            b = this.getDelay(TimeUnit.MILLISECONDS);
+        }
         
-        if (a < b)
+        if (b < a)
             return -1;
-        if (a > b)
+        if (b > a)
             return 1;
         
         // they must be equal
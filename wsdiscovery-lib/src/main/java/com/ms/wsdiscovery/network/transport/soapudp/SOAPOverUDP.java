@@ -24,8 +24,6 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import com.ms.wsdiscovery.WsDiscoveryConstants;
 import com.ms.wsdiscovery.logger.WsdLogger;
@@ -52,9 +50,11 @@ public class SOAPOverUDP implements ITransportType {
     private final SOAPReceiverThread unicastReceiverThread; // Thread listening for incoming unicast messages
     private final SOAPSenderThread multicastSenderThread; // Thread sending multicast messages
     private final SOAPSenderThread unicastSenderThread; // Thread sending unicast messages
-    private LinkedBlockingQueue<NetworkMessage> inQueue = new LinkedBlockingQueue<NetworkMessage>(); // Queue used by the receiver threads
-    private DelayQueue<SOAPNetworkMessage> outUnicastQueue = new DelayQueue<SOAPNetworkMessage>(); // Queue used by unicastSenderThread
-    private DelayQueue<SOAPNetworkMessage> outMulticastQueue = new DelayQueue<SOAPNetworkMessage>(); // Queue used by multicastSenderThread
+    private SOAPRingBuffer inQueue = new SOAPRingBuffer(WsDiscoveryConstants.receiveQueueSize, 
+            WsDiscoveryConstants.receiveQueueWaitStrategy, 
+            WsDiscoveryConstants.receiveQueueFullPolicy); // Queue used by the receiver threads
+    private SOAPTimingWheel outUnicastQueue = new SOAPTimingWheel(); // Queue used by unicastSenderThread
+    private SOAPTimingWheel outMulticastQueue = new SOAPTimingWheel(); // Queue used by multicastSenderThread
     private final int multicastPort;
     private final InetAddress multicastAddress;
     private final int unicastPort;
@@ -146,7 +146,7 @@ public class SOAPOverUDP implements ITransportType {
                     outUnicastQueue, mainSocket);
         //try {
             multicastSenderThread = new SOAPSenderThread("multicast_send", 
-                        outMulticastQueue, mainSocket);
+                        outMulticastQueue, mainSocket, createMulticastRateLimiter());
         //} catch (SocketException ex) {
         //    throw new WsDiscoveryTransportException("Unable to start multicast send thread.");
         //}
@@ -155,6 +155,25 @@ public class SOAPOverUDP implements ITransportType {
                     inQueue, multicastSenderThread.getSocket());
     }
     
+    /**
+     * Create the rate limiter for multicast messages configured in 
+     * {@link WsDiscoveryConstants#multicastPacketRate} and 
+     * {@link WsDiscoveryConstants#multicastByteRate}.
+     * 
+     * Also used by the non-blocking implementation.
+     * 
+     * @return Rate limiter, or null if neither rate is set.
+     */
+    public static SOAPRateLimiter createMulticastRateLimiter() {
+        if ((WsDiscoveryConstants.multicastPacketRate <= 0) && (WsDiscoveryConstants.multicastByteRate <= 0))
+            return null;
+        return new SOAPRateLimiter(
+                Math.max(WsDiscoveryConstants.multicastPacketRate, 0), 
+                Math.max(WsDiscoveryConstants.multicastByteRate, 0),
+                WsDiscoveryConstants.multicastPacketBurst, WsDiscoveryConstants.multicastByteBurst,
+                WsDiscoveryConstants.multicastBacklog, WsDiscoveryConstants.clock.currentTimeMillis());
+    }
+    
     /**
      * Create new instance using multicast configuration from the default values in
      * {@link WsDiscoveryConstants#multicastAddress} and {@link WsDiscoveryConstants#multicastPort}.
@@ -236,6 +255,26 @@ public class SOAPOverUDP implements ITransportType {
         }
     }
 
+    /**
+     * Get the queue between the receiver threads and {@link #recv}. Can be 
+     * used to monitor queue depth and dropped messages.
+     * 
+     * @return Receive queue.
+     */
+    public SOAPRingBuffer getReceiveQueue() {
+        return inQueue;
+    }
+
+    /**
+     * Get the rate limiter of the multicast sender. Can be used to monitor 
+     * delayed and dropped messages.
+     * 
+     * @return Rate limiter, or null if the multicast rate is not limited.
+     */
+    public SOAPRateLimiter getMulticastRateLimiter() {
+        return multicastSenderThread.getRateLimiter();
+    }
+
     /**
      * Start transport layer.
      */
@@ -272,7 +311,7 @@ public class SOAPOverUDP implements ITransportType {
                 }
             }
         }
-        while (!outMulticastQueue.isEmpty()) {
+        while (!outMulticastQueue.isEmpty() || (multicastSenderThread.getBacklog() > 0)) {
             synchronized (multicastSenderThread) {
                 try {
                     multicastSenderThread.wait();
@@ -0,0 +1,270 @@
+/*
+SOAPRateLimiter.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.soapudp;
+
+import com.ms.wsdiscovery.network.NetworkMessage.Priority;
+import java.util.ArrayDeque;
+
+/**
+ * Token bucket limiting the rate of messages sent by a 
+ * {@link SOAPSenderThread}, in packets per second and bytes per second. 
+ * Every transmission, including SOAP-over-UDP retransmissions, costs one 
+ * packet token and one token per payload byte. The buckets hold at most a 
+ * burst of tokens, and are refilled continuously.
+ * <p>
+ * Messages that are due but can't be sent yet wait in one FIFO queue per 
+ * {@link Priority}. The oldest message of the highest priority is always 
+ * sent first, so Bye and replies to probes are never held back by bulk 
+ * Hellos. When the queues are full, the newest message of the lowest 
+ * priority is dropped, including its remaining retransmissions.
+ * <p>
+ * All methods are thread safe, but only one sender thread should offer and
+ * poll messages.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SOAPRateLimiter {
+    private final double packetRate; // Packets per ms, 0 for no limit
+    private final double byteRate; // Bytes per ms, 0 for no limit
+    private final double packetBurst;
+    private final double byteBurst;
+    private final int capacity;
+    
+    private double packetTokens;
+    private double byteTokens;
+    private long lastRefill;
+    
+    private final ArrayDeque<SOAPNetworkMessage>[] queues;
+    private int size = 0;
+    
+    private final long[] sent = new long[Priority.values().length];
+    private final long[] delayed = new long[Priority.values().length];
+    private final long[] dropped = new long[Priority.values().length];
+    
+    /**
+     * Create a rate limiter with full buckets.
+     * 
+     * @param packetsPerSecond Packets per second. 0 for no limit.
+     * @param bytesPerSecond Payload bytes per second. 0 for no limit.
+     * @param packetBurst Size of the packet bucket. At least 1.
+     * @param byteBurst Size of the byte bucket. A message larger than the 
+     * bucket is sent when the bucket is full.
+     * @param capacity Maximum number of messages waiting to be sent.
+     * @param now Current time in ms.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SOAPRateLimiter(int packetsPerSecond, int bytesPerSecond, 
+            int packetBurst, int byteBurst, int capacity, long now) {
+        if ((packetsPerSecond < 0) || (bytesPerSecond < 0))
+            throw new IllegalArgumentException("Rates can't be negative.");
+        if ((packetBurst < 1) || (byteBurst < 1))
+            throw new IllegalArgumentException("Burst sizes must be positive.");
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        
+        this.packetRate = packetsPerSecond / 1000.0;
+        this.byteRate = bytesPerSecond / 1000.0;
+        this.packetBurst = packetBurst;
+        this.byteBurst = byteBurst;
+        this.capacity = capacity;
+        
+        packetTokens = packetBurst;
+        byteTokens = byteBurst;
+        lastRefill = now;
+        
+        queues = new ArrayDeque[Priority.values().length];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = new ArrayDeque<SOAPNetworkMessage>();
+    }
+    
+    /**
+     * Queue a message that is due. If the queues are full, the newest 
+     * message of the lowest priority is dropped, which is <code>m</code> 
+     * itself if all queued messages have a higher priority.
+     * 
+     * @param m Message.
+     * @return False if <code>m</code> was dropped.
+     */
+    public synchronized boolean offer(SOAPNetworkMessage m) {
+        int p = m.getPriority().ordinal();
+        if (size >= capacity) {
+            int lowest = queues.length - 1;
+            while ((lowest > p) && queues[lowest].isEmpty())
+                lowest--;
+            if (lowest == p) { // Nothing of lower priority queued
+                dropped[p]++;
+                return false;
+            }
+            queues[lowest].removeLast();
+            dropped[lowest]++;
+            size--;
+        }
+        queues[p].addLast(m);
+        size++;
+        return true;
+    }
+    
+    /**
+     * Get the next message if there are tokens to send it, and take the 
+     * tokens. A message that has to wait is counted as delayed once per 
+     * transmission.
+     * 
+     * @param now Current time in ms.
+     * @return Message to send, or null if there are no messages or the next
+     * message has to wait.
+     */
+    public synchronized SOAPNetworkMessage poll(long now) {
+        SOAPNetworkMessage m = peek();
+        if (m == null)
+            return null;
+        
+        refill(now);
+        int len = m.getPayloadLen();
+        if ((packetRate > 0) && (packetTokens < 1)) {
+            markDelayed(m);
+            return null;
+        }
+        if ((byteRate > 0) && (byteTokens < Math.min(len, byteBurst))) {
+            markDelayed(m);
+            return null;
+        }
+        
+        queues[m.getPriority().ordinal()].removeFirst();
+        size--;
+        if (packetRate > 0)
+            packetTokens -= 1;
+        if (byteRate > 0)
+            byteTokens -= len; // May go negative for messages larger than the bucket
+        m.rateDelayed = false;
+        sent[m.getPriority().ordinal()]++;
+        return m;
+    }
+    
+    /**
+     * Get the time until the next message can be sent.
+     * 
+     * @param now Current time in ms.
+     * @return Delay in ms, 0 if the next message can be sent now, or -1 if 
+     * no messages are waiting.
+     */
+    public synchronized long getDelay(long now) {
+        SOAPNetworkMessage m = peek();
+        if (m == null)
+            return -1;
+        
+        refill(now);
+        double wait = 0;
+        if ((packetRate > 0) && (packetTokens < 1))
+            wait = (1 - packetTokens) / packetRate;
+        double bytes = Math.min(m.getPayloadLen(), byteBurst);
+        if ((byteRate > 0) && (byteTokens < bytes))
+            wait = Math.max(wait, (bytes - byteTokens) / byteRate);
+        return (long)Math.ceil(wait);
+    }
+    
+    private SOAPNetworkMessage peek() {
+        for (ArrayDeque<SOAPNetworkMessage> q : queues)
+            if (!q.isEmpty())
+                return q.peekFirst();
+        return null;
+    }
+    
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0)
+            return;
+        lastRefill = now;
+        packetTokens = Math.min(packetBurst, packetTokens + elapsed * packetRate);
+        byteTokens = Math.min(byteBurst, byteTokens + elapsed * byteRate);
+    }
+    
+    private void markDelayed(SOAPNetworkMessage m) {
+        if (!m.rateDelayed) {
+            m.rateDelayed = true;
+            delayed[m.getPriority().ordinal()]++;
+        }
+    }
+    
+    /**
+     * Get number of messages waiting to be sent.
+     * @return Number of messages.
+     */
+    public synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * Get the maximum number of messages waiting to be sent.
+     * @return Capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Get number of transmissions of the given priority let through.
+     * @param priority Priority.
+     * @return Number of transmissions.
+     */
+    public synchronized long getSent(Priority priority) {
+        return sent[priority.ordinal()];
+    }
+    
+    /**
+     * Get number of transmissions of the given priority that had to wait 
+     * for tokens.
+     * @param priority Priority.
+     * @return Number of delayed transmissions.
+     */
+    public synchronized long getDelayed(Priority priority) {
+        return delayed[priority.ordinal()];
+    }
+    
+    /**
+     * Get number of messages of the given priority dropped because the 
+     * queues were full.
+     * @param priority Priority.
+     * @return Number of dropped messages.
+     */
+    public synchronized long getDropped(Priority priority) {
+        return dropped[priority.ordinal()];
+    }
+    
+    /**
+     * Get number of delayed transmissions of all priorities.
+     * @return Number of delayed transmissions.
+     */
+    public synchronized long getDelayed() {
+        long n = 0;
+        for (long d : delayed)
+            n += d;
+        return n;
+    }
+    
+    /**
+     * Get number of dropped messages of all priorities.
+     * @return Number of dropped messages.
+     */
+    public synchronized long getDropped() {
+        long n = 0;
+        for (long d : dropped)
+            n += d;
+        return n;
+    }
+}
@@ -28,12 +28,15 @@ import java.net.SocketTimeoutException;
 import java.util.concurrent.BlockingQueue;
 import com.ms.wsdiscovery.logger.WsdLogger;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 
 /**
  * SOAP-over-UDP receiver thread.
  * <p>
  * Listens to a socket and stores received messages in a thread safe 
- * message queue. 
+ * message queue. Datagrams are received into a single buffer owned by the 
+ * thread, and each message gets a copy of exactly the received length, so 
+ * queued messages don't hold on to a full 64 KB array each.
  * 
  * @author Magnus Skjegstad
  */
@@ -108,26 +111,26 @@ public class SOAPReceiverThread extends Thread {
         
         isRunning = true;
         
+        byte[] buf = new byte[0xffff];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        
         try {
             while (!threadDone) {
-                byte[] buf = new byte[0xffff];
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                packet.setData(buf); // Reset length after previous receive
 
                 try {                
                     socket.receive(packet);
 
                     InetSocketAddress sender = (InetSocketAddress) packet.getSocketAddress();
                     
-                    NetworkMessage nm = new NetworkMessage(packet.getData(), packet.getLength(),
+                    NetworkMessage nm = new NetworkMessage(Arrays.copyOf(buf, packet.getLength()),
                                                            sender.getAddress(), sender.getPort(),
                                                            socket.getLocalAddress(), socket.getLocalPort());
-                   /* NetworkMessage nm = new NetworkMessage(packet.getData(), packet.getLength(),
-                            sender.getAddress(), sender.getPort(),
-                            socket.getLocalAddress(), socket.getLocalPort());*/
                     
                     logger.finest(this.getName() + ", recv: " + nm.toString());
 
-                    queue.add(nm);                
+                    if (!queue.offer(nm))
+                        logger.finer(this.getName() + ", receive queue full. Message dropped.");
 
                     // Notify listeners of state change
                     synchronized(this) {
@@ -0,0 +1,465 @@
+/*
+SOAPRingBuffer.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.soapudp;
+
+import com.ms.wsdiscovery.network.NetworkMessage;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of received messages between the receiver threads and the 
+ * dispatcher, implemented as a preallocated ring buffer in the style of the 
+ * LMAX Disruptor. Replaces the unbounded 
+ * {@link java.util.concurrent.LinkedBlockingQueue} previously used by 
+ * {@link SOAPOverUDP}.
+ * <p>
+ * Any number of producers may add messages at the same time. A producer 
+ * claims a sequence number with a single compare-and-set, writes the slot 
+ * and publishes the sequence number. No locks are taken and no nodes are 
+ * allocated. When the ring is full, messages are either dropped and counted 
+ * ({@link FullPolicy#DROP}), or the producer waits for space 
+ * ({@link FullPolicy#BLOCK}).
+ * <p>
+ * There must be only one consumer (one thread calling poll, take or drainTo 
+ * at a time). The consumer reads the published messages in batches of up 
+ * to a quarter of the ring, and only tells the producers about the freed 
+ * slots when a batch is done, so that the shared sequence is written once 
+ * per batch rather than once per message. While the ring is empty, the 
+ * consumer waits using the selected {@link WaitStrategy}. Producers waiting 
+ * for space always park for the shortest possible time between checks, so 
+ * that they never starve the consumer of CPU.
+ * <p>
+ * {@link #size()}, {@link #peek()} and {@link #iterator()} may be called 
+ * from any thread, but are only approximate while messages are added or 
+ * removed.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SOAPRingBuffer extends AbstractQueue<NetworkMessage> 
+        implements BlockingQueue<NetworkMessage> {
+    
+    /**
+     * How a thread waits for the ring to change.
+     */
+    public enum WaitStrategy {
+        /**
+         * Check again immediately. Lowest latency, but uses a full core 
+         * while waiting.
+         */
+        BUSY_SPIN,
+        /**
+         * Yield to other threads between checks.
+         */
+        YIELD,
+        /**
+         * Park the thread. A waiting consumer is woken by the next producer.
+         * Uses no CPU while idle.
+         */
+        PARK
+    }
+    
+    /**
+     * What a producer does when the ring is full.
+     */
+    public enum FullPolicy {
+        /**
+         * Drop the new message and count it. {@link #offer} returns false.
+         */
+        DROP,
+        /**
+         * Wait for the consumer to make room. For receiver threads this 
+         * pushes back to the socket receive buffer.
+         */
+        BLOCK
+    }
+    
+    /**
+     * Longest time a thread parks before checking again, in nanoseconds.
+     */
+    private static final long PARK_NANOS = 1000000;
+    
+    private final int mask;
+    private final int maxBatch; // Release slots at least this often
+    private final NetworkMessage[] slots;
+    private final AtomicLongArray published; // Sequence number last published in each slot
+    private final WaitStrategy waitStrategy;
+    private final FullPolicy fullPolicy;
+    
+    private final AtomicLong head = new AtomicLong(0); // Next sequence number to claim
+    private final AtomicLong tail = new AtomicLong(0); // All sequence numbers before this are consumed
+    private volatile Thread waitingConsumer = null;
+    
+    // Consumer state. Only touched by the consumer thread.
+    private long next = 0; // Next sequence number to read
+    private long batchEnd = 0; // End of the batch being read
+    
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    
+    /**
+     * Create a ring that drops messages when full and parks while empty.
+     * 
+     * @param capacity Number of slots. Rounded up to a power of two.
+     */
+    public SOAPRingBuffer(int capacity) {
+        this(capacity, WaitStrategy.PARK, FullPolicy.DROP);
+    }
+    
+    /**
+     * Create a ring.
+     * 
+     * @param capacity Number of slots. Rounded up to a power of two.
+     * @param waitStrategy How the consumer waits.
+     * @param fullPolicy What producers do when the ring is full.
+     */
+    public SOAPRingBuffer(int capacity, WaitStrategy waitStrategy, FullPolicy fullPolicy) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        if ((waitStrategy == null) || (fullPolicy == null))
+            throw new NullPointerException();
+        int size = (capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1);
+        mask = size - 1;
+        maxBatch = Math.max(1, size >> 2);
+        slots = new NetworkMessage[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            published.set(i, -1);
+        this.waitStrategy = waitStrategy;
+        this.fullPolicy = fullPolicy;
+    }
+    
+    /**
+     * Get the number of slots.
+     * @return Capacity.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+    
+    /**
+     * Get the wait strategy.
+     * @return Wait strategy.
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+    
+    /**
+     * Get the policy used when the ring is full.
+     * @return Full policy.
+     */
+    public FullPolicy getFullPolicy() {
+        return fullPolicy;
+    }
+    
+    /**
+     * Get number of messages dropped because the ring was full.
+     * @return Dropped messages.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    /**
+     * Get number of times a producer had to wait because the ring was full.
+     * @return Blocked offers.
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+    
+    /**
+     * Wait once according to the wait strategy.
+     */
+    private void pause(long maxNanos) {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(this, Math.min(maxNanos, PARK_NANOS));
+        }
+    }
+    
+    /**
+     * Try to claim and publish a slot.
+     * @return False if the ring was full.
+     */
+    private boolean tryPublish(NetworkMessage m) {
+        while (true) {
+            long seq = head.get();
+            if (seq - tail.get() > mask)
+                return false;
+            if (head.compareAndSet(seq, seq + 1)) {
+                int slot = (int)seq & mask;
+                slots[slot] = m;
+                published.set(slot, seq);
+                
+                Thread consumer = waitingConsumer;
+                if (consumer != null)
+                    LockSupport.unpark(consumer);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Add a message. When the ring is full, the message is dropped or the 
+     * caller waits, depending on the {@link FullPolicy}.
+     * 
+     * @param m Message.
+     * @return False if the message was dropped.
+     */
+    public boolean offer(NetworkMessage m) {
+        if (m == null)
+            throw new NullPointerException();
+        if (tryPublish(m))
+            return true;
+        if (fullPolicy == FullPolicy.DROP) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        blocked.incrementAndGet();
+        while (!tryPublish(m))
+            LockSupport.parkNanos(this, 1);
+        return true;
+    }
+    
+    /**
+     * Add a message, waiting for space if the ring is full, regardless of 
+     * the {@link FullPolicy}.
+     * 
+     * @param m Message.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void put(NetworkMessage m) throws InterruptedException {
+        offer(m, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Add a message, waiting up to <code>timeout</code> for space if the 
+     * ring is full.
+     * 
+     * @param m Message.
+     * @param timeout Time to wait.
+     * @param unit Unit of <code>timeout</code>.
+     * @return False if there was no space before the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean offer(NetworkMessage m, long timeout, TimeUnit unit) throws InterruptedException {
+        if (m == null)
+            throw new NullPointerException();
+        if (tryPublish(m))
+            return true;
+        blocked.incrementAndGet();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryPublish(m)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (deadline - System.nanoTime() <= 0)
+                return false;
+            LockSupport.parkNanos(this, 1);
+        }
+        return true;
+    }
+    
+    /**
+     * Find the end of the next batch of published messages. If there are 
+     * none, the consumed slots are handed back to the producers.
+     * 
+     * @return True if there is at least one message to read.
+     */
+    private boolean nextBatch() {
+        if (next < batchEnd)
+            return true;
+        
+        long end = next;
+        while ((end - next < maxBatch) && (published.get((int)end & mask) == end))
+            end++;
+        batchEnd = end;
+        
+        if (next == end) {
+            tail.set(next); // Done with the previous batch
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Read the next message in the current batch. The slots of a batch are 
+     * released together when the last message has been read.
+     */
+    private NetworkMessage read() {
+        int slot = (int)next & mask;
+        NetworkMessage m = slots[slot];
+        slots[slot] = null;
+        next++;
+        if (next == batchEnd)
+            tail.set(next);
+        return m;
+    }
+    
+    /**
+     * Remove the next message, if any. Must only be called by the consumer.
+     * 
+     * @return Message, or null if the ring is empty.
+     */
+    public NetworkMessage poll() {
+        return (nextBatch() ? read() : null);
+    }
+    
+    /**
+     * Wait for a message. Must only be called by the consumer.
+     * 
+     * @param timeout Time to wait.
+     * @param unit Unit of <code>timeout</code>.
+     * @return Message, or null if none arrived before the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public NetworkMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (nextBatch())
+            return read();
+        
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (waitStrategy == WaitStrategy.PARK)
+            waitingConsumer = Thread.currentThread();
+        try {
+            while (!nextBatch()) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return null;
+                pause(left);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return read();
+    }
+    
+    /**
+     * Wait for a message. Must only be called by the consumer.
+     * 
+     * @return Message.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public NetworkMessage take() throws InterruptedException {
+        NetworkMessage m;
+        while ((m = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null)
+            ;
+        return m;
+    }
+    
+    /**
+     * Get the oldest message without removing it. Approximate when called 
+     * by another thread than the consumer.
+     * 
+     * @return Message, or null if the ring is empty.
+     */
+    public NetworkMessage peek() {
+        long t = tail.get();
+        for (long seq = t; seq - t <= mask; seq++) {
+            int slot = (int)seq & mask;
+            if (published.get(slot) != seq)
+                return null;
+            NetworkMessage m = slots[slot];
+            if (m != null)
+                return m;
+        }
+        return null;
+    }
+    
+    /**
+     * Get number of messages in the ring. Approximate, since the consumer 
+     * releases slots once per batch.
+     * 
+     * @return Number of messages.
+     */
+    public int size() {
+        long size = head.get() - tail.get();
+        return (int)Math.max(0, Math.min(size, mask + 1));
+    }
+    
+    public int remainingCapacity() {
+        return mask + 1 - size();
+    }
+    
+    public int drainTo(Collection<? super NetworkMessage> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Remove published messages and add them to <code>c</code>. Must only 
+     * be called by the consumer.
+     * 
+     * @param c Collection to add messages to.
+     * @param maxElements Maximum number of messages to remove.
+     * @return Number of messages removed.
+     */
+    public int drainTo(Collection<? super NetworkMessage> c, int maxElements) {
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        while ((n < maxElements) && nextBatch()) {
+            c.add(read());
+            n++;
+        }
+        return n;
+    }
+    
+    /**
+     * Remove all messages. Must only be called by the consumer.
+     */
+    @Override
+    public void clear() {
+        while (poll() != null)
+            ;
+    }
+    
+    /**
+     * Iterator over a snapshot of the messages in the ring, oldest first. 
+     * The iterator does not support removal.
+     * 
+     * @return Iterator.
+     */
+    public Iterator<NetworkMessage> iterator() {
+        ArrayList<NetworkMessage> all = new ArrayList<NetworkMessage>();
+        long t = tail.get();
+        for (long seq = t; seq - t <= mask; seq++) {
+            int slot = (int)seq & mask;
+            if (published.get(slot) != seq)
+                break;
+            NetworkMessage m = slots[slot];
+            if (m != null)
+                all.add(m);
+        }
+        return Collections.unmodifiableList(all).iterator();
+    }
+}
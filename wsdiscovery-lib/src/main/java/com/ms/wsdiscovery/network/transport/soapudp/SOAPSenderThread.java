@@ -22,11 +22,10 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
-import java.util.concurrent.DelayQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import com.ms.wsdiscovery.WsDiscoveryConstants;
 import com.ms.wsdiscovery.logger.WsdLogger;
-import com.ms.wsdiscovery.network.NetworkMessage;
-import java.util.concurrent.Delayed;
 
 /**
  * SOAP-over-UDP sender thread.
@@ -43,16 +42,23 @@ public class SOAPSenderThread extends Thread {
     private boolean isRunning = false;
     
     /**
-     * Queue for outgoing messages. DelayQueue supports delayed entries, which
-     * can be used for retransmission with random delays. {@link SOAPNetworkMessage}
-     * is an extension to {@link NetworkMessage} that implements {@link Delayed}.
+     * Queue for outgoing messages. The queue must only return messages when 
+     * they are due, which is used for retransmission with random delays. 
+     * {@link SOAPOverUDP} uses a {@link SOAPTimingWheel}, but any queue 
+     * ordering {@link SOAPNetworkMessage}s by send time will do (e.g. a 
+     * {@link java.util.concurrent.DelayQueue}).
      */
-    protected DelayQueue<SOAPNetworkMessage> sendQueue;
+    protected BlockingQueue<SOAPNetworkMessage> sendQueue;
     
     /**
      * Socket used for sending messages.
      */
     protected DatagramSocket socket;
+    
+    /**
+     * Rate limiter, or null if messages are sent as soon as they are due.
+     */
+    protected SOAPRateLimiter limiter = null;
             
     /**
      * Create sender thread on an existing socket.
@@ -61,7 +67,7 @@ public class SOAPSenderThread extends Thread {
      * @param queue Queue for outgoing messages.
      * @param socket Socket to send on.
      */
-    public SOAPSenderThread(String name, DelayQueue<SOAPNetworkMessage> queue, DatagramSocket socket) {
+    public SOAPSenderThread(String name, BlockingQueue<SOAPNetworkMessage> queue, DatagramSocket socket) {
         super(name);
         this.sendQueue = queue;
         this.socket = socket;
@@ -75,10 +81,43 @@ public class SOAPSenderThread extends Thread {
      * @param queue Queue for outgoing messages.
      * @throws SocketException 
      */
-    public SOAPSenderThread(String name, DelayQueue<SOAPNetworkMessage> queue) throws SocketException {
+    public SOAPSenderThread(String name, BlockingQueue<SOAPNetworkMessage> queue) throws SocketException {
         this(name, queue, new DatagramSocket());
     }
     
+    /**
+     * Create rate limited sender thread on an existing socket.
+     * 
+     * @param name Name of thread.
+     * @param queue Queue for outgoing messages.
+     * @param socket Socket to send on.
+     * @param limiter Rate limiter for messages that are due, or null.
+     */
+    public SOAPSenderThread(String name, BlockingQueue<SOAPNetworkMessage> queue, 
+            DatagramSocket socket, SOAPRateLimiter limiter) {
+        this(name, queue, socket);
+        this.limiter = limiter;
+    }
+    
+    /**
+     * Get the rate limiter.
+     * 
+     * @return Rate limiter, or null if the send rate is not limited.
+     */
+    public SOAPRateLimiter getRateLimiter() {
+        return limiter;
+    }
+    
+    /**
+     * Check if there are messages that are due but held back by the rate 
+     * limiter. Messages in the send queue are not counted.
+     * 
+     * @return Number of messages waiting for the rate limiter.
+     */
+    public int getBacklog() {
+        return (limiter == null ? 0 : limiter.size());
+    }
+    
     /**
      * Get socket used for sending messages.
      * 
@@ -100,6 +139,36 @@ public class SOAPSenderThread extends Thread {
         return isRunning;
     }
       
+    /**
+     * Move due messages to the rate limiter and get the next message it 
+     * lets through. Waits for tokens or for new messages.
+     * 
+     * @return Message to send, or null if there is nothing to send yet.
+     */
+    private SOAPNetworkMessage pollLimited() throws InterruptedException {
+        SOAPNetworkMessage m;
+        while ((m = sendQueue.poll()) != null)
+            if (!limiter.offer(m))
+                logger.finer(getName() + ", rate limiter full, dropped " + m.getPriority() + " message");
+        
+        long now = WsDiscoveryConstants.clock.currentTimeMillis();
+        m = limiter.poll(now);
+        if (m != null)
+            return m;
+        
+        // Wait for tokens, or for a message that may have higher priority
+        long delay = limiter.getDelay(now);
+        m = sendQueue.poll(delay < 0 ? 1000 : Math.max(delay, 1), TimeUnit.MILLISECONDS);
+        if (m != null)
+            limiter.offer(m);
+        
+        // Notify listeners of state change
+        synchronized(this) {
+            notifyAll();
+        }
+        return null;
+    }
+      
     @Override
     public void run() {
         threadDone = false;
@@ -113,7 +182,10 @@ public class SOAPSenderThread extends Thread {
         try {
             while (!threadDone) {
                 try {
-                    nm = sendQueue.poll(1, TimeUnit.SECONDS);
+                    if (limiter == null)
+                        nm = sendQueue.poll(1, TimeUnit.SECONDS);
+                    else
+                        nm = pollLimited();
 
                     if (nm == null)
                         continue;
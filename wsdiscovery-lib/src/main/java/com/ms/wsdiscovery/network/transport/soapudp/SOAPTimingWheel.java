@@ -0,0 +1,403 @@
+/*
+SOAPTimingWheel.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.network.transport.soapudp;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Retransmission queue for {@link SOAPNetworkMessage}s, implemented as a 
+ * hashed timing wheel with one slot per millisecond. Replaces the 
+ * {@link java.util.concurrent.DelayQueue} previously used by 
+ * {@link SOAPSenderThread}.
+ * <p>
+ * A message is placed in the slot given by its next send time 
+ * ({@link SOAPNetworkMessage#getNextSend()}) modulo the number of slots. 
+ * Inserting and removing is constant time, and the clock is read once per 
+ * operation instead of twice per comparison. The wheel covers 
+ * {@link SOAPOverUDP#UDP_UPPER_DELAY} rounded up to a power of two, so 
+ * messages scheduled by the retransmission algorithm are inspected exactly 
+ * once. Messages scheduled further ahead stay in their slot until their 
+ * round comes up.
+ * <p>
+ * Messages that are due are returned in the order their slots expire, and 
+ * in insertion order within a slot. A message must not be in more than one 
+ * wheel at a time.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SOAPTimingWheel extends AbstractQueue<SOAPNetworkMessage> 
+        implements BlockingQueue<SOAPNetworkMessage> {
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    
+    private final int mask;
+    private final SOAPNetworkMessage[] slotHead;
+    private final SOAPNetworkMessage[] slotTail;
+    
+    private SOAPNetworkMessage readyHead = null; // Messages that are due
+    private SOAPNetworkMessage readyTail = null;
+    
+    private long lastTick; // All slots up to and including this time have been expired
+    private int size = 0;
+    
+    /**
+     * Create a wheel covering {@link SOAPOverUDP#UDP_UPPER_DELAY}.
+     */
+    public SOAPTimingWheel() {
+        this(SOAPOverUDP.UDP_UPPER_DELAY);
+    }
+    
+    /**
+     * Create a wheel covering at least <code>span</code> milliseconds.
+     * 
+     * @param span Longest expected delay in ms. Rounded up to a power of two.
+     */
+    public SOAPTimingWheel(int span) {
+        if (span <= 0)
+            throw new IllegalArgumentException("Span must be positive.");
+        int slots = Integer.highestOneBit(span - 1) << 1;
+        if (slots < 2)
+            slots = 2;
+        mask = slots - 1;
+        slotHead = new SOAPNetworkMessage[slots];
+        slotTail = new SOAPNetworkMessage[slots];
+        lastTick = WsDiscoveryConstants.clock.currentTimeMillis();
+    }
+    
+    /**
+     * Get the number of slots in the wheel.
+     * @return Number of slots, one per millisecond.
+     */
+    public int getSlots() {
+        return mask + 1;
+    }
+    
+    /**
+     * Move messages that are due at time <code>now</code> to the ready list.
+     */
+    private void advance(long now) {
+        if (now <= lastTick)
+            return;
+        
+        long end = now;
+        if (end - lastTick > mask + 1) // Each slot only needs one pass
+            end = lastTick + mask + 1;
+        
+        for (long tick = lastTick + 1; tick <= end; tick++) {
+            int slot = (int)tick & mask;
+            SOAPNetworkMessage m = slotHead[slot];
+            if (m == null)
+                continue;
+            
+            // Split slot into due messages and messages for later rounds
+            SOAPNetworkMessage keepHead = null, keepTail = null;
+            while (m != null) {
+                SOAPNetworkMessage next = m.wheelNext;
+                m.wheelNext = null;
+                if (m.getNextSend() <= now) {
+                    appendReady(m);
+                } else {
+                    if (keepTail == null)
+                        keepHead = m;
+                    else
+                        keepTail.wheelNext = m;
+                    keepTail = m;
+                }
+                m = next;
+            }
+            slotHead[slot] = keepHead;
+            slotTail[slot] = keepTail;
+        }
+        lastTick = now;
+    }
+    
+    private void appendReady(SOAPNetworkMessage m) {
+        if (readyTail == null)
+            readyHead = m;
+        else
+            readyTail.wheelNext = m;
+        readyTail = m;
+    }
+    
+    private SOAPNetworkMessage removeReady() {
+        SOAPNetworkMessage m = readyHead;
+        if (m != null) {
+            readyHead = m.wheelNext;
+            if (readyHead == null)
+                readyTail = null;
+            m.wheelNext = null;
+            size--;
+        }
+        return m;
+    }
+    
+    /**
+     * Time until the next message is due.
+     * @return Delay in ms, or -1 if the wheel is empty.
+     */
+    private long nextDelay(long now) {
+        if (size == 0)
+            return -1;
+        
+        long earliest = Long.MAX_VALUE;
+        for (int i = 1; i <= mask + 1; i++) {
+            long tick = lastTick + i;
+            SOAPNetworkMessage m = slotHead[(int)tick & mask];
+            for (; m != null; m = m.wheelNext) {
+                if (m.getNextSend() <= tick) // Due in this round
+                    return Math.max(tick - now, 0);
+                earliest = Math.min(earliest, m.getNextSend());
+            }
+        }
+        return Math.max(earliest - now, 0);
+    }
+    
+    /**
+     * Schedule a message. Returns immediately.
+     * 
+     * @param m Message to schedule at {@link SOAPNetworkMessage#getNextSend()}.
+     * @return Always true.
+     */
+    public boolean offer(SOAPNetworkMessage m) {
+        if (m == null)
+            throw new NullPointerException();
+        lock.lock();
+        try {
+            m.wheelNext = null;
+            if (m.getNextSend() <= lastTick) {
+                appendReady(m);
+            } else {
+                int slot = (int)m.getNextSend() & mask;
+                if (slotTail[slot] == null)
+                    slotHead[slot] = m;
+                else
+                    slotTail[slot].wheelNext = m;
+                slotTail[slot] = m;
+            }
+            size++;
+            available.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Schedule a message. The wheel is unbounded, so this never blocks.
+     * 
+     * @param m Message to schedule.
+     */
+    public void put(SOAPNetworkMessage m) {
+        offer(m);
+    }
+    
+    /**
+     * Schedule a message. The wheel is unbounded, so this never blocks.
+     * 
+     * @param m Message to schedule.
+     * @param timeout Ignored.
+     * @param unit Ignored.
+     * @return Always true.
+     */
+    public boolean offer(SOAPNetworkMessage m, long timeout, TimeUnit unit) {
+        return offer(m);
+    }
+    
+    /**
+     * Remove a message that is due, if any.
+     * 
+     * @return Message, or null if no message is due.
+     */
+    public SOAPNetworkMessage poll() {
+        lock.lock();
+        try {
+            advance(WsDiscoveryConstants.clock.currentTimeMillis());
+            return removeReady();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Wait for a message to become due.
+     * 
+     * @param timeout Time to wait.
+     * @param unit Unit of <code>timeout</code>.
+     * @return Message, or null if no message became due before the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public SOAPNetworkMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = WsDiscoveryConstants.clock.currentTimeMillis();
+                advance(now);
+                SOAPNetworkMessage m = removeReady();
+                if (m != null)
+                    return m;
+                if (nanos <= 0)
+                    return null;
+                
+                long delay = nextDelay(now);
+                if (delay < 0) {
+                    nanos = available.awaitNanos(nanos);
+                } else {
+                    long wait = Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 1)));
+                    nanos -= wait - available.awaitNanos(wait);
+                }
+            }
+        } finally {
+            if (readyHead != null)
+                available.signal();
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Wait until a message is due.
+     * 
+     * @return Message.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public SOAPNetworkMessage take() throws InterruptedException {
+        SOAPNetworkMessage m;
+        while ((m = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null)
+            ;
+        return m;
+    }
+    
+    /**
+     * Get the first message that is due, without removing it.
+     * 
+     * @return Message, or null if no message is due.
+     */
+    public SOAPNetworkMessage peek() {
+        lock.lock();
+        try {
+            advance(WsDiscoveryConstants.clock.currentTimeMillis());
+            return readyHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Get number of scheduled messages, including messages that are not due.
+     * 
+     * @return Number of messages.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+    
+    public int drainTo(Collection<? super SOAPNetworkMessage> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Remove messages that are due and add them to <code>c</code>.
+     * 
+     * @param c Collection to add messages to.
+     * @param maxElements Maximum number of messages to remove.
+     * @return Number of messages removed.
+     */
+    public int drainTo(Collection<? super SOAPNetworkMessage> c, int maxElements) {
+        if (c == this)
+            throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            advance(WsDiscoveryConstants.clock.currentTimeMillis());
+            int n = 0;
+            SOAPNetworkMessage m;
+            while ((n < maxElements) && ((m = removeReady()) != null)) {
+                c.add(m);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Remove all messages.
+     */
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i <= mask; i++) {
+                for (SOAPNetworkMessage m = slotHead[i]; m != null; ) {
+                    SOAPNetworkMessage next = m.wheelNext;
+                    m.wheelNext = null;
+                    m = next;
+                }
+                slotHead[i] = null;
+                slotTail[i] = null;
+            }
+            while (removeReady() != null)
+                ;
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Iterator over a snapshot of all scheduled messages, due or not, in 
+     * no particular order. The iterator does not support removal.
+     * 
+     * @return Iterator.
+     */
+    public Iterator<SOAPNetworkMessage> iterator() {
+        lock.lock();
+        try {
+            ArrayList<SOAPNetworkMessage> all = new ArrayList<SOAPNetworkMessage>(size);
+            for (SOAPNetworkMessage m = readyHead; m != null; m = m.wheelNext)
+                all.add(m);
+            for (int i = 0; i <= mask; i++)
+                for (SOAPNetworkMessage m = slotHead[i]; m != null; m = m.wheelNext)
+                    all.add(m);
+            return Collections.unmodifiableList(all).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
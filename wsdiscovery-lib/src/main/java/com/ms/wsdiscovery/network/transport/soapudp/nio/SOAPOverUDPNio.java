@@ -0,0 +1,493 @@
+/*
+SOAPOverUDPNio.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.network.transport.soapudp.nio;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.logger.WsdLogger;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.exception.WsDiscoveryTransportException;
+import com.ms.wsdiscovery.network.transport.interfaces.ITransportType;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPNetworkMessage;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPRateLimiter;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPRingBuffer;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPOverUDP;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of SOAP-over-UDP using non-blocking channels. The 
+ * multicast and unicast channels are served by a single thread waiting in a 
+ * {@link Selector}, which also sends queued messages and the scheduled 
+ * retransmissions. Compared to {@link SOAPOverUDP} this uses one thread 
+ * instead of four, and {@link #done()} returns as soon as the outgoing 
+ * messages are sent instead of waiting for socket timeouts.
+ * <p>
+ * Retransmissions follow the same algorithm as {@link SOAPOverUDP}, and 
+ * multicast messages pass through the same rate limiter, configured in 
+ * {@link WsDiscoveryConstants#multicastPacketRate} and 
+ * {@link WsDiscoveryConstants#multicastByteRate}. Requires Java 7 or later.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SOAPOverUDPNio implements ITransportType {
+    /**
+     * Instance of Logger used for debug messages.
+     */
+    protected WsdLogger logger;
+    
+    private final DatagramChannel multicastChannel; // Receives multicast messages
+    private final DatagramChannel unicastChannel; // Sends all messages and receives unicast messages
+    private final Selector selector;
+    private final SelectorThread selectorThread;
+    // Received messages. Never blocks when full, since the selector thread also sends
+    private final SOAPRingBuffer inQueue = new SOAPRingBuffer(WsDiscoveryConstants.receiveQueueSize, 
+            WsDiscoveryConstants.receiveQueueWaitStrategy, SOAPRingBuffer.FullPolicy.DROP);
+    private final ConcurrentLinkedQueue<SOAPNetworkMessage> outQueue = new ConcurrentLinkedQueue<SOAPNetworkMessage>(); // New messages, not yet scheduled
+    private final Object outLock = new Object(); // Guards outstanding
+    private int outstanding = 0; // Messages that still have transmissions left
+    private final int multicastPort;
+    private final InetAddress multicastAddress;
+    private final int unicastPort;
+    private final SOAPRateLimiter limiter = SOAPOverUDP.createMulticastRateLimiter(); // Null if multicast is not limited
+    
+    /**
+     * Thread running the selector loop.
+     */
+    private class SelectorThread extends Thread {
+        private volatile boolean threadDone = false;
+        private final ByteBuffer buffer = ByteBuffer.allocate(0xffff);
+        private final PriorityQueue<SOAPNetworkMessage> scheduled = new PriorityQueue<SOAPNetworkMessage>(16, 
+                new Comparator<SOAPNetworkMessage>() {
+                    public int compare(SOAPNetworkMessage a, SOAPNetworkMessage b) {
+                        return (a.getNextSend() < b.getNextSend() ? -1 : 
+                                (a.getNextSend() > b.getNextSend() ? 1 : 0));
+                    }
+                });
+        private SOAPNetworkMessage blocked = null; // Due message waiting for room in the send buffer
+        
+        SelectorThread() {
+            super("soap_nio");
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            logger.finer("Started selector thread " + getName() + ", multicast port " + 
+                    multicastPort + ", unicast port " + unicastPort);
+            try {
+                while (!threadDone) {
+                    SOAPNetworkMessage m;
+                    while ((m = outQueue.poll()) != null)
+                        scheduled.add(m);
+                    
+                    long timeout = sendScheduled();
+                    
+                    // When the send buffer is full, OP_WRITE is registered and 
+                    // wakes us up as soon as the channel is writable again
+                    if (timeout < 0)
+                        selector.select();
+                    else
+                        selector.select(timeout);
+                    
+                    Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                    while (i.hasNext()) {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isReadable())
+                            receive((DatagramChannel)key.channel());
+                        if (key.isWritable()) // Send buffer has room again
+                            key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.severe(ex.toString());
+            } finally {
+                close();
+                logger.finer("Stopped " + getName());
+                synchronized (outLock) {
+                    outLock.notifyAll();
+                }
+            }
+        }
+        
+        /**
+         * Send all messages that are due. Multicast messages are passed 
+         * through the rate limiter, if any.
+         * @return Time in ms until the next message is due, 0 if there are 
+         * no scheduled messages or -1 if the send buffer is full.
+         */
+        private long sendScheduled() throws IOException {
+            long now = WsDiscoveryConstants.clock.currentTimeMillis();
+            if (blocked != null) {
+                if (!transmit(blocked))
+                    return -1;
+                blocked = null;
+            }
+            
+            SOAPNetworkMessage m;
+            while (((m = scheduled.peek()) != null) && (m.getNextSend() <= now)) {
+                scheduled.poll();
+                if ((limiter != null) && m.getDstAddress().equals(multicastAddress)) {
+                    long dropped = limiter.getDropped();
+                    limiter.offer(m);
+                    if (limiter.getDropped() != dropped) { // This or a message of lower priority
+                        logger.finer(getName() + ", rate limiter full, dropped a message");
+                        finished();
+                    }
+                } else
+                if (!transmit(m))
+                    return -1;
+            }
+            long timeout = (m == null ? 0 : m.getNextSend() - now);
+            
+            if (limiter != null) {
+                while ((m = limiter.poll(now)) != null)
+                    if (!transmit(m))
+                        return -1;
+                // Wake up when the limiter has tokens for the next message
+                long delay = limiter.getDelay(now);
+                if ((delay >= 0) && ((timeout == 0) || (delay < timeout)))
+                    timeout = Math.max(delay, 1);
+            }
+            return timeout;
+        }
+        
+        /**
+         * Send a message that is due, and schedule its retransmission.
+         * @return False if the send buffer is full. The message is sent 
+         * first when the channel is writable again.
+         */
+        private boolean transmit(SOAPNetworkMessage m) throws IOException {
+            logger.finest(getName() + ", send: " + m.toString());
+            
+            ByteBuffer data = ByteBuffer.wrap(m.getPayload(), 0, m.getPayloadLen());
+            if (unicastChannel.send(data, new InetSocketAddress(m.getDstAddress(), m.getDstPort())) == 0) {
+                // Send buffer is full. Wait until the channel is writable.
+                unicastChannel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                blocked = m;
+                return false;
+            }
+            
+            // Adjust internal values according to SOAP-over-UDP retry/back-off algo.
+            m.adjustValuesAfterSend();
+            if (!m.isDone())
+                scheduled.add(m);
+            else
+                finished();
+            return true;
+        }
+        
+        /**
+         * Count a message that has no transmissions left.
+         */
+        private void finished() {
+            synchronized (outLock) {
+                outstanding--;
+                outLock.notifyAll();
+            }
+        }
+        
+        /**
+         * Receive all pending messages on a channel.
+         */
+        private void receive(DatagramChannel channel) throws IOException {
+            InetSocketAddress sender;
+            while (true) {
+                buffer.clear();
+                sender = (InetSocketAddress)channel.receive(buffer);
+                if (sender == null)
+                    break;
+                buffer.flip();
+                
+                byte[] payload = new byte[buffer.remaining()];
+                buffer.get(payload);
+                
+                NetworkMessage nm = new NetworkMessage(payload, payload.length, 
+                        sender.getAddress(), sender.getPort(),
+                        channel.socket().getLocalAddress(), channel.socket().getLocalPort());
+                
+                logger.finest(getName() + ", recv: " + nm.toString());
+                
+                if (!inQueue.offer(nm))
+                    logger.finer(getName() + ", receive queue full. Message dropped.");
+            }
+        }
+    }
+    
+    /**
+     * @param multicastInterface Network interface to use for multicasting. Set to null to use default.
+     * @param multicastPort Port for sending and receiving multicast messages
+     * @param multicastAddress Address for sending and listening to multicast messages.
+     * @throws WsDiscoveryTransportException if an error occured while opening 
+     * the channels.
+     */
+    public SOAPOverUDPNio(NetworkInterface multicastInterface, int multicastPort, InetAddress multicastAddress)
+            throws WsDiscoveryTransportException {
+        
+        logger = new WsdLogger(this.getClass().getName());
+        
+        this.multicastPort = multicastPort;
+        this.multicastAddress = multicastAddress;
+        
+        ProtocolFamily family = (multicastAddress instanceof Inet4Address ? 
+            StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+        
+        try {
+            if (multicastInterface == null)
+                multicastInterface = defaultInterface(multicastAddress);
+            if (multicastInterface == null)
+                throw new WsDiscoveryTransportException("No network interface supporting multicast found.");
+        } catch (SocketException ex) {
+            throw new WsDiscoveryTransportException("Unable to find network interface for multicast: " + ex.getMessage());
+        }
+        
+        try {
+            multicastChannel = DatagramChannel.open(family);
+            multicastChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true); // Required by spec.
+            multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1); // Suggested by spec
+            multicastChannel.bind(new InetSocketAddress(multicastPort));
+            multicastChannel.join(multicastAddress, multicastInterface);
+            multicastChannel.configureBlocking(false);
+        } catch (IOException ex) {
+            throw new WsDiscoveryTransportException("Unable to open multicast channel: " + ex.getMessage());
+        }
+        
+        try {
+            unicastChannel = DatagramChannel.open(family);
+            unicastChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            unicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+            unicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+            unicastChannel.bind(null);
+            unicastChannel.configureBlocking(false);
+            this.unicastPort = unicastChannel.socket().getLocalPort();
+        } catch (IOException ex) {
+            try {
+                multicastChannel.close();
+            } catch (IOException e) {
+            }
+            throw new WsDiscoveryTransportException("Unable to open unicast channel: " + ex.getMessage());
+        }
+        
+        try {
+            selector = Selector.open();
+            multicastChannel.register(selector, SelectionKey.OP_READ);
+            unicastChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            try {
+                multicastChannel.close();
+                unicastChannel.close();
+            } catch (IOException e) {
+            }
+            throw new WsDiscoveryTransportException("Unable to open selector: " + ex.getMessage());
+        }
+        
+        selectorThread = new SelectorThread();
+    }
+    
+    /**
+     * Create new instance using multicast configuration from the default values in
+     * {@link WsDiscoveryConstants#multicastAddress} and {@link WsDiscoveryConstants#multicastPort}.
+     * 
+     * @throws WsDiscoveryTransportException if an error occured while opening 
+     * the channels.
+     */
+    public SOAPOverUDPNio() throws WsDiscoveryTransportException {
+        this(WsDiscoveryConstants.multicastInterface, WsDiscoveryConstants.multicastPort, WsDiscoveryConstants.multicastAddress);
+    }
+    
+    /**
+     * Find an interface that is up and supports multicast, with an address 
+     * of the same type as the multicast group. Non-loopback interfaces are 
+     * preferred.
+     */
+    private static NetworkInterface defaultInterface(InetAddress group) throws SocketException {
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
+        while ((e != null) && e.hasMoreElements()) {
+            NetworkInterface ni = e.nextElement();
+            if (!ni.isUp() || !ni.supportsMulticast())
+                continue;
+            
+            boolean sameFamily = false;
+            for (Enumeration<InetAddress> a = ni.getInetAddresses(); a.hasMoreElements(); )
+                if ((a.nextElement() instanceof Inet4Address) == (group instanceof Inet4Address))
+                    sameFamily = true;
+            if (!sameFamily)
+                continue;
+            
+            if (!ni.isLoopback())
+                return ni;
+            if (loopback == null)
+                loopback = ni;
+        }
+        return loopback;
+    }
+    
+    private void close() {
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            logger.warning(ex.toString());
+        }
+        try {
+            multicastChannel.close();
+        } catch (IOException ex) {
+            logger.warning(ex.toString());
+        }
+        try {
+            unicastChannel.close();
+        } catch (IOException ex) {
+            logger.warning(ex.toString());
+        }
+    }
+    
+    @Override
+    public void finalize() throws Throwable {
+        try {            
+            this.done();
+        } finally {
+            super.finalize();
+        }
+    }
+    
+    /**
+     * Put SOAP message in send queue. Returns immediately.
+     * 
+     * @param message SOAP message.
+     */
+    public void send(NetworkMessage message) {
+        SOAPNetworkMessage m = new SOAPNetworkMessage(message, 
+                message.getDstAddress().equals(multicastAddress));
+        synchronized (outLock) {
+            outstanding++;
+        }
+        outQueue.add(m);
+        selector.wakeup();
+    }
+    
+    /**
+     * Receive a SOAP message.
+     * 
+     * @param timeoutInMillis Time to wait for a message.
+     * @return SOAP message. <code>null</code> on timeout.
+     * @throws java.lang.InterruptedException if interrupted while waiting for data.
+     */
+    public NetworkMessage recv(long timeoutInMillis) throws InterruptedException {
+        return inQueue.poll(timeoutInMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Receive a SOAP message.
+     * 
+     * @return SOAP message. <code>null</code> if interrupted while waiting.
+     */
+    public NetworkMessage recv() {
+        try {
+            return inQueue.take();
+        } catch (InterruptedException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the queue between the selector thread and {@link #recv}. Can be 
+     * used to monitor queue depth and dropped messages.
+     * 
+     * @return Receive queue.
+     */
+    public SOAPRingBuffer getReceiveQueue() {
+        return inQueue;
+    }
+
+    /**
+     * Get the rate limiter of multicast messages. Can be used to monitor 
+     * delayed and dropped messages.
+     * 
+     * @return Rate limiter, or null if the multicast rate is not limited.
+     */
+    public SOAPRateLimiter getMulticastRateLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Start transport layer.
+     */
+    public void start() {
+        selectorThread.start();
+    }
+
+    /**
+     * Stop the transport layer after all queued messages and their 
+     * retransmissions have been sent.
+     */
+    public void done() {
+        // Make sure all messages are sent
+        synchronized (outLock) {
+            while ((outstanding > 0) && selectorThread.isAlive())
+                try {
+                    outLock.wait();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+        }
+        
+        selectorThread.threadDone = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * Returns the port we listen for multicasts on.
+     * @return Multicast port.
+     */
+    public int getMulticastPort() {
+        return multicastPort;
+    }
+
+    /**
+     * Returns the port used for sending and receiving unicast packets.
+     * @return Port used for unicasts.
+     */
+    public int getUnicastPort() {
+        return unicastPort;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+SOAPOverUDPMixed.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.network.transport.soapudp.zlib;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.exception.WsDiscoveryTransportException;
+import com.ms.wsdiscovery.network.transport.interfaces.ITransportType;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPOverUDP;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SOAP-over-UDP that talks to both plain and compressed hosts, so that 
+ * compression can be rolled out without changing every host at once.
+ * <p>
+ * Each received payload is checked for a zlib header and decompressed if 
+ * present, otherwise it is passed on as plain SOAP. The transport remembers 
+ * whether each source address last sent plain messages, compressed messages 
+ * or messages compressed with the preset dictionary, and unicasts to that 
+ * address the same way. This way hosts that don't support the dictionary 
+ * are never sent it. Unicasts to unknown addresses are sent plain. 
+ * Multicasts are compressed only if 
+ * {@link WsDiscoveryConstants#zlibMixedCompressMulticast} is set, since they 
+ * reach hosts of all kinds. They use the dictionary if 
+ * {@link WsDiscoveryConstants#zlibUseDictionary} is set.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SOAPOverUDPMixed extends SOAPOverUDP implements ITransportType {
+    /**
+     * How a host sends its messages.
+     */
+    public enum Encoding {
+        /**
+         * Plain SOAP.
+         */
+        PLAIN,
+        /**
+         * Compressed without the preset dictionary.
+         */
+        ZLIB,
+        /**
+         * Compressed with the preset dictionary.
+         */
+        ZLIB_DICTIONARY
+    }
+    
+    private final ZlibCodec codec = new ZlibCodec();
+    private final InetAddress multicastAddress;
+    
+    /**
+     * Source addresses and how they last sent messages. Least recently seen 
+     * addresses are removed when the table is full.
+     */
+    private final Map<InetAddress, Encoding> peers = 
+            new LinkedHashMap<InetAddress, Encoding>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetAddress, Encoding> eldest) {
+                    return size() > WsDiscoveryConstants.zlibMixedMaxPeers;
+                }
+            };
+    
+    /**
+     * Create new transport using the default multicast settings.
+     * 
+     * @throws WsDiscoveryTransportException if an error occured while opening 
+     * the sockets.
+     */
+    public SOAPOverUDPMixed() throws WsDiscoveryTransportException {
+        super();
+        multicastAddress = WsDiscoveryConstants.multicastAddress;
+    }
+    
+    /**
+     * @param multicastPort Port for sending and receiving multicast messages
+     * @param multicastAddress Address for sending and listening to multicast messages.
+     * @throws WsDiscoveryTransportException if an error occured while opening
+     * the sockets.
+     */
+    public SOAPOverUDPMixed(int multicastPort, InetAddress multicastAddress) 
+            throws WsDiscoveryTransportException {
+        super(multicastPort, multicastAddress);
+        this.multicastAddress = multicastAddress;
+    }
+    
+    /**
+     * Get how messages to a host are sent.
+     * 
+     * @param address Address of host.
+     * @return Encoding of the last message received from 
+     * <code>address</code>, or {@link Encoding#PLAIN} if unknown.
+     */
+    public Encoding getEncoding(InetAddress address) {
+        synchronized (peers) {
+            Encoding e = peers.get(address);
+            return (e == null ? Encoding.PLAIN : e);
+        }
+    }
+    
+    /**
+     * Check whether messages to a host are compressed.
+     * 
+     * @param address Address of host.
+     * @return True if the last message received from <code>address</code> 
+     * was compressed.
+     */
+    public boolean isCompressing(InetAddress address) {
+        return getEncoding(address) != Encoding.PLAIN;
+    }
+    
+    /**
+     * Get number of hosts currently remembered.
+     * 
+     * @return Number of source addresses in the table.
+     */
+    public int getPeerCount() {
+        synchronized (peers) {
+            return peers.size();
+        }
+    }
+    
+    /**
+     * Decompress message if needed and record how the source sent it.
+     * 
+     * @return Plain message, or <code>null</code> if it could not be decompressed.
+     */
+    NetworkMessage decode(NetworkMessage nm) {
+        Encoding e = Encoding.PLAIN;
+        if (ZlibCodec.isCompressed(nm.getPayload(), 0, nm.getPayloadLen())) {
+            e = (ZlibCodec.isUsingDictionary(nm.getPayload(), 0, nm.getPayloadLen()) ? 
+                    Encoding.ZLIB_DICTIONARY : Encoding.ZLIB);
+            nm = codec.decompress(nm);
+            if (nm == null)
+                return null;
+        }
+        if (nm.getSrcAddress() != null)
+            synchronized (peers) {
+                peers.put(nm.getSrcAddress(), e);
+            }
+        return nm;
+    }
+    
+    /**
+     * Choose how to send a message to a destination.
+     * 
+     * @param destination Unicast or multicast address.
+     * @return Encoding.
+     */
+    Encoding getSendEncoding(InetAddress destination) {
+        if (destination.equals(multicastAddress))
+            return (!WsDiscoveryConstants.zlibMixedCompressMulticast ? Encoding.PLAIN : 
+                    (codec.isUsingDictionary() ? Encoding.ZLIB_DICTIONARY : Encoding.ZLIB));
+        return getEncoding(destination);
+    }
+    
+    /**
+     * Receive message. Messages that can't be decompressed are discarded.
+     * 
+     * @param timeoutInMillis Time to wait for new message.
+     * @return Message or <code>null</code> on timeout.
+     * @throws java.lang.InterruptedException if interrupted while waiting.
+     */
+    @Override
+    public NetworkMessage recv(long timeoutInMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutInMillis;
+        NetworkMessage nm;
+        do {
+            nm = super.recv(Math.max(end - System.currentTimeMillis(), 0));
+            if (nm == null)
+                return null;
+            nm = decode(nm);
+        } while (nm == null);
+        return nm;
+    }
+    
+    /**
+     * Receive message. Messages that can't be decompressed are discarded.
+     * 
+     * @return Message. <code>null</code> if interrupted while waiting.
+     */
+    @Override
+    public NetworkMessage recv() {
+        NetworkMessage nm;
+        do {
+            nm = super.recv();
+            if (nm == null)
+                return null;
+            nm = decode(nm);
+        } while (nm == null);
+        return nm;
+    }
+    
+    /**
+     * Send message, compressed the same way as the last message received 
+     * from the destination.
+     * 
+     * @param message Message to be sent.
+     * @param blockUntilSent If true, block until all messages are sent (queue is empty).
+     * @throws java.lang.InterruptedException if interrupted while waiting.
+     */
+    @Override
+    public void send(NetworkMessage message, boolean blockUntilSent) 
+            throws InterruptedException {
+        Encoding e = getSendEncoding(message.getDstAddress());
+        if (e != Encoding.PLAIN)
+            message = codec.compress(message, e == Encoding.ZLIB_DICTIONARY);
+        super.send(message, blockUntilSent);
+    }
+    
+    /**
+     * Stop transport layer and release the compression buffers.
+     */
+    @Override
+    public void done() {
+        super.done();
+        codec.end();
+    }
+}
@@ -19,20 +19,20 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package com.ms.wsdiscovery.network.transport.soapudp.zlib;
 
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 import com.ms.wsdiscovery.network.NetworkMessage;
 import com.ms.wsdiscovery.network.transport.interfaces.ITransportType;
 import com.ms.wsdiscovery.network.transport.exception.WsDiscoveryTransportException;
 import com.ms.wsdiscovery.network.transport.soapudp.SOAPOverUDP;
 
 /**
- * An implementation of SOAP-over-UDP using ZLib-compression.
+ * An implementation of SOAP-over-UDP using ZLib-compression. See 
+ * {@link ZlibCodec} for compression settings.
  * 
  * @author Magnus Skjegstad
  */
 public class SOAPOverUDPzlib extends SOAPOverUDP implements ITransportType {    
+    private final ZlibCodec codec = new ZlibCodec();
+    
     /**
      *
      * @throws wsdiscovery.network.transport.exception.WsDiscoveryTransportException
@@ -42,7 +42,7 @@ public class SOAPOverUDPzlib extends SOAPOverUDP implements ITransportType {
     }
 
     /**
-     * Receive message.
+     * Receive message. Messages that can't be decompressed are discarded.
      * 
      * @param timeoutInMillis Time to wait for new message.
      * @return Message or <code>null</code> on timeout.
@@ -50,21 +50,31 @@ public class SOAPOverUDPzlib extends SOAPOverUDP implements ITransportType {
      */
     @Override
     public NetworkMessage recv(long timeoutInMillis) throws InterruptedException {        
-        NetworkMessage nm = super.recv(timeoutInMillis);        
-        
-        if (nm != null) {
-            Inflater decompresser = new Inflater();
-            byte[] data = new byte[0xffff];
-            try {
-                decompresser.setInput(nm.getPayload(), 0, nm.getPayloadLen());
-                int len = decompresser.inflate(data);                
-                nm.setPayload(data, len);
-                decompresser.end();
-            } catch (DataFormatException ex) {
-                logger.warning(ex.toString());
+        long end = System.currentTimeMillis() + timeoutInMillis;
+        NetworkMessage nm;
+        do {
+            nm = super.recv(Math.max(end - System.currentTimeMillis(), 0));
+            if (nm == null)
                 return null;
-            }
-        }
+            nm = codec.decompress(nm);
+        } while (nm == null);
+        return nm;
+    }
+
+    /**
+     * Receive message. Messages that can't be decompressed are discarded.
+     * 
+     * @return Message. <code>null</code> if interrupted while waiting.
+     */
+    @Override
+    public NetworkMessage recv() {
+        NetworkMessage nm;
+        do {
+            nm = super.recv();
+            if (nm == null)
+                return null;
+            nm = codec.decompress(nm);
+        } while (nm == null);
         return nm;
     }
 
@@ -78,20 +88,15 @@ public class SOAPOverUDPzlib extends SOAPOverUDP implements ITransportType {
     @Override
     public void send(NetworkMessage message, boolean blockUntilSent) 
             throws InterruptedException {
-              
-        Deflater compresser = new Deflater(Deflater.BEST_COMPRESSION);
-
-        byte[] data = new byte[0xffff];
-        compresser.setInput(message.getPayload(), 0, message.getPayloadLen());
-        compresser.finish();
-        int len = compresser.deflate(data);
-
-        NetworkMessage nm = new NetworkMessage(
-                data, len, 
-                message.getSrcAddress(), message.getSrcPort(), 
-                message.getDstAddress(), message.getDstPort());        
-
-        super.send(nm, blockUntilSent);            
+        super.send(codec.compress(message), blockUntilSent);            
     }
 
+    /**
+     * Stop transport layer and release the compression buffers.
+     */
+    @Override
+    public void done() {
+        super.done();
+        codec.end();
+    }
 }
@@ -0,0 +1,358 @@
+/*
+ZlibCodec.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.network.transport.soapudp.zlib;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.logger.WsdLogger;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.xml.soap.SOAPConstants;
+
+/**
+ * Compresses and decompresses network messages with zlib. Deflaters and 
+ * inflaters are kept in pools bounded by 
+ * {@link WsDiscoveryConstants#zlibPoolSize} and reset between messages, 
+ * so their native memory is allocated once instead of per message. 
+ * Instances are thread safe.
+ * <p>
+ * When {@link WsDiscoveryConstants#zlibUseDictionary} is set, messages are 
+ * compressed with a preset dictionary containing the namespaces, actions 
+ * and element names used in WS-Discovery messages (see 
+ * {@link #DICTIONARY}). This makes small messages such as Hello and Probe 
+ * compress much better. Decompression accepts messages with and without 
+ * the dictionary.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class ZlibCodec {
+    /**
+     * Largest decompressed message accepted, in bytes.
+     */
+    public static final int MAX_PAYLOAD = 0xffff;
+    
+    /**
+     * Preset dictionary used when {@link WsDiscoveryConstants#zlibUseDictionary}
+     * is set. Strings that occur in most messages are placed last, since 
+     * zlib encodes matches at shorter distances with fewer bits. Changing 
+     * the dictionary breaks compatibility with hosts using the old one.
+     */
+    public static final byte[] DICTIONARY = createDictionary();
+    
+    private static final long DICTIONARY_ADLER;
+    
+    static {
+        Adler32 adler = new Adler32();
+        adler.update(DICTIONARY);
+        DICTIONARY_ADLER = adler.getValue();
+    }
+    
+    private static WsdLogger logger = new WsdLogger(ZlibCodec.class.getName());
+    
+    private final int level;
+    private final boolean useDictionary;
+    private final BlockingQueue<Deflater> deflaterPool = 
+            new ArrayBlockingQueue<Deflater>(WsDiscoveryConstants.zlibPoolSize);
+    private final BlockingQueue<Inflater> inflaterPool = 
+            new ArrayBlockingQueue<Inflater>(WsDiscoveryConstants.zlibPoolSize);
+    
+    /**
+     * Create codec using the compression level and dictionary setting from 
+     * {@link WsDiscoveryConstants#zlibCompressionLevel} and 
+     * {@link WsDiscoveryConstants#zlibUseDictionary}.
+     */
+    public ZlibCodec() {
+        this(WsDiscoveryConstants.zlibCompressionLevel, WsDiscoveryConstants.zlibUseDictionary);
+    }
+    
+    /**
+     * Create codec.
+     * 
+     * @param level Compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param useDictionary Compress with the preset dictionary.
+     */
+    public ZlibCodec(int level, boolean useDictionary) {
+        if (((level < 0) || (level > 9)) && (level != Deflater.DEFAULT_COMPRESSION))
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        this.level = level;
+        this.useDictionary = useDictionary;
+    }
+    
+    private static byte[] createDictionary() {
+        String d = WsDiscoveryConstants.defaultNsDiscovery.toString();
+        String a = WsDiscoveryConstants.defaultNsAddressing.toString();
+        String[] parts = {
+            // Least frequent first
+            "<wsa:RelatesTo RelationshipType=\"Suppression\">", "</wsa:RelatesTo>",
+            "<wsa:ReplyTo><wsa:Address>" + a + "/role/anonymous</wsa:Address></wsa:ReplyTo>",
+            "<wsd:ResolveMatches><wsd:ResolveMatch>", "</wsd:ResolveMatch></wsd:ResolveMatches>",
+            "<wsd:ProbeMatches><wsd:ProbeMatch>", "</wsd:ProbeMatch></wsd:ProbeMatches>",
+            "<wsd:Resolve>", "</wsd:Resolve>", "<wsd:Bye>", "</wsd:Bye>", 
+            "<wsd:Probe>", "</wsd:Probe>", "<wsd:Probe/>", "<wsd:Hello>", "</wsd:Hello>",
+            "<wsd:MetadataVersion>", "</wsd:MetadataVersion>",
+            "<wsd:XAddrs>http://", "/onvif/device_service</wsd:XAddrs>",
+            "<wsd:Scopes MatchBy=\"" + d + "/rfc2396\">", "</wsd:Scopes>",
+            "<wsd:Types xmlns=\"", "\">", "</wsd:Types>",
+            "<wsa:EndpointReference><wsa:Address>urn:uuid:", "</wsa:Address></wsa:EndpointReference>",
+            "</env:Header><env:Body>", "</env:Body></env:Envelope>",
+            "<wsa:MessageID>urn:uuid:", "</wsa:MessageID>",
+            "<wsa:Action>" + d + "/", "</wsa:Action>",
+            "<wsa:To>" + WsDiscoveryConstants.defaultTo.getValue() + "</wsa:To>",
+            "\" MessageNumber=\"", "\" SequenceId=\"urn:uuid:", "\"/>",
+            // Start of every message
+            "<env:Envelope xmlns:env=\"" + SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE + 
+                "\" xmlns:wsa=\"" + a + "\" xmlns:wsd=\"" + d + "\">" + 
+                "<env:Header><wsd:AppSequence InstanceId=\""
+        };
+        StringBuilder sb = new StringBuilder();
+        for (String s : parts)
+            sb.append(s);
+        return sb.toString().getBytes(WsDiscoveryConstants.defaultEncoding);
+    }
+    
+    /**
+     * Check whether a payload starts with a zlib header. Plain SOAP payloads 
+     * start with <code>&lt;</code>, whitespace or a byte order mark, none 
+     * of which are valid zlib headers.
+     * 
+     * @param data Payload.
+     * @param offset Offset of first byte in <code>data</code>.
+     * @param length Length of payload.
+     * @return True if the payload looks like zlib compressed data.
+     */
+    public static boolean isCompressed(byte[] data, int offset, int length) {
+        if (length < 2)
+            return false;
+        int cmf = data[offset] & 0xff;
+        int flg = data[offset + 1] & 0xff;
+        // Deflate method, window size at most 32K, header checksum
+        return ((cmf & 0x0f) == 8) && ((cmf >> 4) <= 7) && (((cmf << 8) | flg) % 31 == 0);
+    }
+    
+    /**
+     * Check whether a compressed payload needs the preset dictionary, that 
+     * is, whether the zlib header has the FDICT flag set. An inflater asks 
+     * for the dictionary before producing any output for such payloads.
+     * 
+     * @param data Compressed payload.
+     * @param offset Offset of first byte in <code>data</code>.
+     * @param length Length of compressed payload.
+     * @return True if the payload was compressed with a preset dictionary.
+     */
+    public static boolean isUsingDictionary(byte[] data, int offset, int length) {
+        return isCompressed(data, offset, length) && ((data[offset + 1] & 0x20) != 0);
+    }
+    
+    /**
+     * Get compression level.
+     * @return Compression level.
+     */
+    public int getLevel() {
+        return level;
+    }
+    
+    /**
+     * Check whether messages are compressed with the preset dictionary.
+     * @return True if the dictionary is used.
+     */
+    public boolean isUsingDictionary() {
+        return useDictionary;
+    }
+    
+    private Deflater borrowDeflater() {
+        Deflater d = deflaterPool.poll();
+        if (d == null)
+            d = new Deflater(level);
+        return d;
+    }
+    
+    private void returnDeflater(Deflater d) {
+        d.reset();
+        if (!deflaterPool.offer(d))
+            d.end();
+    }
+    
+    private Inflater borrowInflater() {
+        Inflater i = inflaterPool.poll();
+        if (i == null)
+            i = new Inflater();
+        return i;
+    }
+    
+    private void returnInflater(Inflater i) {
+        i.reset();
+        if (!inflaterPool.offer(i))
+            i.end();
+    }
+    
+    /**
+     * Compress a payload, with the preset dictionary if the codec uses it.
+     * 
+     * @param data Payload.
+     * @param offset Offset of first byte in <code>data</code>.
+     * @param length Length of payload.
+     * @return Compressed payload.
+     */
+    public byte[] compress(byte[] data, int offset, int length) {
+        return compress(data, offset, length, useDictionary);
+    }
+    
+    /**
+     * Compress a payload.
+     * 
+     * @param data Payload.
+     * @param offset Offset of first byte in <code>data</code>.
+     * @param length Length of payload.
+     * @param dictionary Compress with the preset dictionary.
+     * @return Compressed payload.
+     */
+    public byte[] compress(byte[] data, int offset, int length, boolean dictionary) {
+        // Upper bound of deflated size, see deflateBound() in zlib
+        byte[] buf = new byte[length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6];
+        Deflater d = borrowDeflater();
+        try {
+            if (dictionary)
+                d.setDictionary(DICTIONARY);
+            d.setInput(data, offset, length);
+            d.finish();
+            int len = 0;
+            while (!d.finished()) {
+                if (len == buf.length)
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                len += d.deflate(buf, len, buf.length - len);
+            }
+            return Arrays.copyOf(buf, len);
+        } finally {
+            returnDeflater(d);
+        }
+    }
+    
+    /**
+     * Decompress a payload.
+     * 
+     * @param data Compressed payload.
+     * @param offset Offset of first byte in <code>data</code>.
+     * @param length Length of compressed payload.
+     * @return Decompressed payload, or <code>null</code> if the data is 
+     * corrupt, truncated, larger than {@link #MAX_PAYLOAD} or compressed 
+     * with an unknown dictionary.
+     */
+    public byte[] decompress(byte[] data, int offset, int length) {
+        byte[] buf = new byte[Math.min(Math.max(length * 4, 1024), MAX_PAYLOAD)];
+        Inflater i = borrowInflater();
+        try {
+            i.setInput(data, offset, length);
+            int len = 0;
+            while (!i.finished()) {
+                if (len == buf.length) {
+                    if (buf.length >= MAX_PAYLOAD) {
+                        logger.warning("Decompressed message is larger than " + MAX_PAYLOAD + " bytes.");
+                        return null;
+                    }
+                    buf = Arrays.copyOf(buf, Math.min(buf.length * 2, MAX_PAYLOAD));
+                }
+                int n = i.inflate(buf, len, buf.length - len);
+                if (n == 0) {
+                    if (i.needsDictionary()) {
+                        if (i.getAdler() != DICTIONARY_ADLER) {
+                            logger.warning("Message is compressed with an unknown dictionary.");
+                            return null;
+                        }
+                        i.setDictionary(DICTIONARY);
+                    } else
+                    if (i.needsInput()) {
+                        logger.warning("Compressed message is truncated.");
+                        return null;
+                    }
+                }
+                len += n;
+            }
+            return Arrays.copyOf(buf, len);
+        } catch (DataFormatException ex) {
+            logger.warning(ex.toString());
+            return null;
+        } finally {
+            returnInflater(i);
+        }
+    }
+    
+    /**
+     * Create a compressed copy of a network message, with the preset 
+     * dictionary if the codec uses it.
+     * 
+     * @param message Message.
+     * @return Message with compressed payload and the same addresses, send 
+     * time and priority.
+     */
+    public NetworkMessage compress(NetworkMessage message) {
+        return compress(message, useDictionary);
+    }
+    
+    /**
+     * Create a compressed copy of a network message.
+     * 
+     * @param message Message.
+     * @param dictionary Compress with the preset dictionary.
+     * @return Message with compressed payload and the same addresses, send 
+     * time and priority.
+     */
+    public NetworkMessage compress(NetworkMessage message, boolean dictionary) {
+        byte[] data = compress(message.getPayload(), 0, message.getPayloadLen(), dictionary);
+        NetworkMessage nm = new NetworkMessage(data, 
+                message.getSrcAddress(), message.getSrcPort(), 
+                message.getDstAddress(), message.getDstPort());
+        nm.setSendTime(message.getSendTime());
+        nm.setPriority(message.getPriority());
+        return nm;
+    }
+    
+    /**
+     * Decompress the payload of a network message in place.
+     * 
+     * @param message Message with compressed payload.
+     * @return <code>message</code> with decompressed payload, or 
+     * <code>null</code> if the payload could not be decompressed.
+     */
+    public NetworkMessage decompress(NetworkMessage message) {
+        byte[] data = decompress(message.getPayload(), 0, message.getPayloadLen());
+        if (data == null)
+            return null;
+        message.setPayload(data);
+        return message;
+    }
+    
+    /**
+     * Release pooled deflaters and inflaters. The codec can still be used 
+     * afterwards.
+     */
+    public void end() {
+        Deflater d;
+        while ((d = deflaterPool.poll()) != null)
+            d.end();
+        Inflater i;
+        while ((i = inflaterPool.poll()) != null)
+            i.end();
+    }
+}
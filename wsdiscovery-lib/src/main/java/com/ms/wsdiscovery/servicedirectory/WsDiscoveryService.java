@@ -28,6 +28,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.xml.namespace.QName;
 import com.ms.wsdiscovery.WsDiscoveryBuilder;
 import com.ms.wsdiscovery.WsDiscoveryConstants;
@@ -42,12 +43,21 @@ import com.ms.wsdiscovery.xml.jaxb_generated.ResolveMatchType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ResolveMatchesType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.xml.exception.WsDiscoveryXMLException;
+import javax.xml.bind.JAXBElement;
 
 /**
  * Class for storing a WS-Discovery service description. See the specification
  * or the schema for details on the different data types.
  * <p>
  * This class is thread safe.
+ * <p>
+ * The ProbeMatch, ResolveMatch and Hello elements describing the service are
+ * serialized when first needed and reused until the service is changed with 
+ * one of the setters. Lists returned by the getters can not be modified. 
+ * When a service stored in a {@link WsDiscoveryServiceDirectory} is changed 
+ * with one of the setters, the directory is told so that it can update its 
+ * indexes.
  * 
  * @author Magnus Skjegstad
  */
@@ -85,7 +95,7 @@ public class WsDiscoveryService {
     /**
      * Creation time
      */
-    protected Date created = new Date();
+    protected Date created = new Date(WsDiscoveryConstants.clock.currentTimeMillis());
     
     /**
      * Last time a Resolve-packet was sent for this service.
@@ -97,6 +107,20 @@ public class WsDiscoveryService {
      * Set for all hosts that has received a ResolveMatch for this service. Used to enforce timeouts per host.
      */
     protected Map<InetAddress, Date> sentResolveMatch = new HashMap<InetAddress, Date>();
+    
+    /**
+     * Serialized ProbeMatch, ResolveMatch and Hello elements. Null until 
+     * needed, and after the service has changed.
+     */
+    private byte[] probeMatchFragment = null;
+    private byte[] resolveMatchFragment = null;
+    private byte[] helloFragment = null;
+    
+    /**
+     * Directories this service is stored in.
+     */
+    private final CopyOnWriteArrayList<WsDiscoveryServiceDirectory> directories = 
+            new CopyOnWriteArrayList<WsDiscoveryServiceDirectory>();
 
     /**
      * Create a new, empty WS-Discovery service description.
@@ -292,8 +316,12 @@ public class WsDiscoveryService {
      * Stores a copy of an endpoint reference.
      * @param er Endpoint reference.
      */
-    public synchronized void setEndpointReferenceType(EndpointReferenceType er) {
-        this.endpointReference = WsDiscoveryConstants.XMLBUILDER.cloneEndpointReference(er);
+    public void setEndpointReferenceType(EndpointReferenceType er) {
+        synchronized (this) {
+            this.endpointReference = WsDiscoveryConstants.XMLBUILDER.cloneEndpointReference(er);
+            clearFragments();
+        }
+        changed(null);
     }
 
     /**
@@ -301,7 +329,11 @@ public class WsDiscoveryService {
      * @param endpointReference String-representation of the endpoint reference.
      */
     public void setEndpointReference(String endpointReference) {
-        this.endpointReference = WsDiscoveryConstants.XMLBUILDER.createEndpointReference(endpointReference);
+        synchronized (this) {
+            this.endpointReference = WsDiscoveryConstants.XMLBUILDER.createEndpointReference(endpointReference);
+            clearFragments();
+        }
+        changed(null);
     }
 
 
@@ -335,8 +367,18 @@ public class WsDiscoveryService {
      * Set metadata version.
      * @param metadataVersion New metadata version.
      */
-    public synchronized void setMetadataVersion(long metadataVersion) {
+    public void setMetadataVersion(long metadataVersion) {
+        replaceMetadataVersion(metadataVersion);
+        changed(null);
+    }
+    
+    /**
+     * Set metadata version without telling the directories the service is 
+     * stored in. Used by a directory while holding its write lock.
+     */
+    synchronized void replaceMetadataVersion(long metadataVersion) {
         this.metadataVersion = metadataVersion;
+        clearFragments();
     }
 
     /**
@@ -344,7 +386,9 @@ public class WsDiscoveryService {
      * @return Scope URIs
      */
     public synchronized List<URI> getScopes() {
-        return scopes;
+        if (scopes == null)
+            return null;
+        return Collections.unmodifiableList(scopes);
     }
     
     /**
@@ -359,15 +403,19 @@ public class WsDiscoveryService {
      * Set scopes.
      * @param scopes New scopes.
      */
-    public synchronized void setScopesType(ScopesType scopes) {
-        this.scopes = Collections.synchronizedList(new ArrayList<URI>());
-        
-        if (scopes != null) {
-            if (scopes.getValue() != null)
-                for (String s : scopes.getValue())
-                    this.scopes.add(URI.create(s));
-            scopesMatchBy = WsDiscoveryBuilder.getMatcher(scopes);
+    public void setScopesType(ScopesType scopes) {
+        synchronized (this) {
+            this.scopes = Collections.synchronizedList(new ArrayList<URI>());
+
+            if (scopes != null) {
+                if (scopes.getValue() != null)
+                    for (String s : scopes.getValue())
+                        this.scopes.add(URI.create(s));
+                scopesMatchBy = WsDiscoveryBuilder.getMatcher(scopes);
+            }
+            clearFragments();
         }
+        changed(null);
     }
 
     /**
@@ -386,19 +434,23 @@ public class WsDiscoveryService {
      * @return List of port types.
      */
     public synchronized List<QName> getPortTypes() {
-        return Collections.synchronizedList(portTypes);
+        return Collections.unmodifiableList(portTypes);
     }
 
     /**
      * Set port types.
      * @param types List of port types.
      */
-    public synchronized void setPortTypes(List<QName> types) {
-        if (types != null) {
-            this.portTypes = Collections.synchronizedList(new ArrayList<QName>());
-            this.portTypes.addAll(types);
-        } else
-            this.portTypes = null;
+    public void setPortTypes(List<QName> types) {
+        synchronized (this) {
+            if (types != null) {
+                this.portTypes = Collections.synchronizedList(new ArrayList<QName>());
+                this.portTypes.addAll(types);
+            } else
+                this.portTypes = null;
+            clearFragments();
+        }
+        changed(null);
     }
 
     /**
@@ -406,21 +458,150 @@ public class WsDiscoveryService {
      * @return List of invocation addresses.
      */
     public synchronized List<String> getXAddrs() {
-        return xAddrs;
+        if (xAddrs == null)
+            return null;
+        return Collections.unmodifiableList(xAddrs);
     }
 
     /**
      * Set invocation addresses.
      * @param xAddrs List of invocation addresses.
      */
-    public synchronized void setXAddrs(List<String> xAddrs) {
-        if (xAddrs != null) {
-            this.xAddrs =  Collections.synchronizedList(new ArrayList<String>());
-            this.xAddrs.addAll(xAddrs);
-        } else
-            this.xAddrs = null;        
+    public void setXAddrs(List<String> xAddrs) {
+        synchronized (this) {
+            if (xAddrs != null) {
+                this.xAddrs =  Collections.synchronizedList(new ArrayList<String>());
+                this.xAddrs.addAll(xAddrs);
+            } else
+                this.xAddrs = null;        
+            clearFragments();
+        }
+        changed(null);
     }    
     
+    private void clearFragments() {
+        probeMatchFragment = null;
+        resolveMatchFragment = null;
+        helloFragment = null;
+    }
+    
+    /**
+     * Called by a directory when this service is stored in it.
+     */
+    void attach(WsDiscoveryServiceDirectory directory) {
+        directories.addIfAbsent(directory);
+    }
+    
+    /**
+     * Called by a directory when this service is removed from it.
+     */
+    void detach(WsDiscoveryServiceDirectory directory) {
+        directories.remove(directory);
+    }
+    
+    /**
+     * Tell the directories this service is stored in that it has changed, so
+     * that they can update their indexes. Must not be called while holding 
+     * the lock of this service, since the directories take their write lock.
+     * @param except Directory that already knows, or <code>null</code>.
+     */
+    void changed(WsDiscoveryServiceDirectory except) {
+        for (WsDiscoveryServiceDirectory d : directories)
+            if (d != except)
+                d.serviceChanged(this);
+    }
+    
+    /**
+     * Create a {@link ProbeMatchType} object describing this service.
+     * @return New ProbeMatch.
+     */
+    public synchronized ProbeMatchType createProbeMatchObject() {
+        ProbeMatchType m = new ProbeMatchType();
+        m.setEndpointReference(createEndpointReferenceObject());
+        m.setMetadataVersion(metadataVersion);
+        m.setScopes(createScopesObject());
+        if (portTypes != null)
+            m.getTypes().addAll(portTypes);
+        if (xAddrs != null)
+            m.getXAddrs().addAll(xAddrs);
+        return m;
+    }
+    
+    /**
+     * Create a {@link ResolveMatchType} object describing this service.
+     * @return New ResolveMatch.
+     */
+    public synchronized ResolveMatchType createResolveMatchObject() {
+        ResolveMatchType m = new ResolveMatchType();
+        m.setEndpointReference(createEndpointReferenceObject());
+        m.setMetadataVersion(metadataVersion);
+        m.setScopes(createScopesObject());
+        if (portTypes != null)
+            m.getTypes().addAll(portTypes);
+        if (xAddrs != null)
+            m.getXAddrs().addAll(xAddrs);
+        return m;
+    }
+    
+    /**
+     * Create a {@link HelloType} object describing this service.
+     * @return New Hello.
+     */
+    public synchronized HelloType createHelloObject() {
+        HelloType m = new HelloType();
+        m.setEndpointReference(createEndpointReferenceObject());
+        m.setMetadataVersion(metadataVersion);
+        m.setScopes(createScopesObject());
+        if (portTypes != null)
+            m.getTypes().addAll(portTypes);
+        if (xAddrs != null)
+            m.getXAddrs().addAll(xAddrs);
+        return m;
+    }
+    
+    /**
+     * Get this service serialized as a wsd:ProbeMatch element, for inclusion
+     * in the body of a ProbeMatches-message. The array is shared and must 
+     * not be modified.
+     * @return Self-contained XML fragment.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public synchronized byte[] getProbeMatchFragment() throws WsDiscoveryXMLException {
+        if (probeMatchFragment == null)
+            probeMatchFragment = WsDiscoveryConstants.XMLBUILDER.marshalFragment(
+                    new JAXBElement<ProbeMatchType>(new QName(WsDiscoveryConstants.defaultNsDiscovery.toString(), "ProbeMatch"), 
+                        ProbeMatchType.class, createProbeMatchObject()));
+        return probeMatchFragment;
+    }
+    
+    /**
+     * Get this service serialized as a wsd:ResolveMatch element, for 
+     * inclusion in the body of a ResolveMatches-message. The array is shared 
+     * and must not be modified.
+     * @return Self-contained XML fragment.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public synchronized byte[] getResolveMatchFragment() throws WsDiscoveryXMLException {
+        if (resolveMatchFragment == null)
+            resolveMatchFragment = WsDiscoveryConstants.XMLBUILDER.marshalFragment(
+                    new JAXBElement<ResolveMatchType>(new QName(WsDiscoveryConstants.defaultNsDiscovery.toString(), "ResolveMatch"), 
+                        ResolveMatchType.class, createResolveMatchObject()));
+        return resolveMatchFragment;
+    }
+    
+    /**
+     * Get this service serialized as a wsd:Hello element, i.e. the body of a
+     * Hello-message. The array is shared and must not be modified.
+     * @return Self-contained XML fragment.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public synchronized byte[] getHelloFragment() throws WsDiscoveryXMLException {
+        if (helloFragment == null)
+            helloFragment = WsDiscoveryConstants.XMLBUILDER.marshalFragment(
+                    WsDiscoveryConstants.XMLBUILDER.createHello(createHelloObject()));
+        return helloFragment;
+    }
+    
     @Override
     public synchronized String toString() {
         List<String> l = new ArrayList<String>();
@@ -516,7 +697,7 @@ public class WsDiscoveryService {
      * @param address Address the ResolveMatch was sent to.
      */
     public synchronized void setSentResolveMatch(InetAddress address) {
-        sentResolveMatch.put(address, new Date());
+        sentResolveMatch.put(address, new Date(WsDiscoveryConstants.clock.currentTimeMillis()));
     }
     
     /**
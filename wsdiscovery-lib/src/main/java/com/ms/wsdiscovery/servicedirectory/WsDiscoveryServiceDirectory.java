@@ -21,17 +21,28 @@ package com.ms.wsdiscovery.servicedirectory;
 
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
 import java.net.URI;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.xml.namespace.QName;
 import com.ms.wsdiscovery.WsDiscoveryBuilder;
+import com.ms.wsdiscovery.WsDiscoveryConstants;
 import com.ms.wsdiscovery.logger.WsdLogger;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
+import com.ms.wsdiscovery.servicedirectory.index.IScopeIndex;
+import com.ms.wsdiscovery.servicedirectory.index.PortTypeIndex;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceHashCollection;
 import com.ms.wsdiscovery.xml.jaxb_generated.ByeType;
 import com.ms.wsdiscovery.xml.jaxb_generated.EndpointReferenceType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchType;
@@ -44,27 +55,229 @@ import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
  * stored in an instance of IWsDiscoveryServiceCollection and accessed
  * in a thread-safe manner.
  * <p>
+ * The directory runs in one of two modes. By default, readers and writers 
+ * share a read/write lock. In snapshot mode, writers publish an immutable, 
+ * versioned snapshot of the services and their indexes after each change, 
+ * and readers use the latest snapshot without locking. Writers are 
+ * serialized in both modes.
+ * <p>
+ * Listeners registered with {@link #addListener} are notified of each 
+ * change after it has been made visible to readers.
+ * <p>
+ * A stored service may be changed in place with its setters. The directory 
+ * is told about the change, and updates its indexes and version as if the 
+ * service had been stored again.
+ * <p>
  * This class is thread safe.
  * 
  * @author Magnus Skjegstad
  */
 public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory {
-    private IWsDiscoveryServiceCollection services;
+    private IWsDiscoveryServiceCollection services; // Service store, guarded by rwl
+    private volatile State state; // Services and indexes used by readers
+    private final boolean snapshots; // Publish a new State after each change
+    private State next = null; // Unpublished snapshot, guarded by rwl
+    private List<WsDiscoveryService[]> events = 
+            new ArrayList<WsDiscoveryService[]>(); // {old, new} for each undelivered change, guarded by rwl
+    private List<WsDiscoveryService> changed = 
+            new ArrayList<WsDiscoveryService>(); // Services to announce to other directories, guarded by rwl
+    private final List<IWsDiscoveryServiceDirectoryListener> listeners = 
+            new CopyOnWriteArrayList<IWsDiscoveryServiceDirectoryListener>();
     private String name;
     private WsdLogger logger = 
             new WsdLogger(WsDiscoveryServiceDirectory.class.getName());
-    private ReadWriteLock rwl = 
+    private ReentrantReadWriteLock rwl = 
             new ReentrantReadWriteLock(); // multiple read, single write. Read not allowed while writing.
     private Lock r = rwl.readLock();
     private Lock w = rwl.writeLock();
-           
+    
+    /**
+     * Services with port type and scope indexes, as seen by readers. In the 
+     * default mode there is a single instance, updated in place while holding 
+     * the write lock. In snapshot mode each instance is immutable once 
+     * published, and the next snapshot is a copy with the changes applied.
+     */
+    private final class State {
+        private final IWsDiscoveryServiceCollection services;
+        private final PortTypeIndex portTypeIndex;
+        private final Map<MatchBy, IScopeIndex> scopeIndexes = 
+                new EnumMap<MatchBy, IScopeIndex>(MatchBy.class);
+        private final boolean snapshot; // services is a private copy of the store
+        private long version;
+        
+        /**
+         * Create a state holding and indexing <code>services</code>.
+         */
+        State(IWsDiscoveryServiceCollection services, long version, boolean snapshot) {
+            this.services = services;
+            this.version = version;
+            this.snapshot = snapshot;
+            portTypeIndex = new PortTypeIndex();
+            
+            for (MatchBy m : MatchBy.values())
+                try {
+                    IScopeIndex index = m.newScopeIndex();
+                    if (index != null)
+                        scopeIndexes.put(m, index);
+                } catch (InstantiationException ex) {
+                    logger.warning("Unable to create scope index for " + m + ": " + ex.toString());
+                } catch (IllegalAccessException ex) {
+                    logger.warning("Unable to create scope index for " + m + ": " + ex.toString());
+                }
+            
+            for (WsDiscoveryService s : services)
+                addToIndexes(s);
+        }
+        
+        /**
+         * Create the next snapshot from a published one.
+         */
+        State(State previous) {
+            services = new WsDiscoveryServiceHashCollection(
+                    (WsDiscoveryServiceHashCollection)previous.services);
+            version = previous.version + 1;
+            snapshot = true;
+            portTypeIndex = previous.portTypeIndex.copy();
+            for (Map.Entry<MatchBy, IScopeIndex> e : previous.scopeIndexes.entrySet())
+                scopeIndexes.put(e.getKey(), e.getValue().copy());
+        }
+        
+        /**
+         * Apply a service added to the store.
+         */
+        void add(WsDiscoveryService service) {
+            if (snapshot)
+                services.add(service);
+            else
+                version++;
+            addToIndexes(service);
+        }
+        
+        /**
+         * Apply a service updated in the store.
+         */
+        void update(WsDiscoveryService service, WsDiscoveryService previous) {
+            if (snapshot)
+                services.update(service);
+            else
+                version++;
+            removeFromIndexes(previous);
+            addToIndexes(service);
+        }
+        
+        /**
+         * Apply a stored service that has been changed in place.
+         * @param moved True if the endpoint reference of the service changed.
+         */
+        void reindex(WsDiscoveryService service, boolean moved) {
+            if (snapshot) {
+                if (moved) {
+                    removeInstance(services, service);
+                    services.add(service);
+                }
+            } else
+                version++;
+            removeFromIndexes(service);
+            addToIndexes(service);
+        }
+        
+        /**
+         * Apply a service removed from the store.
+         */
+        void remove(WsDiscoveryService service) {
+            if (snapshot)
+                services.remove(service);
+            else
+                version++;
+            removeFromIndexes(service);
+        }
+        
+        private void addToIndexes(WsDiscoveryService service) {
+            portTypeIndex.add(service);
+            for (IScopeIndex index : scopeIndexes.values())
+                index.add(service);
+        }
+        
+        private void removeFromIndexes(WsDiscoveryService service) {
+            portTypeIndex.remove(service);
+            for (IScopeIndex index : scopeIndexes.values())
+                index.remove(service);
+        }
+    }
+    
+    /**
+     * Read-only view of the services in a snapshot, returned by 
+     * {@link #matchAll()} in snapshot mode.
+     */
+    private static final class UnmodifiableCollection 
+            extends AbstractCollection<WsDiscoveryService> 
+            implements IWsDiscoveryServiceCollection {
+        private final IWsDiscoveryServiceCollection services;
+        
+        UnmodifiableCollection(IWsDiscoveryServiceCollection services) {
+            this.services = services;
+        }
+
+        public boolean update(WsDiscoveryService service) {
+            throw new UnsupportedOperationException("Snapshot can not be modified.");
+        }
+
+        public boolean contains(String endpointReference) {
+            return services.contains(endpointReference);
+        }
+
+        public WsDiscoveryService get(String endpointReference) {
+            return services.get(endpointReference);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return services.contains(o);
+        }
+        
+        @Override
+        public Iterator<WsDiscoveryService> iterator() {
+            final Iterator<WsDiscoveryService> i = services.iterator();
+            return new Iterator<WsDiscoveryService>() {
+                public boolean hasNext() {
+                    return i.hasNext();
+                }
+
+                public WsDiscoveryService next() {
+                    return i.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("Snapshot can not be modified.");
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return services.size();
+        }
+    }
+    
     /**
      * Create a new service directory.
      * @param name Name of service directory.
+     * @param snapshots When true, readers use immutable snapshots instead of locking.
      */
-    public WsDiscoveryServiceDirectory(String name) {
-        services = new WsDiscoveryServiceCollection();
+    public WsDiscoveryServiceDirectory(String name, boolean snapshots) {
+        services = new WsDiscoveryServiceHashCollection();
         this.name = name;
+        this.snapshots = snapshots;
+        state = new State(snapshots ? copyOf(services) : services, 0, snapshots);
+    }
+    
+    /**
+     * Create a new service directory. Snapshot mode is enabled if 
+     * {@link WsDiscoveryConstants#useServiceDirectorySnapshots} is true.
+     * @param name Name of service directory.
+     */
+    public WsDiscoveryServiceDirectory(String name) {
+        this(name, WsDiscoveryConstants.useServiceDirectorySnapshots);
     }
     
     /**
@@ -98,17 +311,162 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
     public WsDiscoveryServiceDirectory() {
         this("");
     }
+    
+    /**
+     * Copy services into a new collection for a snapshot.
+     */
+    private static IWsDiscoveryServiceCollection copyOf(IWsDiscoveryServiceCollection services) {
+        IWsDiscoveryServiceCollection copy = new WsDiscoveryServiceHashCollection();
+        copy.addAll(services);
+        return copy;
+    }
+    
+    /**
+     * Remove a service instance from a collection without looking it up by 
+     * its endpoint reference, which may have changed since it was added.
+     * @return False if not found.
+     */
+    private static boolean removeInstance(IWsDiscoveryServiceCollection services, 
+            WsDiscoveryService service) {
+        for (Iterator<WsDiscoveryService> i = services.iterator(); i.hasNext();)
+            if (i.next() == service) {
+                i.remove();
+                return true;
+            }
+        return false;
+    }
+    
+    /**
+     * Get the state to change. In snapshot mode this is the next snapshot, 
+     * which is created on the first change. Caller must hold the write lock.
+     */
+    private State writeState() {
+        if (!snapshots)
+            return state;
+        if (next == null)
+            next = new State(state);
+        return next;
+    }
+    
+    /**
+     * Get the state to read from. Must be followed by a call to 
+     * {@link #endRead()}.
+     */
+    private State beginRead() {
+        if (!snapshots)
+            r.lock();
+        return state;
+    }
+    
+    private void endRead() {
+        if (!snapshots)
+            r.unlock();
+    }
+    
+    /**
+     * Release the write lock. When the outermost write lock is released in 
+     * snapshot mode, a new snapshot is published if the services have changed.
+     * Listeners, and other directories holding services changed by this one,
+     * are notified of the changes after the lock is released.
+     */
+    private void endWrite() {
+        List<WsDiscoveryService[]> changes = null;
+        List<WsDiscoveryService> changedServices = null;
+        try {
+            if (rwl.getWriteHoldCount() == 1) {
+                if (next != null) {
+                    state = next;
+                    next = null;
+                }
+                if (!events.isEmpty()) {
+                    changes = events;
+                    events = new ArrayList<WsDiscoveryService[]>();
+                }
+                if (!changed.isEmpty()) {
+                    changedServices = changed;
+                    changed = new ArrayList<WsDiscoveryService>();
+                }
+            }
+        } finally {
+            w.unlock();
+        }
+        
+        if (changedServices != null)
+            for (WsDiscoveryService s : changedServices)
+                s.changed(this);
+        if (changes != null)
+            fireEvents(changes);
+    }
+    
+    /**
+     * Queue a change for the listeners. Caller must hold the write lock.
+     * @param oldService Previous service, or <code>null</code> if added.
+     * @param newService New service, or <code>null</code> if removed.
+     */
+    private void queueEvent(WsDiscoveryService oldService, WsDiscoveryService newService) {
+        if (!listeners.isEmpty())
+            events.add(new WsDiscoveryService[] {oldService, newService});
+    }
+    
+    private void fireEvents(List<WsDiscoveryService[]> changes) {
+        for (IWsDiscoveryServiceDirectoryListener l : listeners)
+            for (WsDiscoveryService[] e : changes)
+                try {
+                    if (e[0] == null)
+                        l.serviceAdded(this, e[1]);
+                    else
+                    if (e[1] == null)
+                        l.serviceRemoved(this, e[0]);
+                    else
+                        l.serviceUpdated(this, e[0], e[1]);
+                } catch (RuntimeException ex) {
+                    logger.warning("Service directory listener failed: " + ex.toString());
+                }
+    }
+    
+    public void addListener(IWsDiscoveryServiceDirectoryListener listener) {
+        if (listener == null)
+            throw new NullPointerException("Listener can't be null.");
+        listeners.add(listener);
+    }
+    
+    public void removeListener(IWsDiscoveryServiceDirectoryListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Check whether this directory publishes immutable snapshots to readers.
+     * @return True in snapshot mode.
+     */
+    public boolean isSnapshotMode() {
+        return snapshots;
+    }
+    
+    /**
+     * Get the version of the directory contents. The version is incremented 
+     * when services are added, updated or removed. In snapshot mode a batch 
+     * of changes, e.g. from a ProbeMatches-message, increments the version once.
+     * @return Version.
+     */
+    public long getVersion() {
+        State s = beginRead();
+        try {
+            return s.version;
+        } finally {
+            endRead();
+        }
+    }
         
     /**
      * Number of items in the service directory.
      * @return Number of items in the service directory.
      */
     public int size() {
-        r.lock();
+        State s = beginRead();
         try {
-            return services.size();
+            return s.services.size();
         } finally {
-            r.unlock();
+            endRead();
         }
     }
         
@@ -119,11 +477,11 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
     public String getName() {
         /* Since we never write to this value after construction, locking is 
          * probably not necessary, but still... */
-        r.lock();
+        beginRead();
         try {
             return name;
         } finally {
-            r.unlock();
+            endRead();
         }
     }    
     
@@ -136,72 +494,63 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
         if (address == null)
             return null;
 
-        r.lock();
+        State s = beginRead();
         try {
-            for (WsDiscoveryService s : services)
-                if ((s.getEndpointReference() != null) &&
-                    (s.getEndpointReference().equals(address)))
-                        return s;
+            return s.services.get(address);
         } finally {
-            r.unlock();
+            endRead();
         }
-
-        return null;
     }
 
     public WsDiscoveryService findService(EndpointReferenceType endpoint) {
         return findService(endpoint.getAddress().getValue());
     }
            
+    /**
+     * Add a new service. Caller must hold the write lock.
+     */
     private void add(WsDiscoveryService service) 
             throws WsDiscoveryServiceDirectoryException {
 
         logger.finer("serviceDirectory.add()");
         logger.fine("Adding service " + service.getEndpointReference());
-        w.lock();
-        try {
-            Boolean res = false;
-                           
-            res = services.add(service);
-            if (!res)
-                throw new WsDiscoveryServiceDirectoryException("Unable to add new service to service directory.");
-        } finally {
-            w.unlock();
-        }
+            
+        if (!services.add(service))
+            throw new WsDiscoveryServiceDirectoryException("Unable to add new service to service directory.");
+        
+        writeState().add(service);
+        service.attach(this);
+        queueEvent(null, service);
      
         logger.finest("Added service: \n" + service.toString());
     }
        
-    private void update(WsDiscoveryService service) 
+    /**
+     * Replace an existing service. Caller must hold the write lock.
+     */
+    private void update(WsDiscoveryService service, WsDiscoveryService foundService) 
             throws WsDiscoveryServiceDirectoryException {
 
-        WsDiscoveryService foundService;
-        
         logger.finer("serviceDirectory.update()");
-
-        synchronized (this){ // Synchronize to avoid race cond. between r/w locks. findService read-locks, so we must wait with w lock.
-            foundService = findService(service.getEndpointReference());
-            if (foundService == null)
-                throw new WsDiscoveryServiceDirectoryException("Unable to update service. Service not found.");
-
-            w.lock(); // get write lock
-        }
-        
         logger.fine("Updating service " + service.getEndpointReference());
 
-        try {                        
-            // Increase metadataversion if hashcode differs
-            if (service.hashCode() != foundService.hashCode())
-                service.setMetadataVersion(foundService.getMetadataVersion()+1);
-
-            // Update service
-            if (!services.update(service))
-                throw new WsDiscoveryServiceDirectoryException("Unable to update service. Update failed.");
-            
-        } finally {
-            w.unlock();
+        // Increase metadataversion if hashcode differs. Other directories 
+        // holding the service are told after the write lock is released.
+        if (service.hashCode() != foundService.hashCode()) {
+            service.replaceMetadataVersion(foundService.getMetadataVersion()+1);
+            changed.add(service);
         }
 
+        // Update service
+        if (!services.update(service))
+            throw new WsDiscoveryServiceDirectoryException("Unable to update service. Update failed.");
+        
+        writeState().update(service, foundService);
+        if (foundService != service)
+            foundService.detach(this);
+        service.attach(this);
+        queueEvent(foundService, service);
+
         logger.finest("Updated service " + service.toString());
     }
     
@@ -217,15 +566,36 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
     public void store(WsDiscoveryService service) 
         throws WsDiscoveryServiceDirectoryException {
         
-        // No locking necessary here
+        w.lock();
         try {
-            update(service);
-        } catch (WsDiscoveryServiceDirectoryException ex) {
-            add(service);
+            WsDiscoveryService foundService = services.get(service.getEndpointReference());
+            if (foundService == null)
+                add(service);
+            else
+                update(service, foundService);
+        } finally {
+            endWrite();
         }
-        
     }
        
+    /**
+     * Store or update several services under a single acquisition of the 
+     * write lock. In snapshot mode a single snapshot is published.
+     * 
+     * @param services Service descriptions.
+     * @throws WsDiscoveryServiceDirectoryException on failure.
+     */
+    public void storeAll(Collection<WsDiscoveryService> services) 
+            throws WsDiscoveryServiceDirectoryException {
+        w.lock();
+        try {
+            for (WsDiscoveryService service : services)
+                this.store(service);
+        } finally {
+            endWrite();
+        }
+    }
+    
     /**
      * Store or update all the entries in a {@link ProbeMatchesType} in the service directory. If a service with
      * the same endpoint reference already exists, the existing service will
@@ -236,9 +606,14 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
      */
     public void store(ProbeMatchesType probe) 
             throws WsDiscoveryServiceDirectoryException {
-        // No locking necessary here
-        for (ProbeMatchType p : probe.getProbeMatch())
-            this.store(new WsDiscoveryService(p));
+        // Hold the write lock so that all matches are published together
+        w.lock();
+        try {
+            for (ProbeMatchType p : probe.getProbeMatch())
+                this.store(new WsDiscoveryService(p));
+        } finally {
+            endWrite();
+        }
     }
     
     /**
@@ -263,20 +638,56 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
      * @param address Endpoint address.
      */
     public void remove(String address) {
-        WsDiscoveryService foundService;
+        if (address == null)
+            return;
         
-        // Synchronize to avoid race cond. when acquiring w-lock, as findservice r-locks.
-        synchronized(this) {
-            foundService = findService(address);
+        w.lock();
+        try {
+            WsDiscoveryService foundService = services.get(address);
             if (foundService == null)
                 return;
-            w.lock();
+            
+            services.remove(foundService);
+            writeState().remove(foundService);
+            foundService.detach(this);
+            queueEvent(foundService, null);
+        } finally {
+            endWrite();
         }
-
+    }
+    
+    /**
+     * Update the indexes and version after a stored service has been changed 
+     * in place. A service whose endpoint reference has changed is moved, 
+     * replacing any service already stored with the new endpoint reference.
+     * Called by {@link WsDiscoveryService} after each change.
+     * @param service Changed service.
+     */
+    void serviceChanged(WsDiscoveryService service) {
+        w.lock();
         try {
-            services.remove(foundService);
+            WsDiscoveryService foundService = services.get(service.getEndpointReference());
+            boolean moved = false;
+            if (foundService != service) {
+                if (!removeInstance(services, service)) {
+                    // No longer stored here
+                    service.detach(this);
+                    return;
+                }
+                if (foundService != null) {
+                    services.remove(foundService);
+                    writeState().remove(foundService);
+                    foundService.detach(this);
+                    queueEvent(foundService, null);
+                }
+                services.add(service);
+                moved = true;
+            }
+            
+            writeState().reindex(service, moved);
+            queueEvent(service, service);
         } finally {
-            w.unlock();
+            endWrite();
         }
     }
     
@@ -296,6 +707,21 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
         remove(service.getEndpointReference());
     }
     
+    /**
+     * Remove several services under a single acquisition of the write lock.
+     * In snapshot mode a single snapshot is published.
+     * @param services Services with endpoint addresses.
+     */
+    public void removeAll(Collection<WsDiscoveryService> services) {
+        w.lock();
+        try {
+            for (WsDiscoveryService service : services)
+                this.remove(service);
+        } finally {
+            endWrite();
+        }
+    }
+    
     /**
      * Remove service based on endpoint address received in a Bye-message.
      * @param bye Bye-message with endpoint address to remove.
@@ -319,14 +745,29 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
         IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
 
         // We must obtain a read lock to avoid changes while we loop through the iterator
-        r.lock();
+        State s = beginRead();
         try {
-            for (WsDiscoveryService s : services)
-                if (s.isMatchedBy(probeTypes, probeScopes))
-                    if (!d.add(s))
+            // Only services supporting all probe types and found in the 
+            // scope index of the matcher need to be matched
+            Collection<WsDiscoveryService> candidates = s.portTypeIndex.match(probeTypes);
+            
+            IScopeIndex scopeIndex = s.scopeIndexes.get(WsDiscoveryBuilder.getMatcher(probeScopes));
+            if (scopeIndex != null) {
+                Collection<WsDiscoveryService> scopeCandidates = scopeIndex.match(probeScopes);
+                if ((candidates == null) || 
+                        ((scopeCandidates != null) && (scopeCandidates.size() < candidates.size())))
+                    candidates = scopeCandidates;
+            }
+            
+            if (candidates == null)
+                candidates = s.services;
+            
+            for (WsDiscoveryService service : candidates)
+                if (service.isMatchedBy(probeTypes, probeScopes))
+                    if (!d.add(service))
                         throw new WsDiscoveryServiceDirectoryException("Unable to create Service collection for storing matchBy-results.");
         } finally {
-            r.unlock();
+            endRead();
         }
 
         return d;        
@@ -357,20 +798,21 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
 
     /**
      * Creates a new service collection containing all the services in the directory.
-     * that matches the parameters.
-     * @param probeTypes List of probe types to match.
-     * @param scopes List of scopes to match.
-     * @param matchBy Matching algorithm.
+     * In snapshot mode the services of the current snapshot are returned 
+     * without copying, as a collection that can not be modified.
      * @return Service directory with matching services. May contain 0 items, but is never <code>null</code>.
      * @throws WsDiscoveryServiceDirectoryException on failure when creating new service directory.
      */
     public IWsDiscoveryServiceCollection matchAll() throws WsDiscoveryServiceDirectoryException {
+        if (snapshots)
+            return new UnmodifiableCollection(state.services);
+        
         IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
 
         // We must obtain a read lock to avoid changes while we loop through the iterator
         r.lock();
         try {
-            for (WsDiscoveryService s : services)
+            for (WsDiscoveryService s : state.services)
                 if (!d.add(s))
                     throw new WsDiscoveryServiceDirectoryException("Unable to create Service collection for storing matchBy-results.");
         } finally {
@@ -382,9 +824,16 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
 
     public void addAll(IWsDiscoveryServiceCollection collection)
             throws WsDiscoveryServiceDirectoryException {
-        if (collection != null)
+        if (collection == null)
+            return;
+        
+        w.lock();
+        try {
             for (WsDiscoveryService s : collection)
                 store(s);
+        } finally {
+            endWrite();
+        }
     }
 
     public void useStorage(IWsDiscoveryServiceCollection newServiceCollection, boolean addExistingServices) {
@@ -392,9 +841,18 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
         try {
             if (addExistingServices)
                 newServiceCollection.addAll(services);
+            for (WsDiscoveryService s : services)
+                s.detach(this);
             services = newServiceCollection;
+            for (WsDiscoveryService s : services)
+                s.attach(this);
+            
+            if (snapshots)
+                next = new State(copyOf(services), state.version + 1, true);
+            else
+                state = new State(services, state.version + 1, false);
         } finally {
-            w.unlock();
+            endWrite();
         }
     }
 }
@@ -0,0 +1,76 @@
+/*
+IScopeIndex.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.Collection;
+
+/**
+ * Interface implemented by scope indexes. A scope index belongs to one 
+ * {@link MatchBy} algorithm and is maintained by the service directory as 
+ * services are added and removed. When a Probe uses the algorithm, the 
+ * directory asks the index for candidate services instead of matching every 
+ * service. 
+ * <p>
+ * The candidates are always verified with {@link MatchBy#match}, so an index 
+ * may return services that do not match, but must never leave out a service 
+ * that does.
+ * <p>
+ * Implementations need not be thread safe and must contain a constructor 
+ * without parameters.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface IScopeIndex {
+    /**
+     * Add a service to the index. The scopes of the service are copied, so 
+     * a service whose scopes have changed must be added again.
+     * @param service Service description.
+     */
+    public void add(WsDiscoveryService service);
+    
+    /**
+     * Remove a service from the index.
+     * @param service Service description.
+     */
+    public void remove(WsDiscoveryService service);
+    
+    /**
+     * Remove all services from the index.
+     */
+    public void clear();
+    
+    /**
+     * Create a copy of the index that can be changed independently of 
+     * this one. The services themselves are not copied.
+     * @return Copy of the index.
+     */
+    public IScopeIndex copy();
+    
+    /**
+     * Find candidate services for the scopes in a probe.
+     * @param probeScopes Scopes in probe.
+     * @return Candidate services, or <code>null</code> if every service is a 
+     * candidate.
+     */
+    public Collection<WsDiscoveryService> match(ScopesType probeScopes);
+}
@@ -0,0 +1,166 @@
+/*
+PortTypeIndex.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+
+/**
+ * Inverted index from port type to the services supporting it. Used by the 
+ * service directory to find the services that may match a Probe without 
+ * looking at every service.
+ * <p>
+ * The port types of a service are copied when it is added, so the service 
+ * can always be removed again even if its port types have been changed 
+ * in the meantime. A changed service must be added again to be found under 
+ * its new port types.
+ * <p>
+ * This class is not thread safe.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class PortTypeIndex {
+    private final Map<QName, Set<WsDiscoveryService>> postings = 
+            new HashMap<QName, Set<WsDiscoveryService>>();
+    private final Map<WsDiscoveryService, List<QName>> indexed = 
+            new HashMap<WsDiscoveryService, List<QName>>();
+    
+    /**
+     * Add a service to the index.
+     * @param service Service description.
+     */
+    public void add(WsDiscoveryService service) {
+        remove(service);
+        
+        List<QName> types = new ArrayList<QName>(service.getPortTypes());
+        indexed.put(service, types);
+        
+        for (QName q : types) {
+            Set<WsDiscoveryService> p = postings.get(q);
+            if (p == null) {
+                p = new LinkedHashSet<WsDiscoveryService>();
+                postings.put(q, p);
+            }
+            p.add(service);
+        }
+    }
+    
+    /**
+     * Remove a service from the index.
+     * @param service Service description.
+     */
+    public void remove(WsDiscoveryService service) {
+        List<QName> types = indexed.remove(service);
+        if (types == null)
+            return;
+        
+        for (QName q : types) {
+            Set<WsDiscoveryService> p = postings.get(q);
+            if (p != null) {
+                p.remove(service);
+                if (p.isEmpty())
+                    postings.remove(q);
+            }
+        }
+    }
+    
+    /**
+     * Remove all services from the index.
+     */
+    public void clear() {
+        postings.clear();
+        indexed.clear();
+    }
+    
+    /**
+     * Create a copy of the index that can be changed independently of 
+     * this one. The services themselves are not copied.
+     * @return Copy of the index.
+     */
+    public PortTypeIndex copy() {
+        PortTypeIndex c = new PortTypeIndex();
+        for (Map.Entry<QName, Set<WsDiscoveryService>> e : postings.entrySet())
+            c.postings.put(e.getKey(), new LinkedHashSet<WsDiscoveryService>(e.getValue()));
+        c.indexed.putAll(indexed); // Lists are never changed after add()
+        return c;
+    }
+    
+    /**
+     * Get number of services that support a port type.
+     * @param portType Port type.
+     * @return Number of services.
+     */
+    public int count(QName portType) {
+        Set<WsDiscoveryService> p = postings.get(portType);
+        return (p == null ? 0 : p.size());
+    }
+    
+    /**
+     * Find the services supporting all the given port types. The posting 
+     * list of the least common port type is scanned and each service is 
+     * checked against the other posting lists, so the cost is proportional 
+     * to the number of services supporting the least common port type.
+     * 
+     * @param portTypes Port types. 
+     * @return Services supporting all port types, or <code>null</code> if 
+     * <code>portTypes</code> is <code>null</code> or empty, which means that 
+     * all services match.
+     */
+    public Collection<WsDiscoveryService> match(List<QName> portTypes) {
+        if ((portTypes == null) || portTypes.isEmpty())
+            return null;
+        
+        // Find the smallest posting list
+        Set<WsDiscoveryService> smallest = null;
+        List<Set<WsDiscoveryService>> others = new ArrayList<Set<WsDiscoveryService>>(portTypes.size());
+        for (QName q : portTypes) {
+            Set<WsDiscoveryService> p = postings.get(q);
+            if (p == null)
+                return Collections.emptyList();
+            if ((smallest == null) || (p.size() < smallest.size())) {
+                if (smallest != null)
+                    others.add(smallest);
+                smallest = p;
+            } else
+                others.add(p);
+        }
+        
+        if (others.isEmpty())
+            return new ArrayList<WsDiscoveryService>(smallest);
+
+        List<WsDiscoveryService> res = new ArrayList<WsDiscoveryService>();
+        candidates:
+        for (WsDiscoveryService s : smallest) {
+            for (Set<WsDiscoveryService> p : others)
+                if (!p.contains(s))
+                    continue candidates;
+            res.add(s);
+        }
+        return res;
+    }
+}
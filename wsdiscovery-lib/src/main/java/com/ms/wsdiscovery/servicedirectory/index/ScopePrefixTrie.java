@@ -0,0 +1,237 @@
+/*
+ScopePrefixTrie.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scope index for {@link MatchBy#RFC2396}. Scopes are stored in a trie with 
+ * one root for each (scheme, authority) pair, compared case-insensitively, 
+ * and one level for each path segment. The services matching a probe scope 
+ * are the ones stored in the subtree below the node reached by walking the 
+ * segments of the probe scope. 
+ * <p>
+ * Paths are split into segments the same way as in 
+ * {@link com.ms.wsdiscovery.servicedirectory.matcher.MatchScopeRFC2396}.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class ScopePrefixTrie implements IScopeIndex {
+    
+    /**
+     * Trie node. Holds the services having a scope that ends at this node.
+     */
+    private static class Node {
+        private final Node parent;
+        private final String segment;
+        private Map<String, Node> children = null;
+        private Set<WsDiscoveryService> services = null;
+        
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+        
+        boolean isEmpty() {
+            return ((children == null) || children.isEmpty()) && 
+                   ((services == null) || services.isEmpty());
+        }
+        
+        /**
+         * Copy this subtree.
+         */
+        Node copy(Node copyParent) {
+            Node c = new Node(copyParent, segment);
+            if (services != null)
+                c.services = new LinkedHashSet<WsDiscoveryService>(services);
+            if (children != null) {
+                c.children = new HashMap<String, Node>();
+                for (Node n : children.values())
+                    c.children.put(n.segment, n.copy(c));
+            }
+            return c;
+        }
+        
+        /**
+         * Add all services in this subtree to <code>res</code>.
+         */
+        void collect(Set<WsDiscoveryService> res) {
+            if (services != null)
+                res.addAll(services);
+            if (children != null)
+                for (Node n : children.values())
+                    n.collect(res);
+        }
+    }
+    
+    private final Map<String, Node> roots = new HashMap<String, Node>();
+    private final Map<WsDiscoveryService, List<URI>> indexed = 
+            new HashMap<WsDiscoveryService, List<URI>>();
+    
+    public void add(WsDiscoveryService service) {
+        remove(service);
+        
+        List<URI> scopes = new ArrayList<URI>(service.getScopes());
+        indexed.put(service, scopes);
+        
+        for (URI u : scopes) {
+            String key = rootKey(u);
+            if (key == null)
+                continue;
+            
+            Node n = roots.get(key);
+            if (n == null) {
+                n = new Node(null, key);
+                roots.put(key, n);
+            }
+            
+            for (String segment : segments(u)) {
+                if (n.children == null)
+                    n.children = new HashMap<String, Node>();
+                Node child = n.children.get(segment);
+                if (child == null) {
+                    child = new Node(n, segment);
+                    n.children.put(segment, child);
+                }
+                n = child;
+            }
+            
+            if (n.services == null)
+                n.services = new LinkedHashSet<WsDiscoveryService>();
+            n.services.add(service);
+        }
+    }
+    
+    public void remove(WsDiscoveryService service) {
+        List<URI> scopes = indexed.remove(service);
+        if (scopes == null)
+            return;
+        
+        for (URI u : scopes) {
+            Node n = find(u);
+            if ((n == null) || (n.services == null))
+                continue;
+            n.services.remove(service);
+            
+            // Prune empty nodes
+            while (n.isEmpty()) {
+                if (n.parent == null) {
+                    roots.remove(n.segment);
+                    break;
+                }
+                n.parent.children.remove(n.segment);
+                n = n.parent;
+            }
+        }
+    }
+    
+    public void clear() {
+        roots.clear();
+        indexed.clear();
+    }
+    
+    public ScopePrefixTrie copy() {
+        ScopePrefixTrie c = new ScopePrefixTrie();
+        for (Node n : roots.values())
+            c.roots.put(n.segment, n.copy(null));
+        c.indexed.putAll(indexed); // Lists are never changed after add()
+        return c;
+    }
+    
+    /**
+     * Find services with a scope matched by every scope in the probe.
+     * @param probeScopes Scopes in probe.
+     * @return Candidate services, or <code>null</code> if the probe has no scopes.
+     */
+    public Collection<WsDiscoveryService> match(ScopesType probeScopes) {
+        if ((probeScopes == null) || probeScopes.getValue().isEmpty())
+            return null;
+        
+        Set<WsDiscoveryService> res = null;
+        for (String s : probeScopes.getValue()) {
+            Set<WsDiscoveryService> matches = new LinkedHashSet<WsDiscoveryService>();
+            
+            Node n;
+            try {
+                n = find(URI.create(s));
+            } catch (IllegalArgumentException ex) {
+                n = null; // Not a valid URI, can't match anything
+            }
+            if (n != null)
+                n.collect(matches);
+            
+            if (res == null)
+                res = matches;
+            else
+                res.retainAll(matches);
+            
+            if (res.isEmpty())
+                break;
+        }
+        return res;
+    }
+    
+    /**
+     * Find the node for a scope.
+     * @return The node, or <code>null</code> if not in the trie.
+     */
+    private Node find(URI u) {
+        String key = rootKey(u);
+        if (key == null)
+            return null;
+        
+        Node n = roots.get(key);
+        for (String segment : segments(u)) {
+            if ((n == null) || (n.children == null))
+                return null;
+            n = n.children.get(segment);
+        }
+        return n;
+    }
+    
+    /**
+     * Get the key of the root node for a scope.
+     * @return Upper case scheme and authority, or <code>null</code> if 
+     * the scope can not be matched by RFC2396.
+     */
+    private static String rootKey(URI u) {
+        if ((u.getScheme() == null) || (u.getAuthority() == null))
+            return null;
+        return u.getScheme().toUpperCase() + "://" + u.getAuthority().toUpperCase();
+    }
+    
+    /**
+     * Split the path of a scope into segments.
+     */
+    private static String[] segments(URI u) {
+        String path = u.getPath();
+        return (path == null ? new String[] {""} : path.split("/"));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ScopeStringIndex.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scope index for {@link MatchBy#strcmp0}. Maps the exact string 
+ * representation of each scope to the services in that scope. A service 
+ * is a candidate if it has every scope in the probe.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class ScopeStringIndex implements IScopeIndex {
+    private final Map<String, Set<WsDiscoveryService>> postings = 
+            new HashMap<String, Set<WsDiscoveryService>>();
+    private final Map<WsDiscoveryService, List<String>> indexed = 
+            new HashMap<WsDiscoveryService, List<String>>();
+    
+    public void add(WsDiscoveryService service) {
+        remove(service);
+        
+        List<String> scopes = new ArrayList<String>();
+        for (URI u : service.getScopes())
+            scopes.add(u.toString());
+        indexed.put(service, scopes);
+        
+        for (String scope : scopes) {
+            Set<WsDiscoveryService> p = postings.get(scope);
+            if (p == null) {
+                p = new LinkedHashSet<WsDiscoveryService>();
+                postings.put(scope, p);
+            }
+            p.add(service);
+        }
+    }
+    
+    public void remove(WsDiscoveryService service) {
+        List<String> scopes = indexed.remove(service);
+        if (scopes == null)
+            return;
+        
+        for (String scope : scopes) {
+            Set<WsDiscoveryService> p = postings.get(scope);
+            if (p != null) {
+                p.remove(service);
+                if (p.isEmpty())
+                    postings.remove(scope);
+            }
+        }
+    }
+    
+    public void clear() {
+        postings.clear();
+        indexed.clear();
+    }
+    
+    public ScopeStringIndex copy() {
+        ScopeStringIndex c = new ScopeStringIndex();
+        for (Map.Entry<String, Set<WsDiscoveryService>> e : postings.entrySet())
+            c.postings.put(e.getKey(), new LinkedHashSet<WsDiscoveryService>(e.getValue()));
+        c.indexed.putAll(indexed); // Lists are never changed after add()
+        return c;
+    }
+    
+    /**
+     * Find services having every scope in the probe.
+     * @param probeScopes Scopes in probe.
+     * @return Candidate services, or <code>null</code> if the probe has no scopes element.
+     */
+    public Collection<WsDiscoveryService> match(ScopesType probeScopes) {
+        if (probeScopes == null)
+            return null;
+        
+        // strcmp0 never matches an empty list of probe scopes
+        if (probeScopes.getValue().isEmpty())
+            return Collections.emptyList();
+        
+        // Start with the smallest posting list
+        Set<WsDiscoveryService> smallest = null;
+        for (String s : probeScopes.getValue()) {
+            Set<WsDiscoveryService> p = postings.get(s);
+            if (p == null)
+                return Collections.emptyList();
+            if ((smallest == null) || (p.size() < smallest.size()))
+                smallest = p;
+        }
+        
+        List<WsDiscoveryService> res = new ArrayList<WsDiscoveryService>();
+        candidates:
+        for (WsDiscoveryService service : smallest) {
+            for (String s : probeScopes.getValue())
+                if (!postings.get(s).contains(service))
+                    continue candidates;
+            res.add(service);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ScopeUUIDIndex.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchScopeUUID;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Scope index for {@link MatchBy#UUID}. Scopes are parsed once, when the 
+ * service is added, and indexed by their 128-bit value. A service is a 
+ * candidate if it has any of the UUIDs in the probe.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class ScopeUUIDIndex implements IScopeIndex {
+    private final Map<UUID, Set<WsDiscoveryService>> postings = 
+            new HashMap<UUID, Set<WsDiscoveryService>>();
+    private final Map<WsDiscoveryService, List<UUID>> indexed = 
+            new HashMap<WsDiscoveryService, List<UUID>>();
+    
+    public void add(WsDiscoveryService service) {
+        remove(service);
+        
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (URI u : service.getScopes()) {
+            UUID uuid = MatchScopeUUID.urnToUUID(u.toString());
+            if (uuid != null)
+                uuids.add(uuid);
+        }
+        indexed.put(service, uuids);
+        
+        for (UUID uuid : uuids) {
+            Set<WsDiscoveryService> p = postings.get(uuid);
+            if (p == null) {
+                p = new LinkedHashSet<WsDiscoveryService>();
+                postings.put(uuid, p);
+            }
+            p.add(service);
+        }
+    }
+    
+    public void remove(WsDiscoveryService service) {
+        List<UUID> uuids = indexed.remove(service);
+        if (uuids == null)
+            return;
+        
+        for (UUID uuid : uuids) {
+            Set<WsDiscoveryService> p = postings.get(uuid);
+            if (p != null) {
+                p.remove(service);
+                if (p.isEmpty())
+                    postings.remove(uuid);
+            }
+        }
+    }
+    
+    public void clear() {
+        postings.clear();
+        indexed.clear();
+    }
+    
+    public ScopeUUIDIndex copy() {
+        ScopeUUIDIndex c = new ScopeUUIDIndex();
+        for (Map.Entry<UUID, Set<WsDiscoveryService>> e : postings.entrySet())
+            c.postings.put(e.getKey(), new LinkedHashSet<WsDiscoveryService>(e.getValue()));
+        c.indexed.putAll(indexed); // Lists are never changed after add()
+        return c;
+    }
+    
+    /**
+     * Find services having any of the UUIDs in the probe.
+     * @param probeScopes Scopes in probe.
+     * @return Candidate services, or <code>null</code> if the probe has no scopes element.
+     */
+    public Collection<WsDiscoveryService> match(ScopesType probeScopes) {
+        if (probeScopes == null)
+            return null;
+        
+        Set<WsDiscoveryService> res = new LinkedHashSet<WsDiscoveryService>();
+        for (String s : probeScopes.getValue()) {
+            UUID uuid = MatchScopeUUID.urnToUUID(s);
+            if (uuid == null)
+                continue;
+            Set<WsDiscoveryService> p = postings.get(uuid);
+            if (p != null)
+                res.addAll(p);
+        }
+        return res;
+    }
+}
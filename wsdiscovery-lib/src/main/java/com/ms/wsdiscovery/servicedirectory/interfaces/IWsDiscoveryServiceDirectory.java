@@ -27,6 +27,7 @@ import com.ms.wsdiscovery.xml.jaxb_generated.EndpointReferenceType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchesType;
 import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
 import java.net.URI;
+import java.util.Collection;
 import java.util.List;
 import javax.xml.namespace.QName;
 
@@ -56,6 +57,14 @@ public interface IWsDiscoveryServiceDirectory {
      */
     String getName();
 
+    /**
+     * Get the version of the directory contents. The version changes 
+     * whenever services are added, updated or removed, so it can be used to
+     * invalidate results derived from the directory.
+     * @return Version.
+     */
+    long getVersion();
+
     /**
      * Creates a new service collection containing the services in the directory.
      * that matches the parameters. Matching algorithm is specified in <code>probeScopes</code>.
@@ -110,6 +119,13 @@ public interface IWsDiscoveryServiceDirectory {
      */
     void remove(ByeType bye);
 
+    /**
+     * Remove several services in one change. Readers see either all or none 
+     * of the services removed.
+     * @param services Services with endpoint addresses.
+     */
+    void removeAll(Collection<WsDiscoveryService> services);
+
     /**
      * Number of items in the service directory.
      * @return Number of items in the service directory.
@@ -123,6 +139,14 @@ public interface IWsDiscoveryServiceDirectory {
      */
     void store(WsDiscoveryService service) throws WsDiscoveryServiceDirectoryException;
 
+    /**
+     * Store several service descriptions in one change. Readers see either 
+     * all or none of the services stored.
+     * @param services Service descriptions.
+     * @throws WsDiscoveryServiceDirectoryException on failure.
+     */
+    void storeAll(Collection<WsDiscoveryService> services) throws WsDiscoveryServiceDirectoryException;
+
     /**
      * Store the entries in a {@link ProbeMatchesType} in the service directory.
      * @param probe Probe matches.
@@ -156,4 +180,18 @@ public interface IWsDiscoveryServiceDirectory {
      * @param addExistingServices when true, already known services will be imported into <code>newServiceCollection</code>.
      */
     void useStorage(IWsDiscoveryServiceCollection newServiceCollection, boolean addExistingServices);
+
+    /**
+     * Register a listener that is notified when services are added, updated or removed.
+     *
+     * @param listener Listener to add.
+     */
+    void addListener(IWsDiscoveryServiceDirectoryListener listener);
+
+    /**
+     * Remove a listener registered with {@link #addListener}.
+     *
+     * @param listener Listener to remove.
+     */
+    void removeListener(IWsDiscoveryServiceDirectoryListener listener);
 }
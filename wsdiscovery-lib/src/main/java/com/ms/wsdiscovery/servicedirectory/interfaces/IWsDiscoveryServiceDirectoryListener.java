@@ -0,0 +1,60 @@
+/*
+IWsDiscoveryServiceDirectoryListener.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.interfaces;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+
+/**
+ * Receives notifications when services are added to, updated in or removed 
+ * from a service directory. 
+ * <p>
+ * Notifications are delivered by the thread that changed the directory, 
+ * after the change is visible to readers and without holding any locks in 
+ * the directory. For the remote service directory this is usually the 
+ * WS-Discovery dispatch thread, so listeners should return quickly. 
+ * Notifications of changes made by different threads may arrive in any order.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface IWsDiscoveryServiceDirectoryListener {
+    /**
+     * A new service was added, e.g. after receiving a Hello-message.
+     * @param directory Service directory.
+     * @param service Added service.
+     */
+    public void serviceAdded(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service);
+    
+    /**
+     * An existing service was replaced with a new description. The metadata 
+     * versions of the old and new description can be compared to see if the 
+     * service has changed.
+     * @param directory Service directory.
+     * @param oldService Previous service description.
+     * @param newService New service description.
+     */
+    public void serviceUpdated(IWsDiscoveryServiceDirectory directory, WsDiscoveryService oldService, WsDiscoveryService newService);
+    
+    /**
+     * A service was removed, e.g. after receiving a Bye-message.
+     * @param directory Service directory.
+     * @param service Removed service.
+     */
+    public void serviceRemoved(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service);
+}
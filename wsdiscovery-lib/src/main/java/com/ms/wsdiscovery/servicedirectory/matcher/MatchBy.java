@@ -22,13 +22,19 @@ import java.net.URI;
 import java.util.List;
 import javax.xml.namespace.QName;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.index.IScopeIndex;
+import com.ms.wsdiscovery.servicedirectory.index.ScopePrefixTrie;
+import com.ms.wsdiscovery.servicedirectory.index.ScopeStringIndex;
+import com.ms.wsdiscovery.servicedirectory.index.ScopeUUIDIndex;
 import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
 
 /**
  * Enum class with the available match algorithms used to match
  * scopes when receiving a Probe-message.
  * <p>
- * All algorithms must implement the {@link IMatchScope} interface.
+ * All algorithms must implement the {@link IMatchScope} interface. An 
+ * algorithm may also have a scope index implementing {@link IScopeIndex}, 
+ * which the service directory uses to find candidate services.
  * 
  * @author Magnus Skjegstad
  */
@@ -51,14 +57,14 @@ public enum MatchBy {
      * "http://example.com/abc" matches "http://example.com/abc/def" using this rule
      * but "http://example.com/a" does not.
      */
-    RFC2396("http://schemas.xmlsoap.org/ws/2005/04/discovery/rfc2396", new MatchScopeRFC2396()),
+    RFC2396("http://schemas.xmlsoap.org/ws/2005/04/discovery/rfc2396", new MatchScopeRFC2396(), ScopePrefixTrie.class),
     /**
      * From the WS-Discovery Specification Draft, 2005:<p>
      * Using a case-insensitive comparison, the scheme of S1 and S2 is "uuid" and each of the 
      * unsigned integer fields in S1 is equal to the corresponding field in S2, or equivalently, the 
      * 128 bits of the in-memory representation of S1 and S2 are the same 128 bit unsigned integer.
      */
-    UUID("http://schemas.xmlsoap.org/ws/2005/04/discovery/uuid", new MatchScopeUUID()),
+    UUID("http://schemas.xmlsoap.org/ws/2005/04/discovery/uuid", new MatchScopeUUID(), ScopeUUIDIndex.class),
     /**     
      * From the WS-Discovery Specification Draft, 2005:<p>
      * Using case-insensitive comparison, the scheme of S1 and S2 is "ldap" and the
@@ -67,16 +73,17 @@ public enum MatchBy {
      * does not support the variants in an RDNSequence described in Section 4 of
      * RFC 2253.
      */
-    LDAP("http://schemas.xmlsoap.org/ws/2005/04/discovery/ldap", new MatchScopeLDAP()),
+    LDAP("http://schemas.xmlsoap.org/ws/2005/04/discovery/ldap", new MatchScopeLDAP(), null),
     
     /**
      * From the WS-Discovery Specification Draft, 2005:
      * Using a case-sensitive comparison, the string representation of S1 and S2 is the same.
      */
-    strcmp0("http://schemas.xmlsoap.org/ws/2005/04/discovery/strcmp0", new MatchScopeStrcmp0());
+    strcmp0("http://schemas.xmlsoap.org/ws/2005/04/discovery/strcmp0", new MatchScopeStrcmp0(), ScopeStringIndex.class);
         
     private final URI matchType;
     private final IMatchScope serviceMatcher;
+    private final Class<? extends IScopeIndex> scopeIndex;
     
     @Override
     public String toString() {
@@ -110,8 +117,22 @@ public enum MatchBy {
         return serviceMatcher.matchScope(target, probeScopes);
     }
 
-    MatchBy(String matchType, IMatchScope matcher) {
+    /**
+     * Get a new, empty scope index for this algorithm. 
+     * 
+     * @return New scope index, or <code>null</code> if the algorithm has no index.
+     * @throws java.lang.InstantiationException
+     * @throws java.lang.IllegalAccessException
+     */
+    public IScopeIndex newScopeIndex() throws InstantiationException, IllegalAccessException {
+        if (scopeIndex == null)
+            return null;
+        return scopeIndex.newInstance();
+    }
+
+    MatchBy(String matchType, IMatchScope matcher, Class<? extends IScopeIndex> index) {
         this.matchType = URI.create(matchType);
         this.serviceMatcher = matcher;
+        this.scopeIndex = index;
     }
 }
@@ -30,7 +30,13 @@ import java.util.UUID;
  */
 public class MatchScopeUUID implements IMatchScope {
 
-    private UUID urnToUUID(String urn) {
+    /**
+     * Parse a scope as a UUID. Accepts plain UUIDs and UUIDs with the 
+     * <code>uuid:</code> or <code>urn:uuid:</code> prefix.
+     * @param urn Scope.
+     * @return UUID, or <code>null</code> if the scope is not a UUID.
+     */
+    public static UUID urnToUUID(String urn) {
         UUID uuid = null; // default to null 
         try {
             URI uri = URI.create(urn);
@@ -74,7 +80,7 @@ public class MatchScopeUUID implements IMatchScope {
                 continue;
 
             for (URI u : target.getScopes())
-                if (urnToUUID(u.toString()).equals(uuid)) {
+                if (uuid.equals(urnToUUID(u.toString()))) {
                     found = true;
                     break;
                 }
@@ -0,0 +1,131 @@
+/*
+WsDiscoveryServiceHashCollection.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.store;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A memory based, transient implementation of IWsDiscoveryServiceCollection
+ * where the services are indexed by endpoint reference. Lookups, updates and
+ * removals take constant time. Iteration returns the services in the order
+ * they were added.
+ * <p>
+ * Each endpoint reference can only occur once. Adding a service with an
+ * endpoint reference that is already in the collection replaces the existing
+ * service. The endpoint reference of a service is read when it is added,
+ * so it must not be changed while the service is in the collection.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryServiceHashCollection extends AbstractCollection<WsDiscoveryService>
+        implements IWsDiscoveryServiceCollection {
+
+    private final LinkedHashMap<String, WsDiscoveryService> services =
+            new LinkedHashMap<String, WsDiscoveryService>();
+
+    /**
+     * Create an empty collection.
+     */
+    public WsDiscoveryServiceHashCollection() {
+    }
+
+    /**
+     * Create a collection containing the same services as another collection.
+     *
+     * @param c Collection to copy.
+     */
+    public WsDiscoveryServiceHashCollection(WsDiscoveryServiceHashCollection c) {
+        services.putAll(c.services);
+    }
+
+    /**
+     * Add a service. An existing service with the same endpoint reference is
+     * replaced.
+     *
+     * @param service Service to add.
+     * @return true unless the exact same service instance was already in the collection.
+     */
+    @Override
+    public boolean add(WsDiscoveryService service) {
+        if (service == null)
+            throw new NullPointerException("Service can't be null.");
+        return services.put(service.getEndpointReference(), service) != service;
+    }
+
+    public boolean update(WsDiscoveryService service) {
+        String endpointReference = service.getEndpointReference();
+        if (!services.containsKey(endpointReference))
+            return false;
+        services.put(endpointReference, service);
+        return true;
+    }
+
+    public boolean contains(String endpointReference) {
+        return services.containsKey(endpointReference);
+    }
+
+    public WsDiscoveryService get(String endpointReference) {
+        return services.get(endpointReference);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof WsDiscoveryService))
+            return false;
+        WsDiscoveryService s = (WsDiscoveryService)o;
+        return s.equals(services.get(s.getEndpointReference()));
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o))
+            return false;
+        services.remove(((WsDiscoveryService)o).getEndpointReference());
+        return true;
+    }
+
+    /**
+     * Remove the service with the given endpoint reference.
+     * @param endpointReference String representation of the endpoint reference.
+     * @return The removed service, or null if not found.
+     */
+    public WsDiscoveryService remove(String endpointReference) {
+        return services.remove(endpointReference);
+    }
+
+    @Override
+    public void clear() {
+        services.clear();
+    }
+
+    @Override
+    public Iterator<WsDiscoveryService> iterator() {
+        return services.values().iterator();
+    }
+
+    @Override
+    public int size() {
+        return services.size();
+    }
+}
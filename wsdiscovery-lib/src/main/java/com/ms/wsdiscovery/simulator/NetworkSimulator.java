@@ -0,0 +1,452 @@
+/*
+NetworkSimulator.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.simulator;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.clock.VirtualClock;
+import com.ms.wsdiscovery.clock.interfaces.IClock;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPNetworkMessage;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Discrete-event simulator of a multicast network segment with 
+ * {@link SimulatedNode}s. Used to study the behaviour of thousands of 
+ * WS-Discovery instances (probe storms, duplicate suppression, directory 
+ * convergence) in one JVM, faster than real time.
+ * <p>
+ * The simulator installs a {@link VirtualClock} in 
+ * {@link WsDiscoveryConstants#clock} when it is created, and restores the 
+ * previous clock in {@link #close()}. Time only moves when events are 
+ * processed by {@link #run(long)} or {@link #runUntilIdle()}. Only one 
+ * simulator should exist at a time, and it must only be used from one 
+ * thread.
+ * <p>
+ * Sent messages are retransmitted as in SOAP-over-UDP, using the same 
+ * repeat counts and back-off as {@link SOAPNetworkMessage}. Each 
+ * transmission is delivered to every other node (multicast) or to the 
+ * node with the destination address (unicast). Every delivery can be lost, 
+ * duplicated and delayed by a random latency, independently for each 
+ * receiver.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class NetworkSimulator {
+    /**
+     * Virtual time when the simulation starts (2009-01-01 00:00:00 UTC).
+     */
+    public static final long START_TIME = 1230768000000L;
+    
+    private final VirtualClock clock = new VirtualClock(START_TIME);
+    private final IClock previousClock;
+    
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private long eventSequence = 0;
+    
+    private final HashMap<InetAddress, SimulatedTransport> transports = 
+            new HashMap<InetAddress, SimulatedTransport>();
+    private final List<SimulatedNode> nodes = new ArrayList<SimulatedNode>();
+    private int nextAddress = 1;
+    
+    private Random random = new Random();
+    private double loss = 0;
+    private double duplication = 0;
+    private long minLatency = 0;
+    private long maxLatency = 0;
+    
+    private long sent = 0;
+    private long transmissions = 0;
+    private long delivered = 0;
+    private long lost = 0;
+    private long duplicated = 0;
+    private long unreachable = 0;
+    private long errors = 0;
+    private long processed = 0;
+    
+    /**
+     * A transmission (<code>to</code> is null) or a delivery, scheduled at 
+     * a point in virtual time.
+     */
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence; // Keeps events with the same time in order
+        final SimulatedTransport from;
+        final SimulatedTransport to;
+        final NetworkMessage message;
+        
+        Event(long time, long sequence, SimulatedTransport from, 
+                SimulatedTransport to, NetworkMessage message) {
+            this.time = time;
+            this.sequence = sequence;
+            this.from = from;
+            this.to = to;
+            this.message = message;
+        }
+
+        public int compareTo(Event e) {
+            if (time != e.time)
+                return (time < e.time ? -1 : 1);
+            return (sequence < e.sequence ? -1 : (sequence > e.sequence ? 1 : 0));
+        }
+    }
+    
+    /**
+     * Create a simulator without nodes, loss, duplication or latency, and 
+     * install its virtual clock.
+     */
+    public NetworkSimulator() {
+        previousClock = WsDiscoveryConstants.clock;
+        WsDiscoveryConstants.clock = clock;
+    }
+    
+    /**
+     * Create a node on the segment. Nodes get addresses in 10.0.0.0/8.
+     * @return New node.
+     */
+    public SimulatedNode createNode() {
+        int n = nextAddress++;
+        if (n >= (1 << 24) - 1)
+            throw new IllegalStateException("No more addresses.");
+        InetAddress address;
+        try {
+            address = InetAddress.getByAddress(new byte[] {10, (byte)(n >> 16), (byte)(n >> 8), (byte)n});
+        } catch (UnknownHostException ex) {
+            throw new IllegalStateException(ex.toString());
+        }
+        SimulatedTransport transport = new SimulatedTransport(this, address);
+        SimulatedNode node = new SimulatedNode(transport);
+        transports.put(address, transport);
+        nodes.add(node);
+        return node;
+    }
+    
+    /**
+     * Get all nodes, in the order they were created.
+     * @return Unmodifiable list of nodes.
+     */
+    public List<SimulatedNode> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+    
+    /**
+     * Get the virtual clock used by this simulator.
+     * @return Clock.
+     */
+    public VirtualClock getClock() {
+        return clock;
+    }
+    
+    /**
+     * Get virtual time passed since the simulation started.
+     * @return Time in ms.
+     */
+    public long getElapsed() {
+        return clock.currentTimeMillis() - START_TIME;
+    }
+    
+    /**
+     * Called by {@link SimulatedTransport} to send a message. The first 
+     * transmission is scheduled immediately, or at the send time of the 
+     * message if it is later.
+     */
+    void send(SimulatedTransport from, NetworkMessage message) {
+        sent++;
+        boolean multicast = message.getDstAddress().equals(WsDiscoveryConstants.multicastAddress);
+        SOAPNetworkMessage m = new SOAPNetworkMessage(message, multicast);
+        m.setSrcAddress(from.getAddress());
+        m.setSrcPort(from.getUnicastPort());
+        schedule(Math.max(clock.currentTimeMillis(), m.getNextSend()), from, null, m);
+    }
+    
+    private void schedule(long time, SimulatedTransport from, 
+            SimulatedTransport to, NetworkMessage message) {
+        events.add(new Event(time, eventSequence++, from, to, message));
+    }
+    
+    /**
+     * Process all events scheduled up to <code>millis</code> from now, and 
+     * move the clock to that time.
+     * 
+     * @param millis Virtual time to simulate, in ms.
+     * @return Number of events processed.
+     */
+    public long run(long millis) {
+        long end = clock.currentTimeMillis() + millis;
+        long count = 0;
+        Event e;
+        while (((e = events.peek()) != null) && (e.time <= end)) {
+            process(events.poll());
+            count++;
+        }
+        clock.set(end);
+        return count;
+    }
+    
+    /**
+     * Process events until no more are scheduled, i.e. until all messages 
+     * have been retransmitted and delivered and no node has anything more 
+     * to send.
+     * 
+     * @return Number of events processed.
+     */
+    public long runUntilIdle() {
+        long count = 0;
+        Event e;
+        while ((e = events.poll()) != null) {
+            process(e);
+            count++;
+        }
+        return count;
+    }
+    
+    private void process(Event e) {
+        clock.set(e.time);
+        processed++;
+        if (e.to == null)
+            transmit(e.from, (SOAPNetworkMessage)e.message);
+        else
+            deliver(e.to, e.message);
+    }
+    
+    /**
+     * Transmit a message to its receivers and schedule the next 
+     * retransmission.
+     */
+    private void transmit(SimulatedTransport from, SOAPNetworkMessage m) {
+        transmissions++;
+        
+        InetAddress dst = m.getDstAddress();
+        if (dst.equals(WsDiscoveryConstants.multicastAddress)) {
+            for (SimulatedTransport to : transports.values())
+                if (to != from)
+                    impair(from, to, m, to.getMulticastPort());
+        } else {
+            SimulatedTransport to = transports.get(dst);
+            if (to == null)
+                unreachable++;
+            else
+                impair(from, to, m, to.getUnicastPort());
+        }
+        
+        m.adjustValuesAfterSend();
+        if (!m.isDone())
+            schedule(m.getNextSend(), from, null, m);
+    }
+    
+    /**
+     * Apply loss, duplication and latency to one receiver.
+     */
+    private void impair(SimulatedTransport from, SimulatedTransport to, 
+            SOAPNetworkMessage message, int dstPort) {
+        if ((loss > 0) && (random.nextDouble() < loss)) {
+            lost++;
+            return;
+        }
+        int copies = 1;
+        if ((duplication > 0) && (random.nextDouble() < duplication)) {
+            duplicated++;
+            copies = 2;
+        }
+        long now = clock.currentTimeMillis();
+        for (int i = 0; i < copies; i++) {
+            long latency = minLatency;
+            if (maxLatency > minLatency)
+                latency += (long)(random.nextDouble() * (maxLatency - minLatency));
+            schedule(now + latency, from, to, message);
+        }
+    }
+    
+    private void deliver(SimulatedTransport to, NetworkMessage message) {
+        delivered++;
+        // The payload is not modified after sending, so it is shared. The 
+        // copy is created at delivery time to get the right timestamp.
+        NetworkMessage m = new NetworkMessage(message.getPayload(), message.getPayloadLen(), 
+                message.getSrcAddress(), message.getSrcPort(), 
+                message.getDstAddress(), 
+                message.getDstAddress().equals(WsDiscoveryConstants.multicastAddress) ? 
+                    to.getMulticastPort() : to.getUnicastPort());
+        if (!to.getNode().receive(m))
+            errors++;
+    }
+    
+    /**
+     * Restore the clock that was installed before this simulator was created.
+     */
+    public void close() {
+        events.clear();
+        WsDiscoveryConstants.clock = previousClock;
+    }
+    
+    /**
+     * Set probability that a delivery is lost.
+     * @param loss Probability between 0 and 1.
+     */
+    public void setLoss(double loss) {
+        if ((loss < 0) || (loss > 1))
+            throw new IllegalArgumentException("Loss must be between 0 and 1.");
+        this.loss = loss;
+    }
+    
+    /**
+     * Get probability that a delivery is lost.
+     * @return Probability between 0 and 1.
+     */
+    public double getLoss() {
+        return loss;
+    }
+    
+    /**
+     * Set probability that a delivery is duplicated.
+     * @param duplication Probability between 0 and 1.
+     */
+    public void setDuplication(double duplication) {
+        if ((duplication < 0) || (duplication > 1))
+            throw new IllegalArgumentException("Duplication must be between 0 and 1.");
+        this.duplication = duplication;
+    }
+    
+    /**
+     * Get probability that a delivery is duplicated.
+     * @return Probability between 0 and 1.
+     */
+    public double getDuplication() {
+        return duplication;
+    }
+    
+    /**
+     * Set latency of deliveries. Each delivery is delayed by a random time 
+     * between <code>min</code> and <code>max</code>.
+     * 
+     * @param min Minimum latency in ms.
+     * @param max Maximum latency in ms.
+     */
+    public void setLatency(long min, long max) {
+        if ((min < 0) || (max < min))
+            throw new IllegalArgumentException("Invalid latency range.");
+        minLatency = min;
+        maxLatency = max;
+    }
+    
+    /**
+     * Get minimum latency.
+     * @return Latency in ms.
+     */
+    public long getMinLatency() {
+        return minLatency;
+    }
+    
+    /**
+     * Get maximum latency.
+     * @return Latency in ms.
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+    
+    /**
+     * Seed the random generator used for loss, duplication and latency, to 
+     * make runs repeatable. (The initial retransmission delay of each 
+     * message is still chosen by {@link SOAPNetworkMessage}.)
+     * @param seed Seed.
+     */
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
+    
+    /**
+     * Get number of events waiting to be processed.
+     * @return Pending events.
+     */
+    public int getPendingEvents() {
+        return events.size();
+    }
+    
+    /**
+     * Get number of events processed.
+     * @return Processed events.
+     */
+    public long getProcessedEvents() {
+        return processed;
+    }
+    
+    /**
+     * Get number of messages sent by the nodes, not counting retransmissions.
+     * @return Messages sent.
+     */
+    public long getSent() {
+        return sent;
+    }
+    
+    /**
+     * Get number of transmissions on the segment, including retransmissions.
+     * A multicast counts as one.
+     * @return Transmissions.
+     */
+    public long getTransmissions() {
+        return transmissions;
+    }
+    
+    /**
+     * Get number of messages delivered to a node, including duplicates.
+     * @return Messages delivered.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+    
+    /**
+     * Get number of deliveries lost.
+     * @return Deliveries lost.
+     */
+    public long getLost() {
+        return lost;
+    }
+    
+    /**
+     * Get number of deliveries duplicated.
+     * @return Deliveries duplicated.
+     */
+    public long getDuplicated() {
+        return duplicated;
+    }
+    
+    /**
+     * Get number of unicasts to addresses without a node.
+     * @return Messages that could not be delivered.
+     */
+    public long getUnreachable() {
+        return unreachable;
+    }
+    
+    /**
+     * Get number of delivered messages that a node could not handle.
+     * @return Errors.
+     */
+    public long getErrors() {
+        return errors;
+    }
+}
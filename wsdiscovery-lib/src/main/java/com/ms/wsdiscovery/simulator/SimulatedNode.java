@@ -0,0 +1,91 @@
+/*
+SimulatedNode.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.simulator;
+
+import com.ms.wsdiscovery.WsDiscoveryServer;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.exception.WsDiscoveryNetworkException;
+import java.net.InetAddress;
+
+/**
+ * WS-Discovery server on a simulated network segment. The node is never 
+ * started as a thread. Received messages are dispatched by the 
+ * {@link NetworkSimulator} in simulation order, and all other methods 
+ * (publish, probe etc.) must be called from the thread running the 
+ * simulation.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimulatedNode extends WsDiscoveryServer {
+    private final SimulatedTransport transport;
+    private long received = 0;
+    private long errors = 0;
+    
+    /**
+     * Create a node. Use {@link NetworkSimulator#createNode()}.
+     */
+    SimulatedNode(SimulatedTransport transport) {
+        super(transport);
+        this.transport = transport;
+        transport.setNode(this);
+    }
+    
+    /**
+     * Called by the simulator to deliver a message to this node.
+     * @param message Received message.
+     * @return False if the message caused an error.
+     */
+    boolean receive(NetworkMessage message) {
+        received++;
+        try {
+            dispatch(message);
+            return true;
+        } catch (WsDiscoveryNetworkException ex) {
+            errors++;
+        } catch (RuntimeException ex) {
+            errors++;
+        }
+        return false;
+    }
+    
+    /**
+     * Get the address of this node on the simulated segment.
+     * @return Address.
+     */
+    public InetAddress getAddress() {
+        return transport.getAddress();
+    }
+    
+    /**
+     * Get number of messages delivered to this node.
+     * @return Messages received.
+     */
+    public long getReceived() {
+        return received;
+    }
+    
+    /**
+     * Get number of received messages that could not be handled.
+     * @return Errors.
+     */
+    public long getErrors() {
+        return errors;
+    }
+}
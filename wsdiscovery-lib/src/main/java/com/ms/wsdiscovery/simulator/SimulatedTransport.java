@@ -0,0 +1,119 @@
+/*
+SimulatedTransport.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.simulator;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.interfaces.ITransportType;
+import java.net.InetAddress;
+
+/**
+ * Transport of a {@link SimulatedNode}. Sent messages are handed to the 
+ * {@link NetworkSimulator}, which delivers received messages directly to the 
+ * node. Nothing is ever returned from <code>recv()</code>.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimulatedTransport implements ITransportType {
+    /**
+     * Unicast port used by all simulated transports. Transports are told 
+     * apart by their address.
+     */
+    public static final int UNICAST_PORT = 49152;
+    
+    private final NetworkSimulator simulator;
+    private final InetAddress address;
+    private SimulatedNode node = null;
+    
+    /**
+     * Create transport.
+     * @param simulator Simulator that carries the messages.
+     * @param address Address on the simulated segment.
+     */
+    SimulatedTransport(NetworkSimulator simulator, InetAddress address) {
+        this.simulator = simulator;
+        this.address = address;
+    }
+    
+    /**
+     * Get the address of this transport on the simulated segment.
+     * @return Address.
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+    
+    /**
+     * Get the node using this transport.
+     * @return Node, or null if not yet attached.
+     */
+    SimulatedNode getNode() {
+        return node;
+    }
+    
+    void setNode(SimulatedNode node) {
+        this.node = node;
+    }
+
+    /**
+     * Always returns null. Messages are delivered by the simulator.
+     * @return null
+     */
+    public NetworkMessage recv(long timeoutInMillis) {
+        return null;
+    }
+
+    /**
+     * Always returns null. Messages are delivered by the simulator.
+     * @return null
+     */
+    public NetworkMessage recv() {
+        return null;
+    }
+
+    /**
+     * Schedule the message for transmission on the simulated segment, with 
+     * the same retransmissions as SOAP-over-UDP.
+     * @param message Message to send.
+     */
+    public void send(NetworkMessage message) {
+        simulator.send(this, message);
+    }
+
+    public int getMulticastPort() {
+        return WsDiscoveryConstants.multicastPort;
+    }
+
+    public int getUnicastPort() {
+        return UNICAST_PORT;
+    }
+
+    /**
+     * Does nothing.
+     */
+    public void done() {
+    }
+
+    /**
+     * Does nothing.
+     */
+    public void start() {
+    }
+}
@@ -18,7 +18,12 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package com.ms.wsdiscovery.xml;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.PropertyException;
@@ -86,17 +91,48 @@ public class WsdXMLBuilder extends ObjectFactory {
     }
 
     /**
-     * Create new JAXB instance for instance name specified in 
-     * {@link WsDiscoveryConstants#defaultJAXBInstanceName}.
+     * JAXB context shared by all builders. Creating a JAXB context is 
+     * expensive, so it is only done once. See {@link #newInstance()}.
+     */
+    private static volatile JAXBContext sharedContext = null;
+
+    /**
+     * Idle marshallers ready to be borrowed. Bounded by 
+     * {@link WsDiscoveryConstants#jaxbPoolSize}.
+     */
+    private final BlockingQueue<Marshaller> marshallerPool = 
+            new ArrayBlockingQueue<Marshaller>(WsDiscoveryConstants.jaxbPoolSize);
+
+    /**
+     * Idle unmarshallers ready to be borrowed. Bounded by 
+     * {@link WsDiscoveryConstants#jaxbPoolSize}.
+     */
+    private final BlockingQueue<Unmarshaller> unmarshallerPool = 
+            new ArrayBlockingQueue<Unmarshaller>(WsDiscoveryConstants.jaxbPoolSize);
+
+    /**
+     * Get the JAXB instance for the instance name specified in 
+     * {@link WsDiscoveryConstants#defaultJAXBInstanceName}. The instance is 
+     * created on the first call and shared by all subsequent calls. 
+     * JAXBContext is thread safe.
      * @return JAXB instance.
      * @throws WsDiscoveryXMLException
      */
     public JAXBContext newInstance() throws WsDiscoveryXMLException {
-        try {
-            return JAXBContext.newInstance(WsDiscoveryConstants.defaultJAXBInstanceName);
-        } catch (JAXBException ex) {
-            throw new WsDiscoveryXMLException("Unable to create JAXB instance: " + WsDiscoveryConstants.defaultJAXBInstanceName);
-        }
+        JAXBContext c = sharedContext;
+        if (c == null)
+            synchronized (WsdXMLBuilder.class) {
+                c = sharedContext;
+                if (c == null) {
+                    try {
+                        c = JAXBContext.newInstance(WsDiscoveryConstants.defaultJAXBInstanceName);
+                    } catch (JAXBException ex) {
+                        throw new WsDiscoveryXMLException("Unable to create JAXB instance: " + WsDiscoveryConstants.defaultJAXBInstanceName);
+                    }
+                    sharedContext = c;
+                }
+            }
+        return c;
     }
 
     /**
@@ -136,6 +172,95 @@ public class WsdXMLBuilder extends ObjectFactory {
 
         return u;
     }
+
+    /**
+     * Borrow a JAXB marshaller from the pool. A new marshaller is created if 
+     * the pool is empty. Marshallers are not thread safe, so the caller has 
+     * exclusive use of the marshaller until it is handed back with 
+     * {@link #returnMarshaller(javax.xml.bind.Marshaller)}.
+     * @return JAXB marshaller.
+     * @throws WsDiscoveryXMLException
+     */
+    public Marshaller borrowMarshaller() throws WsDiscoveryXMLException {
+        Marshaller m = marshallerPool.poll();
+        if (m == null)
+            m = createMarshaller();
+        return m;
+    }
+
+    /**
+     * Return a marshaller obtained from {@link #borrowMarshaller()} to the 
+     * pool. The marshaller is discarded if the pool is full.
+     * @param m JAXB marshaller. <code>null</code> is ignored.
+     */
+    public void returnMarshaller(Marshaller m) {
+        if (m != null)
+            marshallerPool.offer(m);
+    }
+
+    /**
+     * Borrow a JAXB unmarshaller from the pool. A new unmarshaller is created if 
+     * the pool is empty. Unmarshallers are not thread safe, so the caller has 
+     * exclusive use of the unmarshaller until it is handed back with 
+     * {@link #returnUnmarshaller(javax.xml.bind.Unmarshaller)}.
+     * @return JAXB unmarshaller.
+     * @throws WsDiscoveryXMLException
+     */
+    public Unmarshaller borrowUnmarshaller() throws WsDiscoveryXMLException {
+        Unmarshaller u = unmarshallerPool.poll();
+        if (u == null)
+            u = createUnmarshaller();
+        return u;
+    }
+
+    /**
+     * Return an unmarshaller obtained from {@link #borrowUnmarshaller()} to the 
+     * pool. The unmarshaller is discarded if the pool is full.
+     * @param u JAXB unmarshaller. <code>null</code> is ignored.
+     */
+    public void returnUnmarshaller(Unmarshaller u) {
+        if (u != null)
+            unmarshallerPool.offer(u);
+    }
+    
+    /**
+     * Marshal a JAXB element to a self-contained XML fragment, without XML 
+     * declaration or formatting. Namespaces used by the fragment are declared
+     * on its root element, so it can be inserted anywhere in a document.
+     * @param element JAXB element.
+     * @return Fragment encoded with {@link WsDiscoveryConstants#defaultEncoding}.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public byte[] marshalFragment(JAXBElement<?> element) throws WsDiscoveryXMLException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        marshalFragment(element, out);
+        return out.toByteArray();
+    }
+    
+    /**
+     * Marshal a JAXB element to a self-contained XML fragment, written to 
+     * <code>out</code>. See {@link #marshalFragment(javax.xml.bind.JAXBElement)}.
+     * @param element JAXB element.
+     * @param out Output stream.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public void marshalFragment(JAXBElement<?> element, OutputStream out) throws WsDiscoveryXMLException {
+        Marshaller m = borrowMarshaller();
+        try {
+            m.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+            m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+            m.setProperty(Marshaller.JAXB_ENCODING, WsDiscoveryConstants.defaultEncoding.name());
+            m.marshal(element, out);
+        } catch (JAXBException ex) {
+            throw new WsDiscoveryXMLException("Unable to marshal XML fragment " + element.getName() + ".");
+        } finally {
+            try { 
+                m.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.FALSE);
+                m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+                returnMarshaller(m);
+            } catch (PropertyException ex) {} // Not returned to the pool
+        }
+    }
     
     /**
      * Create a copy of an EndpointReferenceType 
@@ -33,13 +33,19 @@ import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
 import javax.xml.soap.SOAPBody;
+import javax.xml.soap.SOAPConstants;
 import javax.xml.soap.SOAPElement;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPHeader;
 import javax.xml.soap.SOAPHeaderElement;
 import javax.xml.soap.SOAPMessage;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.w3c.dom.Document;
+import com.ms.wsdiscovery.logger.WsdLogger;
 import com.ms.wsdiscovery.xml.WsdXMLBuilder;
 import com.ms.wsdiscovery.xml.exception.WsDiscoveryXMLException;
 import com.ms.wsdiscovery.xml.jaxb_generated.EndpointReferenceType;
@@ -132,6 +138,22 @@ public class WsdSOAPMessage<E> {
      */
     protected JAXBElement<E> jaxbBody = null;
     
+    /**
+     * Reader positioned at the body content when the body has not been 
+     * unmarshalled yet. Null when the body is available in {@link #jaxbBody}.
+     */
+    private XMLStreamReader bodyReader = null;
+    
+    /**
+     * Raw XML the message was read from, kept while the body is postponed 
+     * so that it can be parsed again through SAAJ if unmarshalling fails.
+     */
+    private byte[] source = null;
+    private int sourceOffset = 0;
+    private int sourceLength = 0;
+    
+    private static WsdLogger logger = new WsdLogger(WsdSOAPMessage.class.getName());
+    
     /**
      * Create SOAP message of specified action type containing a JAXB element.
      * @param action Action type.
@@ -142,7 +164,7 @@ public class WsdSOAPMessage<E> {
                 UUID.randomUUID());
         wsdInstanceId = WsDiscoveryConstants.instanceId; 
         wsdSequenceId = "urn:uuid:" + WsDiscoveryConstants.sequenceId;
-        wsdMessageNumber = ++LastMessageNumber;
+        wsdMessageNumber = nextMessageNumber();
         
         wsaAction = action.toAttributedURI();
         jaxbBody = jaxb;
@@ -160,6 +182,29 @@ public class WsdSOAPMessage<E> {
     public WsdSOAPMessage(SOAPMessage soap) throws WsDiscoveryXMLException {
         parseSoap(soap);
     }
+    
+    /**
+     * Create new instance by reading a SOAP envelope from an XML stream. 
+     * The reader must be positioned before or at the envelope start tag.
+     * @param reader XML stream reader.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public WsdSOAPMessage(XMLStreamReader reader) throws WsDiscoveryXMLException {
+        this(reader, false);
+    }
+    
+    /**
+     * Create new instance by reading a SOAP envelope from an XML stream. 
+     * The reader must be positioned before or at the envelope start tag. 
+     * When <code>lazyBody</code> is true only the header is read and the 
+     * reader is kept until the body is needed, see {@link #parseBody()}.
+     * @param reader XML stream reader.
+     * @param lazyBody Postpone unmarshalling of the body.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public WsdSOAPMessage(XMLStreamReader reader, boolean lazyBody) throws WsDiscoveryXMLException {
+        parseStream(reader, lazyBody);
+    }
        
     /**
      * Parse SOAP message.
@@ -218,7 +263,22 @@ public class WsdSOAPMessage<E> {
             throw new WsDiscoveryXMLException("Unable to extract document from SOAP body");
         }
         
-        u = jaxbbuilder.createUnmarshaller();
+        u = jaxbbuilder.borrowUnmarshaller();
+        try {
+            parseSoap(u, soapDoc);
+        } finally {
+            jaxbbuilder.returnUnmarshaller(u);
+        }
+    }
+
+    /**
+     * Unmarshal the body document and the header elements with a borrowed unmarshaller.
+     * 
+     * @param u JAXB unmarshaller.
+     * @param soapDoc Document extracted from the SOAP body.
+     * @throws WsDiscoveryXMLException
+     */
+    private void parseSoap(Unmarshaller u, Document soapDoc) throws WsDiscoveryXMLException {
         try {            
             jaxbBody = (JAXBElement<E>)u.unmarshal(soapDoc);
         } catch (JAXBException ex) {
@@ -236,41 +296,336 @@ public class WsdSOAPMessage<E> {
                 throw new WsDiscoveryXMLException("Unable to unmarshal header element " + headerElement.getTagName());
             }
 
-            String tag = j.getName().getLocalPart();
-            
-            if (j.getValue().getClass().equals(AttributedURI.class)) {
-                AttributedURI a = (AttributedURI)j.getValue();
-                if (tag.equals("To")) 
-                    wsaTo = a; 
-                else                     
-                if (tag.equals("Action"))
-                    wsaAction = a;
-                else
-                if (tag.equals("MessageID"))
-                    wsaMessageId = a;                        
-            } else
-            if (j.getValue().getClass().equals(Relationship.class)) {
-                Relationship r = (Relationship)j.getValue();
-                if (tag.equals("RelatesTo"))
-                    wsaRelatesTo = r;
-            } else
-            if (j.getValue().getClass().equals(EndpointReferenceType.class)) {
-                EndpointReferenceType e = (EndpointReferenceType)j.getValue();
-                if (tag.equals("ReplyTo"))
-                    wsaReplyTo = e;
-            } else
-            if (j.getValue().getClass().equals(AppSequenceType.class)) {
-                AppSequenceType a = (AppSequenceType)j.getValue();
-                if (tag.equals("AppSequence")) {
-                    wsdInstanceId = a.getInstanceId();
-                    wsdMessageNumber = a.getMessageNumber();
-                    wsdSequenceId = a.getSequenceId();
-                }
-            } else
-                throw new WsDiscoveryXMLException("Unknown element: " + tag + " (" + j.getValue().getClass() + ")");
+            setHeader(j);
         }            
     }
                 
+    /**
+     * Assign an unmarshalled header element to the matching field.
+     * 
+     * @param j Unmarshalled header element.
+     * @throws WsDiscoveryXMLException if the header element is unknown.
+     */
+    private void setHeader(JAXBElement j) throws WsDiscoveryXMLException {
+        String tag = j.getName().getLocalPart();
+        
+        if (j.getValue().getClass().equals(AttributedURI.class)) {
+            AttributedURI a = (AttributedURI)j.getValue();
+            if (tag.equals("To")) 
+                wsaTo = a; 
+            else                     
+            if (tag.equals("Action"))
+                wsaAction = a;
+            else
+            if (tag.equals("MessageID"))
+                wsaMessageId = a;                        
+        } else
+        if (j.getValue().getClass().equals(Relationship.class)) {
+            Relationship r = (Relationship)j.getValue();
+            if (tag.equals("RelatesTo"))
+                wsaRelatesTo = r;
+        } else
+        if (j.getValue().getClass().equals(EndpointReferenceType.class)) {
+            EndpointReferenceType e = (EndpointReferenceType)j.getValue();
+            if (tag.equals("ReplyTo"))
+                wsaReplyTo = e;
+        } else
+        if (j.getValue().getClass().equals(AppSequenceType.class)) {
+            AppSequenceType a = (AppSequenceType)j.getValue();
+            if (tag.equals("AppSequence")) {
+                wsdInstanceId = a.getInstanceId();
+                wsdMessageNumber = a.getMessageNumber();
+                wsdSequenceId = a.getSequenceId();
+            }
+        } else
+            throw new WsDiscoveryXMLException("Unknown element: " + tag + " (" + j.getValue().getClass() + ")");
+    }
+    
+    /**
+     * Parse SOAP message in a single forward pass over an XML stream. Only 
+     * SOAP 1.2 envelopes are supported. The well known WS-Addressing and 
+     * WS-Discovery headers are read directly from the stream, while the 
+     * remaining headers and the body are unmarshalled by JAXB from the same 
+     * stream. No DOM is built.
+     * <p>
+     * When <code>lazyBody</code> is true parsing stops at the start of the 
+     * body content. The reader is kept and the body is unmarshalled by 
+     * {@link #parseBody()}, which lets the caller discard duplicates 
+     * based on the header alone.
+     * 
+     * @param reader XML stream reader positioned before or at the envelope.
+     * @param lazyBody Postpone unmarshalling of the body.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    protected void parseStream(XMLStreamReader reader, boolean lazyBody) throws WsDiscoveryXMLException {
+        try {
+            parseStreamHeader(reader);
+        } catch (XMLStreamException ex) {
+            throw new WsDiscoveryXMLException("Unable to parse SOAP stream: " + ex.getMessage());
+        }
+        
+        bodyReader = reader;
+        if (!lazyBody)
+            parseBody();
+    }
+    
+    /**
+     * Unmarshal the SOAP body if this has been postponed. Does nothing if 
+     * the body is already available. If the streaming parser can not handle 
+     * the body, the raw XML is parsed again through SAAJ, as when the body 
+     * is not postponed.
+     * 
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public synchronized void parseBody() throws WsDiscoveryXMLException {
+        if (bodyReader == null)
+            return;
+        
+        WsDiscoveryXMLException failure = null;
+        Unmarshaller u = jaxbbuilder.borrowUnmarshaller();
+        try {
+            parseStreamBody(u, bodyReader);
+        } catch (XMLStreamException ex) {
+            failure = new WsDiscoveryXMLException("Unable to parse SOAP stream: " + ex.getMessage());
+        } catch (WsDiscoveryXMLException ex) {
+            failure = ex;
+        } finally {
+            jaxbbuilder.returnUnmarshaller(u);
+            try {
+                bodyReader.close();
+            } catch (XMLStreamException ex) {
+                // Reader is discarded anyway
+            }
+            bodyReader = null;
+        }
+        
+        byte[] data = source;
+        source = null;
+        if (failure == null)
+            return;
+        if (data == null)
+            throw failure;
+        
+        // Fall back to SAAJ for bodies the streaming parser does not support
+        jaxbBody = null;
+        parseSoap(soapbuilder.createSOAPMessage(
+                new String(data, sourceOffset, sourceLength, WsDiscoveryConstants.defaultEncoding)));
+    }
+    
+    /**
+     * Keep the raw XML of a message with a postponed body, so that 
+     * {@link #parseBody()} can fall back to SAAJ. <code>data</code> must 
+     * not be modified until the body has been parsed.
+     * 
+     * @param data Buffer containing the XML data.
+     * @param offset Offset of the first byte of XML data in the buffer.
+     * @param length Number of bytes of XML data.
+     */
+    void setSource(byte[] data, int offset, int length) {
+        if (bodyReader == null)
+            return;
+        source = data;
+        sourceOffset = offset;
+        sourceLength = length;
+    }
+    
+    /**
+     * Parse envelope and header. The reader is left at the start of the 
+     * body content.
+     * 
+     * @param r XML stream reader.
+     * @throws XMLStreamException on malformed XML.
+     * @throws WsDiscoveryXMLException on unexpected content.
+     */
+    private void parseStreamHeader(XMLStreamReader r) throws XMLStreamException, WsDiscoveryXMLException {
+        final String soapNs = SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE;
+        
+        if ((skipToTag(r) != XMLStreamConstants.START_ELEMENT) || 
+                !isElement(r, soapNs, "Envelope"))
+            throw new WsDiscoveryXMLException("Expected SOAP 1.2 envelope.");
+        
+        // Namespaces declared on the envelope and body are visible from the body
+        addNamespaces(r);
+        r.next();
+        
+        int event = skipToTag(r);
+        if ((event == XMLStreamConstants.START_ELEMENT) && isElement(r, soapNs, "Header")) {
+            r.next();
+            while (skipToTag(r) == XMLStreamConstants.START_ELEMENT)
+                parseHeader(r);
+            r.next(); // Skip </Header>
+            event = skipToTag(r);
+        }
+        
+        if ((event != XMLStreamConstants.START_ELEMENT) || !isElement(r, soapNs, "Body"))
+            throw new WsDiscoveryXMLException("Expected SOAP body.");
+        
+        addNamespaces(r);
+        r.next();
+        
+        if (skipToTag(r) != XMLStreamConstants.START_ELEMENT)
+            throw new WsDiscoveryXMLException("Unable to extract document from SOAP body");
+    }
+    
+    /**
+     * Unmarshal the body content at the current position with a borrowed 
+     * unmarshaller.
+     * 
+     * @param u JAXB unmarshaller.
+     * @param r XML stream reader positioned at the body content.
+     * @throws XMLStreamException on malformed XML.
+     * @throws WsDiscoveryXMLException on unexpected content.
+     */
+    private void parseStreamBody(Unmarshaller u, XMLStreamReader r) throws XMLStreamException, WsDiscoveryXMLException {
+        try {
+            jaxbBody = (JAXBElement<E>)u.unmarshal(r);
+        } catch (JAXBException ex) {
+            throw new WsDiscoveryXMLException("Unable to unmarshal SOAP document.");
+        }
+        
+        if (skipToTag(r) != XMLStreamConstants.END_ELEMENT)
+            throw new WsDiscoveryXMLException("Unexpected element after SOAP body content.");
+    }
+    
+    /**
+     * Parse the header element at the current position. The reader is left 
+     * on the event following the end tag of the header element.
+     * 
+     * @param r XML stream reader positioned at the start tag.
+     * @throws XMLStreamException on malformed XML.
+     * @throws WsDiscoveryXMLException on unknown header elements.
+     */
+    private void parseHeader(XMLStreamReader r) throws XMLStreamException, WsDiscoveryXMLException {
+        String ns = r.getNamespaceURI();
+        String tag = r.getLocalName();
+        
+        if (WsDiscoveryConstants.defaultNsDiscovery.toString().equals(ns) &&
+                tag.equals("AppSequence")) {
+            for (int i = 0; i < r.getAttributeCount(); i++) {
+                String name = r.getAttributeLocalName(i);
+                String value = r.getAttributeValue(i).trim();
+                try {
+                    if (name.equals("InstanceId"))
+                        wsdInstanceId = Long.parseLong(value);
+                    else
+                    if (name.equals("MessageNumber"))
+                        wsdMessageNumber = Long.parseLong(value);
+                    else
+                    if (name.equals("SequenceId"))
+                        wsdSequenceId = value;
+                } catch (NumberFormatException ex) {
+                    throw new WsDiscoveryXMLException("Invalid AppSequence attribute " + name + ": " + value);
+                }
+            }
+            skipElement(r);
+        } else
+        if (WsDiscoveryConstants.defaultNsAddressing.toString().equals(ns) &&
+                (tag.equals("To") || tag.equals("Action") || tag.equals("MessageID"))) {
+            AttributedURI a = soapbuilder.createAttributedURI();
+            for (int i = 0; i < r.getAttributeCount(); i++)
+                a.getOtherAttributes().put(r.getAttributeName(i), r.getAttributeValue(i));
+            a.setValue(r.getElementText().trim());
+            if (tag.equals("To")) 
+                wsaTo = a; 
+            else                     
+            if (tag.equals("Action"))
+                wsaAction = a;
+            else
+                wsaMessageId = a;
+        } else
+        if (WsDiscoveryConstants.defaultNsAddressing.toString().equals(ns) &&
+                tag.equals("RelatesTo")) {
+            Relationship rel = soapbuilder.createRelationship();
+            for (int i = 0; i < r.getAttributeCount(); i++) {
+                QName name = r.getAttributeName(i);
+                if (name.getNamespaceURI().length() == 0 && 
+                        name.getLocalPart().equals("RelationshipType"))
+                    rel.setRelationshipType(resolveQName(r, r.getAttributeValue(i).trim()));
+                else
+                    rel.getOtherAttributes().put(name, r.getAttributeValue(i));
+            }
+            rel.setValue(r.getElementText().trim());
+            wsaRelatesTo = rel;
+        } else {
+            // Other header elements (e.g. ReplyTo) are left to JAXB
+            JAXBElement j;
+            Unmarshaller u = jaxbbuilder.borrowUnmarshaller();
+            try {
+                j = (JAXBElement) u.unmarshal(r);
+            } catch (JAXBException ex) {
+                throw new WsDiscoveryXMLException("Unable to unmarshal header element " + tag);
+            } finally {
+                jaxbbuilder.returnUnmarshaller(u);
+            }
+            setHeader(j);
+            return; // The unmarshaller has already moved past the end tag
+        }
+        r.next();
+    }
+    
+    /**
+     * Add all namespaces declared on the current element to the namespace list.
+     * @param r XML stream reader positioned at a start tag.
+     */
+    private void addNamespaces(XMLStreamReader r) {
+        for (int i = 0; i < r.getNamespaceCount(); i++) {
+            String prefix = r.getNamespacePrefix(i);
+            addNamespace(prefix == null ? "" : prefix, URI.create(r.getNamespaceURI(i)));
+        }
+    }
+    
+    /**
+     * Resolve a prefixed QName value using the namespaces in scope.
+     * @param r XML stream reader.
+     * @param value QName as text, with or without prefix.
+     * @return Resolved QName.
+     */
+    private static QName resolveQName(XMLStreamReader r, String value) {
+        int colon = value.indexOf(':');
+        String prefix = (colon < 0 ? "" : value.substring(0, colon));
+        String ns = r.getNamespaceURI(prefix);
+        if (ns == null)
+            ns = "";
+        return new QName(ns, value.substring(colon + 1), prefix);
+    }
+    
+    /**
+     * Check the name of the current element.
+     */
+    private static boolean isElement(XMLStreamReader r, String ns, String localName) {
+        return ns.equals(r.getNamespaceURI()) && localName.equals(r.getLocalName());
+    }
+    
+    /**
+     * Skip whitespace, comments and processing instructions until the reader 
+     * is positioned at a start tag, end tag or the end of the document.
+     * @return The current event type.
+     */
+    private static int skipToTag(XMLStreamReader r) throws XMLStreamException {
+        int event = r.getEventType();
+        while ((event != XMLStreamConstants.START_ELEMENT) &&
+                (event != XMLStreamConstants.END_ELEMENT) &&
+                (event != XMLStreamConstants.END_DOCUMENT))
+            event = r.next();
+        return event;
+    }
+    
+    /**
+     * Skip the current element and all its children. The reader is left at 
+     * the matching end tag.
+     */
+    private static void skipElement(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else
+            if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
     /**
      * Add namespace to SOAP message envelope.
      * @param prefix Prefix to use for this namespace.
@@ -294,9 +649,24 @@ public class WsdSOAPMessage<E> {
      * @throws WsDiscoveryXMLException on failure.
      */
     public SOAPMessage toSoap() throws WsDiscoveryXMLException {
-        // Instantiate JAXB marshaller        
-        Marshaller m = jaxbbuilder.createMarshaller();
-               
+        parseBody();
+        
+        // Borrow JAXB marshaller from the pool
+        Marshaller m = jaxbbuilder.borrowMarshaller();
+        try {
+            return toSoap(m);
+        } finally {
+            jaxbbuilder.returnMarshaller(m);
+        }
+    }
+
+    /**
+     * Convert to {@link SOAPMessage} using the specified marshaller.
+     * @param m JAXB marshaller.
+     * @return SOAP message.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    private SOAPMessage toSoap(Marshaller m) throws WsDiscoveryXMLException {
         // Create soap empty message
         SOAPMessage message = soapbuilder.createSOAPMessage();
                       
@@ -463,11 +833,56 @@ public class WsdSOAPMessage<E> {
     }
     
     /**
-     * Get the JAXB element that represents the body of the SOAP message.
-     * @return JAXB element.
+     * Set WS-Discovery Sequence ID. Used when several WS-Discovery instances 
+     * share a JVM (and the same instance ID).
+     * @param sequenceId Sequence ID
+     */
+    public void setWsdSequenceId(String sequenceId) {
+        wsdSequenceId = sequenceId;
+    }
+    
+    /**
+     * Get the JAXB element that represents the body of the SOAP message. If 
+     * unmarshalling of the body was postponed it is done now. Call 
+     * {@link #parseBody()} first to get the error if unmarshalling fails.
+     * @return JAXB element, or null if the message has no body or the body 
+     * could not be unmarshalled.
      */
     public E getJAXBBody() {
-        return jaxbBody.getValue();
+        try {
+            parseBody();
+        } catch (WsDiscoveryXMLException ex) {
+            logger.warning("Unable to unmarshal SOAP body: " + ex.getMessage());
+            return null;
+        }
+        return (jaxbBody == null ? null : jaxbBody.getValue());
+    }
+    
+    /**
+     * Get the JAXB element of the body, unmarshalling it first if it was
+     * postponed. Used by {@link WsdSOAPWriter}.
+     * @return JAXB element, or null if the message has no body.
+     * @throws WsDiscoveryXMLException if the body could not be unmarshalled.
+     */
+    JAXBElement<E> getJAXBElement() throws WsDiscoveryXMLException {
+        parseBody();
+        return jaxbBody;
+    }
+    
+    /**
+     * Serialize this SOAP message with {@link WsdSOAPWriter}, without 
+     * building a {@link SOAPMessage}. The result is encoded with 
+     * {@link WsDiscoveryConstants#defaultEncoding}.
+     * @return Serialized message.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public byte[] toBytes() throws WsDiscoveryXMLException {
+        WsdSOAPWriter w = soapbuilder.borrowWriter();
+        try {
+            return w.toByteArray(this);
+        } finally {
+            soapbuilder.returnWriter(w);
+        }
     }
     
     /**
@@ -500,5 +915,15 @@ public class WsdSOAPMessage<E> {
         return this.toString(WsDiscoveryConstants.defaultEncoding);
     }
         
+    /**
+     * Get the next message number. Used by the constructor, and for 
+     * messages that are sent without creating a new instance (e.g. from a 
+     * serialized template).
+     * @return Message number.
+     */
+    public static synchronized long nextMessageNumber() {
+        return ++LastMessageNumber;
+    }
+    
     private static int LastMessageNumber = 0; // "Identifies a message within the context of a sequence number and an instance identifier."             
 }
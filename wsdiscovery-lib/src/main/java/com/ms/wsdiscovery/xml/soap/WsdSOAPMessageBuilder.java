@@ -20,9 +20,15 @@ package com.ms.wsdiscovery.xml.soap;
 
 import com.ms.wsdiscovery.*;
 import java.io.ByteArrayInputStream;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import javax.xml.soap.MessageFactory;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.stream.StreamSource;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.xml.exception.WsDiscoveryXMLException;
@@ -41,6 +47,51 @@ import com.ms.wsdiscovery.xml.jaxb_generated.ResolveType;
  * @author Magnus Skjegstad
  */
 public class WsdSOAPMessageBuilder extends ObjectFactory {
+    /**
+     * Factory used when creating XML stream readers for incoming messages.
+     */
+    private final XMLInputFactory inputFactory;
+    
+    /**
+     * Idle writers ready to be borrowed. Bounded by 
+     * {@link WsDiscoveryConstants#jaxbPoolSize}.
+     */
+    private final BlockingQueue<WsdSOAPWriter> writerPool = 
+            new ArrayBlockingQueue<WsdSOAPWriter>(WsDiscoveryConstants.jaxbPoolSize);
+    
+    /**
+     * Create new SOAP message builder.
+     */
+    public WsdSOAPMessageBuilder() {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+    
+    /**
+     * Borrow a writer from the pool. A new writer is created if the pool is 
+     * empty. The caller has exclusive use of the writer (and its buffer) 
+     * until it is handed back with {@link #returnWriter(WsdSOAPWriter)}.
+     * @return SOAP writer.
+     */
+    public WsdSOAPWriter borrowWriter() {
+        WsdSOAPWriter w = writerPool.poll();
+        if (w == null)
+            w = new WsdSOAPWriter();
+        return w;
+    }
+
+    /**
+     * Return a writer obtained from {@link #borrowWriter()} to the pool. The 
+     * writer is discarded if the pool is full.
+     * @param w SOAP writer. <code>null</code> is ignored.
+     */
+    public void returnWriter(WsdSOAPWriter w) {
+        if (w != null)
+            writerPool.offer(w);
+    }
+    
     /**
      * Create a new {@link SOAPMessage} instance from XML data.
      * @param SoapAsXML SOAP message in XML.
@@ -80,7 +131,93 @@ public class WsdSOAPMessageBuilder extends ObjectFactory {
      * @throws WsDiscoveryXMLException on failure.
      */
     public WsdSOAPMessage createWsdSOAPMessage(String SoapAsXML) throws WsDiscoveryXMLException {
-        return createWsdSOAPMessage(createSOAPMessage(SoapAsXML));
+        byte[] data = SoapAsXML.getBytes(WsDiscoveryConstants.defaultEncoding);
+        return createWsdSOAPMessage(data, 0, data.length);
+    }
+
+    /**
+     * Create a new instance of {@link WsdSOAPMessage} from raw XML data. The 
+     * data is first parsed in a single pass with a streaming parser. Envelopes 
+     * the streaming parser can not handle are parsed again through SAAJ.
+     * @param data Buffer containing the XML data.
+     * @param offset Offset of the first byte of XML data in the buffer.
+     * @param length Number of bytes of XML data.
+     * @return New instance of {@link WsdSOAPMessage} containing the XML data.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public WsdSOAPMessage createWsdSOAPMessage(byte[] data, int offset, int length) throws WsDiscoveryXMLException {
+        return createWsdSOAPMessage(data, offset, length, false);
+    }
+
+    /**
+     * Create a new instance of {@link WsdSOAPMessage} from raw XML data. The 
+     * data is first parsed in a single pass with a streaming parser. Envelopes 
+     * the streaming parser can not handle are parsed again through SAAJ.
+     * <p>
+     * When <code>lazyBody</code> is true and the streaming parser is used, 
+     * only the header is parsed. The body is unmarshalled when it is first 
+     * accessed or when {@link WsdSOAPMessage#parseBody()} is called. 
+     * <code>data</code> must not be modified until then.
+     * @param data Buffer containing the XML data.
+     * @param offset Offset of the first byte of XML data in the buffer.
+     * @param length Number of bytes of XML data.
+     * @param lazyBody Postpone unmarshalling of the SOAP body.
+     * @return New instance of {@link WsdSOAPMessage} containing the XML data.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public WsdSOAPMessage createWsdSOAPMessage(byte[] data, int offset, int length, boolean lazyBody) throws WsDiscoveryXMLException {
+        try {
+            return createWsdSOAPMessageFromStream(data, offset, length, lazyBody);
+        } catch (WsDiscoveryXMLException ex) {
+            // Fall back to SAAJ for envelopes the streaming parser does not support
+            return createWsdSOAPMessage(createSOAPMessage(
+                    new String(data, offset, length, WsDiscoveryConstants.defaultEncoding)));
+        }
+    }
+
+    /**
+     * Create a new instance of {@link WsdSOAPMessage} from raw XML data using 
+     * only the streaming parser.
+     * @param data Buffer containing the XML data.
+     * @param offset Offset of the first byte of XML data in the buffer.
+     * @param length Number of bytes of XML data.
+     * @return New instance of {@link WsdSOAPMessage} containing the XML data.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public WsdSOAPMessage createWsdSOAPMessageFromStream(byte[] data, int offset, int length) throws WsDiscoveryXMLException {
+        return createWsdSOAPMessageFromStream(data, offset, length, false);
+    }
+
+    /**
+     * Create a new instance of {@link WsdSOAPMessage} from raw XML data using 
+     * only the streaming parser, optionally postponing the body.
+     * @param data Buffer containing the XML data.
+     * @param offset Offset of the first byte of XML data in the buffer.
+     * @param length Number of bytes of XML data.
+     * @param lazyBody Postpone unmarshalling of the SOAP body.
+     * @return New instance of {@link WsdSOAPMessage} containing the XML data.
+     * @throws WsDiscoveryXMLException on failure.
+     */
+    public WsdSOAPMessage createWsdSOAPMessageFromStream(byte[] data, int offset, int length, boolean lazyBody) throws WsDiscoveryXMLException {
+        XMLStreamReader reader;
+        try {
+            reader = inputFactory.createXMLStreamReader(
+                    new ByteArrayInputStream(data, offset, length));
+        } catch (XMLStreamException ex) {
+            throw new WsDiscoveryXMLException("Unable to create XML stream reader.");
+        }
+        try {
+            WsdSOAPMessage m = new WsdSOAPMessage(reader, lazyBody);
+            m.setSource(data, offset, length);
+            return m;
+        } catch (WsDiscoveryXMLException ex) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // Nothing to release for an in-memory stream
+            }
+            throw ex;
+        }
     }
 
     /**
@@ -183,4 +320,54 @@ public class WsdSOAPMessageBuilder extends ObjectFactory {
         return new WsdSOAPMessage<ResolveMatchesType>(WsaActionType.RESOLVEMATCHES,
                 this.createResolveMatches(this.createResolveMatchesType()));
     }
+
+    /**
+     * Create the body content of a ProbeMatches-message from the serialized 
+     * ProbeMatch fragments of the services (see 
+     * {@link WsDiscoveryService#getProbeMatchFragment()}), for use with a 
+     * {@link WsdSOAPTemplate}.
+     * @param services Matching services.
+     * @return Body content as a list of byte arrays to be concatenated.
+     * @throws WsDiscoveryXMLException if a service could not be serialized.
+     */
+    public byte[][] createProbeMatchesBody(Collection<WsDiscoveryService> services) 
+            throws WsDiscoveryXMLException {
+        byte[][] body = new byte[services.size() + 2][];
+        int i = 0;
+        body[i++] = startElement("ProbeMatches");
+        for (WsDiscoveryService service : services)
+            body[i++] = service.getProbeMatchFragment();
+        body[i] = endElement("ProbeMatches");
+        return body;
+    }
+
+    /**
+     * Create the body content of a ResolveMatches-message from the serialized
+     * ResolveMatch fragment of a service (see 
+     * {@link WsDiscoveryService#getResolveMatchFragment()}), for use with a 
+     * {@link WsdSOAPTemplate}.
+     * @param service Matching service, or <code>null</code> for no match.
+     * @return Body content as a list of byte arrays to be concatenated.
+     * @throws WsDiscoveryXMLException if the service could not be serialized.
+     */
+    public byte[][] createResolveMatchesBody(WsDiscoveryService service) 
+            throws WsDiscoveryXMLException {
+        if (service == null)
+            return new byte[][] { startElement("ResolveMatches"), endElement("ResolveMatches") };
+        return new byte[][] { startElement("ResolveMatches"), 
+            service.getResolveMatchFragment(), endElement("ResolveMatches") };
+    }
+
+    /**
+     * Start tag of a WS-Discovery element. The namespace is declared on the 
+     * element, so it does not depend on the declarations of the envelope.
+     */
+    private static byte[] startElement(String name) {
+        return ("<wsd:" + name + " xmlns:wsd=\"" + WsDiscoveryConstants.defaultNsDiscovery + "\">")
+                .getBytes(WsDiscoveryConstants.defaultEncoding);
+    }
+
+    private static byte[] endElement(String name) {
+        return ("</wsd:" + name + ">").getBytes(WsDiscoveryConstants.defaultEncoding);
+    }
 }
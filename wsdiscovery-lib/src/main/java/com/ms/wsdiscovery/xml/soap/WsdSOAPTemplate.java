@@ -0,0 +1,287 @@
+/*
+WsdSOAPTemplate.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.xml.soap;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.xml.exception.WsDiscoveryXMLException;
+import com.ms.wsdiscovery.xml.jaxb_generated.Relationship;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import javax.xml.namespace.QName;
+
+/**
+ * A serialized SOAP envelope with holes for the values that differ between 
+ * messages of the same kind: MessageID, the MessageNumber of the AppSequence,
+ * RelatesTo, To and the content of the body. Messages are created from the 
+ * template by concatenating its parts with the values, so that the envelope 
+ * is only serialized once.
+ * <p>
+ * A template is compiled by serializing a message with unique placeholder 
+ * values and cutting the result at each placeholder. The body can be bound 
+ * to fixed content, giving a template with header holes only.
+ * <p>
+ * The parts are encoded with {@link WsDiscoveryConstants#defaultEncoding}. 
+ * Body content must be encoded the same way. This class is immutable.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsdSOAPTemplate {
+    private static final int MESSAGE_ID = 0;
+    private static final int MESSAGE_NUMBER = 1;
+    private static final int RELATES_TO = 2;
+    private static final int TO = 3;
+    private static final int BODY = 4;
+    
+    private final byte[][] parts; // Text between the holes, one more than fields
+    private final int[] fields; // Value to insert after each part
+    private final int length; // Length of all parts
+    
+    private WsdSOAPTemplate(byte[][] parts, int[] fields) {
+        this.parts = parts;
+        this.fields = fields;
+        int l = 0;
+        for (byte[] p : parts)
+            l += p.length;
+        length = l;
+    }
+    
+    /**
+     * Compile a template for messages of type <code>action</code>.
+     * 
+     * @param action Action of the messages.
+     * @param sequenceId AppSequence ID of the messages.
+     * @param relatesTo True if the messages have a RelatesTo header.
+     * @param relationshipType RelationshipType of the RelatesTo header, or 
+     * <code>null</code> for the default (reply).
+     * @return Template.
+     * @throws WsDiscoveryXMLException if the message could not be serialized, 
+     * or a placeholder was not found exactly once.
+     */
+    public static WsdSOAPTemplate compile(WsaActionType action, String sequenceId, 
+            boolean relatesTo, QName relationshipType) throws WsDiscoveryXMLException {
+        WsdSOAPMessage<Object> m = new WsdSOAPMessage<Object>(action, null);
+        m.setWsdSequenceId(sequenceId);
+        
+        String to = "urn:uuid:" + UUID.randomUUID();
+        m.setWsaTo(WsDiscoveryConstants.XMLBUILDER.createAttributedURI(to));
+        String relatesToPlaceholder = null;
+        if (relatesTo) {
+            relatesToPlaceholder = "urn:uuid:" + UUID.randomUUID();
+            Relationship r = WsDiscoveryConstants.XMLBUILDER.createRelationship(relatesToPlaceholder);
+            r.setRelationshipType(relationshipType);
+            m.setWsaRelatesTo(r);
+        }
+        
+        String message = (WsDiscoveryConstants.useSOAPWriter ? 
+                new String(m.toBytes(), WsDiscoveryConstants.defaultEncoding) : m.toString());
+        if (message == null)
+            throw new WsDiscoveryXMLException("Unable to serialize " + action + " template.");
+        
+        int[][] holes = new int[5][]; // Start and end of each hole
+        holes[MESSAGE_ID] = find(message, m.getWsaMessageId().getValue(), 0);
+        holes[MESSAGE_NUMBER] = find(message, "MessageNumber=\"" + m.getWsdMessageNumber() + "\"", 
+                "MessageNumber=\"".length());
+        if (holes[MESSAGE_NUMBER] != null)
+            holes[MESSAGE_NUMBER][1]--; // Keep the closing quote
+        holes[TO] = find(message, to, 0);
+        if (relatesTo)
+            holes[RELATES_TO] = find(message, relatesToPlaceholder, 0);
+        
+        // The body is the last child of the envelope. Make room for content 
+        // if it was written as an empty element.
+        int envelopeEnd = message.lastIndexOf("</");
+        int bodyEnd = message.lastIndexOf("</", envelopeEnd - 1);
+        int bodyStart = message.lastIndexOf('<', envelopeEnd - 1);
+        if ((bodyStart >= 0) && message.startsWith("/>", envelopeEnd - 2) && 
+                isBody(message.substring(bodyStart + 1, envelopeEnd - 2))) {
+            String tag = message.substring(bodyStart + 1, envelopeEnd - 2).trim();
+            message = message.substring(0, envelopeEnd - 2) + "></" + tag + ">" + 
+                    message.substring(envelopeEnd);
+            holes[BODY] = new int[] { envelopeEnd - 1, envelopeEnd - 1 };
+        } else if ((bodyEnd >= 0) && isBody(message.substring(bodyEnd + 2, envelopeEnd - 1)))
+            holes[BODY] = new int[] { bodyEnd, bodyEnd };
+        
+        for (int f = 0; f < holes.length; f++)
+            if ((holes[f] == null) && ((f != RELATES_TO) || relatesTo))
+                throw new WsDiscoveryXMLException("Unable to locate value " + f + " in " + action + " template.");
+        
+        // Cut the message at the holes in the order they occur
+        List<Integer> order = new ArrayList<Integer>();
+        for (int f = 0; f < holes.length; f++) {
+            if (holes[f] == null)
+                continue;
+            int i = 0;
+            while ((i < order.size()) && (holes[order.get(i)][0] < holes[f][0]))
+                i++;
+            order.add(i, f);
+        }
+        
+        byte[][] parts = new byte[order.size() + 1][];
+        int[] fields = new int[order.size()];
+        int pos = 0;
+        for (int i = 0; i < order.size(); i++) {
+            int f = order.get(i);
+            parts[i] = message.substring(pos, holes[f][0]).getBytes(WsDiscoveryConstants.defaultEncoding);
+            fields[i] = f;
+            pos = holes[f][1];
+        }
+        parts[order.size()] = message.substring(pos).getBytes(WsDiscoveryConstants.defaultEncoding);
+        return new WsdSOAPTemplate(parts, fields);
+    }
+    
+    /**
+     * Check if an element name is Body, with or without a prefix.
+     */
+    private static boolean isBody(String name) {
+        name = name.trim();
+        return name.equals("Body") || name.endsWith(":Body");
+    }
+    
+    /**
+     * Find the single occurrence of <code>value</code> in <code>message</code>.
+     * @return Start and end of the value, or null if not found exactly once.
+     */
+    private static int[] find(String message, String value, int skip) {
+        int i = message.indexOf(value);
+        if ((i < 0) || (message.indexOf(value, i + 1) >= 0))
+            return null;
+        return new int[] { i + skip, i + value.length() };
+    }
+    
+    /**
+     * Create a template where the body content is fixed. 
+     * 
+     * @param body Body content.
+     * @return Template with header holes only, or this template if the body
+     * is already bound.
+     */
+    public WsdSOAPTemplate bind(byte[]... body) {
+        int f = 0;
+        while ((f < fields.length) && (fields[f] != BODY))
+            f++;
+        if (f == fields.length)
+            return this;
+        
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        joined.write(parts[f], 0, parts[f].length);
+        for (byte[] b : body)
+            joined.write(b, 0, b.length);
+        joined.write(parts[f + 1], 0, parts[f + 1].length);
+        
+        byte[][] p = new byte[parts.length - 1][];
+        int[] fs = new int[fields.length - 1];
+        System.arraycopy(parts, 0, p, 0, f);
+        p[f] = joined.toByteArray();
+        System.arraycopy(parts, f + 2, p, f + 1, parts.length - f - 2);
+        System.arraycopy(fields, 0, fs, 0, f);
+        System.arraycopy(fields, f + 1, fs, f, fields.length - f - 1);
+        return new WsdSOAPTemplate(p, fs);
+    }
+    
+    /**
+     * Create a message from this template. The RelatesTo and To values are 
+     * escaped.
+     * 
+     * @param messageId MessageID.
+     * @param messageNumber MessageNumber of the AppSequence.
+     * @param relatesTo RelatesTo. Ignored if the template has no RelatesTo.
+     * @param to To.
+     * @param body Body content, concatenated. Ignored if the body is bound.
+     * @return Serialized message.
+     */
+    public byte[] render(String messageId, long messageNumber, String relatesTo, 
+            String to, byte[]... body) {
+        int size = length + 256;
+        for (byte[] b : body)
+            size += b.length;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        
+        out.write(parts[0], 0, parts[0].length);
+        for (int i = 0; i < fields.length; i++) {
+            switch (fields[i]) {
+                case MESSAGE_ID:
+                    write(out, escape(messageId));
+                    break;
+                case MESSAGE_NUMBER:
+                    write(out, Long.toString(messageNumber));
+                    break;
+                case RELATES_TO:
+                    write(out, escape(relatesTo));
+                    break;
+                case TO:
+                    write(out, escape(to));
+                    break;
+                case BODY:
+                    for (byte[] b : body)
+                        out.write(b, 0, b.length);
+                    break;
+            }
+            out.write(parts[i + 1], 0, parts[i + 1].length);
+        }
+        return out.toByteArray();
+    }
+    
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] b = s.getBytes(WsDiscoveryConstants.defaultEncoding);
+        out.write(b, 0, b.length);
+    }
+    
+    /**
+     * Escape <code>s</code> as XML character data.
+     * @param s String.
+     * @return Escaped string.
+     */
+    static String escape(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            String r;
+            switch (s.charAt(i)) {
+                case '&': r = "&amp;"; break;
+                case '<': r = "&lt;"; break;
+                case '>': r = "&gt;"; break;
+                case '"': r = "&quot;"; break;
+                default: r = null;
+            }
+            if ((r != null) && (sb == null))
+                sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+            if (sb != null) {
+                if (r != null)
+                    sb.append(r);
+                else
+                    sb.append(s.charAt(i));
+            }
+        }
+        return (sb == null ? s : sb.toString());
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            sb.append(new String(parts[i], WsDiscoveryConstants.defaultEncoding));
+            if (i < fields.length)
+                sb.append("{").append(Arrays.asList("MessageID", "MessageNumber", 
+                        "RelatesTo", "To", "Body").get(fields[i])).append("}");
+        }
+        return sb.toString();
+    }
+}
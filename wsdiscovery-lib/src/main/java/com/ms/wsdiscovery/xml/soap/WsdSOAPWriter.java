@@ -0,0 +1,303 @@
+/*
+WsdSOAPWriter.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.xml.soap;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.xml.exception.WsDiscoveryXMLException;
+import com.ms.wsdiscovery.xml.jaxb_generated.Relationship;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import javax.xml.soap.SOAPConstants;
+
+/**
+ * Serializes {@link WsdSOAPMessage}s without building a SAAJ or DOM tree. 
+ * The envelope and header are written straight into a reusable 
+ * {@link ByteBuffer} from byte templates compiled when the writer is 
+ * created, and the body is marshalled by JAXB as a streamed fragment. The 
+ * output is compact (no indentation) and has the same header elements, in 
+ * the same order, as {@link WsdSOAPMessage#toSoap()}. Extension attributes
+ * on the header values are not written.
+ * <p>
+ * The buffer returned by {@link #write(WsdSOAPMessage)} is overwritten by 
+ * the next call, so a writer can only be used by one thread at a time. 
+ * Writers are pooled by {@link WsdSOAPMessageBuilder#borrowWriter()}.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsdSOAPWriter {
+    private final Charset encoding = WsDiscoveryConstants.defaultEncoding;
+    private final boolean ascii; // True if ASCII is encoded as single bytes
+    
+    private final String envPrefix;
+    private final String envelopeStart; // Before the namespace declarations
+    private final byte[] defaultEnvelope; // Envelope start and header start for the default namespaces
+    private final byte[] headerStart; // Closes the envelope start tag
+    private final byte[] instanceId = bytes("<wsd:AppSequence InstanceId=\"");
+    private final byte[] messageNumber = bytes("\" MessageNumber=\"");
+    private final byte[] sequenceId = bytes("\" SequenceId=\"");
+    private final byte[] appSequenceEnd = bytes("\"/>");
+    private final byte[] toStart = bytes("<wsa:To>");
+    private final byte[] toEnd = bytes("</wsa:To>");
+    private final byte[] actionStart = bytes("<wsa:Action>");
+    private final byte[] actionEnd = bytes("</wsa:Action>");
+    private final Map<WsaActionType, byte[]> actions = new EnumMap<WsaActionType, byte[]>(WsaActionType.class);
+    private final byte[] relatesToStart = bytes("<wsa:RelatesTo");
+    private final byte[] relationshipType = bytes(" RelationshipType=\"");
+    private final byte[] relatesToEnd = bytes("</wsa:RelatesTo>");
+    private final byte[] messageIdStart = bytes("<wsa:MessageID>");
+    private final byte[] messageIdEnd = bytes("</wsa:MessageID>");
+    private final byte[] bodyStart;
+    private final byte[] bodyEnd;
+    
+    private ByteBuffer buffer;
+    private final OutputStream bufferStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+            ensure(1);
+            buffer.put((byte)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            buffer.put(b, off, len);
+        }
+    };
+    
+    /**
+     * Create a new writer for the SOAP protocol in 
+     * {@link WsDiscoveryConstants#defaultSoapProtocol}.
+     */
+    public WsdSOAPWriter() {
+        String ns;
+        if (WsDiscoveryConstants.defaultSoapProtocol.equals(SOAPConstants.SOAP_1_1_PROTOCOL)) {
+            envPrefix = "SOAP-ENV";
+            ns = SOAPConstants.URI_NS_SOAP_1_1_ENVELOPE;
+        } else {
+            envPrefix = "env";
+            ns = SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE;
+        }
+        
+        ascii = encoding.name().equals("UTF-8") || encoding.name().equals("US-ASCII") || 
+                encoding.name().startsWith("ISO-8859");
+        
+        envelopeStart = "<" + envPrefix + ":Envelope xmlns:" + envPrefix + "=\"" + ns + "\"";
+        headerStart = bytes("><" + envPrefix + ":Header>");
+        defaultEnvelope = bytes(envelopeStart + 
+                " xmlns:wsa=\"" + WsDiscoveryConstants.defaultNsAddressing + "\"" + 
+                " xmlns:wsd=\"" + WsDiscoveryConstants.defaultNsDiscovery + "\"" +
+                "><" + envPrefix + ":Header>");
+        bodyStart = bytes("</" + envPrefix + ":Header><" + envPrefix + ":Body>");
+        bodyEnd = bytes("</" + envPrefix + ":Body></" + envPrefix + ":Envelope>");
+        
+        for (WsaActionType a : WsaActionType.values())
+            actions.put(a, bytes("<wsa:Action>" + WsdSOAPTemplate.escape(a.toAttributedURI().getValue()) + "</wsa:Action>"));
+        
+        buffer = ByteBuffer.allocate(4096);
+    }
+    
+    private byte[] bytes(String s) {
+        return s.getBytes(encoding);
+    }
+    
+    /**
+     * Serialize a message. 
+     * 
+     * @param m Message.
+     * @return Buffer containing the message between position and limit. The 
+     * buffer is reused by the next call.
+     * @throws WsDiscoveryXMLException if the body could not be marshalled.
+     */
+    public ByteBuffer write(WsdSOAPMessage<?> m) throws WsDiscoveryXMLException {
+        buffer.clear();
+        
+        // Envelope and namespaces. The SOAP prefix can't be redeclared.
+        Map<String, URI> namespaces = m.getNamespaces();
+        if (isDefault(namespaces))
+            put(defaultEnvelope);
+        else {
+            putText(envelopeStart, false);
+            for (Entry<String, URI> n : namespaces.entrySet())
+                if (!n.getKey().equals(envPrefix)) {
+                    putText(" xmlns:" + n.getKey() + "=\"", false);
+                    putText(n.getValue().toString(), true);
+                    put((byte)'"');
+                }
+            put(headerStart);
+        }
+        
+        // Header, in the same order as toSoap()
+        put(instanceId);
+        putText(Long.toString(m.getWsdInstanceId()), false);
+        put(messageNumber);
+        putText(Long.toString(m.getWsdMessageNumber()), false);
+        if (m.getWsdSequenceId() != null) {
+            put(sequenceId);
+            putText(m.getWsdSequenceId(), true);
+        }
+        put(appSequenceEnd);
+        
+        if ((m.getWsaTo() != null) && (m.getWsaTo().getValue() != null)) {
+            put(toStart);
+            putText(m.getWsaTo().getValue(), true);
+            put(toEnd);
+        }
+        
+        if ((m.getWsaAction() != null) && (m.getWsaAction().getValue() != null)) {
+            byte[] action = null;
+            for (Entry<WsaActionType, byte[]> a : actions.entrySet())
+                if (a.getKey().toAttributedURI().getValue().equals(m.getWsaAction().getValue())) {
+                    action = a.getValue();
+                    break;
+                }
+            if (action != null)
+                put(action);
+            else {
+                put(actionStart);
+                putText(m.getWsaAction().getValue(), true);
+                put(actionEnd);
+            }
+        }
+        
+        Relationship r = m.getWsaRelatesTo();
+        if ((r != null) && (r.getValue() != null)) {
+            put(relatesToStart);
+            QName type = r.getRelationshipType();
+            if (type != null) {
+                if ((type.getNamespaceURI() == null) || (type.getNamespaceURI().length() == 0)) {
+                    put(relationshipType);
+                    putText(type.getLocalPart(), true);
+                } else {
+                    putText(" xmlns:rel=\"", false);
+                    putText(type.getNamespaceURI(), true);
+                    put((byte)'"');
+                    put(relationshipType);
+                    putText("rel:" + type.getLocalPart(), true);
+                }
+                put((byte)'"');
+            }
+            put((byte)'>');
+            putText(r.getValue(), true);
+            put(relatesToEnd);
+        }
+        
+        if (m.getWsaReplyTo() != null)
+            WsDiscoveryConstants.XMLBUILDER.marshalFragment(
+                    WsDiscoveryConstants.SOAPBUILDER.createReplyTo(m.getWsaReplyTo()), bufferStream);
+        
+        if ((m.getWsaMessageId() != null) && (m.getWsaMessageId().getValue() != null)) {
+            put(messageIdStart);
+            putText(m.getWsaMessageId().getValue(), true);
+            put(messageIdEnd);
+        }
+        
+        // Body
+        put(bodyStart);
+        JAXBElement<?> body = m.getJAXBElement();
+        if (body != null)
+            WsDiscoveryConstants.XMLBUILDER.marshalFragment(body, bufferStream);
+        put(bodyEnd);
+        
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Serialize a message to a new array.
+     * @param m Message.
+     * @return Serialized message.
+     * @throws WsDiscoveryXMLException if the body could not be marshalled.
+     */
+    public byte[] toByteArray(WsdSOAPMessage<?> m) throws WsDiscoveryXMLException {
+        ByteBuffer b = write(m);
+        byte[] data = new byte[b.remaining()];
+        b.get(data);
+        return data;
+    }
+    
+    /**
+     * Get the current capacity of the buffer. The buffer grows to fit the 
+     * largest message written.
+     * @return Capacity in bytes.
+     */
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+    
+    /**
+     * Check if the namespaces are the ones added by the WsdSOAPMessage 
+     * constructor.
+     */
+    private static boolean isDefault(Map<String, URI> namespaces) {
+        return (namespaces.size() == 2) && 
+                WsDiscoveryConstants.defaultNsAddressing.equals(namespaces.get("wsa")) &&
+                WsDiscoveryConstants.defaultNsDiscovery.equals(namespaces.get("wsd"));
+    }
+    
+    /**
+     * Make room for <code>n</code> more bytes, doubling the buffer if needed.
+     */
+    private void ensure(int n) {
+        if (buffer.remaining() >= n)
+            return;
+        ByteBuffer b = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+        buffer.flip();
+        b.put(buffer);
+        buffer = b;
+    }
+    
+    private void put(byte b) {
+        ensure(1);
+        buffer.put(b);
+    }
+    
+    private void put(byte[] b) {
+        ensure(b.length);
+        buffer.put(b);
+    }
+    
+    /**
+     * Write a string, escaped as XML character data if <code>escape</code> 
+     * is set. ASCII characters are written directly when the encoding allows.
+     */
+    private void putText(String s, boolean escape) {
+        int n = s.length();
+        if (ascii) {
+            ensure(n);
+            int i = 0;
+            for (; i < n; i++) {
+                char c = s.charAt(i);
+                if ((c >= 0x80) || (escape && ((c == '&') || (c == '<') || (c == '>') || (c == '"'))))
+                    break;
+                buffer.put((byte)c);
+            }
+            if (i == n)
+                return;
+            s = s.substring(i);
+        }
+        put(bytes(escape ? WsdSOAPTemplate.escape(s) : s));
+    }
+}
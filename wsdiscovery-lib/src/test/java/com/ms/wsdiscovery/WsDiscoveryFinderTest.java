@@ -0,0 +1,72 @@
+/*
+WsDiscoveryFinderTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery;
+
+import com.ms.wsdiscovery.clock.VirtualClock;
+import com.ms.wsdiscovery.clock.interfaces.IClock;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackBus;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackTransport;
+import com.ms.wsdiscovery.servicedirectory.SampleServices;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryFinderTest {
+
+    public WsDiscoveryFinderTest() {
+    }
+
+    /**
+     * find() with a timeout must return as soon as a match is received. The 
+     * virtual clock is never advanced, so waiting for the timeout would 
+     * never return.
+     */
+    @Test(timeout=10000)
+    public void testFindReturnsOnMatch() throws Exception {
+        System.out.println("findReturnsOnMatch");
+        IClock clock = WsDiscoveryConstants.clock;
+        VirtualClock virtualClock = new VirtualClock(1000000);
+        WsDiscoveryConstants.clock = virtualClock;
+        LoopbackBus bus = new LoopbackBus();
+        WsDiscoveryServer device = new WsDiscoveryServer(new LoopbackTransport(bus));
+        WsDiscoveryServer client = new WsDiscoveryServer(new LoopbackTransport(bus));
+        try {
+            WsDiscoveryService service = SampleServices.createService(1);
+            device.getLocalServices().store(service);
+            device.start();
+            client.start();
+
+            WsDiscoveryFinder finder = new WsDiscoveryFinder(client);
+            IWsDiscoveryServiceCollection result = 
+                    finder.find(new QName("http://example.org/", "A"), null, 60000);
+            assertEquals(1, result.size());
+            assertEquals(service.getEndpointReference(), result.iterator().next().getEndpointReference());
+        } finally {
+            client.done();
+            device.done();
+            WsDiscoveryConstants.clock = clock;
+        }
+    }
+}
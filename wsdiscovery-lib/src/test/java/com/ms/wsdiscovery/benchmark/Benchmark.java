@@ -0,0 +1,71 @@
+/*
+Benchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+/**
+ * Minimal benchmark harness used by the benchmarks in this package. Each 
+ * task is warmed up before it is timed, and the result is printed as 
+ * operations per second.
+ * <p>
+ * The benchmarks are not run by the unit tests. Run them with e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test 
+ * -Dexec.mainClass=com.ms.wsdiscovery.benchmark.SOAPMessageBenchmark</code>.
+ */
+public abstract class Benchmark {
+    /**
+     * Name printed with the result.
+     */
+    protected final String name;
+
+    /**
+     * Create a named benchmark task.
+     * @param name Name of task.
+     */
+    public Benchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Perform one operation.
+     * @throws Exception on failure.
+     */
+    public abstract void run() throws Exception;
+
+    /**
+     * Warm up and time the task.
+     * 
+     * @param warmup Number of untimed operations.
+     * @param iterations Number of timed operations.
+     * @return Operations per second.
+     * @throws Exception if the task fails.
+     */
+    public double measure(int warmup, int iterations) throws Exception {
+        for (int i = 0; i < warmup; i++)
+            run();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            run();
+        long elapsed = System.nanoTime() - start;
+
+        double opsPerSec = iterations / (elapsed / 1e9);
+        System.out.println(String.format("%-50s %12.1f ops/s", name, opsPerSec));
+        return opsPerSec;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+DirectoryContentionBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.xml.namespace.QName;
+
+/**
+ * Measures reads from a {@link WsDiscoveryServiceDirectory} with 10k services
+ * while another thread keeps storing services (Hello churn), with and 
+ * without snapshot mode. Also measures the cost of a store in each mode.
+ */
+public class DirectoryContentionBenchmark {
+
+    private static final int SIZE = 10000;
+
+    private static WsDiscoveryService[] createServices(int count) {
+        WsDiscoveryService[] services = new WsDiscoveryService[count];
+        for (int i = 0; i < count; i++) {
+            ScopesType scopes = new ScopesType();
+            scopes.getValue().add("onvif://www.onvif.org/location/building" + (i % 100));
+            services[i] = new WsDiscoveryService(
+                    new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter"),
+                    scopes, "http://10." + (i >> 16) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff) + "/onvif/device_service");
+        }
+        return services;
+    }
+
+    private static void bench(String mode, boolean snapshots, final WsDiscoveryService[] services) 
+            throws Exception {
+        final WsDiscoveryServiceDirectory directory = new WsDiscoveryServiceDirectory("", snapshots);
+        for (WsDiscoveryService s : services)
+            directory.store(s);
+
+        final Random random = new Random(1);
+        final String[] probe = {"onvif://www.onvif.org/location/building7"};
+
+        new Benchmark(mode + " store") {
+            public void run() throws Exception {
+                directory.store(services[random.nextInt(services.length)]);
+            }
+        }.measure(100, 1000);
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Random r = new Random(2);
+                try {
+                    while (!done.get()) {
+                        directory.store(services[r.nextInt(services.length)]);
+                        Thread.sleep(1);
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+
+        new Benchmark(mode + " find during churn") {
+            public void run() throws Exception {
+                directory.findService(services[random.nextInt(services.length)].getEndpointReference());
+            }
+        }.measure(100000, 1000000);
+
+        new Benchmark(mode + " matchBy during churn") {
+            public void run() throws Exception {
+                directory.matchBy(null, Arrays.asList(URI.create(probe[0])), null);
+            }
+        }.measure(1000, 20000);
+
+        new Benchmark(mode + " matchAll during churn") {
+            public void run() throws Exception {
+                directory.matchAll();
+            }
+        }.measure(100, 2000);
+
+        done.set(true);
+        writer.join();
+    }
+
+    public static void main(String[] args) throws Exception {
+        WsDiscoveryConstants.loggerLevel = java.util.logging.Level.OFF;
+
+        WsDiscoveryService[] services = createServices(SIZE);
+        bench("locking", false, services);
+        bench("snapshot", true, services);
+    }
+}
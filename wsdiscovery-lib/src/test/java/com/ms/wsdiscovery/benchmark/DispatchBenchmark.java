@@ -0,0 +1,103 @@
+/*
+DispatchBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.WsDiscoveryServer;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackBus;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackTransport;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.logging.Level;
+import javax.xml.namespace.QName;
+
+/**
+ * Receive throughput of one {@link WsDiscoveryServer} with different numbers 
+ * of dispatch workers (see {@link WsDiscoveryConstants#dispatchWorkers}). A 
+ * burst of Hellos for distinct services is sent on a {@link LoopbackBus}, 
+ * and the time until all are stored in the service directory is measured. 
+ * The largest queue depths seen during the burst are reported as well.
+ * <p>
+ * Usage: DispatchBenchmark [messages] [max workers]
+ */
+public class DispatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+        int maxWorkers = (args.length > 1 ? Integer.parseInt(args[1]) : 8);
+
+        WsDiscoveryConstants.loggerLevel = Level.OFF;
+        WsDiscoveryConstants.proxyAddress = InetAddress.getByName("127.0.0.1");
+        WsDiscoveryConstants.duplicateMaxMessagesPerSecond = messages;
+
+        // Serialize all messages up front
+        String sequenceId = "urn:uuid:" + UUID.randomUUID();
+        byte[][] payloads = new byte[messages][];
+        for (int i = 0; i < messages; i++) {
+            ScopesType scopes = new ScopesType();
+            scopes.getValue().add("onvif://www.onvif.org/location/building" + (i % 100));
+            WsdSOAPMessage hello = WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageHello(new WsDiscoveryService(
+                    new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter"),
+                    scopes, "http://10.0." + (i >> 8) + "." + (i & 0xff) + "/onvif/device_service"));
+            hello.setWsdSequenceId(sequenceId);
+            payloads[i] = new NetworkMessage(hello).getPayload();
+        }
+
+        for (int workers = 0; workers <= maxWorkers; workers = (workers == 0 ? 1 : workers * 2)) {
+            for (int round = 0; round < 2; round++) { // First round is warmup
+                WsDiscoveryConstants.dispatchWorkers = workers;
+                LoopbackBus bus = new LoopbackBus();
+                WsDiscoveryServer server = new WsDiscoveryServer(new LoopbackTransport(bus));
+                LoopbackTransport sender = new LoopbackTransport(bus);
+                server.start();
+
+                long start = System.nanoTime();
+                for (byte[] payload : payloads)
+                    sender.send(new NetworkMessage(payload, null, 0, 
+                            WsDiscoveryConstants.multicastAddress, WsDiscoveryConstants.multicastPort));
+
+                int maxParse = 0;
+                int maxHandle = 0;
+                long timeout = System.currentTimeMillis() + 120000;
+                while ((server.getServiceDirectory().size() < messages) && (System.currentTimeMillis() < timeout)) {
+                    maxParse = Math.max(maxParse, server.getParseQueueDepth());
+                    for (int depth : server.getHandleQueueDepths())
+                        maxHandle = Math.max(maxHandle, depth);
+                    Thread.sleep(1);
+                }
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                int stored = server.getServiceDirectory().size();
+
+                server.done();
+                sender.done();
+
+                if (round == 0)
+                    continue;
+                System.out.println(String.format("%-50s %12.1f msgs/s", 
+                        workers + " workers (" + stored + " stored, max queue " + 
+                        maxParse + "/" + maxHandle + ")", stored / elapsed));
+            }
+        }
+        System.out.println("Processors: " + Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+LoopbackDiscoveryBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.WsDiscoveryServer;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackBus;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackTransport;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.net.InetAddress;
+import java.util.logging.Level;
+import javax.xml.namespace.QName;
+
+/**
+ * End-to-end probe to match throughput with many simulated devices in one 
+ * JVM, connected by a {@link LoopbackBus}. Each device is a 
+ * {@link WsDiscoveryServer} publishing one service. A client probes for all 
+ * services and the time until all ProbeMatches are stored in its service 
+ * directory is measured.
+ * <p>
+ * Usage: LoopbackDiscoveryBenchmark [devices] [rounds]
+ */
+public class LoopbackDiscoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int devices = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+        int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 5);
+
+        WsDiscoveryConstants.loggerLevel = Level.OFF;
+        WsDiscoveryConstants.proxyAddress = InetAddress.getByName("127.0.0.1");
+
+        LoopbackBus bus = new LoopbackBus();
+        WsDiscoveryServer[] servers = new WsDiscoveryServer[devices];
+        for (int i = 0; i < devices; i++) {
+            servers[i] = new WsDiscoveryServer(new LoopbackTransport(bus));
+            ScopesType scopes = new ScopesType();
+            scopes.getValue().add("onvif://www.onvif.org/location/building" + (i % 100));
+            servers[i].getLocalServices().store(new WsDiscoveryService(
+                    new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter"),
+                    scopes, "http://10.0." + (i >> 8) + "." + (i & 0xff) + "/onvif/device_service"));
+            servers[i].start();
+        }
+
+        for (int round = 0; round < rounds + 1; round++) {
+            WsDiscoveryServer client = new WsDiscoveryServer(new LoopbackTransport(bus));
+            client.start();
+
+            long delivered = bus.getDelivered();
+            long start = System.nanoTime();
+            client.probe();
+            long timeout = System.currentTimeMillis() + 60000;
+            while ((client.getServiceDirectory().size() < devices) && (System.currentTimeMillis() < timeout))
+                Thread.sleep(1);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            int found = client.getServiceDirectory().size();
+            client.done();
+
+            if (round == 0) // Warmup
+                continue;
+            System.out.println(String.format("%-50s %12.1f matches/s", 
+                    devices + " devices, round " + round + " (" + found + " found, " + 
+                    (bus.getDelivered() - delivered) + " msgs)", found / elapsed));
+        }
+
+        for (WsDiscoveryServer s : servers)
+            s.done();
+    }
+}
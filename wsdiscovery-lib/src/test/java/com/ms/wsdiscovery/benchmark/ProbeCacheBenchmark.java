@@ -0,0 +1,109 @@
+/*
+ProbeCacheBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.WsDiscoveryServer;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.ProbeMatchCache;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackBus;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackTransport;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.logging.Level;
+import javax.xml.namespace.QName;
+
+/**
+ * Probe reply throughput of one {@link WsDiscoveryServer} with and without 
+ * the ProbeMatches cache (see {@link WsDiscoveryConstants#probeMatchCacheSize}).
+ * The server publishes a number of services, and a burst of Probes with 
+ * distinct MessageIDs but the same types and scopes is sent to it on a 
+ * {@link LoopbackBus}. The time until all ProbeMatches are received is measured.
+ * <p>
+ * Usage: ProbeCacheBenchmark [probes] [services]
+ */
+public class ProbeCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int probes = (args.length > 0 ? Integer.parseInt(args[0]) : 5000);
+        int services = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+
+        WsDiscoveryConstants.loggerLevel = Level.OFF;
+        WsDiscoveryConstants.proxyAddress = InetAddress.getByName("127.0.0.1");
+        WsDiscoveryConstants.duplicateMaxMessagesPerSecond = probes;
+
+        QName type = new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter");
+        
+        // Serialize all probes up front
+        String sequenceId = "urn:uuid:" + UUID.randomUUID();
+        byte[][] payloads = new byte[probes][];
+        for (int i = 0; i < probes; i++) {
+            WsdSOAPMessage<ProbeType> probe = WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageProbe();
+            probe.getJAXBBody().getTypes().add(type);
+            probe.setWsdSequenceId(sequenceId);
+            payloads[i] = new NetworkMessage(probe).getPayload();
+        }
+
+        for (int cacheSize : new int[] { 0, 256 }) {
+            for (int round = 0; round < 2; round++) { // First round is warmup
+                WsDiscoveryConstants.probeMatchCacheSize = cacheSize;
+                LoopbackBus bus = new LoopbackBus();
+                LoopbackTransport transport = new LoopbackTransport(bus);
+                WsDiscoveryServer server = new WsDiscoveryServer(transport);
+                LoopbackTransport client = new LoopbackTransport(bus);
+                for (int i = 0; i < services; i++) {
+                    ScopesType scopes = new ScopesType();
+                    scopes.getValue().add("onvif://www.onvif.org/location/building" + i);
+                    server.getLocalServices().store(new WsDiscoveryService(type, scopes, 
+                            "http://10.0.0." + i + "/onvif/device_service"));
+                }
+                server.start();
+
+                long start = System.nanoTime();
+                for (byte[] payload : payloads)
+                    client.send(new NetworkMessage(payload, null, 0, 
+                            WsDiscoveryConstants.multicastAddress, WsDiscoveryConstants.multicastPort));
+
+                int replies = 0;
+                long last = start;
+                NetworkMessage m;
+                while ((replies < probes) && ((m = client.recv(10000)) != null))
+                    if (m.getSrcAddress().equals(transport.getAddress())) {
+                        replies++;
+                        last = System.nanoTime();
+                    }
+                double elapsed = (last - start) / 1e9;
+                ProbeMatchCache cache = server.getProbeMatchCache();
+
+                server.done();
+                client.done();
+
+                if (round == 0)
+                    continue;
+                System.out.println(String.format("%-50s %12.1f probes/s", 
+                        (cache == null ? "no cache" : "cache (" + cache.getHits() + " hits)") + 
+                        ", " + services + " matches, " + replies + " replies", replies / elapsed));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ReceiveQueueBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPRingBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the receive queues between the SOAP-over-UDP receiver threads 
+ * and the dispatcher. Two producer threads (multicast and unicast receiver) 
+ * add a burst of messages while one consumer takes them. Reports received 
+ * messages per second until the last message was taken, and for the ring 
+ * buffer how many were dropped or had to wait for space.
+ * <p>
+ * Usage: ReceiveQueueBenchmark [messages per producer]
+ */
+public class ReceiveQueueBenchmark {
+
+    private static void burst(String name, final BlockingQueue<NetworkMessage> queue, final int messages) 
+            throws InterruptedException {
+        final NetworkMessage nm = new NetworkMessage("<probe/>");
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messages; i++)
+                        queue.offer(nm);
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : producers)
+            t.start();
+
+        long received = 0;
+        long last = start;
+        while (queue.poll(100, TimeUnit.MILLISECONDS) != null) {
+            received++;
+            last = System.nanoTime();
+        }
+        for (Thread t : producers)
+            t.join();
+        double elapsed = (last - start) / 1e9;
+
+        String extra = "";
+        if (queue instanceof SOAPRingBuffer) {
+            SOAPRingBuffer ring = (SOAPRingBuffer)queue;
+            extra = " (" + ring.getDropped() + " dropped, " + ring.getBlocked() + " blocked)";
+        }
+        System.out.println(String.format("%-50s %12.1f msgs/s", name + extra, received / elapsed));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+
+        for (int round = 0; round < 2; round++) {
+            String prefix = (round == 0 ? "warmup " : "");
+            burst(prefix + "LinkedBlockingQueue", new LinkedBlockingQueue<NetworkMessage>(), messages);
+            for (SOAPRingBuffer.WaitStrategy strategy : SOAPRingBuffer.WaitStrategy.values())
+                for (SOAPRingBuffer.FullPolicy policy : SOAPRingBuffer.FullPolicy.values())
+                    burst(prefix + "SOAPRingBuffer " + strategy + "/" + policy, 
+                            new SOAPRingBuffer(4096, strategy, policy), messages);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+RetransmissionQueueBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPNetworkMessage;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPTimingWheel;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the retransmission queues used by the SOAP-over-UDP sender 
+ * threads. A storm of multicast messages is queued at once and each message 
+ * is sent and rescheduled the way {@link 
+ * com.ms.wsdiscovery.network.transport.soapudp.SOAPSenderThread} does it, 
+ * until all retransmissions are done. Since the storm takes about the same 
+ * wall clock time with either queue (the retransmission delays), the result 
+ * is given as sends per second of CPU time used by the sending thread.
+ */
+public class RetransmissionQueueBenchmark {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private static double storm(String name, BlockingQueue<SOAPNetworkMessage> queue, int size) 
+            throws InterruptedException {
+        NetworkMessage nm = new NetworkMessage("<probe/>");
+        long start = threads.getCurrentThreadCpuTime();
+
+        for (int i = 0; i < size; i++)
+            queue.add(new SOAPNetworkMessage(nm, true));
+
+        long sends = 0;
+        while (!queue.isEmpty()) {
+            SOAPNetworkMessage m = queue.poll(1, TimeUnit.SECONDS);
+            if (m == null)
+                continue;
+            sends++;
+            m.adjustValuesAfterSend();
+            if (!m.isDone())
+                queue.put(m);
+        }
+
+        double cpu = (threads.getCurrentThreadCpuTime() - start) / 1e9;
+        double sendsPerSec = sends / cpu;
+        System.out.println(String.format("%-50s %12.1f sends/cpu-s", name + " " + size, sendsPerSec));
+        return sendsPerSec;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1000, 10000, 100000};
+
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+            storm("warmup DelayQueue", new DelayQueue<SOAPNetworkMessage>(), 10000);
+            storm("warmup SOAPTimingWheel", new SOAPTimingWheel(), 10000);
+        }
+
+        for (int size : sizes) {
+            storm("DelayQueue", new DelayQueue<SOAPNetworkMessage>(), size);
+            storm("SOAPTimingWheel", new SOAPTimingWheel(), size);
+        }
+    }
+}
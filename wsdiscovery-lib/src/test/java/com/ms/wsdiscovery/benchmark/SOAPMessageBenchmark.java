@@ -0,0 +1,146 @@
+/*
+SOAPMessageBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryBuilder;
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchesType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeType;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPMessageBuilder;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPTemplate;
+import com.ms.wsdiscovery.xml.soap.WsaActionType;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+
+/**
+ * Measures messages per second when serializing and parsing Hello, Probe 
+ * and ProbeMatches messages. The "new context" rows create a JAXBContext 
+ * for every message, which is what WsdXMLBuilder used to do. The "pooled" 
+ * rows use the shared context and the marshaller pool. Parsing is measured 
+ * through SAAJ, through the streaming parser and for the header alone, 
+ * which is all that is parsed for dropped duplicates. The "fragments" rows
+ * concatenate a precompiled envelope with the cached serialized services.
+ */
+public class SOAPMessageBenchmark {
+
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+
+    private static final WsdSOAPMessageBuilder soapBuilder = WsDiscoveryConstants.SOAPBUILDER;
+
+    /**
+     * The per-message cost WsdXMLBuilder used to pay before the context was
+     * shared: a new context and a new (un)marshaller for every call.
+     */
+    private static void createContext(boolean marshaller) throws Exception {
+        JAXBContext ctx = JAXBContext.newInstance(WsDiscoveryConstants.defaultJAXBInstanceName);
+        if (marshaller)
+            ctx.createMarshaller().setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+        else
+            ctx.createUnmarshaller();
+    }
+
+    private static void bench(String type, final WsdSOAPMessage m) throws Exception {
+        final String xml = m.toString();
+        final byte[] data = xml.getBytes(WsDiscoveryConstants.defaultEncoding);
+
+        new Benchmark(type + " serialize, new context") {
+            public void run() throws Exception {
+                createContext(true);
+                m.toSoap().writeTo(new ByteArrayOutputStream());
+            }
+        }.measure(WARMUP / 10, ITERATIONS / 10);
+
+        new Benchmark(type + " serialize, pooled") {
+            public void run() throws Exception {
+                m.toSoap().writeTo(new ByteArrayOutputStream());
+            }
+        }.measure(WARMUP, ITERATIONS);
+
+        new Benchmark(type + " parse, new context") {
+            public void run() throws Exception {
+                createContext(false);
+                soapBuilder.createWsdSOAPMessage(soapBuilder.createSOAPMessage(xml));
+            }
+        }.measure(WARMUP / 10, ITERATIONS / 10);
+
+        new Benchmark(type + " parse, pooled SAAJ") {
+            public void run() throws Exception {
+                soapBuilder.createWsdSOAPMessage(soapBuilder.createSOAPMessage(xml));
+            }
+        }.measure(WARMUP, ITERATIONS);
+
+        new Benchmark(type + " parse, pooled streaming") {
+            public void run() throws Exception {
+                soapBuilder.createWsdSOAPMessageFromStream(data, 0, data.length);
+            }
+        }.measure(WARMUP, ITERATIONS);
+
+        new Benchmark(type + " parse, header only") {
+            public void run() throws Exception {
+                soapBuilder.createWsdSOAPMessageFromStream(data, 0, data.length, true);
+            }
+        }.measure(WARMUP, ITERATIONS);
+    }
+
+    private static void benchFragments(String type, WsaActionType action, 
+            boolean relatesTo, final byte[][] body) throws Exception {
+        final WsdSOAPTemplate t = WsdSOAPTemplate.compile(action, 
+                "urn:uuid:" + UUID.randomUUID(), relatesTo, null);
+        new Benchmark(type + " serialize, fragments") {
+            public void run() throws Exception {
+                t.render("urn:uuid:" + UUID.randomUUID(), WsdSOAPMessage.nextMessageNumber(), 
+                        "urn:uuid:" + UUID.randomUUID(), WsDiscoveryConstants.anonymousTo.getValue(), body);
+            }
+        }.measure(WARMUP, ITERATIONS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        WsDiscoveryConstants.loggerLevel = java.util.logging.Level.OFF;
+
+        WsDiscoveryService service = WsDiscoveryBuilder.createService(
+                new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter", "dn"),
+                "onvif://www.onvif.org/type/video_encoder",
+                "http://192.168.0.10/onvif/device_service");
+
+        bench("Hello", soapBuilder.createWsdSOAPMessageHello(service));
+        benchFragments("Hello", WsaActionType.HELLO, false, new byte[][] { service.getHelloFragment() });
+
+        WsdSOAPMessage<ProbeType> probe = soapBuilder.createWsdSOAPMessageProbe();
+        probe.getJAXBBody().getTypes().add(service.getPortTypes().get(0));
+        bench("Probe", probe);
+
+        WsdSOAPMessage<ProbeMatchesType> matches = soapBuilder.createWsdSOAPMessageProbeMatches();
+        List<WsDiscoveryService> services = new ArrayList<WsDiscoveryService>();
+        for (int i = 0; i < 10; i++) {
+            matches.getJAXBBody().getProbeMatch().add(service.createProbeMatchObject());
+            services.add(service);
+        }
+        bench("ProbeMatches", matches);
+        benchFragments("ProbeMatches", WsaActionType.PROBEMATCHES, true, 
+                soapBuilder.createProbeMatchesBody(services));
+    }
+}
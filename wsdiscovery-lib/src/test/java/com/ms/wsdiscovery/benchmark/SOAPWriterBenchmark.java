@@ -0,0 +1,121 @@
+/*
+SOAPWriterBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryBuilder;
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchesType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ResolveMatchesType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ResolveType;
+import com.ms.wsdiscovery.xml.soap.WsaActionType;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPMessageBuilder;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPWriter;
+import java.util.UUID;
+import javax.xml.namespace.QName;
+
+/**
+ * Measures messages per second when serializing one message of each 
+ * WS-Discovery action. The "toString" rows build a SAAJ message and convert 
+ * it to a string, which is what NetworkMessage used to do. The "toBytes" 
+ * rows use WsdSOAPWriter through the writer pool, and the "buffer" rows 
+ * write into the reused buffer of a single writer without copying.
+ */
+public class SOAPWriterBenchmark {
+
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 5000;
+
+    private static final WsdSOAPMessageBuilder soapBuilder = WsDiscoveryConstants.SOAPBUILDER;
+
+    private static WsdSOAPMessage createMessage(WsaActionType action, WsDiscoveryService service) {
+        WsdSOAPMessage m;
+        switch (action) {
+            case HELLO:
+                return soapBuilder.createWsdSOAPMessageHello(service);
+            case BYE:
+                return soapBuilder.createWsdSOAPMessageBye(service);
+            case PROBE:
+                WsdSOAPMessage<ProbeType> probe = soapBuilder.createWsdSOAPMessageProbe();
+                probe.getJAXBBody().getTypes().add(service.getPortTypes().get(0));
+                return probe;
+            case PROBEMATCHES:
+                WsdSOAPMessage<ProbeMatchesType> probeMatches = soapBuilder.createWsdSOAPMessageProbeMatches();
+                for (int i = 0; i < 10; i++)
+                    probeMatches.getJAXBBody().getProbeMatch().add(service.createProbeMatchObject());
+                m = probeMatches;
+                break;
+            case RESOLVE:
+                WsdSOAPMessage<ResolveType> resolve = soapBuilder.createWsdSOAPMessageResolve();
+                resolve.getJAXBBody().setEndpointReference(service.createEndpointReferenceObject());
+                return resolve;
+            case RESOLVEMATCHES:
+                WsdSOAPMessage<ResolveMatchesType> resolveMatches = soapBuilder.createWsdSOAPMessageResolveMatches();
+                resolveMatches.getJAXBBody().setResolveMatch(service.createResolveMatchObject());
+                m = resolveMatches;
+                break;
+            default:
+                throw new IllegalArgumentException(action.toString());
+        }
+        m.setWsaRelatesTo(WsDiscoveryConstants.XMLBUILDER.createRelationship("urn:uuid:" + UUID.randomUUID()));
+        m.setWsaTo(WsDiscoveryConstants.anonymousTo);
+        return m;
+    }
+
+    public static void main(String[] args) throws Exception {
+        WsDiscoveryConstants.loggerLevel = java.util.logging.Level.OFF;
+
+        WsDiscoveryService service = WsDiscoveryBuilder.createService(
+                new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter", "dn"),
+                "onvif://www.onvif.org/type/video_encoder",
+                "http://192.168.0.10/onvif/device_service");
+        final WsdSOAPWriter writer = new WsdSOAPWriter();
+
+        for (WsaActionType action : WsaActionType.values()) {
+            final WsdSOAPMessage m = createMessage(action, service);
+            String type = action.toAttributedURI().getValue();
+            type = type.substring(type.lastIndexOf('/') + 1);
+
+            new Benchmark(type + " toString") {
+                public void run() throws Exception {
+                    m.toString().getBytes(WsDiscoveryConstants.defaultEncoding);
+                }
+            }.measure(WARMUP, ITERATIONS);
+
+            new Benchmark(type + " toBytes") {
+                public void run() throws Exception {
+                    m.toBytes();
+                }
+            }.measure(WARMUP, ITERATIONS);
+
+            new Benchmark(type + " buffer") {
+                public void run() throws Exception {
+                    writer.write(m);
+                }
+            }.measure(WARMUP, ITERATIONS);
+
+            System.out.println(String.format("%-50s %12d bytes", type + " size, toString", 
+                    m.toString().getBytes(WsDiscoveryConstants.defaultEncoding).length));
+            System.out.println(String.format("%-50s %12d bytes", type + " size, toBytes", 
+                    m.toBytes().length));
+        }
+    }
+}
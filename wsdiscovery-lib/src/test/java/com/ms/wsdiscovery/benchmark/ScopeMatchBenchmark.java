@@ -0,0 +1,104 @@
+/*
+ScopeMatchBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.Random;
+import java.util.UUID;
+import javax.xml.namespace.QName;
+
+/**
+ * Measures strcmp0 and UUID scope matching in a {@link WsDiscoveryServiceDirectory}
+ * with 50k services, using the scope indexes, against a linear scan with 
+ * {@link MatchBy#match}.
+ */
+public class ScopeMatchBenchmark {
+
+    private static final int SIZE = 50000;
+
+    private static ScopesType scopes(MatchBy matchBy, String... values) {
+        ScopesType s = new ScopesType();
+        for (String v : values)
+            s.getValue().add(v);
+        s.setMatchBy(matchBy.toString());
+        return s;
+    }
+
+    private static void bench(final String name, final MatchBy matchBy, 
+            final WsDiscoveryService[] services, final ScopesType[] probes,
+            final WsDiscoveryServiceDirectory directory) throws Exception {
+        final Random random = new Random(1);
+
+        new Benchmark(name + " scan") {
+            public void run() throws Exception {
+                ScopesType probe = probes[random.nextInt(probes.length)];
+                int found = 0;
+                for (WsDiscoveryService s : services)
+                    if (matchBy.match(s, null, probe))
+                        found++;
+                if (found == 0)
+                    throw new Exception("No match");
+            }
+        }.measure(5, 20);
+
+        new Benchmark(name + " indexed") {
+            public void run() throws Exception {
+                ScopesType probe = probes[random.nextInt(probes.length)];
+                if (directory.matchBy(null, probe).size() == 0)
+                    throw new Exception("No match");
+            }
+        }.measure(1000, 20000);
+    }
+
+    public static void main(String[] args) throws Exception {
+        WsDiscoveryService[] services = new WsDiscoveryService[SIZE];
+        String[] uuids = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            uuids[i] = "urn:uuid:" + UUID.randomUUID();
+            ScopesType scopes = new ScopesType();
+            scopes.getValue().add(uuids[i]);
+            scopes.getValue().add("onvif://www.onvif.org/location/building" + (i % 100));
+            scopes.getValue().add("onvif://www.onvif.org/name/camera" + i);
+            services[i] = new WsDiscoveryService(
+                    new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter"),
+                    scopes, "http://10." + (i >> 16) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff) + "/onvif/device_service");
+        }
+
+        WsDiscoveryServiceDirectory directory = new WsDiscoveryServiceDirectory();
+        for (WsDiscoveryService s : services)
+            directory.store(s);
+
+        ScopesType[] strcmp0 = new ScopesType[1000];
+        ScopesType[] uuid = new ScopesType[1000];
+        Random random = new Random(2);
+        for (int i = 0; i < strcmp0.length; i++) {
+            int n = random.nextInt(SIZE);
+            strcmp0[i] = scopes(MatchBy.strcmp0, 
+                    "onvif://www.onvif.org/location/building" + (n % 100),
+                    "onvif://www.onvif.org/name/camera" + n);
+            uuid[i] = scopes(MatchBy.UUID, uuids[n]);
+        }
+
+        bench("strcmp0 50k", MatchBy.strcmp0, services, strcmp0, directory);
+        bench("UUID 50k", MatchBy.UUID, services, uuid, directory);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ServiceDirectoryBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceHashCollection;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.Random;
+import javax.xml.namespace.QName;
+
+/**
+ * Measures store, find and remove in a {@link WsDiscoveryServiceDirectory} 
+ * with 1k, 10k and 100k services, backed by the list based 
+ * {@link WsDiscoveryServiceCollection} and by the hash indexed 
+ * {@link WsDiscoveryServiceHashCollection}.
+ */
+public class ServiceDirectoryBenchmark {
+
+    private static final int[] SIZES = {1000, 10000, 100000};
+
+    private static WsDiscoveryService[] createServices(int count) {
+        WsDiscoveryService[] services = new WsDiscoveryService[count];
+        for (int i = 0; i < count; i++) {
+            ScopesType scopes = new ScopesType();
+            scopes.getValue().add("onvif://www.onvif.org/location/building" + (i % 100));
+            services[i] = new WsDiscoveryService(
+                    new QName("http://www.onvif.org/ver10/network/wsdl", "NetworkVideoTransmitter"),
+                    scopes, "http://10." + (i >> 16) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff) + "/onvif/device_service");
+        }
+        return services;
+    }
+
+    private static void bench(String store, IWsDiscoveryServiceCollection collection, 
+            final WsDiscoveryService[] services) throws Exception {
+        for (WsDiscoveryService s : services)
+            collection.add(s);
+
+        final WsDiscoveryServiceDirectory directory = new WsDiscoveryServiceDirectory();
+        directory.useStorage(collection, false);
+
+        final Random random = new Random(1);
+        String prefix = store + " " + (services.length / 1000) + "k ";
+        // Keep the total amount of work for the list based store reasonable
+        int iterations = Math.max(100, Math.min(20000, 20000000 / services.length));
+
+        new Benchmark(prefix + "find") {
+            public void run() throws Exception {
+                directory.findService(services[random.nextInt(services.length)].getEndpointReference());
+            }
+        }.measure(iterations / 10, iterations);
+
+        new Benchmark(prefix + "store (update)") {
+            public void run() throws Exception {
+                directory.store(services[random.nextInt(services.length)]);
+            }
+        }.measure(iterations / 10, iterations);
+
+        new Benchmark(prefix + "remove + store (add)") {
+            public void run() throws Exception {
+                WsDiscoveryService s = services[random.nextInt(services.length)];
+                directory.remove(s);
+                directory.store(s);
+            }
+        }.measure(iterations / 10, iterations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        WsDiscoveryConstants.loggerLevel = java.util.logging.Level.OFF;
+
+        for (int size : SIZES) {
+            WsDiscoveryService[] services = createServices(size);
+            bench("list", new WsDiscoveryServiceCollection(), services);
+            bench("hash", new WsDiscoveryServiceHashCollection(), services);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+SimulatorBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
+import com.ms.wsdiscovery.simulator.NetworkSimulator;
+import com.ms.wsdiscovery.simulator.SimulatedNode;
+import java.net.InetAddress;
+import java.util.logging.Level;
+import static com.ms.wsdiscovery.servicedirectory.SampleServices.createService;
+
+/**
+ * Large networks on a {@link NetworkSimulator}. Two scenarios are measured:
+ * <p>
+ * Probe storm: a client probes a segment with many devices, and every device 
+ * answers with a unicast ProbeMatch. Reports the virtual time until the 
+ * client's directory holds every device, and the loss it takes to break it.
+ * <p>
+ * Hello storm: every device is published at the same moment, and all nodes 
+ * must learn about all others. Reports virtual convergence time and how many 
+ * retransmissions were suppressed by the duplicate message filters.
+ * <p>
+ * Usage: SimulatorBenchmark [probe devices] [hello devices]
+ */
+public class SimulatorBenchmark {
+
+    /**
+     * Records the virtual time of the last service added to any directory 
+     * it is registered with.
+     */
+    private static class Convergence implements IWsDiscoveryServiceDirectoryListener {
+        final NetworkSimulator sim;
+        long lastAdded = 0;
+
+        Convergence(NetworkSimulator sim) {
+            this.sim = sim;
+        }
+
+        public void serviceAdded(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+            lastAdded = sim.getElapsed();
+        }
+
+        public void serviceUpdated(IWsDiscoveryServiceDirectory directory, WsDiscoveryService oldService, WsDiscoveryService newService) {
+        }
+
+        public void serviceRemoved(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+        }
+    }
+
+    private static void report(String name, NetworkSimulator sim, long convergence, long realStart) {
+        double real = (System.nanoTime() - realStart) / 1e6;
+        System.out.println(String.format("%-50s %12.1f ms virtual", name + " convergence", (double)convergence));
+        System.out.println(String.format("%-50s %12.1f ms virtual", name + " until idle", (double)sim.getElapsed()));
+        System.out.println(String.format("%-50s %12.1f ms", name + " real time", real));
+        System.out.println(String.format("%-50s %12.1f", name + " transmissions", (double)sim.getTransmissions()));
+        System.out.println(String.format("%-50s %12.1f", name + " deliveries", (double)sim.getDelivered()));
+        System.out.println(String.format("%-50s %12.1f deliveries/s", name + " simulation rate", sim.getDelivered() / (real / 1000)));
+    }
+
+    private static void probeStorm(int devices, double loss) throws Exception {
+        String name = "probe " + devices + " devices, " + (int)(loss * 100) + "% loss";
+
+        // Devices see a few messages each, the client all ProbeMatches
+        WsDiscoveryConstants.duplicateMaxMessagesPerSecond = 16;
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            for (int i = 0; i < devices; i++)
+                sim.createNode().getLocalServices().store(createService(i));
+            WsDiscoveryConstants.duplicateMaxMessagesPerSecond = Math.max(16, devices / 2);
+            SimulatedNode client = sim.createNode();
+            Convergence convergence = new Convergence(sim);
+            client.getServiceDirectory().addListener(convergence);
+
+            sim.setSeed(1);
+            sim.setLoss(loss);
+            sim.setLatency(1, 10);
+
+            long start = System.nanoTime();
+            client.probe();
+            sim.runUntilIdle();
+            report(name, sim, convergence.lastAdded, start);
+            System.out.println(String.format("%-50s %12.1f", name + " found", (double)client.getServiceDirectory().size()));
+            System.out.println(String.format("%-50s %12.1f", name + " duplicates suppressed", 
+                    (double)client.getDuplicateMessageFilter().getHits()));
+        } finally {
+            sim.close();
+        }
+    }
+
+    private static void helloStorm(int devices) throws Exception {
+        String name = "hello " + devices + " devices";
+
+        WsDiscoveryConstants.duplicateMaxMessagesPerSecond = Math.max(16, devices / 5);
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            Convergence convergence = new Convergence(sim);
+            for (int i = 0; i < devices; i++)
+                sim.createNode().getServiceDirectory().addListener(convergence);
+            sim.setSeed(1);
+            sim.setLatency(1, 10);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < devices; i++)
+                sim.getNodes().get(i).publish(createService(i));
+            sim.runUntilIdle();
+            report(name, sim, convergence.lastAdded, start);
+
+            long complete = 0;
+            long suppressed = 0;
+            for (SimulatedNode node : sim.getNodes()) {
+                if (node.getServiceDirectory().size() == devices)
+                    complete++;
+                suppressed += node.getDuplicateMessageFilter().getHits();
+            }
+            System.out.println(String.format("%-50s %12.1f", name + " nodes with all services", (double)complete));
+            System.out.println(String.format("%-50s %12.1f", name + " duplicates suppressed", (double)suppressed));
+        } finally {
+            sim.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int probeDevices = (args.length > 0 ? Integer.parseInt(args[0]) : 10000);
+        int helloDevices = (args.length > 1 ? Integer.parseInt(args[1]) : 500);
+
+        WsDiscoveryConstants.loggerLevel = Level.OFF;
+        WsDiscoveryConstants.proxyAddress = InetAddress.getByName("10.0.0.1");
+
+        probeStorm(1000, 0); // Warmup
+        probeStorm(probeDevices, 0);
+        probeStorm(probeDevices, 0.1);
+        probeStorm(probeDevices, 0.5);
+        helloStorm(helloDevices);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ZlibBenchmark.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.benchmark;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.network.transport.soapudp.zlib.ZlibCodec;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compares compression of a Hello and a Probe message with a new deflater 
+ * and inflater per message (as SOAPOverUDPzlib used to do) against the 
+ * pooled {@link ZlibCodec}, at different levels with and without the 
+ * preset dictionary. Prints the compressed size for each setting.
+ */
+public class ZlibBenchmark {
+
+    private static void bench(String msgName, final byte[] data) throws Exception {
+        final byte[] out = new byte[0xffff];
+        new Benchmark(msgName + " new Deflater(9)") {
+            public void run() throws Exception {
+                Deflater d = new Deflater(Deflater.BEST_COMPRESSION);
+                d.setInput(data);
+                d.finish();
+                d.deflate(out);
+                d.end();
+            }
+        }.measure(2000, 20000);
+
+        Deflater d = new Deflater(Deflater.BEST_COMPRESSION);
+        d.setInput(data);
+        d.finish();
+        final byte[] compressed = java.util.Arrays.copyOf(out, d.deflate(out));
+        d.end();
+        System.out.println(msgName + " size " + data.length + " -> " + compressed.length);
+
+        new Benchmark(msgName + " new Inflater") {
+            public void run() throws Exception {
+                Inflater i = new Inflater();
+                i.setInput(compressed);
+                i.inflate(out);
+                i.end();
+            }
+        }.measure(2000, 20000);
+
+        for (int level : new int[] {1, 6, 9})
+            for (boolean dictionary : new boolean[] {false, true}) {
+                final ZlibCodec codec = new ZlibCodec(level, dictionary);
+                String name = msgName + " ZlibCodec(" + level + (dictionary ? ", dict)" : ")");
+                final byte[] c = codec.compress(data, 0, data.length);
+                System.out.println(name + " size " + data.length + " -> " + c.length);
+                new Benchmark(name + " compress") {
+                    public void run() throws Exception {
+                        codec.compress(data, 0, data.length);
+                    }
+                }.measure(2000, 20000);
+                new Benchmark(name + " decompress") {
+                    public void run() throws Exception {
+                        codec.decompress(c, 0, c.length);
+                    }
+                }.measure(2000, 20000);
+            }
+    }
+
+    public static void main(String[] args) throws Exception {
+        bench("Hello", WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageHello().toString()
+                .getBytes(WsDiscoveryConstants.defaultEncoding));
+        bench("Probe", WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageProbe().toString()
+                .getBytes(WsDiscoveryConstants.defaultEncoding));
+    }
+}
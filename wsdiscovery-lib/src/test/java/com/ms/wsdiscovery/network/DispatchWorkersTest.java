@@ -0,0 +1,109 @@
+/*
+DispatchWorkersTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.WsDiscoveryServer;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackBus;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackTransport;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.soap.WsdSOAPMessage;
+import java.util.HashSet;
+import java.util.UUID;
+import org.junit.Test;
+import static com.ms.wsdiscovery.servicedirectory.SampleServices.createService;
+import static com.ms.wsdiscovery.xml.soap.WsdSOAPWriterTest.parse;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class DispatchWorkersTest {
+
+    public DispatchWorkersTest() {
+    }
+
+    /**
+     * Hello and Bye for the same service must go to the same handler, and 
+     * different services should be spread over the handlers.
+     */
+    @Test
+    public void testRoute() throws Exception {
+        System.out.println("route");
+        HashSet<Integer> used = new HashSet<Integer>();
+        for (int i = 0; i < 50; i++) {
+            WsDiscoveryService service = createService(i);
+            WsdSOAPMessage hello = parse(WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageHello(service)
+                    .toString().getBytes(WsDiscoveryConstants.defaultEncoding));
+            WsdSOAPMessage bye = parse(WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageBye(service)
+                    .toString().getBytes(WsDiscoveryConstants.defaultEncoding));
+            assertEquals(service.getEndpointReference(), DispatchWorkers.getRoutingKey(hello));
+            int h = DispatchWorkers.route(hello, 4);
+            assertEquals(h, DispatchWorkers.route(bye, 4));
+            used.add(h);
+        }
+        assertEquals(4, used.size());
+    }
+
+    /**
+     * Hello followed by Bye for many services must leave the directory 
+     * empty when handled by several workers.
+     */
+    @Test
+    public void testOrdering() throws Exception {
+        System.out.println("ordering");
+        int workers = WsDiscoveryConstants.dispatchWorkers;
+        WsDiscoveryConstants.dispatchWorkers = 4;
+        LoopbackBus bus = new LoopbackBus();
+        WsDiscoveryServer server = new WsDiscoveryServer(new LoopbackTransport(bus));
+        LoopbackTransport sender = new LoopbackTransport(bus);
+        try {
+            server.start();
+            assertEquals(4, server.getDispatchWorkers());
+            assertEquals(4, server.getHandleQueueDepths().length);
+
+            int services = 200;
+            String sequenceId = "urn:uuid:" + UUID.randomUUID();
+            for (int i = 0; i < services; i++) {
+                WsDiscoveryService service = createService(i);
+                WsdSOAPMessage hello = WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageHello(service);
+                WsdSOAPMessage bye = WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageBye(service);
+                hello.setWsdSequenceId(sequenceId);
+                bye.setWsdSequenceId(sequenceId);
+                sender.send(new NetworkMessage(hello));
+                sender.send(new NetworkMessage(bye));
+            }
+
+            long end = System.currentTimeMillis() + 10000;
+            while ((server.getDuplicateMessageFilter().getMisses() < 2 * services) && 
+                    (System.currentTimeMillis() < end))
+                Thread.sleep(10);
+            while ((server.getServiceDirectory().size() > 0) && (System.currentTimeMillis() < end))
+                Thread.sleep(10);
+            assertEquals(2 * services, server.getDuplicateMessageFilter().getMisses());
+            assertEquals(0, server.getServiceDirectory().size());
+        } finally {
+            server.done();
+            sender.done();
+            WsDiscoveryConstants.dispatchWorkers = workers;
+        }
+        assertEquals(0, server.getDispatchWorkers());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+DuplicateMessageFilterTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network;
+
+import java.util.LinkedList;
+import java.util.UUID;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class DuplicateMessageFilterTest {
+
+    public DuplicateMessageFilterTest() {
+    }
+
+    /**
+     * Test of add and contains methods, of class DuplicateMessageFilter.
+     */
+    @Test
+    public void testContains() {
+        System.out.println("contains");
+        DuplicateMessageFilter instance = new DuplicateMessageFilter(1000, 100);
+        String id = "urn:uuid:" + UUID.randomUUID();
+
+        assertFalse(instance.contains(id, 0));
+        instance.add(id, 0);
+        assertTrue(instance.contains(id, 10));
+        assertFalse(instance.contains("urn:uuid:" + UUID.randomUUID(), 10));
+        assertEquals(1, instance.getHits());
+        assertEquals(2, instance.getMisses());
+        assertEquals(1, instance.size());
+    }
+
+    /**
+     * Entries must be expired when the time window has passed.
+     */
+    @Test
+    public void testExpire() {
+        System.out.println("expire");
+        DuplicateMessageFilter instance = new DuplicateMessageFilter(1000, 100);
+        for (int i = 0; i < 50; i++)
+            instance.add("id" + i, i * 20);
+
+        assertTrue(instance.contains("id0", 999));
+        assertFalse(instance.contains("id0", 1000));
+        assertTrue(instance.contains("id49", 1000));
+        assertEquals(49, instance.size());
+        assertFalse(instance.contains("id49", 980 + 1000));
+        assertEquals(0, instance.size());
+    }
+
+    /**
+     * The oldest entries are overwritten when the ring is full.
+     */
+    @Test
+    public void testEviction() {
+        System.out.println("eviction");
+        DuplicateMessageFilter instance = new DuplicateMessageFilter(1000, 16);
+        int capacity = instance.getCapacity();
+        for (int i = 0; i < capacity + 5; i++)
+            instance.add("id" + i, 0);
+
+        assertEquals(capacity, instance.size());
+        assertEquals(5, instance.getEvictions());
+        for (int i = 0; i < 5; i++)
+            assertFalse(instance.contains("id" + i, 0));
+        for (int i = 5; i < capacity + 5; i++)
+            assertTrue(instance.contains("id" + i, 0));
+    }
+
+    /**
+     * Compare against a plain list over many insertions and expirations, to
+     * make sure deletion from the hash table never breaks a probe sequence.
+     */
+    @Test
+    public void testAgainstList() {
+        System.out.println("againstList");
+        DuplicateMessageFilter instance = new DuplicateMessageFilter(100, 1000);
+        LinkedList<String> expected = new LinkedList<String>();
+        LinkedList<Long> times = new LinkedList<Long>();
+
+        for (long now = 0; now < 5000; now++) {
+            while (!times.isEmpty() && (now - times.getFirst() >= 100)) {
+                times.removeFirst();
+                expected.removeFirst();
+            }
+            String id = "urn:uuid:" + UUID.randomUUID();
+            instance.add(id, now);
+            expected.add(id);
+            times.add(now);
+
+            assertEquals(expected.size(), instance.size());
+            assertTrue(instance.contains(expected.getFirst(), now));
+            assertTrue(instance.contains(expected.get(expected.size() / 2), now));
+        }
+        assertEquals(0, instance.getEvictions());
+    }
+}
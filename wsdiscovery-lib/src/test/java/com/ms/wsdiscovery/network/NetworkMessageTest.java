@@ -282,6 +282,22 @@ public class NetworkMessageTest {
         assertTrue(Arrays.equals(result, expResult));
     }
 
+    /**
+     * md5 must only digest the first payloadLen bytes of the payload array.
+     */
+    @Test
+    public void testMd5PayloadLen() throws Exception {
+        System.out.println("md5PayloadLen");
+
+        byte[] data = message.getBytes(WsDiscoveryConstants.defaultEncoding);
+        byte[] buf = Arrays.copyOf(data, 0xffff);
+        
+        NetworkMessage exact = new NetworkMessage(data, null, 0, null, 0);
+        NetworkMessage padded = new NetworkMessage(buf, data.length, null, 0, null, 0);
+        
+        assertTrue(Arrays.equals(exact.md5(), padded.md5()));
+    }
+
     /**
      * Test of toString method, of class NetworkMessage.
      */
@@ -0,0 +1,167 @@
+/*
+ProbeMatchCacheTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.simulator.NetworkSimulator;
+import com.ms.wsdiscovery.simulator.SimulatedNode;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.Arrays;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class ProbeMatchCacheTest {
+
+    public ProbeMatchCacheTest() {
+    }
+
+    private static ScopesType createScopes(String matchBy, String... scopes) {
+        ScopesType s = new ScopesType();
+        s.getValue().addAll(Arrays.asList(scopes));
+        s.setMatchBy(matchBy);
+        return s;
+    }
+
+    /**
+     * Order and repetition of types and scopes, and a missing MatchBy, must
+     * not change the key.
+     */
+    @Test
+    public void testKey() {
+        System.out.println("key");
+        QName a = new QName("http://example.org/", "A");
+        QName b = new QName("http://example.org/", "B");
+        String key = ProbeMatchCache.key(false, Arrays.asList(a, b), 
+                createScopes(null, "http://example.org/x", "http://example.org/y"));
+
+        assertEquals(key, ProbeMatchCache.key(false, Arrays.asList(b, a, b), 
+                createScopes(WsDiscoveryConstants.defaultMatchBy.toString(), 
+                    "http://example.org/y", "http://example.org/x")));
+        assertFalse(key.equals(ProbeMatchCache.key(true, Arrays.asList(a, b), 
+                createScopes(null, "http://example.org/x", "http://example.org/y"))));
+        assertFalse(key.equals(ProbeMatchCache.key(false, Arrays.asList(a, b), 
+                createScopes(MatchBy.strcmp0.toString(), "http://example.org/x", "http://example.org/y"))));
+        assertFalse(key.equals(ProbeMatchCache.key(false, Arrays.asList(a), 
+                createScopes(null, "http://example.org/x", "http://example.org/y"))));
+        assertFalse(ProbeMatchCache.key(false, null, null).equals(
+                ProbeMatchCache.key(false, null, createScopes(null))));
+    }
+
+    /**
+     * Entries from another directory version are discarded, and the least 
+     * recently used entry is evicted when the cache is full.
+     */
+    @Test
+    public void testGet() {
+        System.out.println("get");
+        ProbeMatchCache instance = new ProbeMatchCache(2);
+
+        assertNull(instance.get("a", 1));
+        instance.put("a", 1, ProbeMatchCache.NO_MATCH);
+        assertSame(ProbeMatchCache.NO_MATCH, instance.get("a", 1));
+        assertNull(instance.get("a", 2));
+        assertEquals(1, instance.getInvalidations());
+        assertEquals(0, instance.size());
+
+        instance.put("a", 2, ProbeMatchCache.NO_MATCH);
+        instance.put("b", 2, ProbeMatchCache.NO_MATCH);
+        assertNotNull(instance.get("a", 2));
+        instance.put("c", 2, ProbeMatchCache.NO_MATCH);
+        assertEquals(1, instance.getEvictions());
+        assertNull(instance.get("b", 2));
+        assertNotNull(instance.get("a", 2));
+        assertNotNull(instance.get("c", 2));
+        assertEquals(4, instance.getHits());
+        assertEquals(3, instance.getMisses());
+    }
+
+    /**
+     * Repeated probes are answered from the cache until the directory changes.
+     */
+    @Test
+    public void testProbe() throws Exception {
+        System.out.println("probe");
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            SimulatedNode device = sim.createNode();
+            SimulatedNode client = sim.createNode();
+            device.getLocalServices().store(new WsDiscoveryService(new QName("http://example.org/", "A"), 
+                    createScopes(null, "http://example.org/x"), "http://10.0.0.1/device1"));
+
+            client.probe();
+            sim.runUntilIdle();
+            client.probe();
+            sim.runUntilIdle();
+            assertEquals(1, client.getServiceDirectory().size());
+            assertEquals(1, device.getProbeMatchCache().getHits());
+            assertEquals(1, device.getProbeMatchCache().getMisses());
+            assertEquals(2 + 2, sim.getSent());
+
+            device.getLocalServices().store(new WsDiscoveryService(new QName("http://example.org/", "A"), 
+                    createScopes(null, "http://example.org/x"), "http://10.0.0.1/device2"));
+            client.probe();
+            sim.runUntilIdle();
+            assertEquals(2, client.getServiceDirectory().size());
+            assertEquals(1, device.getProbeMatchCache().getInvalidations());
+            assertEquals(0, sim.getErrors());
+        } finally {
+            sim.close();
+        }
+    }
+
+    /**
+     * A stored service changed with its setters must be seen in the next 
+     * ProbeMatches.
+     */
+    @Test
+    public void testProbeChangedService() throws Exception {
+        System.out.println("probeChangedService");
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            SimulatedNode device = sim.createNode();
+            SimulatedNode client = sim.createNode();
+            WsDiscoveryService service = new WsDiscoveryService(new QName("http://example.org/", "A"), 
+                    createScopes(null, "http://example.org/x"), "http://10.0.0.1/device1");
+            device.getLocalServices().store(service);
+
+            client.probe();
+            sim.runUntilIdle();
+            assertEquals(Arrays.asList("http://10.0.0.1/device1"), 
+                    client.getServiceDirectory().findService(service.getEndpointReference()).getXAddrs());
+
+            service.setXAddrs(Arrays.asList("http://10.0.0.1/device2"));
+            client.probe();
+            sim.runUntilIdle();
+            assertEquals(Arrays.asList("http://10.0.0.1/device2"), 
+                    client.getServiceDirectory().findService(service.getEndpointReference()).getXAddrs());
+            assertEquals(0, device.getProbeMatchCache().getHits());
+            assertEquals(1, device.getProbeMatchCache().getInvalidations());
+            assertEquals(0, sim.getErrors());
+        } finally {
+            sim.close();
+        }
+    }
+}
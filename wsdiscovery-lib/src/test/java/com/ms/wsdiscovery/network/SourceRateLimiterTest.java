@@ -0,0 +1,167 @@
+/*
+SourceRateLimiterTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.clock.VirtualClock;
+import com.ms.wsdiscovery.clock.interfaces.IClock;
+import com.ms.wsdiscovery.network.SourceRateLimiter.ShedReason;
+import com.ms.wsdiscovery.network.transport.loopback.LoopbackTransport;
+import java.net.InetAddress;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class SourceRateLimiterTest {
+
+    public SourceRateLimiterTest() {
+    }
+
+    /**
+     * Test of tryAcquire method, of class SourceRateLimiter.
+     */
+    @Test
+    public void testTryAcquire() throws Exception {
+        System.out.println("tryAcquire");
+        SourceRateLimiter limiter = new SourceRateLimiter(10, 5, 16, 1000);
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+
+        // Burst, then shed
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire(a, 100));
+        assertFalse(limiter.tryAcquire(a, 100));
+        assertEquals(1, limiter.getShed(ShedReason.SOURCE_RATE));
+
+        // Other sources have their own bucket
+        assertTrue(limiter.tryAcquire(b, 100));
+
+        // One token every 100 ms
+        assertFalse(limiter.tryAcquire(a, 150));
+        assertTrue(limiter.tryAcquire(a, 210));
+        assertFalse(limiter.tryAcquire(a, 210));
+
+        assertEquals(7, limiter.getAccepted());
+        assertEquals(3, limiter.getShed(ShedReason.SOURCE_RATE));
+        assertEquals(0, limiter.getShed(ShedReason.TABLE_FULL));
+        assertEquals(2, limiter.size());
+    }
+
+    /**
+     * IPv6 sources are separate from IPv4 sources, except IPv4-mapped 
+     * addresses.
+     */
+    @Test
+    public void testIPv6() throws Exception {
+        System.out.println("IPv6");
+        SourceRateLimiter limiter = new SourceRateLimiter(1, 1, 16, 1000);
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("fe80::1"), 100));
+        assertFalse(limiter.tryAcquire(InetAddress.getByName("fe80::1"), 100));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("fe80::2"), 100));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("0.0.0.1"), 100));
+        // Java returns IPv4-mapped addresses as Inet4Address
+        assertFalse(limiter.tryAcquire(InetAddress.getByName("::ffff:0.0.0.1"), 100));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("::1"), 100));
+        assertEquals(4, limiter.size());
+    }
+
+    /**
+     * Idle sources expire and their slots are reused. When the table is 
+     * full of active sources, new sources share one bucket.
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        System.out.println("expiry");
+        SourceRateLimiter limiter = new SourceRateLimiter(1, 1, 4, 1000);
+        for (int i = 0; i < 4; i++)
+            assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.0." + i), 100));
+        assertEquals(4, limiter.size());
+
+        // Table full: one shared token
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.1.1"), 200));
+        assertFalse(limiter.tryAcquire(InetAddress.getByName("10.0.1.2"), 200));
+        assertEquals(1, limiter.getShed(ShedReason.TABLE_FULL));
+
+        // Keep one source active, the others expire
+        assertFalse(limiter.tryAcquire(InetAddress.getByName("10.0.0.0"), 900));
+        for (int i = 0; i < 3; i++)
+            assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.2." + i), 1200));
+        assertEquals(4, limiter.size());
+        assertEquals(1, limiter.getShed(ShedReason.TABLE_FULL));
+        assertEquals(1, limiter.getShed(ShedReason.SOURCE_RATE));
+
+        // An expired source starts with a full bucket
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.0.0"), 5000));
+
+        limiter.clear();
+        assertEquals(0, limiter.size());
+    }
+
+    /**
+     * A shed Probe must not be recorded as received, so that a 
+     * retransmission is handled once the source is below its limit again. 
+     * Hellos are not limited.
+     */
+    @Test
+    public void testRetransmission() throws Exception {
+        System.out.println("retransmission");
+        IClock clock = WsDiscoveryConstants.clock;
+        InetAddress proxyAddress = WsDiscoveryConstants.proxyAddress;
+        int rate = WsDiscoveryConstants.proxySourceRate;
+        int burst = WsDiscoveryConstants.proxySourceBurst;
+        try {
+            WsDiscoveryConstants.clock = new VirtualClock(1000000);
+            WsDiscoveryConstants.proxyAddress = InetAddress.getByName("127.0.0.1");
+            WsDiscoveryConstants.proxySourceRate = 1;
+            WsDiscoveryConstants.proxySourceBurst = 1;
+            DispatchThread instance = new DispatchThread(new LoopbackTransport());
+            instance.enableProxyAnnouncements();
+            
+            InetAddress source = InetAddress.getByName("10.0.0.9");
+            InetAddress local = InetAddress.getByName("127.0.0.1");
+            String first = WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageProbe().toString();
+            String second = WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageProbe().toString();
+            String hello = WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageHello().toString();
+            
+            assertNotNull(instance.parse(new NetworkMessage(first, source, 3702, local, 3702)));
+            // Duplicates don't use up the source's requests
+            assertNull(instance.parse(new NetworkMessage(first, source, 3702, local, 3702)));
+            assertNull(instance.parse(new NetworkMessage(second, source, 3702, local, 3702)));
+            assertNull(instance.parse(new NetworkMessage(second, source, 3702, local, 3702)));
+            assertNotNull(instance.parse(new NetworkMessage(hello, source, 3702, local, 3702)));
+            assertEquals(2, instance.getSourceRateLimiter().getShed(ShedReason.SOURCE_RATE));
+            assertEquals(1, instance.getDuplicateMessageFilter().getHits());
+            
+            // Retransmission after the bucket has refilled
+            ((VirtualClock)WsDiscoveryConstants.clock).advance(1000);
+            assertNotNull(instance.parse(new NetworkMessage(second, source, 3702, local, 3702)));
+            assertNull(instance.parse(new NetworkMessage(second, source, 3702, local, 3702)));
+            assertEquals(2, instance.getSourceRateLimiter().getShed(ShedReason.SOURCE_RATE));
+            assertEquals(2, instance.getSourceRateLimiter().getAccepted());
+        } finally {
+            WsDiscoveryConstants.clock = clock;
+            WsDiscoveryConstants.proxyAddress = proxyAddress;
+            WsDiscoveryConstants.proxySourceRate = rate;
+            WsDiscoveryConstants.proxySourceBurst = burst;
+        }
+    }
+}
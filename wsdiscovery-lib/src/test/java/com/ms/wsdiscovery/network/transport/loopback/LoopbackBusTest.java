@@ -0,0 +1,156 @@
+/*
+LoopbackBusTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.loopback;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.WsDiscoveryServer;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class LoopbackBusTest {
+
+    public LoopbackBusTest() {
+    }
+
+    /**
+     * Unicasts are delivered to the destination only, with the sender as source.
+     */
+    @Test
+    public void testUnicast() throws InterruptedException {
+        System.out.println("unicast");
+        LoopbackBus bus = new LoopbackBus();
+        LoopbackTransport a = new LoopbackTransport(bus);
+        LoopbackTransport b = new LoopbackTransport(bus);
+        LoopbackTransport c = new LoopbackTransport(bus);
+        assertEquals(3, bus.size());
+        assertFalse(a.getAddress().equals(b.getAddress()));
+
+        a.send(new NetworkMessage("<test/>", null, 0, b.getAddress(), b.getUnicastPort()));
+
+        NetworkMessage m = b.recv(1000);
+        assertEquals("<test/>", m.getMessage());
+        assertEquals(a.getAddress(), m.getSrcAddress());
+        assertEquals(a.getUnicastPort(), m.getSrcPort());
+        assertEquals(b.getUnicastPort(), m.getDstPort());
+        assertNull(a.recv(0));
+        assertNull(c.recv(0));
+        assertEquals(1, bus.getDelivered());
+    }
+
+    /**
+     * Multicasts are delivered to every transport, including the sender.
+     */
+    @Test
+    public void testMulticast() throws InterruptedException {
+        System.out.println("multicast");
+        LoopbackBus bus = new LoopbackBus();
+        LoopbackTransport[] t = new LoopbackTransport[5];
+        for (int i = 0; i < t.length; i++)
+            t[i] = new LoopbackTransport(bus);
+
+        t[0].send(new NetworkMessage("<test/>"));
+
+        for (LoopbackTransport r : t) {
+            NetworkMessage m = r.recv(1000);
+            assertEquals(WsDiscoveryConstants.multicastAddress, m.getDstAddress());
+            assertEquals(r.getMulticastPort(), m.getDstPort());
+        }
+        assertEquals(1, bus.getSent());
+        assertEquals(5, bus.getDelivered());
+
+        t[1].done();
+        t[0].send(new NetworkMessage("<test/>"));
+        assertEquals(9, bus.getDelivered());
+        assertNull(t[1].recv(0));
+    }
+
+    /**
+     * Test of loss, duplication and latency.
+     */
+    @Test
+    public void testImpairments() throws InterruptedException {
+        System.out.println("impairments");
+        LoopbackBus bus = new LoopbackBus();
+        bus.setSeed(1);
+        LoopbackTransport a = new LoopbackTransport(bus);
+        LoopbackTransport b = new LoopbackTransport(bus);
+        NetworkMessage m = new NetworkMessage("<test/>", null, 0, b.getAddress(), b.getUnicastPort());
+
+        bus.setLoss(1);
+        a.send(m);
+        assertNull(b.recv(0));
+        assertEquals(1, bus.getLost());
+
+        bus.setLoss(0);
+        bus.setDuplication(1);
+        a.send(m);
+        assertNotNull(b.recv(0));
+        assertNotNull(b.recv(0));
+        assertEquals(1, bus.getDuplicated());
+
+        bus.setDuplication(0);
+        bus.setLatency(100, 100);
+        long start = System.currentTimeMillis();
+        a.send(m);
+        assertNull(b.recv(0));
+        assertNotNull(b.recv(5000));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+    }
+
+    /**
+     * Two servers on the same bus must find each other's services, even 
+     * though they share the instance ID of this JVM.
+     */
+    @Test
+    public void testProbe() throws Exception {
+        System.out.println("probe");
+        LoopbackBus bus = new LoopbackBus();
+        WsDiscoveryServer device = new WsDiscoveryServer(new LoopbackTransport(bus));
+        WsDiscoveryServer client = new WsDiscoveryServer(new LoopbackTransport(bus));
+
+        ScopesType scopes = new ScopesType();
+        scopes.getValue().add("http://example.org/loopback");
+        WsDiscoveryService service = new WsDiscoveryService(
+                new QName("http://example.org/", "Loopback"), scopes, "http://127.0.0.1/loopback");
+        device.getLocalServices().store(service);
+
+        device.start();
+        client.start();
+        try {
+            client.probe();
+            long end = System.currentTimeMillis() + 5000;
+            while ((client.getServiceDirectory().findService(service.getEndpointReference()) == null) && 
+                    (System.currentTimeMillis() < end))
+                Thread.sleep(10);
+            assertNotNull(client.getServiceDirectory().findService(service.getEndpointReference()));
+        } finally {
+            device.done();
+            client.done();
+        }
+        assertEquals(0, bus.size());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+SOAPRateLimiterTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.soapudp;
+
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.NetworkMessage.Priority;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class SOAPRateLimiterTest {
+
+    public SOAPRateLimiterTest() {
+    }
+
+    private static SOAPNetworkMessage message(Priority priority, int length) {
+        NetworkMessage nm = new NetworkMessage(new byte[length], null, 0, null, 0);
+        nm.setPriority(priority);
+        return new SOAPNetworkMessage(nm, true);
+    }
+
+    /**
+     * A burst is let through, after which messages are spaced by the packet 
+     * rate.
+     */
+    @Test
+    public void testPacketRate() {
+        System.out.println("packetRate");
+        SOAPRateLimiter instance = new SOAPRateLimiter(10, 0, 2, 1, 100, 0);
+        for (int i = 0; i < 5; i++)
+            assertTrue(instance.offer(message(Priority.NORMAL, 100)));
+
+        assertNotNull(instance.poll(0));
+        assertNotNull(instance.poll(0));
+        assertNull(instance.poll(0));
+        assertNull(instance.poll(50));
+        assertEquals(1, instance.getDelayed(Priority.NORMAL)); // Counted once
+        assertEquals(50, instance.getDelay(50));
+        assertNotNull(instance.poll(100));
+        assertNull(instance.poll(100));
+        assertNotNull(instance.poll(200));
+        assertNotNull(instance.poll(300));
+        assertNull(instance.poll(1000));
+        assertEquals(-1, instance.getDelay(1000));
+        assertEquals(5, instance.getSent(Priority.NORMAL));
+        assertEquals(2, instance.getDelayed());
+        assertEquals(0, instance.size());
+    }
+
+    /**
+     * The byte bucket limits the payload rate. A message larger than the 
+     * bucket is sent when the bucket is full.
+     */
+    @Test
+    public void testByteRate() {
+        System.out.println("byteRate");
+        SOAPRateLimiter instance = new SOAPRateLimiter(0, 1000, 1, 500, 100, 0);
+        instance.offer(message(Priority.NORMAL, 400));
+        instance.offer(message(Priority.NORMAL, 400));
+        instance.offer(message(Priority.NORMAL, 2000));
+
+        assertNotNull(instance.poll(0));
+        assertNull(instance.poll(0));
+        assertEquals(300, instance.getDelay(0));
+        assertNotNull(instance.poll(300));
+        assertEquals(400, instance.getDelay(400)); // Needs a full bucket
+        assertNotNull(instance.poll(800));
+        assertEquals(0, instance.size());
+    }
+
+    /**
+     * Higher priorities are sent first, and lower priorities are dropped 
+     * first when the queues are full.
+     */
+    @Test
+    public void testPriority() {
+        System.out.println("priority");
+        SOAPRateLimiter instance = new SOAPRateLimiter(1, 0, 1, 1, 3, 0);
+        SOAPNetworkMessage probe = message(Priority.NORMAL, 100);
+        SOAPNetworkMessage bye = message(Priority.HIGH, 100);
+
+        assertTrue(instance.offer(message(Priority.BULK, 100)));
+        assertTrue(instance.offer(message(Priority.BULK, 100)));
+        assertTrue(instance.offer(probe));
+        assertTrue(instance.offer(bye)); // Replaces hello2
+        SOAPNetworkMessage probe2 = message(Priority.NORMAL, 100);
+        assertTrue(instance.offer(probe2)); // Replaces hello1
+        assertEquals(2, instance.getDropped(Priority.BULK));
+        assertFalse(instance.offer(message(Priority.NORMAL, 100))); // Nothing lower left to drop
+        assertEquals(1, instance.getDropped(Priority.NORMAL));
+        assertEquals(3, instance.getDropped());
+        assertEquals(3, instance.size());
+
+        assertSame(bye, instance.poll(0));
+        assertSame(probe, instance.poll(1000));
+        assertSame(probe2, instance.poll(2000));
+        assertNull(instance.poll(3000));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+SOAPRingBufferTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.soapudp;
+
+import com.ms.wsdiscovery.network.NetworkMessage;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class SOAPRingBufferTest {
+
+    public SOAPRingBufferTest() {
+    }
+
+    private static NetworkMessage message(int producer, int seq) {
+        return new NetworkMessage(new byte[0], 0, null, producer, null, seq);
+    }
+
+    /**
+     * Messages are returned in the order they were added, and new messages 
+     * are dropped and counted when the ring is full.
+     */
+    @Test
+    public void testDrop() {
+        System.out.println("drop");
+        SOAPRingBuffer instance = new SOAPRingBuffer(3);
+        assertEquals(4, instance.getCapacity());
+        assertNull(instance.poll());
+
+        for (int i = 0; i < 6; i++)
+            assertEquals(i < 4, instance.offer(message(0, i)));
+        assertEquals(4, instance.size());
+        assertEquals(2, instance.getDropped());
+        assertEquals(0, instance.peek().getDstPort());
+
+        for (int i = 0; i < 4; i++)
+            assertEquals(i, instance.poll().getDstPort());
+        assertNull(instance.poll());
+        assertEquals(0, instance.size());
+
+        // Slots are reused after the ring has wrapped
+        for (int i = 0; i < 4; i++)
+            assertTrue(instance.offer(message(0, i)));
+        ArrayList<NetworkMessage> batch = new ArrayList<NetworkMessage>();
+        assertEquals(3, instance.drainTo(batch, 3));
+        assertEquals(2, batch.get(2).getDstPort());
+        assertEquals(1, instance.drainTo(batch));
+        assertEquals(2, instance.getDropped());
+    }
+
+    /**
+     * poll() with a timeout must wait when the ring is empty.
+     */
+    @Test
+    public void testPollTimeout() throws InterruptedException {
+        System.out.println("pollTimeout");
+        for (SOAPRingBuffer.WaitStrategy strategy : SOAPRingBuffer.WaitStrategy.values()) {
+            SOAPRingBuffer instance = new SOAPRingBuffer(16, strategy, SOAPRingBuffer.FullPolicy.DROP);
+            long start = System.nanoTime();
+            assertNull(instance.poll(50, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(45));
+        }
+    }
+
+    /**
+     * Several producers adding to a small ring that blocks when full. Every 
+     * message must arrive exactly once, and in order per producer, with 
+     * every wait strategy.
+     */
+    @Test
+    public void testProducers() throws InterruptedException {
+        System.out.println("producers");
+        final int producers = 4;
+        final int messages = 20000;
+        for (SOAPRingBuffer.WaitStrategy strategy : SOAPRingBuffer.WaitStrategy.values()) {
+            final SOAPRingBuffer instance = new SOAPRingBuffer(64, strategy, SOAPRingBuffer.FullPolicy.BLOCK);
+            Thread[] threads = new Thread[producers];
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                threads[p] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < messages; i++)
+                            instance.offer(message(producer, i));
+                    }
+                };
+                threads[p].start();
+            }
+
+            int[] expected = new int[producers];
+            for (int n = 0; n < producers * messages; n++) {
+                NetworkMessage m = instance.poll(10, TimeUnit.SECONDS);
+                assertNotNull(m);
+                assertEquals(expected[m.getSrcPort()]++, m.getDstPort());
+            }
+            for (Thread t : threads)
+                t.join();
+            assertNull(instance.poll());
+            assertEquals(0, instance.getDropped());
+            for (int p = 0; p < producers; p++)
+                assertEquals(messages, expected[p]);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+SOAPTimingWheelTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.soapudp;
+
+import com.ms.wsdiscovery.network.NetworkMessage;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class SOAPTimingWheelTest {
+
+    public SOAPTimingWheelTest() {
+    }
+
+    private static SOAPNetworkMessage message(long nextSend) {
+        SOAPNetworkMessage m = new SOAPNetworkMessage(new NetworkMessage("test"), false);
+        m.nextSend = nextSend;
+        return m;
+    }
+
+    /**
+     * Messages must only be returned when they are due.
+     */
+    @Test
+    public void testPoll() {
+        System.out.println("poll");
+        SOAPTimingWheel instance = new SOAPTimingWheel();
+        long now = System.currentTimeMillis();
+        SOAPNetworkMessage due = message(0);
+        SOAPNetworkMessage later = message(now + 10000);
+
+        instance.add(later);
+        instance.add(due);
+
+        assertEquals(2, instance.size());
+        assertSame(due, instance.poll());
+        assertNull(instance.poll());
+        assertEquals(1, instance.size());
+        assertFalse(instance.isEmpty());
+    }
+
+    /**
+     * Messages are returned in the order of their send times.
+     */
+    @Test
+    public void testOrder() throws InterruptedException {
+        System.out.println("order");
+        SOAPTimingWheel instance = new SOAPTimingWheel(64);
+        long now = System.currentTimeMillis();
+        SOAPNetworkMessage[] m = new SOAPNetworkMessage[5];
+        // Last one is beyond the span of the wheel
+        long[] delays = {40, 10, 30, 20, 150};
+        for (int i = 0; i < m.length; i++) {
+            m[i] = message(now + delays[i]);
+            instance.add(m[i]);
+        }
+
+        int[] expected = {1, 3, 2, 0, 4};
+        for (int i : expected) {
+            SOAPNetworkMessage result = instance.poll(1, TimeUnit.SECONDS);
+            assertSame(m[i], result);
+            assertTrue(System.currentTimeMillis() >= result.getNextSend());
+        }
+        assertTrue(instance.isEmpty());
+        assertNull(instance.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A waiting consumer must wake up when a message that is due is added.
+     */
+    @Test
+    public void testWakeup() throws InterruptedException {
+        System.out.println("wakeup");
+        final SOAPTimingWheel instance = new SOAPTimingWheel();
+        final SOAPNetworkMessage m = message(0);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                }
+                instance.add(m);
+            }
+        };
+        producer.start();
+        assertSame(m, instance.poll(5, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    /**
+     * Test of drainTo and clear.
+     */
+    @Test
+    public void testDrainTo() {
+        System.out.println("drainTo");
+        SOAPTimingWheel instance = new SOAPTimingWheel();
+        for (int i = 0; i < 10; i++)
+            instance.add(message(0));
+        instance.add(message(System.currentTimeMillis() + 10000));
+
+        ArrayList<SOAPNetworkMessage> result = new ArrayList<SOAPNetworkMessage>();
+        assertEquals(4, instance.drainTo(result, 4));
+        assertEquals(6, instance.drainTo(result));
+        assertEquals(10, result.size());
+        assertEquals(1, instance.size());
+
+        instance.clear();
+        assertTrue(instance.isEmpty());
+    }
+}
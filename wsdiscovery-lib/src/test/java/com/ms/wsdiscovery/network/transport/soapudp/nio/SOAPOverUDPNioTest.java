@@ -0,0 +1,106 @@
+/*
+SOAPOverUDPNioTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.soapudp.nio;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPOverUDP;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPRateLimiter;
+import java.net.InetAddress;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class SOAPOverUDPNioTest {
+
+    public SOAPOverUDPNioTest() {
+    }
+
+    /**
+     * Create a transport on a random multicast port, so that the tests don't
+     * receive WS-Discovery traffic from the network.
+     */
+    private static SOAPOverUDPNio createTransport() throws Exception {
+        return new SOAPOverUDPNio(WsDiscoveryConstants.multicastInterface, 
+                40000 + new Random().nextInt(20000), WsDiscoveryConstants.multicastAddress);
+    }
+
+    /**
+     * A unicast message sent to the transport itself is received with the 
+     * same payload, once for each SOAP-over-UDP transmission. done() returns
+     * after the last retransmission.
+     */
+    @Test(timeout=10000)
+    public void testSendRecvRetransmission() throws Exception {
+        System.out.println("sendRecvRetransmission");
+        SOAPOverUDPNio instance = createTransport();
+        try {
+            instance.start();
+            InetAddress local = InetAddress.getByName("127.0.0.1");
+            instance.send(new NetworkMessage("test message", null, 0, local, instance.getUnicastPort()));
+
+            for (int i = 0; i < SOAPOverUDP.UNICAST_UDP_REPEAT; i++) {
+                NetworkMessage m = instance.recv(5000);
+                assertNotNull(m);
+                assertEquals("test message", m.getMessage());
+                assertEquals(instance.getUnicastPort(), m.getSrcPort());
+            }
+        } finally {
+            instance.done();
+        }
+        assertNull(instance.recv(SOAPOverUDP.UDP_UPPER_DELAY));
+    }
+
+    /**
+     * Multicast messages pass through the rate limiter, including their 
+     * retransmissions.
+     */
+    @Test(timeout=20000)
+    public void testMulticastRateLimit() throws Exception {
+        System.out.println("multicastRateLimit");
+        int rate = WsDiscoveryConstants.multicastPacketRate;
+        int burst = WsDiscoveryConstants.multicastPacketBurst;
+        try {
+            WsDiscoveryConstants.multicastPacketRate = 10;
+            WsDiscoveryConstants.multicastPacketBurst = 1;
+            SOAPOverUDPNio instance = createTransport();
+            SOAPRateLimiter limiter = instance.getMulticastRateLimiter();
+            assertNotNull(limiter);
+            
+            instance.start();
+            InetAddress local = InetAddress.getByName("127.0.0.1");
+            for (int i = 0; i < 3; i++)
+                instance.send(new NetworkMessage("multicast " + i, null, 0, 
+                        WsDiscoveryConstants.multicastAddress, instance.getMulticastPort()));
+            instance.send(new NetworkMessage("unicast", null, 0, local, instance.getUnicastPort()));
+            instance.done();
+
+            assertEquals(3 * SOAPOverUDP.MULTICAST_UDP_REPEAT, limiter.getSent(NetworkMessage.Priority.NORMAL));
+            assertTrue(limiter.getDelayed() > 0);
+            assertEquals(0, limiter.size());
+        } finally {
+            WsDiscoveryConstants.multicastPacketRate = rate;
+            WsDiscoveryConstants.multicastPacketBurst = burst;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+SOAPOverUDPMixedTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.soapudp.zlib;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPOverUDP;
+import com.ms.wsdiscovery.network.transport.soapudp.zlib.SOAPOverUDPMixed.Encoding;
+import java.net.InetAddress;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class SOAPOverUDPMixedTest {
+
+    public SOAPOverUDPMixedTest() {
+    }
+
+    /**
+     * Create a transport on a random multicast port, so that the tests don't
+     * receive WS-Discovery traffic from the network.
+     */
+    private static SOAPOverUDPMixed createTransport() throws Exception {
+        return new SOAPOverUDPMixed(40000 + new Random().nextInt(20000), 
+                WsDiscoveryConstants.multicastAddress);
+    }
+
+    /**
+     * Create a message received from <code>src</code>, compressed as given.
+     */
+    private static NetworkMessage received(String text, InetAddress src, Encoding e) {
+        NetworkMessage m = new NetworkMessage(text, src, 3702, 
+                WsDiscoveryConstants.multicastAddress, WsDiscoveryConstants.multicastPort);
+        if (e == Encoding.PLAIN)
+            return m;
+        ZlibCodec codec = new ZlibCodec(6, e == Encoding.ZLIB_DICTIONARY);
+        try {
+            return codec.compress(m, e == Encoding.ZLIB_DICTIONARY);
+        } finally {
+            codec.end();
+        }
+    }
+
+    /**
+     * The encoding of each host follows the last message received from it.
+     * Unknown hosts are plain.
+     */
+    @Test
+    public void testGetEncoding() throws Exception {
+        System.out.println("getEncoding");
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+        InetAddress c = InetAddress.getByName("10.0.0.3");
+        SOAPOverUDPMixed instance = createTransport();
+        try {
+            assertEquals(Encoding.PLAIN, instance.getEncoding(a));
+            assertFalse(instance.isCompressing(a));
+            assertEquals(0, instance.getPeerCount());
+            
+            assertEquals("plain", instance.decode(received("plain", a, Encoding.PLAIN)).getMessage());
+            assertEquals("zlib", instance.decode(received("zlib", b, Encoding.ZLIB)).getMessage());
+            assertEquals("dictionary", 
+                    instance.decode(received("dictionary", c, Encoding.ZLIB_DICTIONARY)).getMessage());
+            
+            assertEquals(Encoding.PLAIN, instance.getEncoding(a));
+            assertFalse(instance.isCompressing(a));
+            assertEquals(Encoding.ZLIB, instance.getEncoding(b));
+            assertTrue(instance.isCompressing(b));
+            assertEquals(Encoding.ZLIB_DICTIONARY, instance.getEncoding(c));
+            assertTrue(instance.isCompressing(c));
+            assertEquals(3, instance.getPeerCount());
+            
+            // A host that changes encoding is followed
+            instance.decode(received("zlib", a, Encoding.ZLIB));
+            instance.decode(received("plain", c, Encoding.PLAIN));
+            assertEquals(Encoding.ZLIB, instance.getEncoding(a));
+            assertEquals(Encoding.PLAIN, instance.getEncoding(c));
+            assertEquals(3, instance.getPeerCount());
+        } finally {
+            instance.done();
+        }
+    }
+
+    /**
+     * Unicasts are sent the way the destination sends, multicasts are plain 
+     * unless multicast compression is enabled.
+     */
+    @Test
+    public void testSendEncoding() throws Exception {
+        System.out.println("sendEncoding");
+        boolean oldCompressMulticast = WsDiscoveryConstants.zlibMixedCompressMulticast;
+        boolean oldUseDictionary = WsDiscoveryConstants.zlibUseDictionary;
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+        InetAddress c = InetAddress.getByName("10.0.0.3");
+        InetAddress unknown = InetAddress.getByName("10.0.0.4");
+        InetAddress multicast = WsDiscoveryConstants.multicastAddress;
+        SOAPOverUDPMixed instance = null;
+        try {
+            WsDiscoveryConstants.zlibMixedCompressMulticast = false;
+            WsDiscoveryConstants.zlibUseDictionary = false;
+            instance = createTransport();
+            instance.decode(received("plain", a, Encoding.PLAIN));
+            instance.decode(received("zlib", b, Encoding.ZLIB));
+            instance.decode(received("dictionary", c, Encoding.ZLIB_DICTIONARY));
+            
+            assertEquals(Encoding.PLAIN, instance.getSendEncoding(a));
+            assertEquals(Encoding.ZLIB, instance.getSendEncoding(b));
+            assertEquals(Encoding.ZLIB_DICTIONARY, instance.getSendEncoding(c));
+            assertEquals(Encoding.PLAIN, instance.getSendEncoding(unknown));
+            assertEquals(Encoding.PLAIN, instance.getSendEncoding(multicast));
+            
+            WsDiscoveryConstants.zlibMixedCompressMulticast = true;
+            assertEquals(Encoding.ZLIB, instance.getSendEncoding(multicast));
+            // Unicasts don't change
+            assertEquals(Encoding.PLAIN, instance.getSendEncoding(a));
+            assertEquals(Encoding.PLAIN, instance.getSendEncoding(unknown));
+            instance.done();
+            
+            // The dictionary setting is read when the transport is created
+            WsDiscoveryConstants.zlibUseDictionary = true;
+            instance = createTransport();
+            assertEquals(Encoding.ZLIB_DICTIONARY, instance.getSendEncoding(multicast));
+            assertEquals(Encoding.PLAIN, instance.getSendEncoding(unknown));
+        } finally {
+            WsDiscoveryConstants.zlibMixedCompressMulticast = oldCompressMulticast;
+            WsDiscoveryConstants.zlibUseDictionary = oldUseDictionary;
+            if (instance != null)
+                instance.done();
+        }
+    }
+
+    /**
+     * send() compresses a unicast the way the destination sends. The 
+     * transport sends to itself, so the received copies record the 
+     * encoding used on the wire.
+     */
+    @Test(timeout=10000)
+    public void testSendUnicast() throws Exception {
+        System.out.println("sendUnicast");
+        SOAPOverUDPMixed instance = createTransport();
+        try {
+            instance.start();
+            InetAddress local = InetAddress.getByName("127.0.0.1");
+            for (Encoding e : Encoding.values()) {
+                instance.decode(received("peer", local, e));
+                instance.send(new NetworkMessage("test message", null, 0, local, instance.getUnicastPort()));
+                for (int i = 0; i < SOAPOverUDP.UNICAST_UDP_REPEAT; i++) {
+                    NetworkMessage m = instance.recv(5000);
+                    assertNotNull(m);
+                    assertEquals("test message", m.getMessage());
+                    assertEquals(e, instance.getEncoding(local));
+                }
+            }
+        } finally {
+            instance.done();
+        }
+    }
+
+    /**
+     * When the table is full, the least recently seen host is forgotten and 
+     * falls back to plain.
+     */
+    @Test
+    public void testPeerEviction() throws Exception {
+        System.out.println("peerEviction");
+        int oldMaxPeers = WsDiscoveryConstants.zlibMixedMaxPeers;
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+        InetAddress c = InetAddress.getByName("10.0.0.3");
+        InetAddress d = InetAddress.getByName("10.0.0.4");
+        SOAPOverUDPMixed instance = null;
+        try {
+            WsDiscoveryConstants.zlibMixedMaxPeers = 2;
+            instance = createTransport();
+            instance.decode(received("zlib", a, Encoding.ZLIB));
+            instance.decode(received("zlib", b, Encoding.ZLIB));
+            assertEquals(2, instance.getPeerCount());
+            
+            // Looking up a refreshes it, so b is the least recently seen
+            assertEquals(Encoding.ZLIB, instance.getEncoding(a));
+            instance.decode(received("dictionary", c, Encoding.ZLIB_DICTIONARY));
+            assertEquals(2, instance.getPeerCount());
+            assertEquals(Encoding.PLAIN, instance.getEncoding(b));
+            assertEquals(Encoding.ZLIB, instance.getEncoding(a));
+            assertEquals(Encoding.ZLIB_DICTIONARY, instance.getEncoding(c));
+            
+            // Sending to a host refreshes it too, so c is now the least recently seen
+            assertEquals(Encoding.ZLIB, instance.getSendEncoding(a));
+            instance.decode(received("zlib", d, Encoding.ZLIB));
+            assertEquals(2, instance.getPeerCount());
+            assertEquals(Encoding.PLAIN, instance.getEncoding(c));
+            assertEquals(Encoding.ZLIB, instance.getEncoding(a));
+            assertEquals(Encoding.ZLIB, instance.getEncoding(d));
+            
+            // A forgotten host is added again when it sends
+            instance.decode(received("zlib", b, Encoding.ZLIB));
+            assertEquals(Encoding.ZLIB, instance.getEncoding(b));
+            assertEquals(2, instance.getPeerCount());
+        } finally {
+            WsDiscoveryConstants.zlibMixedMaxPeers = oldMaxPeers;
+            if (instance != null)
+                instance.done();
+        }
+    }
+}
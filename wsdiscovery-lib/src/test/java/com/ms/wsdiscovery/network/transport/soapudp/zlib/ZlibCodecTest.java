@@ -0,0 +1,177 @@
+/*
+ZlibCodecTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.network.transport.soapudp.zlib;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.network.NetworkMessage;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPNetworkMessage;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class ZlibCodecTest {
+
+    public ZlibCodecTest() {
+    }
+
+    private static byte[] hello() {
+        return WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageHello().toString()
+                .getBytes(WsDiscoveryConstants.defaultEncoding);
+    }
+
+    /**
+     * Compressed messages must decompress to the original, with and without 
+     * the dictionary, and with a reused codec.
+     */
+    @Test
+    public void testRoundTrip() {
+        System.out.println("roundTrip");
+        byte[] data = hello();
+        for (boolean dictionary : new boolean[] {false, true}) {
+            ZlibCodec instance = new ZlibCodec(Deflater.BEST_COMPRESSION, dictionary);
+            for (int i = 0; i < 3; i++) {
+                byte[] compressed = instance.compress(data, 0, data.length);
+                assertTrue(Arrays.equals(data, instance.decompress(compressed, 0, compressed.length)));
+            }
+            instance.end();
+        }
+    }
+
+    /**
+     * A codec without the dictionary must still decompress messages 
+     * compressed with it.
+     */
+    @Test
+    public void testDecompressWithDictionary() {
+        System.out.println("decompressWithDictionary");
+        byte[] data = hello();
+        byte[] compressed = new ZlibCodec(6, true).compress(data, 0, data.length);
+        assertTrue(Arrays.equals(data, new ZlibCodec(6, false).decompress(compressed, 0, compressed.length)));
+    }
+
+    /**
+     * The dictionary should make small messages compress better.
+     */
+    @Test
+    public void testDictionaryRatio() {
+        System.out.println("dictionaryRatio");
+        byte[] data = hello();
+        int plain = new ZlibCodec(Deflater.BEST_COMPRESSION, false).compress(data, 0, data.length).length;
+        int dict = new ZlibCodec(Deflater.BEST_COMPRESSION, true).compress(data, 0, data.length).length;
+        assertTrue(dict < plain);
+    }
+
+    /**
+     * Corrupt or truncated data must be rejected.
+     */
+    @Test
+    public void testInvalid() {
+        System.out.println("invalid");
+        ZlibCodec instance = new ZlibCodec();
+        byte[] data = hello();
+        byte[] compressed = instance.compress(data, 0, data.length);
+
+        assertNull(instance.decompress(compressed, 0, compressed.length / 2));
+        assertNull(instance.decompress(data, 0, data.length));
+        // The codec must still work afterwards
+        assertTrue(Arrays.equals(data, instance.decompress(compressed, 0, compressed.length)));
+    }
+
+    /**
+     * Test of isCompressed method, of class ZlibCodec.
+     */
+    @Test
+    public void testIsCompressed() {
+        System.out.println("isCompressed");
+        byte[] data = hello();
+        for (int level : new int[] {1, 6, 9}) {
+            byte[] compressed = new ZlibCodec(level, level == 9).compress(data, 0, data.length);
+            assertTrue(ZlibCodec.isCompressed(compressed, 0, compressed.length));
+        }
+        assertFalse(ZlibCodec.isCompressed(data, 0, data.length));
+
+        String[] plain = {"<?xml version=\"1.0\"?>", " <a/>", "\r\n<a/>", "\t<a/>", "\ufeff<a/>", "x"};
+        for (String p : plain) {
+            byte[] b = p.getBytes(WsDiscoveryConstants.defaultEncoding);
+            assertFalse(ZlibCodec.isCompressed(b, 0, b.length));
+        }
+    }
+
+    /**
+     * Test of isUsingDictionary method, of class ZlibCodec. The dictionary 
+     * can also be chosen per call, regardless of the codec setting.
+     */
+    @Test
+    public void testIsUsingDictionary() {
+        System.out.println("isUsingDictionary");
+        byte[] data = hello();
+        ZlibCodec instance = new ZlibCodec(6, false);
+        byte[] plain = instance.compress(data, 0, data.length);
+        byte[] dict = instance.compress(data, 0, data.length, true);
+        assertFalse(ZlibCodec.isUsingDictionary(plain, 0, plain.length));
+        assertTrue(ZlibCodec.isUsingDictionary(dict, 0, dict.length));
+        assertFalse(ZlibCodec.isUsingDictionary(data, 0, data.length));
+        assertTrue(Arrays.equals(data, instance.decompress(dict, 0, dict.length)));
+        
+        dict = new ZlibCodec(6, true).compress(new NetworkMessage("<test/>"), false).getPayload();
+        assertFalse(ZlibCodec.isUsingDictionary(dict, 0, dict.length));
+    }
+
+    /**
+     * Test of compress and decompress of class NetworkMessage.
+     */
+    @Test
+    public void testNetworkMessage() {
+        System.out.println("networkMessage");
+        ZlibCodec instance = new ZlibCodec();
+        NetworkMessage nm = new NetworkMessage("<test/>");
+        NetworkMessage compressed = instance.compress(nm);
+        assertEquals(nm.getDstAddress(), compressed.getDstAddress());
+        assertEquals(nm.getDstPort(), compressed.getDstPort());
+        assertEquals("<test/>", instance.decompress(compressed).getMessage());
+    }
+
+    /**
+     * Paced messages must keep their send time and priority when 
+     * compressed, so that the SOAP-over-UDP sender still holds them back 
+     * and rate limits them by priority.
+     */
+    @Test
+    public void testSendTime() {
+        System.out.println("sendTime");
+        ZlibCodec instance = new ZlibCodec();
+        NetworkMessage nm = new NetworkMessage("<test/>");
+        long sendTime = WsDiscoveryConstants.clock.currentTimeMillis() + 5000;
+        nm.setSendTime(sendTime);
+        nm.setPriority(NetworkMessage.Priority.BULK);
+        for (boolean dictionary : new boolean[] {false, true}) {
+            NetworkMessage compressed = instance.compress(nm, dictionary);
+            assertEquals(sendTime, compressed.getSendTime());
+            assertEquals(NetworkMessage.Priority.BULK, compressed.getPriority());
+            SOAPNetworkMessage m = new SOAPNetworkMessage(compressed, true);
+            assertEquals(sendTime, m.getNextSend());
+            assertEquals(NetworkMessage.Priority.BULK, m.getPriority());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+SampleServices.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import javax.xml.namespace.QName;
+
+/**
+ * Service descriptions shared by the tests.
+ *
+ * @author Magnus Skjegstad
+ */
+public final class SampleServices {
+
+    private SampleServices() {
+    }
+
+    /**
+     * Create service number <code>i</code>, with its own scope and XAddr. 
+     * All services have the port type <code>{http://example.org/}A</code>.
+     *
+     * @param i Service number, 0-65535.
+     * @return New service description.
+     */
+    public static WsDiscoveryService createService(int i) {
+        ScopesType scopes = new ScopesType();
+        scopes.getValue().add("http://example.org/scope" + i);
+        return new WsDiscoveryService(new QName("http://example.org/", "A"), scopes, 
+                "http://10.0." + (i >> 8) + "." + (i & 0xff) + "/device");
+    }
+}
@@ -0,0 +1,285 @@
+/*
+WsDiscoveryServiceDirectoryTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryBuilder;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryServiceDirectoryTest {
+
+    public WsDiscoveryServiceDirectoryTest() {
+    }
+
+    private void testStoreFindRemove(boolean snapshots) throws Exception {
+        WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory("test", snapshots);
+        assertEquals(snapshots, instance.isSnapshotMode());
+        assertEquals(0, instance.getVersion());
+
+        WsDiscoveryService a = WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/a", "http://10.0.0.1/");
+        WsDiscoveryService b = WsDiscoveryBuilder.createService(new QName("b"), "http://www.test.com/b", "http://10.0.0.2/");
+        instance.store(a);
+        instance.store(b);
+        assertEquals(2, instance.size());
+        assertEquals(2, instance.getVersion());
+        assertSame(a, instance.findService(a.getEndpointReference()));
+
+        IWsDiscoveryServiceCollection result = instance.matchBy(Arrays.asList(new QName("b")), null);
+        assertEquals(1, result.size());
+        assertTrue(result.contains(b));
+
+        result = instance.matchBy(null, Arrays.asList(URI.create("http://www.test.com/a")), MatchBy.strcmp0);
+        assertEquals(1, result.size());
+        assertTrue(result.contains(a));
+
+        // Update with new port type
+        WsDiscoveryService a2 = WsDiscoveryBuilder.createService(new QName("b"), "http://www.test.com/a", "http://10.0.0.1/");
+        a2.setEndpointReference(a.getEndpointReference());
+        instance.store(a2);
+        assertEquals(2, instance.size());
+        assertEquals(2, instance.matchBy(Arrays.asList(new QName("b")), null).size());
+        assertEquals(0, instance.matchBy(Arrays.asList(new QName("a")), null).size());
+
+        IWsDiscoveryServiceCollection all = instance.matchAll();
+        instance.remove(b);
+        assertNull(instance.findService(b.getEndpointReference()));
+        assertEquals(1, instance.size());
+        assertEquals(4, instance.getVersion());
+        assertEquals(2, all.size()); // Earlier result is not affected
+
+        instance.remove(b);
+        assertEquals(4, instance.getVersion());
+    }
+
+    /**
+     * Test of store, findService, matchBy and remove methods, of class WsDiscoveryServiceDirectory.
+     */
+    @Test
+    public void testStoreFindRemove() throws Exception {
+        System.out.println("storeFindRemove");
+        testStoreFindRemove(false);
+    }
+
+    /**
+     * Test of store, findService, matchBy and remove methods in snapshot mode.
+     */
+    @Test
+    public void testStoreFindRemoveSnapshot() throws Exception {
+        System.out.println("storeFindRemoveSnapshot");
+        testStoreFindRemove(true);
+    }
+
+    /**
+     * In snapshot mode matchAll returns the snapshot, which can not be modified.
+     */
+    @Test(expected=UnsupportedOperationException.class)
+    public void testMatchAllSnapshot() throws Exception {
+        System.out.println("matchAllSnapshot");
+        WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory("test", true);
+        WsDiscoveryService a = WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/a", "http://10.0.0.1/");
+        instance.store(a);
+        IWsDiscoveryServiceCollection all = instance.matchAll();
+        assertTrue(all.contains(a));
+        all.clear();
+    }
+
+    /**
+     * Test of storeAll and removeAll methods, of class WsDiscoveryServiceDirectory.
+     */
+    @Test
+    public void testStoreAllRemoveAll() throws Exception {
+        System.out.println("storeAllRemoveAll");
+        for (boolean snapshots : new boolean[] {false, true}) {
+            WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory("test", snapshots);
+            List<WsDiscoveryService> services = new ArrayList<WsDiscoveryService>();
+            for (int i = 0; i < 10; i++)
+                services.add(WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/" + i, "http://10.0.0." + i + "/"));
+
+            IWsDiscoveryServiceCollection before = instance.matchAll();
+            instance.storeAll(services);
+            assertEquals(10, instance.size());
+            assertEquals(0, before.size());
+            assertSame(services.get(3), instance.findService(services.get(3).getEndpointReference()));
+
+            instance.removeAll(services.subList(0, 6));
+            assertEquals(4, instance.size());
+            assertNull(instance.findService(services.get(5).getEndpointReference()));
+            assertEquals(4, instance.matchBy(Arrays.asList(new QName("a")), null).size());
+        }
+    }
+
+    /**
+     * Listeners must be notified of each added, updated and removed service.
+     */
+    @Test
+    public void testListener() throws Exception {
+        System.out.println("listener");
+        for (boolean snapshots : new boolean[] {false, true}) {
+            WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory("test", snapshots);
+            final List<String> events = new ArrayList<String>();
+            IWsDiscoveryServiceDirectoryListener listener = new IWsDiscoveryServiceDirectoryListener() {
+                public void serviceAdded(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+                    events.add("added " + service.getXAddrs().get(0));
+                }
+
+                public void serviceUpdated(IWsDiscoveryServiceDirectory directory, WsDiscoveryService oldService, WsDiscoveryService newService) {
+                    events.add("updated " + oldService.getXAddrs().get(0) + " " + newService.getXAddrs().get(0));
+                }
+
+                public void serviceRemoved(IWsDiscoveryServiceDirectory directory, WsDiscoveryService service) {
+                    events.add("removed " + service.getXAddrs().get(0));
+                }
+            };
+            instance.addListener(listener);
+
+            WsDiscoveryService a = WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/a", "http://10.0.0.1/");
+            WsDiscoveryService a2 = WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/a", "http://10.0.0.2/");
+            a2.setEndpointReference(a.getEndpointReference());
+
+            instance.store(a);
+            instance.store(a2);
+            instance.remove(a2);
+            instance.remove(a2);
+            instance.removeListener(listener);
+            instance.store(a);
+
+            assertEquals(Arrays.asList(
+                    "added http://10.0.0.1/",
+                    "updated http://10.0.0.1/ http://10.0.0.2/",
+                    "removed http://10.0.0.2/"), events);
+        }
+    }
+
+    private void testChangeStoredService(boolean snapshots) throws Exception {
+        WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory("test", snapshots);
+        WsDiscoveryService a = WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/a", "http://10.0.0.1/");
+        WsDiscoveryService b = WsDiscoveryBuilder.createService(new QName("b"), "http://www.test.com/b", "http://10.0.0.2/");
+        instance.store(a);
+        instance.store(b);
+        long version = instance.getVersion();
+
+        a.setPortTypes(Arrays.asList(new QName("c")));
+        assertTrue(instance.getVersion() > version);
+        assertEquals(0, instance.matchBy(Arrays.asList(new QName("a")), null).size());
+        assertTrue(instance.matchBy(Arrays.asList(new QName("c")), null).contains(a));
+
+        // Each scope index must follow the change
+        String uuid = "uuid:" + java.util.UUID.randomUUID().toString();
+        a.setScopes(Arrays.asList(URI.create("http://www.test.com/c/d"), URI.create(uuid)));
+        assertEquals(0, instance.matchBy(null, Arrays.asList(URI.create("http://www.test.com/a")), MatchBy.strcmp0).size());
+        assertTrue(instance.matchBy(null, Arrays.asList(URI.create("http://www.test.com/c/d")), MatchBy.strcmp0).contains(a));
+        assertTrue(instance.matchBy(null, Arrays.asList(URI.create("http://www.test.com/c")), MatchBy.RFC2396).contains(a));
+        assertTrue(instance.matchBy(null, Arrays.asList(URI.create(uuid)), MatchBy.UUID).contains(a));
+
+        // A new endpoint reference moves the service, replacing the one stored there
+        version = instance.getVersion();
+        String oldAddress = a.getEndpointReference();
+        a.setEndpointReference(b.getEndpointReference());
+        assertTrue(instance.getVersion() > version);
+        assertEquals(1, instance.size());
+        assertNull(instance.findService(oldAddress));
+        assertSame(a, instance.findService(b.getEndpointReference()));
+        assertEquals(0, instance.matchBy(Arrays.asList(new QName("b")), null).size());
+
+        // A removed service no longer changes the directory
+        instance.remove(a);
+        version = instance.getVersion();
+        a.setPortTypes(Arrays.asList(new QName("a")));
+        b.setPortTypes(Arrays.asList(new QName("a")));
+        assertEquals(version, instance.getVersion());
+        assertEquals(0, instance.matchBy(Arrays.asList(new QName("a")), null).size());
+    }
+
+    /**
+     * A service changed in place with its setters must be reindexed.
+     */
+    @Test
+    public void testChangeStoredService() throws Exception {
+        System.out.println("changeStoredService");
+        testChangeStoredService(false);
+    }
+
+    /**
+     * A service changed in place with its setters must be reindexed in 
+     * snapshot mode.
+     */
+    @Test
+    public void testChangeStoredServiceSnapshot() throws Exception {
+        System.out.println("changeStoredServiceSnapshot");
+        testChangeStoredService(true);
+    }
+
+    /**
+     * A service stored in two directories is announced to the second 
+     * directory when the first changes its metadata version.
+     */
+    @Test
+    public void testChangeSharedService() throws Exception {
+        System.out.println("changeSharedService");
+        WsDiscoveryServiceDirectory first = new WsDiscoveryServiceDirectory("first", false);
+        WsDiscoveryServiceDirectory second = new WsDiscoveryServiceDirectory("second", true);
+        WsDiscoveryService a = WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/a", "http://10.0.0.1/");
+        WsDiscoveryService a2 = WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/a", "http://10.0.0.2/");
+        a2.setEndpointReference(a.getEndpointReference());
+        first.store(a);
+        second.store(a2);
+        long version = second.getVersion();
+
+        first.store(a2);
+        assertEquals(a.getMetadataVersion() + 1, a2.getMetadataVersion());
+        assertTrue(second.getVersion() > version);
+    }
+
+    /**
+     * Lists returned by the getters can not be used to change the service.
+     */
+    @Test
+    public void testGettersUnmodifiable() throws Exception {
+        System.out.println("gettersUnmodifiable");
+        WsDiscoveryService a = WsDiscoveryBuilder.createService(new QName("a"), "http://www.test.com/a", "http://10.0.0.1/");
+        try {
+            a.getPortTypes().add(new QName("b"));
+            fail("Port types can be modified");
+        } catch (UnsupportedOperationException ex) {
+        }
+        try {
+            a.getScopes().clear();
+            fail("Scopes can be modified");
+        } catch (UnsupportedOperationException ex) {
+        }
+        try {
+            a.getXAddrs().clear();
+            fail("XAddrs can be modified");
+        } catch (UnsupportedOperationException ex) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+PortTypeIndexTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class PortTypeIndexTest {
+
+    private static final QName a = new QName("http://example.com/ns", "A");
+    private static final QName b = new QName("http://example.com/ns", "B");
+    private static final QName c = new QName("http://example.com/ns", "C");
+
+    public PortTypeIndexTest() {
+    }
+
+    private static WsDiscoveryService createService(QName... types) {
+        return new WsDiscoveryService(Arrays.asList(types), new ScopesType(), 
+                Arrays.asList("http://10.0.0.1/"));
+    }
+
+    /**
+     * Test of match method, of class PortTypeIndex.
+     */
+    @Test
+    public void testMatch() {
+        System.out.println("match");
+        PortTypeIndex instance = new PortTypeIndex();
+        WsDiscoveryService sa = createService(a);
+        WsDiscoveryService sab = createService(a, b);
+        WsDiscoveryService sb = createService(b);
+        instance.add(sa);
+        instance.add(sab);
+        instance.add(sb);
+
+        assertNull(instance.match(null));
+        assertNull(instance.match(new ArrayList<QName>()));
+
+        assertEquals(Arrays.asList(sa, sab), new ArrayList<WsDiscoveryService>(instance.match(Arrays.asList(a))));
+        assertEquals(Arrays.asList(sab), new ArrayList<WsDiscoveryService>(instance.match(Arrays.asList(a, b))));
+        assertEquals(Arrays.asList(sab), new ArrayList<WsDiscoveryService>(instance.match(Arrays.asList(b, a))));
+        assertTrue(instance.match(Arrays.asList(a, c)).isEmpty());
+
+        // The prefix is not part of the comparison
+        assertEquals(2, instance.match(Arrays.asList(new QName(b.getNamespaceURI(), "B", "x"))).size());
+    }
+
+    /**
+     * Services must be removed with the port types they were added with.
+     */
+    @Test
+    public void testRemove() {
+        System.out.println("remove");
+        PortTypeIndex instance = new PortTypeIndex();
+        WsDiscoveryService s = createService(a, b);
+        instance.add(s);
+
+        List<QName> changed = new ArrayList<QName>();
+        changed.add(c);
+        s.setPortTypes(changed);
+
+        instance.remove(s);
+        assertEquals(0, instance.count(a));
+        assertEquals(0, instance.count(b));
+        assertEquals(0, instance.count(c));
+
+        // Adding again uses the new port types
+        instance.add(s);
+        instance.add(s);
+        Collection<WsDiscoveryService> res = instance.match(Arrays.asList(c));
+        assertEquals(1, res.size());
+        assertTrue(instance.match(Arrays.asList(a)).isEmpty());
+    }
+}
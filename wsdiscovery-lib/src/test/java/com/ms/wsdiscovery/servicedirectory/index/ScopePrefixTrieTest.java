@@ -0,0 +1,135 @@
+/*
+ScopePrefixTrieTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.WsDiscoveryBuilder;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchScopeRFC2396;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class ScopePrefixTrieTest {
+
+    private static final String[] targetScopes = {
+        "http://www.test.com/a/b",
+        "http://www.test.com/a/b/c",
+        "http://WWW.TEST.COM/a/bc",
+        "http://www.test.com/",
+        "http://www.test.com",
+        "HTTP://www.test.com/A",
+        "http://www.example.com/a/b",
+        "ldap://ldap.example.com/ou=people",
+        "onvif://www.onvif.org/location/country/norway",
+        "onvif://www.onvif.org/type/video_encoder"
+    };
+
+    private static final String[] probeScopes = {
+        "http://www.test.com/a/b",
+        "http://www.test.com/a/",
+        "http://www.test.com/a",
+        "http://www.test.com/a/b///",
+        "http://www.test.com/",
+        "http://www.test.com",
+        "HTTP://WWW.TEST.COM/a",
+        "http://www.test.com/aa",
+        "http://www.test.com/A",
+        "http://www.example.com",
+        "onvif://www.onvif.org/location",
+        "onvif://www.onvif.org/type/video_encoder/x",
+        "fail"
+    };
+
+    public ScopePrefixTrieTest() {
+    }
+
+    private static List<WsDiscoveryService> createServices() {
+        List<WsDiscoveryService> services = new ArrayList<WsDiscoveryService>();
+        for (String scope : targetScopes)
+            services.add(WsDiscoveryBuilder.createService(new QName("a"), scope, "http://10.0.0.1/"));
+        return services;
+    }
+
+    private static ScopesType scopes(String... values) {
+        ScopesType s = new ScopesType();
+        for (String v : values)
+            s.getValue().add(v);
+        return s;
+    }
+
+    /**
+     * The trie must give the same result as MatchScopeRFC2396.
+     */
+    @Test
+    public void testMatch() {
+        System.out.println("match");
+        List<WsDiscoveryService> services = createServices();
+        ScopePrefixTrie instance = new ScopePrefixTrie();
+        for (WsDiscoveryService s : services)
+            instance.add(s);
+
+        MatchScopeRFC2396 matcher = new MatchScopeRFC2396();
+        for (String p1 : probeScopes)
+            for (String p2 : probeScopes) {
+                ScopesType probe = scopes(p1, p2);
+
+                Set<WsDiscoveryService> expResult = new HashSet<WsDiscoveryService>();
+                for (WsDiscoveryService s : services)
+                    if (matcher.matchScope(s, probe))
+                        expResult.add(s);
+
+                Collection<WsDiscoveryService> result = instance.match(probe);
+                assertEquals(p1 + " " + p2, expResult, new HashSet<WsDiscoveryService>(result));
+            }
+
+        assertNull(instance.match(null));
+        assertNull(instance.match(new ScopesType()));
+    }
+
+    /**
+     * Removing all services must leave an empty trie.
+     */
+    @Test
+    public void testRemove() {
+        System.out.println("remove");
+        List<WsDiscoveryService> services = createServices();
+        ScopePrefixTrie instance = new ScopePrefixTrie();
+        for (WsDiscoveryService s : services)
+            instance.add(s);
+
+        instance.remove(services.get(0));
+        assertFalse(instance.match(scopes("http://www.test.com/a/b")).contains(services.get(0)));
+        assertTrue(instance.match(scopes("http://www.test.com/a/b")).contains(services.get(1)));
+
+        for (WsDiscoveryService s : services)
+            instance.remove(s);
+        for (String p : probeScopes)
+            assertTrue(instance.match(scopes(p)).isEmpty());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ScopeStringIndexTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchScopeStrcmp0;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class ScopeStringIndexTest {
+
+    private static final String[][] targetScopes = {
+        {"http://www.test.com/a"},
+        {"http://www.test.com/a", "http://www.test.com/b"},
+        {"http://www.test.com/b"},
+        {"HTTP://www.test.com/a"},
+        {}
+    };
+
+    private static final String[] probeScopes = {
+        "http://www.test.com/a",
+        "http://www.test.com/b",
+        "http://www.test.com/A",
+        "http://www.test.com/c"
+    };
+
+    public ScopeStringIndexTest() {
+    }
+
+    private static ScopesType scopes(String... values) {
+        ScopesType s = new ScopesType();
+        for (String v : values)
+            s.getValue().add(v);
+        return s;
+    }
+
+    private static List<WsDiscoveryService> createServices() {
+        List<WsDiscoveryService> services = new ArrayList<WsDiscoveryService>();
+        for (String[] s : targetScopes)
+            services.add(new WsDiscoveryService(new QName("a"), scopes(s), "http://10.0.0.1/"));
+        return services;
+    }
+
+    /**
+     * The index must give the same result as MatchScopeStrcmp0.
+     */
+    @Test
+    public void testMatch() {
+        System.out.println("match");
+        List<WsDiscoveryService> services = createServices();
+        ScopeStringIndex instance = new ScopeStringIndex();
+        for (WsDiscoveryService s : services)
+            instance.add(s);
+
+        MatchScopeStrcmp0 matcher = new MatchScopeStrcmp0();
+        List<ScopesType> probes = new ArrayList<ScopesType>();
+        probes.add(scopes());
+        for (String p1 : probeScopes) {
+            probes.add(scopes(p1));
+            for (String p2 : probeScopes)
+                probes.add(scopes(p1, p2));
+        }
+
+        for (ScopesType probe : probes) {
+            Set<WsDiscoveryService> expResult = new HashSet<WsDiscoveryService>();
+            for (WsDiscoveryService s : services)
+                if (matcher.matchScope(s, probe))
+                    expResult.add(s);
+            assertEquals(probe.getValue().toString(), expResult, 
+                    new HashSet<WsDiscoveryService>(instance.match(probe)));
+        }
+
+        assertNull(instance.match(null));
+    }
+
+    /**
+     * Removed services must not be returned.
+     */
+    @Test
+    public void testRemove() {
+        System.out.println("remove");
+        List<WsDiscoveryService> services = createServices();
+        ScopeStringIndex instance = new ScopeStringIndex();
+        for (WsDiscoveryService s : services)
+            instance.add(s);
+
+        instance.remove(services.get(0));
+        assertEquals(1, instance.match(scopes("http://www.test.com/a")).size());
+        instance.remove(services.get(1));
+        assertTrue(instance.match(scopes("http://www.test.com/a")).isEmpty());
+        assertEquals(1, instance.match(scopes("http://www.test.com/b")).size());
+    }
+}
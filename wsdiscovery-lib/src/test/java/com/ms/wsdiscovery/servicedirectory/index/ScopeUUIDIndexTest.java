@@ -0,0 +1,125 @@
+/*
+ScopeUUIDIndexTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.index;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchScopeUUID;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class ScopeUUIDIndexTest {
+
+    private static final String uuid1 = "6ba7b810-9dad-11d1-80b4-00c04fd430c8";
+    private static final String uuid2 = "6ba7b811-9dad-11d1-80b4-00c04fd430c8";
+
+    private static final String[][] targetScopes = {
+        {"urn:uuid:" + uuid1},
+        {"uuid:" + uuid1.toUpperCase(), "http://www.test.com/a"},
+        {uuid2},
+        {"http://www.test.com/a"},
+        {}
+    };
+
+    private static final String[] probeScopes = {
+        uuid1,
+        "urn:uuid:" + uuid2,
+        "uuid:00000000-0000-0000-0000-000000000000",
+        "http://www.test.com/a",
+        "fail"
+    };
+
+    public ScopeUUIDIndexTest() {
+    }
+
+    private static ScopesType scopes(String... values) {
+        ScopesType s = new ScopesType();
+        for (String v : values)
+            s.getValue().add(v);
+        return s;
+    }
+
+    private static List<WsDiscoveryService> createServices() {
+        List<WsDiscoveryService> services = new ArrayList<WsDiscoveryService>();
+        for (String[] s : targetScopes)
+            services.add(new WsDiscoveryService(new QName("a"), scopes(s), "http://10.0.0.1/"));
+        return services;
+    }
+
+    /**
+     * The index must give the same result as MatchScopeUUID, which must not
+     * fail on target scopes that are not UUIDs.
+     */
+    @Test
+    public void testMatch() {
+        System.out.println("match");
+        List<WsDiscoveryService> services = createServices();
+        ScopeUUIDIndex instance = new ScopeUUIDIndex();
+        for (WsDiscoveryService s : services)
+            instance.add(s);
+
+        MatchScopeUUID matcher = new MatchScopeUUID();
+        List<ScopesType> probes = new ArrayList<ScopesType>();
+        probes.add(scopes());
+        for (String p1 : probeScopes) {
+            probes.add(scopes(p1));
+            for (String p2 : probeScopes)
+                probes.add(scopes(p1, p2));
+        }
+
+        for (ScopesType probe : probes) {
+            Set<WsDiscoveryService> expResult = new HashSet<WsDiscoveryService>();
+            for (WsDiscoveryService s : services)
+                if (matcher.matchScope(s, probe))
+                    expResult.add(s);
+            assertEquals(probe.getValue().toString(), expResult, 
+                    new HashSet<WsDiscoveryService>(instance.match(probe)));
+        }
+
+        assertEquals(2, instance.match(scopes(uuid1)).size());
+        assertNull(instance.match(null));
+    }
+
+    /**
+     * Removed services must not be returned.
+     */
+    @Test
+    public void testRemove() {
+        System.out.println("remove");
+        List<WsDiscoveryService> services = createServices();
+        ScopeUUIDIndex instance = new ScopeUUIDIndex();
+        for (WsDiscoveryService s : services)
+            instance.add(s);
+
+        instance.remove(services.get(0));
+        assertEquals(1, instance.match(scopes(uuid1)).size());
+        instance.remove(services.get(1));
+        assertTrue(instance.match(scopes(uuid1)).isEmpty());
+        assertEquals(1, instance.match(scopes(uuid2)).size());
+    }
+}
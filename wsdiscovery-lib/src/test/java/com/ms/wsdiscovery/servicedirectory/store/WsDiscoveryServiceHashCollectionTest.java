@@ -0,0 +1,136 @@
+/*
+WsDiscoveryServiceHashCollectionTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.store;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.EndpointReferenceType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ScopesType;
+import java.util.Iterator;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryServiceHashCollectionTest {
+
+    public WsDiscoveryServiceHashCollectionTest() {
+    }
+
+    /**
+     * Create a service with the same endpoint reference as <code>service</code>.
+     */
+    private static WsDiscoveryService createWithSameEndpoint(WsDiscoveryService service, String name) {
+        WsDiscoveryService s = new WsDiscoveryService(new QName(name), new ScopesType(), "xaddr-" + name);
+        EndpointReferenceType er = new EndpointReferenceType();
+        er.setAddress(WsDiscoveryConstants.XMLBUILDER.createAttributedURI(service.getEndpointReference()));
+        s.setEndpointReferenceType(er);
+        return s;
+    }
+
+    /**
+     * Test of add method, of class WsDiscoveryServiceHashCollection.
+     */
+    @Test
+    public void testAdd() {
+        System.out.println("add");
+        WsDiscoveryServiceHashCollection instance = new WsDiscoveryServiceHashCollection();
+        WsDiscoveryService service1 = new WsDiscoveryService(new QName("a"), new ScopesType(), "xaddr1");
+        WsDiscoveryService service2 = createWithSameEndpoint(service1, "b");
+
+        assertTrue(instance.add(service1));
+        assertFalse(instance.add(service1));
+        assertEquals(1, instance.size());
+
+        // Same endpoint reference replaces the existing service
+        assertTrue(instance.add(service2));
+        assertEquals(1, instance.size());
+        assertSame(service2, instance.get(service1.getEndpointReference()));
+    }
+
+    /**
+     * Test of update method, of class WsDiscoveryServiceHashCollection.
+     */
+    @Test
+    public void testUpdate() {
+        System.out.println("update");
+        WsDiscoveryServiceHashCollection instance = new WsDiscoveryServiceHashCollection();
+        WsDiscoveryService service1 = new WsDiscoveryService(new QName("a"), new ScopesType(), "xaddr1");
+        WsDiscoveryService service2 = createWithSameEndpoint(service1, "b");
+
+        assertFalse(instance.update(service1));
+        instance.add(service1);
+        assertTrue(instance.update(service2));
+
+        assertFalse(instance.contains(service1));
+        assertTrue(instance.contains(service2));
+        assertEquals("xaddr-b", instance.get(service1.getEndpointReference()).getXAddrs().get(0));
+    }
+
+    /**
+     * Test of contains and remove methods, of class WsDiscoveryServiceHashCollection.
+     */
+    @Test
+    public void testContainsAndRemove() {
+        System.out.println("containsAndRemove");
+        WsDiscoveryServiceHashCollection instance = new WsDiscoveryServiceHashCollection();
+        WsDiscoveryService service1 = new WsDiscoveryService(new QName("a"), new ScopesType(), "xaddr1");
+        WsDiscoveryService service2 = new WsDiscoveryService(new QName("b"), new ScopesType(), "xaddr2");
+        WsDiscoveryService service3 = new WsDiscoveryService(new QName("c"), new ScopesType(), "xaddr3");
+
+        instance.add(service1);
+        instance.add(service2);
+
+        assertTrue(instance.contains(service1.getEndpointReference()));
+        assertTrue(instance.contains(service2));
+        assertFalse(instance.contains(service3.getEndpointReference()));
+        assertFalse(instance.contains(service3));
+
+        // Only the stored instance is removed
+        assertFalse(instance.remove(createWithSameEndpoint(service1, "d")));
+        assertTrue(instance.remove(service1));
+        assertFalse(instance.contains(service1.getEndpointReference()));
+        assertSame(service2, instance.remove(service2.getEndpointReference()));
+        assertTrue(instance.isEmpty());
+    }
+
+    /**
+     * Iteration must return services in insertion order.
+     */
+    @Test
+    public void testIterator() {
+        System.out.println("iterator");
+        WsDiscoveryServiceHashCollection instance = new WsDiscoveryServiceHashCollection();
+        WsDiscoveryService[] services = new WsDiscoveryService[10];
+        for (int i = 0; i < services.length; i++) {
+            services[i] = new WsDiscoveryService(new QName("s" + i), new ScopesType(), "xaddr" + i);
+            instance.add(services[i]);
+        }
+        instance.update(createWithSameEndpoint(services[3], "updated"));
+
+        Iterator<WsDiscoveryService> it = instance.iterator();
+        for (int i = 0; i < services.length; i++)
+            assertEquals(services[i].getEndpointReference(), it.next().getEndpointReference());
+        assertFalse(it.hasNext());
+    }
+}
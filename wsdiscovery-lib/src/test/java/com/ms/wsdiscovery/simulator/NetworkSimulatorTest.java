@@ -0,0 +1,197 @@
+/*
+NetworkSimulatorTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.simulator;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.clock.interfaces.IClock;
+import com.ms.wsdiscovery.network.transport.soapudp.SOAPOverUDP;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static com.ms.wsdiscovery.servicedirectory.SampleServices.createService;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class NetworkSimulatorTest {
+
+    public NetworkSimulatorTest() {
+    }
+
+    /**
+     * The virtual clock is installed while the simulator is open, and only 
+     * moves when the simulation runs.
+     */
+    @Test
+    public void testClock() {
+        System.out.println("clock");
+        IClock previous = WsDiscoveryConstants.clock;
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            assertSame(sim.getClock(), WsDiscoveryConstants.clock);
+            assertEquals(NetworkSimulator.START_TIME, WsDiscoveryConstants.clock.currentTimeMillis());
+            sim.run(1500);
+            assertEquals(1500, sim.getElapsed());
+            assertEquals(0, sim.runUntilIdle());
+            assertEquals(1500, sim.getElapsed());
+        } finally {
+            sim.close();
+        }
+        assertSame(previous, WsDiscoveryConstants.clock);
+    }
+
+    /**
+     * A client probing a segment must find every device, with the number of 
+     * transmissions given by the SOAP-over-UDP repeat counts.
+     */
+    @Test
+    public void testProbe() throws Exception {
+        System.out.println("probe");
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            int devices = 10;
+            for (int i = 0; i < devices; i++)
+                sim.createNode().getLocalServices().store(createService(i));
+            SimulatedNode client = sim.createNode();
+            sim.setLatency(1, 5);
+
+            client.probe();
+            sim.runUntilIdle();
+
+            assertEquals(devices, client.getServiceDirectory().size());
+            assertEquals(0, sim.getErrors());
+            assertEquals(1 + devices, sim.getSent());
+            assertEquals(SOAPOverUDP.MULTICAST_UDP_REPEAT + devices * SOAPOverUDP.UNICAST_UDP_REPEAT, 
+                    sim.getTransmissions());
+            // Retransmissions are discarded as duplicates
+            assertEquals((SOAPOverUDP.UNICAST_UDP_REPEAT - 1) * devices, 
+                    client.getDuplicateMessageFilter().getHits());
+            assertTrue(sim.getElapsed() < SOAPOverUDP.UDP_UPPER_DELAY * SOAPOverUDP.MULTICAST_UDP_REPEAT);
+        } finally {
+            sim.close();
+        }
+    }
+
+    /**
+     * Hellos reach every other node. Nothing is delivered when all packets 
+     * are lost.
+     */
+    @Test
+    public void testHelloAndLoss() throws Exception {
+        System.out.println("helloAndLoss");
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            SimulatedNode a = sim.createNode();
+            SimulatedNode b = sim.createNode();
+            SimulatedNode c = sim.createNode();
+
+            a.publish(createService(1));
+            sim.runUntilIdle();
+            assertEquals(1, b.getServiceDirectory().size());
+            assertEquals(1, c.getServiceDirectory().size());
+            assertEquals(0, a.getReceived());
+            assertEquals(2 * SOAPOverUDP.MULTICAST_UDP_REPEAT, sim.getDelivered());
+
+            sim.setLoss(1);
+            b.publish(createService(2));
+            sim.runUntilIdle();
+            assertEquals(1, a.getServiceDirectory().size());
+            assertEquals(2 * SOAPOverUDP.MULTICAST_UDP_REPEAT, sim.getLost());
+        } finally {
+            sim.close();
+        }
+    }
+
+    /**
+     * Hellos from publishAll are spread out at the configured rate, and 
+     * unpublishAll removes all services from the other nodes.
+     */
+    @Test
+    public void testPublishAll() throws Exception {
+        System.out.println("publishAll");
+        int rate = WsDiscoveryConstants.announceRate;
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            WsDiscoveryConstants.announceRate = 20;
+            SimulatedNode a = sim.createNode();
+            SimulatedNode b = sim.createNode();
+            List<WsDiscoveryService> services = new ArrayList<WsDiscoveryService>();
+            for (int i = 0; i < 100; i++)
+                services.add(createService(i));
+
+            a.publishAll(services);
+            assertEquals(100, a.getLocalServices().size());
+            assertEquals(0, sim.getTransmissions());
+
+            // At most 20 per second (21 slots in [0, 1000]), plus the random delay
+            sim.run(1000);
+            int received = b.getServiceDirectory().size();
+            assertTrue(received > 0);
+            assertTrue(received <= 21);
+            sim.runUntilIdle();
+            assertEquals(100, b.getServiceDirectory().size());
+            assertTrue(sim.getElapsed() >= 99 * 1000 / 20);
+
+            a.unpublishAll(a.getLocalServices().matchAll());
+            assertEquals(0, a.getLocalServices().size());
+            sim.run(1000);
+            assertTrue(b.getServiceDirectory().size() >= 100 - 21);
+            sim.runUntilIdle();
+            assertEquals(0, b.getServiceDirectory().size());
+            assertEquals(0, sim.getErrors());
+        } finally {
+            WsDiscoveryConstants.announceRate = rate;
+            sim.close();
+        }
+    }
+
+    /**
+     * Unpublishing a service whose paced Hello has not been sent yet must 
+     * not leave it in the directories of the other nodes.
+     */
+    @Test
+    public void testUnpublishPendingHello() throws Exception {
+        System.out.println("unpublishPendingHello");
+        int rate = WsDiscoveryConstants.announceRate;
+        NetworkSimulator sim = new NetworkSimulator();
+        try {
+            WsDiscoveryConstants.announceRate = 20;
+            SimulatedNode a = sim.createNode();
+            SimulatedNode b = sim.createNode();
+            List<WsDiscoveryService> services = new ArrayList<WsDiscoveryService>();
+            for (int i = 0; i < 10; i++)
+                services.add(createService(i));
+
+            a.publishAll(services);
+            sim.run(100);
+            assertTrue(b.getServiceDirectory().size() < 10);
+            a.unpublish(services.get(9));
+            sim.runUntilIdle();
+            assertEquals(9, b.getServiceDirectory().size());
+            assertNull(b.getServiceDirectory().findService(services.get(9).getEndpointReference()));
+            assertEquals(0, sim.getErrors());
+        } finally {
+            WsDiscoveryConstants.announceRate = rate;
+            sim.close();
+        }
+    }
+}
@@ -109,6 +109,9 @@ public class WsdXMLBuilderTest {
         System.out.println("newInstance");
         JAXBContext j = instance.newInstance();
         assertNotNull(j);
+        // The context is shared between calls and builders
+        assertSame(j, instance.newInstance());
+        assertSame(j, new WsdXMLBuilder().newInstance());
     }
 
     /**
@@ -133,6 +136,39 @@ public class WsdXMLBuilderTest {
         assertNotSame(expResult, result);
     }
 
+    /**
+     * Test of borrowMarshaller and returnMarshaller methods, of class WsdXMLBuilder.
+     */
+    @Test
+    public void testBorrowMarshaller() throws Exception {
+        System.out.println("borrowMarshaller");
+        WsdXMLBuilder builder = new WsdXMLBuilder();
+        Marshaller m1 = builder.borrowMarshaller();
+        Marshaller m2 = builder.borrowMarshaller();
+        assertNotNull(m1);
+        assertNotSame(m1, m2); // Borrowed marshallers are never shared
+
+        builder.returnMarshaller(m1);
+        assertSame(m1, builder.borrowMarshaller()); // Returned marshallers are reused
+        builder.returnMarshaller(null); // Ignored
+    }
+
+    /**
+     * Test of borrowUnmarshaller and returnUnmarshaller methods, of class WsdXMLBuilder.
+     */
+    @Test
+    public void testBorrowUnmarshaller() throws Exception {
+        System.out.println("borrowUnmarshaller");
+        WsdXMLBuilder builder = new WsdXMLBuilder();
+        Unmarshaller u1 = builder.borrowUnmarshaller();
+        Unmarshaller u2 = builder.borrowUnmarshaller();
+        assertNotNull(u1);
+        assertNotSame(u1, u2);
+
+        builder.returnUnmarshaller(u1);
+        assertSame(u1, builder.borrowUnmarshaller());
+    }
+
     /**
      * Test of cloneEndpointReference method, of class WsdXMLBuilder.
      */
@@ -6,7 +6,9 @@
 package com.ms.wsdiscovery.xml.soap;
 
 import com.ms.wsdiscovery.WsDiscoveryBuilder;
+import com.ms.wsdiscovery.WsDiscoveryConstants;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.exception.WsDiscoveryXMLException;
 import com.ms.wsdiscovery.xml.jaxb_generated.ByeType;
 import com.ms.wsdiscovery.xml.jaxb_generated.EndpointReferenceType;
 import com.ms.wsdiscovery.xml.jaxb_generated.HelloType;
@@ -115,6 +117,87 @@ public class WsdSOAPMessageBuilderTest {
         assertEquals(expResult.toString(), result.toString());
     }
 
+    /**
+     * Test of createWsdSOAPMessage method, of class WsdSOAPMessageBuilder.
+     */
+    @Test
+    public void testCreateWsdSOAPMessage_bytes() throws Exception {
+        System.out.println("createWsdSOAPMessage");
+        byte[] xml = wsdString.getBytes(WsDiscoveryConstants.defaultEncoding);
+        byte[] data = new byte[xml.length + 10];
+        System.arraycopy(xml, 0, data, 5, xml.length);
+        WsdSOAPMessage expResult = new WsdSOAPMessage(instance.createSOAPMessage(wsdString));
+        WsdSOAPMessage result = instance.createWsdSOAPMessage(data, 5, xml.length);
+        assertEquals(expResult.toString(), result.toString());
+    }
+
+    /**
+     * Test of createWsdSOAPMessageFromStream method, of class WsdSOAPMessageBuilder.
+     */
+    @Test
+    public void testCreateWsdSOAPMessageFromStream() throws Exception {
+        System.out.println("createWsdSOAPMessageFromStream");
+        String SoapAsXML = wsdString.replace("</env:Header>", 
+                "<wsa:RelatesTo RelationshipType=\"Suppression\">urn:uuid:7d9a40cc-38ca-4bd5-8e65-33f2c3a9b5a4</wsa:RelatesTo>" +
+                "<wsa:ReplyTo><wsa:Address>http://10.0.0.1/</wsa:Address></wsa:ReplyTo>" +
+                "</env:Header>");
+        byte[] data = SoapAsXML.getBytes(WsDiscoveryConstants.defaultEncoding);
+        WsdSOAPMessage expResult = new WsdSOAPMessage(instance.createSOAPMessage(SoapAsXML));
+        WsdSOAPMessage result = instance.createWsdSOAPMessageFromStream(data, 0, data.length);
+        
+        assertEquals(expResult.getWsdInstanceId(), result.getWsdInstanceId());
+        assertEquals(expResult.getWsdMessageNumber(), result.getWsdMessageNumber());
+        assertEquals(expResult.getWsdSequenceId(), result.getWsdSequenceId());
+        assertEquals(expResult.getWsaMessageId().getValue(), result.getWsaMessageId().getValue());
+        assertEquals(expResult.getWsaRelatesTo().getValue(), result.getWsaRelatesTo().getValue());
+        assertEquals(WsDiscoveryConstants.defaultProxyRelatesToRelationship, result.getWsaRelatesTo().getRelationshipType());
+        assertEquals(expResult.getWsaReplyTo().getAddress().getValue(), result.getWsaReplyTo().getAddress().getValue());
+        assertEquals(expResult.toString(), result.toString());
+    }
+
+    /**
+     * Test of createWsdSOAPMessage method with lazy body, of class WsdSOAPMessageBuilder.
+     */
+    @Test
+    public void testCreateWsdSOAPMessage_lazyBody() throws Exception {
+        System.out.println("createWsdSOAPMessage");
+        byte[] data = wsdString.getBytes(WsDiscoveryConstants.defaultEncoding);
+        WsdSOAPMessage expResult = new WsdSOAPMessage(instance.createSOAPMessage(wsdString));
+        WsdSOAPMessage result = instance.createWsdSOAPMessage(data, 0, data.length, true);
+        assertEquals(expResult.getWsaMessageId().getValue(), result.getWsaMessageId().getValue());
+        assertEquals(expResult.getWsdInstanceId(), result.getWsdInstanceId());
+        assertTrue(result.getJAXBBody() instanceof ProbeType);
+        assertEquals(expResult.toString(), result.toString());
+    }
+
+    /**
+     * Header fields must be available even if the body can not be unmarshalled.
+     */
+    @Test
+    public void testCreateWsdSOAPMessage_lazyBodyInvalid() throws Exception {
+        System.out.println("createWsdSOAPMessage");
+        byte[] data = wsdString.replace("wsd:Probe>", "wsd:Unknown>").getBytes(WsDiscoveryConstants.defaultEncoding);
+        WsdSOAPMessage result = instance.createWsdSOAPMessage(data, 0, data.length, true);
+        assertEquals("urn:uuid:62e53589-fd2f-4882-b8ad-6b7250a085eb", result.getWsaMessageId().getValue());
+        assertEquals(1249385563071L, result.getWsdInstanceId());
+        try {
+            result.parseBody();
+            fail("Expected WsDiscoveryXMLException");
+        } catch (WsDiscoveryXMLException ex) {
+        }
+    }
+
+    /**
+     * Test of createWsdSOAPMessageFromStream method, of class WsdSOAPMessageBuilder.
+     */
+    @Test(expected=WsDiscoveryXMLException.class)
+    public void testCreateWsdSOAPMessageFromStream_Soap11() throws Exception {
+        System.out.println("createWsdSOAPMessageFromStream");
+        byte[] data = wsdString.replace("http://www.w3.org/2003/05/soap-envelope", 
+                "http://schemas.xmlsoap.org/soap/envelope/").getBytes(WsDiscoveryConstants.defaultEncoding);
+        instance.createWsdSOAPMessageFromStream(data, 0, data.length);
+    }
+
     /**
      * Test of createWsdSOAPMessageHello method, of class WsdSOAPMessageBuilder.
      */
@@ -0,0 +1,139 @@
+/*
+WsdSOAPTemplateTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.xml.soap;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.HelloType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchesType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ResolveMatchesType;
+import java.util.Arrays;
+import java.util.UUID;
+import org.junit.Test;
+import static com.ms.wsdiscovery.servicedirectory.SampleServices.createService;
+import static com.ms.wsdiscovery.xml.soap.WsdSOAPWriterTest.parse;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsdSOAPTemplateTest {
+
+    public WsdSOAPTemplateTest() {
+    }
+
+    /**
+     * A ProbeMatches-message rendered from the template and the service 
+     * fragments must parse with the new header values, escaped.
+     */
+    @Test
+    public void testProbeMatches() throws Exception {
+        System.out.println("probeMatches");
+        String sequenceId = "urn:uuid:" + UUID.randomUUID();
+        WsdSOAPTemplate t = WsdSOAPTemplate.compile(WsaActionType.PROBEMATCHES, sequenceId, true, null);
+        WsDiscoveryService a = createService(1);
+        WsDiscoveryService b = createService(2);
+        byte[][] body = WsDiscoveryConstants.SOAPBUILDER.createProbeMatchesBody(Arrays.asList(a, b));
+
+        String id = "urn:uuid:" + UUID.randomUUID();
+        WsdSOAPMessage m = parse(t.render(id, 12345, "urn:a&b", "http://example.org/<reply>", body));
+        assertEquals(WsaActionType.PROBEMATCHES.toAttributedURI().getValue(), m.getWsaAction().getValue());
+        assertEquals(id, m.getWsaMessageId().getValue());
+        assertEquals(12345, m.getWsdMessageNumber());
+        assertEquals(sequenceId, m.getWsdSequenceId());
+        assertEquals(WsDiscoveryConstants.instanceId, m.getWsdInstanceId());
+        assertEquals("urn:a&b", m.getWsaRelatesTo().getValue());
+        assertEquals("http://example.org/<reply>", m.getWsaTo().getValue());
+
+        ProbeMatchesType matches = (ProbeMatchesType)m.getJAXBBody();
+        assertEquals(2, matches.getProbeMatch().size());
+        WsDiscoveryService parsed = new WsDiscoveryService(matches.getProbeMatch().get(1));
+        assertEquals(b.getEndpointReference(), parsed.getEndpointReference());
+        assertEquals(b.getXAddrs(), parsed.getXAddrs());
+        assertEquals(b.getPortTypes(), parsed.getPortTypes());
+        assertEquals(b.getScopes(), parsed.getScopes());
+
+        // Binding the body leaves the header holes
+        m = parse(t.bind(body).render(id, 1, "urn:c", "urn:d"));
+        assertEquals("urn:c", m.getWsaRelatesTo().getValue());
+        assertEquals(2, ((ProbeMatchesType)m.getJAXBBody()).getProbeMatch().size());
+
+        // Empty body
+        m = parse(t.render(id, 1, "urn:c", "urn:d", 
+                WsDiscoveryConstants.SOAPBUILDER.createProbeMatchesBody(Arrays.<WsDiscoveryService>asList())));
+        assertEquals(0, ((ProbeMatchesType)m.getJAXBBody()).getProbeMatch().size());
+    }
+
+    /**
+     * ResolveMatches with and without a match.
+     */
+    @Test
+    public void testResolveMatches() throws Exception {
+        System.out.println("resolveMatches");
+        WsdSOAPTemplate t = WsdSOAPTemplate.compile(WsaActionType.RESOLVEMATCHES, "urn:uuid:" + UUID.randomUUID(), true, null);
+        WsDiscoveryService a = createService(1);
+
+        WsdSOAPMessage m = parse(t.render("urn:uuid:" + UUID.randomUUID(), 1, "urn:c", "urn:d", 
+                WsDiscoveryConstants.SOAPBUILDER.createResolveMatchesBody(a)));
+        assertEquals(a.getEndpointReference(), ((ResolveMatchesType)m.getJAXBBody())
+                .getResolveMatch().getEndpointReference().getAddress().getValue());
+
+        m = parse(t.render("urn:uuid:" + UUID.randomUUID(), 1, "urn:c", "urn:d", 
+                WsDiscoveryConstants.SOAPBUILDER.createResolveMatchesBody(null)));
+        assertNull(((ResolveMatchesType)m.getJAXBBody()).getResolveMatch());
+    }
+
+    /**
+     * Hello with a Suppression relationship, and a fragment that changes when
+     * the service changes.
+     */
+    @Test
+    public void testHello() throws Exception {
+        System.out.println("hello");
+        WsdSOAPTemplate t = WsdSOAPTemplate.compile(WsaActionType.HELLO, "urn:uuid:" + UUID.randomUUID(), 
+                true, WsDiscoveryConstants.defaultProxyRelatesToRelationship);
+        WsDiscoveryService a = createService(1);
+        byte[] fragment = a.getHelloFragment();
+        assertSame(fragment, a.getHelloFragment());
+
+        WsdSOAPMessage m = parse(t.render("urn:uuid:" + UUID.randomUUID(), 1, "urn:c", 
+                WsDiscoveryConstants.defaultTo.getValue(), fragment));
+        assertEquals(WsDiscoveryConstants.defaultProxyRelatesToRelationship, 
+                m.getWsaRelatesTo().getRelationshipType());
+        assertEquals(1, ((HelloType)m.getJAXBBody()).getXAddrs().size());
+
+        a.setXAddrs(Arrays.asList("http://10.0.0.1/a", "http://10.0.0.1/b"));
+        assertNotSame(fragment, a.getHelloFragment());
+        m = parse(t.render("urn:uuid:" + UUID.randomUUID(), 1, "urn:c", 
+                WsDiscoveryConstants.defaultTo.getValue(), a.getHelloFragment()));
+        assertEquals(2, ((HelloType)m.getJAXBBody()).getXAddrs().size());
+    }
+
+    /**
+     * Test of escape method, of class WsdSOAPTemplate.
+     */
+    @Test
+    public void testEscape() {
+        System.out.println("escape");
+        String s = "urn:uuid:" + UUID.randomUUID();
+        assertSame(s, WsdSOAPTemplate.escape(s));
+        assertEquals("a&amp;b&lt;c&gt;&quot;", WsdSOAPTemplate.escape("a&b<c>\""));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+WsdSOAPWriterTest.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.xml.soap;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeMatchesType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ProbeType;
+import com.ms.wsdiscovery.xml.jaxb_generated.Relationship;
+import com.ms.wsdiscovery.xml.jaxb_generated.ResolveMatchesType;
+import com.ms.wsdiscovery.xml.jaxb_generated.ResolveType;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import javax.xml.namespace.QName;
+import org.junit.Test;
+import static com.ms.wsdiscovery.servicedirectory.SampleServices.createService;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsdSOAPWriterTest {
+
+    public WsdSOAPWriterTest() {
+    }
+
+    /**
+     * Parse a serialized message through SAAJ. Shared by the tests.
+     */
+    public static WsdSOAPMessage parse(byte[] message) throws Exception {
+        return WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessage(
+                new String(message, WsDiscoveryConstants.defaultEncoding));
+    }
+
+    /**
+     * Create a message of the given type with a non-empty body.
+     */
+    static WsdSOAPMessage createMessage(WsaActionType action) {
+        WsdSOAPMessageBuilder b = WsDiscoveryConstants.SOAPBUILDER;
+        WsDiscoveryService service = createService(1);
+        WsdSOAPMessage m;
+        switch (action) {
+            case HELLO:
+                return b.createWsdSOAPMessageHello(service);
+            case BYE:
+                return b.createWsdSOAPMessageBye(service);
+            case PROBE:
+                WsdSOAPMessage<ProbeType> probe = b.createWsdSOAPMessageProbe();
+                probe.getJAXBBody().getTypes().add(new QName("http://example.org/", "A"));
+                probe.getJAXBBody().setScopes(service.createScopesObject());
+                return probe;
+            case PROBEMATCHES:
+                WsdSOAPMessage<ProbeMatchesType> probeMatches = b.createWsdSOAPMessageProbeMatches();
+                probeMatches.getJAXBBody().getProbeMatch().add(service.createProbeMatchObject());
+                probeMatches.getJAXBBody().getProbeMatch().add(createService(2).createProbeMatchObject());
+                m = probeMatches;
+                break;
+            case RESOLVE:
+                WsdSOAPMessage<ResolveType> resolve = b.createWsdSOAPMessageResolve();
+                resolve.getJAXBBody().setEndpointReference(service.createEndpointReferenceObject());
+                return resolve;
+            case RESOLVEMATCHES:
+                WsdSOAPMessage<ResolveMatchesType> resolveMatches = b.createWsdSOAPMessageResolveMatches();
+                resolveMatches.getJAXBBody().setResolveMatch(service.createResolveMatchObject());
+                m = resolveMatches;
+                break;
+            default:
+                throw new IllegalArgumentException(action.toString());
+        }
+        m.setWsaRelatesTo(WsDiscoveryConstants.XMLBUILDER.createRelationship("urn:uuid:" + UUID.randomUUID()));
+        m.setWsaTo(WsDiscoveryConstants.anonymousTo);
+        return m;
+    }
+
+    /**
+     * For every action, the writer output must parse to the same message as 
+     * the SAAJ output. Both are compared by serializing the parsed messages
+     * again.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        System.out.println("write");
+        WsdSOAPWriter instance = new WsdSOAPWriter();
+        for (WsaActionType action : WsaActionType.values()) {
+            WsdSOAPMessage m = createMessage(action);
+            m.setWsdSequenceId("urn:uuid:" + UUID.randomUUID());
+
+            byte[] written = instance.toByteArray(m);
+            WsdSOAPMessage fromWriter = parse(written);
+            WsdSOAPMessage fromSaaj = parse(m.toString().getBytes(WsDiscoveryConstants.defaultEncoding));
+
+            assertEquals(action.toAttributedURI().getValue(), fromWriter.getWsaAction().getValue());
+            assertEquals(m.getWsaMessageId().getValue(), fromWriter.getWsaMessageId().getValue());
+            assertEquals(m.getWsdMessageNumber(), fromWriter.getWsdMessageNumber());
+            assertEquals(m.getWsdInstanceId(), fromWriter.getWsdInstanceId());
+            assertEquals(m.getWsdSequenceId(), fromWriter.getWsdSequenceId());
+            assertEquals(m.getWsaTo().getValue(), fromWriter.getWsaTo().getValue());
+            assertNotNull(fromWriter.getJAXBBody());
+            assertEquals(action.toString(), 
+                    new String(instance.toByteArray(fromSaaj), WsDiscoveryConstants.defaultEncoding), 
+                    new String(instance.toByteArray(fromWriter), WsDiscoveryConstants.defaultEncoding));
+        }
+    }
+
+    /**
+     * Escaped header values, RelationshipType, ReplyTo and extra namespaces.
+     */
+    @Test
+    public void testHeader() throws Exception {
+        System.out.println("header");
+        WsdSOAPWriter instance = new WsdSOAPWriter();
+        WsdSOAPMessage m = createMessage(WsaActionType.PROBEMATCHES);
+        Relationship r = WsDiscoveryConstants.XMLBUILDER.createRelationship("urn:a&b<c>");
+        r.setRelationshipType(WsDiscoveryConstants.defaultProxyRelatesToRelationship);
+        m.setWsaRelatesTo(r);
+        m.setWsaTo(WsDiscoveryConstants.XMLBUILDER.createAttributedURI("http://example.org/\"x\"/æ"));
+        WsDiscoveryService replyTo = createService(3);
+        m.setWsaReplyTo(replyTo.createEndpointReferenceObject());
+        m.addNamespace("ex", new URI("http://example.org/"));
+
+        WsdSOAPMessage p = parse(instance.toByteArray(m));
+        assertEquals("urn:a&b<c>", p.getWsaRelatesTo().getValue());
+        assertEquals(WsDiscoveryConstants.defaultProxyRelatesToRelationship, p.getWsaRelatesTo().getRelationshipType());
+        assertEquals("http://example.org/\"x\"/æ", p.getWsaTo().getValue());
+        assertEquals(replyTo.getEndpointReference(), p.getWsaReplyTo().getAddress().getValue());
+        assertEquals(new URI("http://example.org/"), p.getNamespaces().get("ex"));
+        assertEquals(2, ((ProbeMatchesType)p.getJAXBBody()).getProbeMatch().size());
+
+        r.setRelationshipType(new QName("http://example.org/", "Other"));
+        p = parse(instance.toByteArray(m));
+        assertEquals(new QName("http://example.org/", "Other"), p.getWsaRelatesTo().getRelationshipType());
+    }
+
+    /**
+     * The buffer grows to fit large messages and is reused.
+     */
+    @Test
+    public void testBuffer() throws Exception {
+        System.out.println("buffer");
+        WsdSOAPWriter instance = new WsdSOAPWriter();
+        WsdSOAPMessage<ProbeMatchesType> m = WsDiscoveryConstants.SOAPBUILDER.createWsdSOAPMessageProbeMatches();
+        for (int i = 0; i < 100; i++)
+            m.getJAXBBody().getProbeMatch().add(createService(i).createProbeMatchObject());
+
+        ByteBuffer b = instance.write(m);
+        assertTrue(b.remaining() > 4096);
+        assertTrue(instance.getCapacity() >= b.remaining());
+        assertEquals(0, b.position());
+        byte[] data = new byte[b.remaining()];
+        b.get(data);
+        assertEquals(100, ((ProbeMatchesType)parse(data).getJAXBBody()).getProbeMatch().size());
+
+        int capacity = instance.getCapacity();
+        assertSame(b, instance.write(createMessage(WsaActionType.HELLO)));
+        assertEquals(capacity, instance.getCapacity());
+    }
+}